@@ -133,9 +133,17 @@ public class CollectGcBiasMetrics extends SinglePassSamProgram {
     @Option(shortName = "LEVEL", doc = "The level(s) at which to accumulate metrics.")
     public Set<MetricAccumulationLevel> METRIC_ACCUMULATION_LEVEL = CollectionUtil.makeSet(MetricAccumulationLevel.ALL_READS);
 
+    @Option(doc = "A file caching the GC of every window of the reference for this SCAN_WINDOW_SIZE, so that the reference " +
+            "need not be rescanned on every run.  If the file does not exist it is built from the reference.  The reference " +
+            "must have a sequence dictionary, against which the cache is validated.", optional = true)
+    public File GC_WINDOW_CACHE;
+
     // Calculates GcBiasMetrics for all METRIC_ACCUMULATION_LEVELs provided
     private GcBiasMetricsCollector multiCollector;
 
+    // Non-null if GC_WINDOW_CACHE is in use
+    private GcWindowCache gcWindowCache;
+
     // Bins for the histograms to track the number of windows at each GC, and the number of read starts
     // at bins of each GC %. Need 101 to get from 0-100.
     private static final int BINS = 101;
@@ -158,11 +166,18 @@ public class CollectGcBiasMetrics extends SinglePassSamProgram {
         IOUtil.assertFileIsWritable(SUMMARY_OUTPUT);
         IOUtil.assertFileIsReadable(REFERENCE_SEQUENCE);
 
-        //Calculate windowsByGc for the reference sequence
-        final int[] windowsByGc = GcBiasUtils.calculateRefWindowsByGc(BINS, REFERENCE_SEQUENCE, SCAN_WINDOW_SIZE);
+        //Calculate windowsByGc for the reference sequence, or read it from the cache
+        final int[] windowsByGc;
+        if (GC_WINDOW_CACHE != null) {
+            gcWindowCache = GcWindowCache.openOrCreate(GC_WINDOW_CACHE, REFERENCE_SEQUENCE, SCAN_WINDOW_SIZE, BINS);
+            windowsByGc = gcWindowCache.getWindowsByGc();
+        } else {
+            windowsByGc = GcBiasUtils.calculateRefWindowsByGc(BINS, REFERENCE_SEQUENCE, SCAN_WINDOW_SIZE);
+        }
 
         //Delegate actual collection to GcBiasMetricCollector
-        multiCollector = new GcBiasMetricsCollector(METRIC_ACCUMULATION_LEVEL, windowsByGc, header.getReadGroups(), SCAN_WINDOW_SIZE, IS_BISULFITE_SEQUENCED);
+        multiCollector = new GcBiasMetricsCollector(METRIC_ACCUMULATION_LEVEL, windowsByGc, header.getReadGroups(), SCAN_WINDOW_SIZE,
+                IS_BISULFITE_SEQUENCED, gcWindowCache);
     }
 
     ////////////////////////////////////////////////////////////////////////////
@@ -179,6 +194,7 @@ public class CollectGcBiasMetrics extends SinglePassSamProgram {
     @Override
     protected void finish() {
         multiCollector.finish();
+        if (gcWindowCache != null) gcWindowCache.close();
         final MetricsFile<GcBiasMetrics, Integer> file = getMetricsFile();
         final MetricsFile<GcBiasDetailMetrics, ?> detailMetricsFile = getMetricsFile();
         final MetricsFile<GcBiasSummaryMetrics, ?> summaryMetricsFile = getMetricsFile();
@@ -345,6 +345,10 @@ public class CollectMultipleMetrics extends CommandLineProgram {
             "by some PROGRAMs, PROGRAMS whose CLP doesn't allow for this argument will quetly ignore it.", optional = true)
     public File DB_SNP;
 
+    @Option(doc = "The number of threads to use to run the PROGRAMs. Records are read on the main thread and the PROGRAMs " +
+            "are divided among up to this many worker threads. With a value of 1 all work is done on a single thread.")
+    public int THREADS = 1;
+
     /**
      * Contents of PROGRAM set is transferred to this set during command-line validation, so that an outside
      * developer can invoke this class programmatically and provide alternative Programs to run by calling
@@ -364,6 +368,9 @@ public class CollectMultipleMetrics extends CommandLineProgram {
         if (PROGRAM.isEmpty()) {
             return new String[]{"No programs specified with PROGRAM"};
         }
+        if (THREADS < 1) {
+            return new String[]{"THREADS must be at least 1"};
+        }
         programsToRun = new LinkedHashSet<>(PROGRAM);
 
         return super.customCommandLineValidation();
@@ -406,7 +413,7 @@ public class CollectMultipleMetrics extends CommandLineProgram {
 
             programs.add(instance);
         }
-        SinglePassSamProgram.makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, programs);
+        SinglePassSamProgram.makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, programs, THREADS);
 
         return 0;
     }
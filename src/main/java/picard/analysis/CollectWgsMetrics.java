@@ -24,6 +24,7 @@
 package picard.analysis;
 
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.filter.SamRecordFilter;
@@ -32,14 +33,17 @@ import htsjdk.samtools.metrics.MetricBase;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.reference.ReferenceSequence;
 import htsjdk.samtools.reference.ReferenceSequenceFileWalker;
+import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.Histogram;
 import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.IntervalList;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.util.QualityUtil;
 import htsjdk.samtools.util.SamLocusIterator;
 import htsjdk.samtools.util.SequenceUtil;
+import picard.PicardException;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
@@ -55,6 +59,11 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.stream.IntStream;
 
 /**
@@ -128,6 +137,15 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
             optional = true, overridable = true)
     public File INTERVALS = null;
 
+    @Option(doc = "The number of threads to use. When greater than one, each contig is processed independently, using the " +
+            "index of the input, and the results are combined; they are identical to those of a single thread. Requires an " +
+            "indexed, coordinate sorted input, otherwise a single thread is used. STOP_AFTER also forces a single thread.")
+    public int THREADS = 1;
+
+    @Option(doc = "If true, count coverage by walking the alignment of each read into an array of depths rather than building " +
+            "a pileup at every locus. The metrics are identical, but are collected much faster. Not used with STOP_AFTER.")
+    public boolean USE_FAST_ALGORITHM = false;
+
     private SAMFileHeader header = null;
 
     private final Log log = Log.getInstance(CollectWgsMetrics.class);
@@ -218,31 +236,58 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
         }
 
         // Setup all the inputs
-        final ProgressLogger progress = new ProgressLogger(log, 10000000, "Processed", "loci");
-        final ReferenceSequenceFileWalker refWalker = new ReferenceSequenceFileWalker(REFERENCE_SEQUENCE);
         final SamReader in = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(INPUT);
-        final SamLocusIterator iterator = getLocusIterator(in);
         this.header = in.getFileHeader();
 
-        final List<SamRecordFilter> filters = new ArrayList<>();
         final CountingFilter dupeFilter = new CountingDuplicateFilter();
         final CountingFilter mapqFilter = new CountingMapQFilter(MINIMUM_MAPPING_QUALITY);
         final CountingPairedFilter pairFilter = new CountingPairedFilter();
-        // The order in which filters are added matters!
-        filters.add(new SecondaryAlignmentFilter()); // Not a counting filter because we never want to count reads twice
-        filters.add(mapqFilter);
-        filters.add(dupeFilter);
-        if (!COUNT_UNPAIRED) {
-            filters.add(pairFilter);
+        final WgsMetricsCollector collector = getCollector(COVERAGE_CAP);
+
+        if (THREADS > 1 && STOP_AFTER <= 0 && in.hasIndex()) {
+            CloserUtil.close(in);
+            collectByContig(collector, dupeFilter, mapqFilter, pairFilter);
+        } else {
+            if (THREADS > 1) log.warn("Using a single thread since the input is not indexed or STOP_AFTER was given.");
+            collect(in, collector, dupeFilter, mapqFilter, pairFilter);
         }
-        iterator.setSamFilters(filters);
-        iterator.setEmitUncoveredLoci(true);
-        iterator.setMappingQualityScoreCutoff(0); // Handled separately because we want to count bases
-        iterator.setQualityScoreCutoff(0);        // Handled separately because we want to count bases
-        iterator.setIncludeNonPfReads(false);
-        iterator.setMaxReadsToAccumulatePerLocus(LOCUS_ACCUMULATION_CAP);
 
-        final WgsMetricsCollector collector = getCollector(COVERAGE_CAP);
+        final MetricsFile<WgsMetrics, Integer> out = getMetricsFile();
+        collector.addToMetricsFile(out, INCLUDE_BQ_HISTOGRAM, dupeFilter, mapqFilter, pairFilter);
+        out.write(OUTPUT);
+
+        return 0;
+    }
+
+    @Override
+    protected String[] customCommandLineValidation() {
+        if (THREADS < 1) {
+            return new String[]{"THREADS must be at least 1"};
+        }
+        return super.customCommandLineValidation();
+    }
+
+    /**
+     * Runs a single locus iterator over everything to be assessed, adding each locus to the collector, or counts the
+     * coverage of each read directly if USE_FAST_ALGORITHM is set.
+     */
+    private void collect(final SamReader in, final WgsMetricsCollector collector, final CountingFilter dupeFilter,
+                         final CountingFilter mapqFilter, final CountingPairedFilter pairFilter) {
+        final ReferenceSequenceFileWalker refWalker = new ReferenceSequenceFileWalker(REFERENCE_SEQUENCE);
+
+        if (USE_FAST_ALGORITHM && STOP_AFTER <= 0) {
+            final ProgressLogger progress = new ProgressLogger(log, 10000000, "Processed", "reads");
+            final IntervalList intervals = getIntervals();
+            new FastWgsCoverageCounter(collector, in.getFileHeader(), intervals, refWalker::get, MINIMUM_BASE_QUALITY,
+                    LOCUS_ACCUMULATION_CAP, progress).count(in, intervals, makeFilters(dupeFilter, mapqFilter, pairFilter));
+            CloserUtil.close(refWalker);
+            CloserUtil.close(in);
+            return;
+        }
+
+        final ProgressLogger progress = new ProgressLogger(log, 10000000, "Processed", "loci");
+        final SamLocusIterator iterator = getLocusIterator(in);
+        setupLocusIterator(iterator, dupeFilter, mapqFilter, pairFilter);
 
         final boolean usingStopAfter = STOP_AFTER > 0;
         final long stopAfter = STOP_AFTER - 1;
@@ -265,12 +310,126 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
             if (usingStopAfter && ++counter > stopAfter) break;
         }
 
+        iterator.close();
+        CloserUtil.close(refWalker);
+        CloserUtil.close(in);
+    }
 
-        final MetricsFile<WgsMetrics, Integer> out = getMetricsFile();
-        collector.addToMetricsFile(out, INCLUDE_BQ_HISTOGRAM, dupeFilter, mapqFilter, pairFilter);
-        out.write(OUTPUT);
+    /**
+     * Splits everything to be assessed by contig and runs a separate locus iterator, filters and collector over each
+     * contig on THREADS threads. The counts from each contig are then added to the given collector and filters. Since
+     * every read is only seen by the iterator of the contig it is aligned to, the combined counts are exactly those of
+     * a single iterator over everything.
+     */
+    private void collectByContig(final WgsMetricsCollector collector, final CountingFilter dupeFilter,
+                                 final CountingFilter mapqFilter, final CountingPairedFilter pairFilter) {
+        final IntervalList intervals = getIntervals();
+        final ReferenceSequenceFileWalker refWalker = new ReferenceSequenceFileWalker(REFERENCE_SEQUENCE);
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        // Limits the number of contigs whose reference sequence is held in memory at once
+        final Semaphore contigsInFlight = new Semaphore(THREADS * 2);
+        final List<Future<ContigResult>> results = new ArrayList<>();
+
+        try {
+            for (final SAMSequenceRecord sequence : this.header.getSequenceDictionary().getSequences()) {
+                final IntervalList contigIntervals = new IntervalList(this.header);
+                if (intervals == null) {
+                    contigIntervals.add(new Interval(sequence.getSequenceName(), 1, sequence.getSequenceLength()));
+                } else {
+                    intervals.getIntervals().stream()
+                            .filter(interval -> interval.getContig().equals(sequence.getSequenceName()))
+                            .forEach(contigIntervals::add);
+                    if (contigIntervals.size() == 0) continue;
+                }
 
-        return 0;
+                contigsInFlight.acquire();
+                final ReferenceSequence ref = refWalker.get(sequence.getSequenceIndex());
+                results.add(executor.submit(() -> {
+                    try {
+                        return collectContig(contigIntervals, ref);
+                    } finally {
+                        contigsInFlight.release();
+                    }
+                }));
+            }
+
+            for (final Future<ContigResult> future : results) {
+                final ContigResult result = future.get();
+                collector.addAll(result.collector);
+                dupeFilter.addCounts(result.dupeFilter);
+                mapqFilter.addCounts(result.mapqFilter);
+                pairFilter.addCounts(result.pairFilter);
+            }
+        } catch (final InterruptedException e) {
+            throw new PicardException("Interrupted while collecting metrics", e);
+        } catch (final ExecutionException e) {
+            throw new PicardException("Error while collecting metrics: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+            CloserUtil.close(refWalker);
+        }
+    }
+
+    /** Counts the coverage over the intervals on a single contig, with its own filters and collector. */
+    private ContigResult collectContig(final IntervalList contigIntervals, final ReferenceSequence ref) {
+        final ContigResult result = new ContigResult();
+        final SamReader in = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(INPUT);
+
+        if (USE_FAST_ALGORITHM) {
+            new FastWgsCoverageCounter(result.collector, in.getFileHeader(), contigIntervals, index -> ref, MINIMUM_BASE_QUALITY,
+                    LOCUS_ACCUMULATION_CAP, null).count(in, contigIntervals, makeFilters(result.dupeFilter, result.mapqFilter, result.pairFilter));
+            CloserUtil.close(in);
+            log.info("Processed contig " + ref.getName());
+            return result;
+        }
+
+        final SamLocusIterator iterator = new SamLocusIterator(in, contigIntervals);
+        setupLocusIterator(iterator, result.dupeFilter, result.mapqFilter, result.pairFilter);
+
+        final byte[] bases = ref.getBases();
+        while (iterator.hasNext()) {
+            final SamLocusIterator.LocusInfo info = iterator.next();
+            if (SequenceUtil.isNoCall(bases[info.getPosition() - 1])) continue;
+            result.collector.addInfo(info, ref);
+        }
+
+        iterator.close();
+        CloserUtil.close(in);
+        log.info("Processed contig " + ref.getName());
+        return result;
+    }
+
+    /** The collector and counting filters used for a single contig. */
+    private class ContigResult {
+        final WgsMetricsCollector collector = new WgsMetricsCollector(COVERAGE_CAP);
+        final CountingFilter dupeFilter = new CountingDuplicateFilter();
+        final CountingFilter mapqFilter = new CountingMapQFilter(MINIMUM_MAPPING_QUALITY);
+        final CountingPairedFilter pairFilter = new CountingPairedFilter();
+    }
+
+    /** Adds the filters to the locus iterator and sets it up to pass all bases to the collector. */
+    private void setupLocusIterator(final SamLocusIterator iterator, final CountingFilter dupeFilter,
+                                    final CountingFilter mapqFilter, final CountingPairedFilter pairFilter) {
+        iterator.setSamFilters(makeFilters(dupeFilter, mapqFilter, pairFilter));
+        iterator.setEmitUncoveredLoci(true);
+        iterator.setMappingQualityScoreCutoff(0); // Handled separately because we want to count bases
+        iterator.setQualityScoreCutoff(0);        // Handled separately because we want to count bases
+        iterator.setIncludeNonPfReads(false);
+        iterator.setMaxReadsToAccumulatePerLocus(LOCUS_ACCUMULATION_CAP);
+    }
+
+    /** Returns the filters through which reads must pass to contribute coverage. */
+    private List<SamRecordFilter> makeFilters(final CountingFilter dupeFilter, final CountingFilter mapqFilter,
+                                              final CountingPairedFilter pairFilter) {
+        final List<SamRecordFilter> filters = new ArrayList<>();
+        // The order in which filters are added matters!
+        filters.add(new SecondaryAlignmentFilter()); // Not a counting filter because we never want to count reads twice
+        filters.add(mapqFilter);
+        filters.add(dupeFilter);
+        if (!COUNT_UNPAIRED) {
+            filters.add(pairFilter);
+        }
+        return filters;
     }
 
     protected SAMFileHeader getSamFileHeader() {
@@ -290,7 +449,13 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
     }
 
     protected SamLocusIterator getLocusIterator(final SamReader in) {
-        return (INTERVALS != null) ? new SamLocusIterator(in, IntervalList.fromFile(INTERVALS)) : new SamLocusIterator(in);
+        final IntervalList intervals = getIntervals();
+        return (intervals != null) ? new SamLocusIterator(in, intervals) : new SamLocusIterator(in);
+    }
+
+    /** Returns the intervals to restrict the assessment to, or null to assess the whole genome. */
+    protected IntervalList getIntervals() {
+        return (INTERVALS != null) ? IntervalList.fromFile(INTERVALS) : null;
     }
 
     protected WgsMetricsCollector getCollector(final int coverageCap) {
@@ -324,17 +489,45 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
                         SequenceUtil.isNoCall(recs.getReadBase()))                  { ++basesExcludedByBaseq;   continue; }
                 if (!readNames.add(recs.getRecord().getReadName()))                 { ++basesExcludedByOverlap; continue; }
 
-                pileupSize++;
-                if (pileupSize <= coverageCap) {
-                    baseQHistogramArray[recs.getRecord().getBaseQualities()[recs.getOffset()]]++;
-                }
+                addPileupBase(++pileupSize, recs.getRecord().getBaseQualities()[recs.getOffset()]);
+            }
+
+            addLocus(pileupSize);
+        }
+
+        /** Counts a base excluded from the pileup of a locus because of its quality. */
+        void addBaseQualityExclusion() {
+            ++basesExcludedByBaseq;
+        }
+
+        /** Counts a base excluded from the pileup of a locus because another read of the same template was already counted there. */
+        void addOverlapExclusion() {
+            ++basesExcludedByOverlap;
+        }
+
+        /** Counts the quality of a base added to the pileup of a locus, given the size of the pileup including that base. */
+        void addPileupBase(final int pileupSize, final byte quality) {
+            if (pileupSize <= coverageCap) {
+                baseQHistogramArray[quality]++;
             }
+        }
 
+        /** Counts a locus, once every base in its pileup has been added, given the size of the pileup. */
+        void addLocus(final int pileupSize) {
             final int depth = Math.min(pileupSize, coverageCap);
             if (depth < pileupSize) basesExcludedByCapping += pileupSize - coverageCap;
             depthHistogramArray[depth]++;
         }
 
+        /** Adds the counts of another collector, e.g. one that assessed a different part of the genome, to this one. */
+        public void addAll(final WgsMetricsCollector other) {
+            for (int i = 0; i < depthHistogramArray.length; ++i) depthHistogramArray[i] += other.depthHistogramArray[i];
+            for (int i = 0; i < baseQHistogramArray.length; ++i) baseQHistogramArray[i] += other.baseQHistogramArray[i];
+            basesExcludedByBaseq   += other.basesExcludedByBaseq;
+            basesExcludedByOverlap += other.basesExcludedByOverlap;
+            basesExcludedByCapping += other.basesExcludedByCapping;
+        }
+
         public void addToMetricsFile(final MetricsFile<WgsMetrics, Integer> file,
                                      final boolean includeBQHistogram,
                                      final CountingFilter dupeFilter,
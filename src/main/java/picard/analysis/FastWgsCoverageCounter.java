@@ -0,0 +1,303 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.analysis;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.filter.AggregateFilter;
+import htsjdk.samtools.filter.FilteringSamIterator;
+import htsjdk.samtools.filter.SamRecordFilter;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.util.IntervalList;
+import htsjdk.samtools.util.IntervalListReferenceSequenceMask;
+import htsjdk.samtools.util.ProgressLogger;
+import htsjdk.samtools.util.ReferenceSequenceMask;
+import htsjdk.samtools.util.SamRecordIntervalIteratorFactory;
+import htsjdk.samtools.util.SequenceUtil;
+import htsjdk.samtools.util.WholeGenomeReferenceSequenceMask;
+import picard.PicardException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.IntFunction;
+
+/**
+ * Counts coverage for CollectWgsMetrics and its subclasses without building a pileup at every locus. Each read's
+ * alignment blocks are walked directly into circular arrays holding the pileup size of every position from the first
+ * position not yet counted to the end of the furthest read, and a position is added to the collector once reads no
+ * longer start at or before it.
+ *
+ * The counts are identical to those of a SamLocusIterator set up as in CollectWgsMetrics, with uncovered loci emitted,
+ * no mapping or base quality cutoffs and non-PF reads excluded: reads are read from the same iterator and filters,
+ * skipped past the same locus accumulation cap, and counted at a position in the same order as they would appear in the
+ * pileup of that position, so that the same bases are excluded as overlapping or beyond the coverage cap.
+ */
+class FastWgsCoverageCounter {
+    private static final int INITIAL_WINDOW_SIZE = 1024;
+
+    private final CollectWgsMetrics.WgsMetricsCollector collector;
+    private final SAMFileHeader header;
+    private final ReferenceSequenceMask mask;
+    private final IntFunction<ReferenceSequence> referenceSequences;
+    private final int minimumBaseQuality;
+    private final int locusAccumulationCap;
+    private final ProgressLogger progress;
+
+    /** The contig being counted, whether any of its positions are assessed, and if so its reference bases. */
+    private int contig = -1;
+    private boolean contigInMask = false;
+    private byte[] refBases = null;
+
+    /** The first position of the contig not yet added to the collector, and the last position covered by any read. */
+    private int windowStart = 1;
+    private int windowEnd = 0;
+
+    /**
+     * Circular arrays, indexed by position modulo their size, of the pileup size at each position and of the number of
+     * reads accumulated at each position before excluding any bases. Their size is always a power of two.
+     */
+    private int[] pileupSizes = new int[INITIAL_WINDOW_SIZE];
+    private int[] readCounts = new int[INITIAL_WINDOW_SIZE];
+    private int windowMask = INITIAL_WINDOW_SIZE - 1;
+
+    /** The reads that may still overlap reads of the same name that are yet to come, by name and by alignment end. */
+    private final Map<String, List<PassingBases>> activeReadsByName = new HashMap<>();
+    private final PriorityQueue<PassingBases> activeReadsByEnd = new PriorityQueue<>(Comparator.comparingInt(r -> r.end));
+
+    /**
+     * @param collector          the collector to add the counts to
+     * @param header             the header of the input
+     * @param intervals          the intervals to assess, or null to assess the whole genome
+     * @param referenceSequences provides the reference sequence of a contig, given its index; it is called for
+     *                           increasing indexes only, and only for contigs with positions to assess
+     * @param minimumBaseQuality the minimum base quality for a base to contribute coverage
+     * @param locusAccumulationCap reads starting at a position already covered by this many reads are ignored
+     * @param progress           logs the progress through the reads, or null
+     */
+    FastWgsCoverageCounter(final CollectWgsMetrics.WgsMetricsCollector collector,
+                           final SAMFileHeader header,
+                           final IntervalList intervals,
+                           final IntFunction<ReferenceSequence> referenceSequences,
+                           final int minimumBaseQuality,
+                           final int locusAccumulationCap,
+                           final ProgressLogger progress) {
+        if (header.getSortOrder() != null && header.getSortOrder() != SAMFileHeader.SortOrder.unsorted &&
+                header.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+            throw new PicardException("Cannot count coverage of a SAM file that is not coordinate sorted.");
+        }
+        this.collector = collector;
+        this.header = header;
+        this.mask = (intervals != null) ? new IntervalListReferenceSequenceMask(intervals) : new WholeGenomeReferenceSequenceMask(header);
+        this.referenceSequences = referenceSequences;
+        this.minimumBaseQuality = minimumBaseQuality;
+        this.locusAccumulationCap = locusAccumulationCap;
+        this.progress = progress;
+    }
+
+    /**
+     * Counts the coverage of the reads that pass the filters, reading them as SamLocusIterator would: by querying the
+     * intervals if given, using the index if there is one, and otherwise reading the whole input.
+     */
+    void count(final SamReader in, final IntervalList intervals, final List<SamRecordFilter> filters) {
+        final Iterator<SAMRecord> records = (intervals != null)
+                ? new SamRecordIntervalIteratorFactory().makeSamRecordIntervalIterator(in, intervals.uniqued().getIntervals(), in.hasIndex())
+                : in.iterator();
+        final FilteringSamIterator iterator = new FilteringSamIterator(records, new AggregateFilter(filters));
+
+        while (iterator.hasNext()) {
+            final SAMRecord record = iterator.next();
+            if (record.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) break; // only unplaced reads remain
+            addRecord(record);
+        }
+        iterator.close();
+
+        finish();
+    }
+
+    /** Adds the coverage of a read. Reads must be added in coordinate order. */
+    void addRecord(final SAMRecord record) {
+        if (record.getReadUnmappedFlag() || record.getReadFailsVendorQualityCheckFlag()) return;
+
+        final int start = record.getAlignmentStart();
+        final int end = record.getAlignmentEnd();
+        advanceTo(record.getReferenceIndex(), start);
+
+        // Ignore the read if enough reads have already accumulated at its start
+        if (start <= windowEnd && readCounts[start & windowMask] >= locusAccumulationCap) return;
+
+        ensureWindowCovers(end);
+        windowEnd = Math.max(windowEnd, end);
+        if (progress != null) progress.record(record);
+
+        final String name = record.getReadName();
+        final List<PassingBases> sameName = activeReadsByName.get(name);
+        final PassingBases passing = new PassingBases(name, start, end);
+        final byte[] bases = record.getReadBases();
+        final byte[] quals = record.getBaseQualities();
+
+        for (final AlignmentBlock block : record.getAlignmentBlocks()) {
+            final int readStart = block.getReadStart() - 1;
+            final int refStart = block.getReferenceStart();
+            for (int i = 0; i < block.getLength(); ++i) {
+                final int position = refStart + i;
+                final int offset = readStart + i;
+                final int index = position & windowMask;
+                readCounts[index]++;
+
+                final boolean passes = quals[offset] >= minimumBaseQuality && !SequenceUtil.isNoCall(bases[offset]);
+                if (passes) passing.bases[position - start] = true;
+                if (!isAssessed(position)) continue;
+
+                if (!passes) {
+                    collector.addBaseQualityExclusion();
+                } else if (sameName != null && anyPasses(sameName, position)) {
+                    collector.addOverlapExclusion();
+                } else {
+                    collector.addPileupBase(++pileupSizes[index], quals[offset]);
+                }
+            }
+        }
+
+        activeReadsByName.computeIfAbsent(name, k -> new ArrayList<>(2)).add(passing);
+        activeReadsByEnd.add(passing);
+    }
+
+    /** Adds every remaining position to be assessed to the collector. */
+    void finish() {
+        if (contig >= 0) finishContig();
+        for (int c = contig + 1; c <= mask.getMaxSequenceIndex(); ++c) {
+            startContig(c);
+            finishContig();
+        }
+    }
+
+    /** Adds every position before the given one to the collector, moving on to its contig if necessary. */
+    private void advanceTo(final int contigIndex, final int position) {
+        if (contigIndex != contig) {
+            if (contigIndex < contig) throw new PicardException("Cannot count coverage of a SAM file that is not coordinate sorted.");
+            if (contig >= 0) finishContig();
+            for (int c = contig + 1; c < contigIndex; ++c) {
+                startContig(c);
+                finishContig();
+            }
+            startContig(contigIndex);
+        } else if (position < windowStart) {
+            throw new PicardException("Cannot count coverage of a SAM file that is not coordinate sorted.");
+        }
+
+        flushTo(position);
+
+        // Reads that end before this one starts cannot overlap it or any later read
+        while (!activeReadsByEnd.isEmpty() && activeReadsByEnd.peek().end < position) {
+            final PassingBases read = activeReadsByEnd.poll();
+            final List<PassingBases> sameName = activeReadsByName.get(read.name);
+            sameName.remove(read);
+            if (sameName.isEmpty()) activeReadsByName.remove(read.name);
+        }
+    }
+
+    private void startContig(final int contigIndex) {
+        contig = contigIndex;
+        contigInMask = contigIndex <= mask.getMaxSequenceIndex() && mask.nextPosition(contigIndex, 0) != -1;
+        refBases = contigInMask ? referenceSequences.apply(contigIndex).getBases() : null;
+        windowStart = 1;
+        windowEnd = 0;
+        activeReadsByName.clear();
+        activeReadsByEnd.clear();
+    }
+
+    private void finishContig() {
+        flushTo(Math.max(header.getSequence(contig).getSequenceLength(), windowEnd) + 1);
+    }
+
+    /** Adds the positions from the start of the window up to, but not including, the given one to the collector. */
+    private void flushTo(final int position) {
+        for (int p = windowStart; p < position; ++p) {
+            int pileupSize = 0;
+            if (p <= windowEnd) {
+                final int index = p & windowMask;
+                pileupSize = pileupSizes[index];
+                pileupSizes[index] = 0;
+                readCounts[index] = 0;
+            }
+            if (isAssessed(p)) collector.addLocus(pileupSize);
+        }
+        windowStart = Math.max(windowStart, position);
+    }
+
+    /** Grows the circular arrays, if necessary, so that they hold every position from the start of the window to the given one. */
+    private void ensureWindowCovers(final int position) {
+        final int required = position - windowStart + 1;
+        if (required <= pileupSizes.length) return;
+
+        int size = pileupSizes.length;
+        while (size < required) size *= 2;
+        final int[] newPileupSizes = new int[size];
+        final int[] newReadCounts = new int[size];
+        for (int p = windowStart; p <= windowEnd; ++p) {
+            newPileupSizes[p & (size - 1)] = pileupSizes[p & windowMask];
+            newReadCounts[p & (size - 1)] = readCounts[p & windowMask];
+        }
+        pileupSizes = newPileupSizes;
+        readCounts = newReadCounts;
+        windowMask = size - 1;
+    }
+
+    /** True if the position on the current contig is to be assessed, i.e. it is in the intervals and its reference base is not N. */
+    private boolean isAssessed(final int position) {
+        return contigInMask &&
+                position <= refBases.length &&
+                mask.get(contig, position) &&
+                !SequenceUtil.isNoCall(refBases[position - 1]);
+    }
+
+    private static boolean anyPasses(final List<PassingBases> reads, final int position) {
+        for (final PassingBases read : reads) {
+            if (position >= read.start && position <= read.end && read.bases[position - read.start]) return true;
+        }
+        return false;
+    }
+
+    /** The positions at which an earlier read had a base good enough to be counted, for excluding overlapping reads of the same name. */
+    private static class PassingBases {
+        final String name;
+        final int start;
+        final int end;
+        final boolean[] bases;
+
+        PassingBases(final String name, final int start, final int end) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.bases = new boolean[end - start + 1];
+        }
+    }
+}
@@ -35,6 +35,7 @@ import picard.metrics.GcBiasMetrics;
 import picard.metrics.MultiLevelCollector;
 import picard.metrics.PerUnitMetricCollector;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -53,15 +54,24 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
     private static final int BINS = 101;
 
     //will hold the relevant gc information per contig
-    private byte [] gc = null;
+    private ByteBuffer gc = null;
     private int referenceIndex = -1;
     private byte [] refBases = null;
+    //if non-null, the source of the per-contig gc information in place of calculating it
+    private final GcWindowCache gcWindowCache;
 
     public GcBiasMetricsCollector(final Set<MetricAccumulationLevel> accumulationLevels, final int[] windowsByGc,
                                   final List<SAMReadGroupRecord> samRgRecords, final int scanWindowSize, final boolean bisulfite) {
+        this(accumulationLevels, windowsByGc, samRgRecords, scanWindowSize, bisulfite, null);
+    }
+
+    public GcBiasMetricsCollector(final Set<MetricAccumulationLevel> accumulationLevels, final int[] windowsByGc,
+                                  final List<SAMReadGroupRecord> samRgRecords, final int scanWindowSize, final boolean bisulfite,
+                                  final GcWindowCache gcWindowCache) {
         this.scanWindowSize = scanWindowSize;
         this.bisulfite = bisulfite;
         this.windowsByGc = windowsByGc;
+        this.gcWindowCache = gcWindowCache;
         setup(accumulationLevels, samRgRecords);
     }
     /////////////////////////////////////////////////////////////////////////////
@@ -130,9 +140,13 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
                     final ReferenceSequence ref = args.getRef();
                     refBases = ref.getBases();
                     StringUtil.toUpperCase(refBases);
-                    final int refLength = refBases.length;
-                    final int lastWindowStart = refLength - scanWindowSize;
-                    gc = GcBiasUtils.calculateAllGcs(refBases, lastWindowStart, scanWindowSize);
+                    if (gcWindowCache != null) {
+                        gc = gcWindowCache.getGcs(ref.getName());
+                    } else {
+                        final int refLength = refBases.length;
+                        final int lastWindowStart = refLength - scanWindowSize;
+                        gc = ByteBuffer.wrap(GcBiasUtils.calculateAllGcs(refBases, lastWindowStart, scanWindowSize));
+                    }
                     referenceIndex=rec.getReferenceIndex();
                 }
 
@@ -320,12 +334,12 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
     //Adds each read to the appropriate gcObj which is determined in acceptRecord above
     //Also calculates values for calculating GC Bias at each level
     /////////////////////////////////////////////////////////////////////////////
-     private void addRead(final GcObject gcObj, final SAMRecord rec, final String group, final byte[] gc, final byte[] refBases) {
+     private void addRead(final GcObject gcObj, final SAMRecord rec, final String group, final ByteBuffer gc, final byte[] refBases) {
         if (!rec.getReadPairedFlag() || rec.getFirstOfPairFlag()) ++gcObj.totalClusters;
         final int pos = rec.getReadNegativeStrandFlag() ? rec.getAlignmentEnd() - scanWindowSize : rec.getAlignmentStart();
         ++gcObj.totalAlignedReads;
         if (pos > 0) {
-            final int windowGc = gc[pos];
+            final int windowGc = gc.get(pos);
             if (windowGc >= 0) {
                 ++gcObj.readsByGc[windowGc];
                 gcObj.basesByGc[windowGc] += rec.getReadLength();
@@ -0,0 +1,289 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.analysis;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.samtools.util.StringUtil;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A file caching, for one reference and scan window size, the GC of the window starting at every position of every
+ * contig (as computed by {@link GcBiasUtils#calculateAllGcs}) along with the number of windows at each GC (as computed
+ * by {@link GcBiasUtils#calculateRefWindowsByGc}).  The cache is built by a single scan of the reference the first
+ * time it is needed, and thereafter each contig's GCs are memory-mapped from the file when first requested, so that
+ * repeated runs against the same reference do not rescan it.
+ * <p/>
+ * The cache is keyed by the reference's sequence dictionary (names, lengths and MD5s), the window size, the number of
+ * GC bins and a format version, all of which are stored in the file's header and checked when it is opened.
+ * <p/>
+ * File layout (big-endian): magic, version, window size, number of bins, the windows-by-GC histogram, the number of
+ * contigs and for each its name, length and MD5 (empty if absent from the dictionary), followed by each contig's GCs
+ * in dictionary order, one byte per position for positions 0 through length inclusive.
+ */
+public class GcWindowCache implements Closeable {
+    private static final Log log = Log.getInstance(GcWindowCache.class);
+
+    private static final int MAGIC = 0x47435743; // "GCWC"
+    static final int VERSION = 1;
+    /** The offset of the histogram in the file, after the magic, version, window size and number of bins. */
+    private static final int HISTOGRAM_OFFSET = 16;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final int[] windowsByGc;
+    private final Map<String, Integer> contigIndices = new HashMap<String, Integer>();
+    private final long[] contigOffsets;
+    private final int[] contigLengths;
+    private final ByteBuffer[] mappedGcs;
+
+    private GcWindowCache(final File file, final SAMSequenceDictionary dictionary, final int windowSize, final int bins) throws IOException {
+        this.file = file;
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        final long headerLength;
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new PicardException(file.getAbsolutePath() + " is not a GC window cache.");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new PicardException(String.format("GC window cache %s has version %d, but version %d is required. Delete it to rebuild it.",
+                        file.getAbsolutePath(), version, VERSION));
+            }
+            final int cachedWindowSize = in.readInt();
+            final int cachedBins = in.readInt();
+            if (cachedWindowSize != windowSize || cachedBins != bins) {
+                throw new PicardException(String.format("GC window cache %s was built for a window size of %d, not %d.",
+                        file.getAbsolutePath(), cachedWindowSize, windowSize));
+            }
+            this.windowsByGc = new int[bins];
+            for (int i = 0; i < bins; ++i) windowsByGc[i] = in.readInt();
+
+            final List<SAMSequenceRecord> sequences = dictionary.getSequences();
+            final int numContigs = in.readInt();
+            if (numContigs != sequences.size()) {
+                throw mismatchedReference(file);
+            }
+            this.contigLengths = new int[numContigs];
+            for (int i = 0; i < numContigs; ++i) {
+                final SAMSequenceRecord sequence = sequences.get(i);
+                final String name = in.readUTF();
+                final int length = in.readInt();
+                final String md5 = in.readUTF();
+                if (!name.equals(sequence.getSequenceName()) || length != sequence.getSequenceLength() || !md5.equals(md5Of(sequence))) {
+                    throw mismatchedReference(file);
+                }
+                contigIndices.put(name, i);
+                contigLengths[i] = length;
+            }
+            headerLength = headerLength(dictionary, bins);
+        } catch (final EOFException e) {
+            throw new PicardException("GC window cache " + file.getAbsolutePath() + " is truncated. Delete it to rebuild it.", e);
+        } finally {
+            CloserUtil.close(in);
+        }
+
+        this.contigOffsets = new long[contigLengths.length];
+        long offset = headerLength;
+        for (int i = 0; i < contigLengths.length; ++i) {
+            contigOffsets[i] = offset;
+            offset += contigLengths[i] + 1L;
+        }
+        if (file.length() != offset) {
+            throw new PicardException("GC window cache " + file.getAbsolutePath() + " is truncated. Delete it to rebuild it.");
+        }
+        this.mappedGcs = new ByteBuffer[contigLengths.length];
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+    }
+
+    /**
+     * Opens the GC window cache for the given reference and window size, first building it by scanning the reference
+     * if it does not yet exist.
+     *
+     * @param cacheFile         The cache file to read, or to create if it does not exist.
+     * @param referenceSequence The reference, which must have a sequence dictionary.
+     * @param windowSize        The scan window size.
+     * @param bins              The number of GC bins, i.e. the length of the windows-by-GC histogram.
+     * @throws PicardException If the cache exists but was built for a different reference, window size or version.
+     */
+    public static GcWindowCache openOrCreate(final File cacheFile, final File referenceSequence, final int windowSize, final int bins) {
+        final ReferenceSequenceFile refFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(referenceSequence);
+        try {
+            final SAMSequenceDictionary dictionary = refFile.getSequenceDictionary();
+            if (dictionary == null) {
+                throw new PicardException("A sequence dictionary is required for the reference " + referenceSequence.getAbsolutePath() +
+                        " in order to use a GC window cache.");
+            }
+            if (!cacheFile.exists()) {
+                build(cacheFile, refFile, dictionary, windowSize, bins);
+            } else {
+                log.info("Reading GC windows from " + cacheFile.getAbsolutePath());
+            }
+            return new GcWindowCache(cacheFile, dictionary, windowSize, bins);
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Error accessing GC window cache " + cacheFile.getAbsolutePath(), e);
+        } finally {
+            CloserUtil.close(refFile);
+        }
+    }
+
+    /** Returns the number of windows in the reference at each GC. */
+    public int[] getWindowsByGc() {
+        return windowsByGc;
+    }
+
+    /**
+     * Returns the GC of the window starting at each position of the given contig, indexed by position, as
+     * {@link GcBiasUtils#calculateAllGcs} would.  The contig is memory-mapped the first time it is requested.
+     */
+    public ByteBuffer getGcs(final String contig) {
+        final Integer index = contigIndices.get(contig);
+        if (index == null) {
+            throw new PicardException("Contig " + contig + " is not in the GC window cache " + file.getAbsolutePath());
+        }
+        if (mappedGcs[index] == null) {
+            try {
+                mappedGcs[index] = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, contigOffsets[index], contigLengths[index] + 1L);
+            } catch (final IOException e) {
+                throw new RuntimeIOException("Error mapping contig " + contig + " from GC window cache " + file.getAbsolutePath(), e);
+            }
+        }
+        return mappedGcs[index];
+    }
+
+    @Override
+    public void close() {
+        CloserUtil.close(randomAccessFile);
+    }
+
+    /**
+     * Scans the reference, writing each contig's GCs and accumulating the windows-by-GC histogram.  The cache is
+     * written to a temporary file which is renamed into place once complete, so a failed build leaves no cache behind.
+     */
+    private static void build(final File cacheFile, final ReferenceSequenceFile refFile, final SAMSequenceDictionary dictionary,
+                              final int windowSize, final int bins) throws IOException {
+        log.info("Building GC window cache " + cacheFile.getAbsolutePath());
+        final File tmpFile = new File(cacheFile.getAbsoluteFile().getParentFile(), cacheFile.getName() + ".tmp");
+        IOUtil.assertFileIsWritable(tmpFile);
+
+        final RandomAccessFile out = new RandomAccessFile(tmpFile, "rw");
+        try {
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(windowSize);
+            out.writeInt(bins);
+            // The histogram is rewritten once the whole reference has been scanned
+            for (int i = 0; i < bins; ++i) out.writeInt(0);
+            out.writeInt(dictionary.size());
+            for (final SAMSequenceRecord sequence : dictionary.getSequences()) {
+                out.writeUTF(sequence.getSequenceName());
+                out.writeInt(sequence.getSequenceLength());
+                out.writeUTF(md5Of(sequence));
+            }
+
+            final int[] windowsByGc = new int[bins];
+            ReferenceSequence ref;
+            int contigIndex = 0;
+            while ((ref = refFile.nextSequence()) != null) {
+                final SAMSequenceRecord sequence = contigIndex < dictionary.size() ? dictionary.getSequence(contigIndex) : null;
+                if (sequence == null || !sequence.getSequenceName().equals(ref.getName()) || sequence.getSequenceLength() != ref.length()) {
+                    throw new PicardException("The reference does not match its sequence dictionary at contig " + ref.getName());
+                }
+                final byte[] refBases = ref.getBases();
+                StringUtil.toUpperCase(refBases);
+                final int lastWindowStart = refBases.length - windowSize;
+                final byte[] gc = GcBiasUtils.calculateAllGcs(refBases, lastWindowStart, windowSize);
+                for (int i = 1; i < lastWindowStart; ++i) {
+                    if (gc[i] != -1) windowsByGc[gc[i]]++;
+                }
+                out.write(gc);
+                ++contigIndex;
+            }
+            if (contigIndex != dictionary.size()) {
+                throw new PicardException("The reference has fewer contigs than its sequence dictionary.");
+            }
+
+            out.seek(HISTOGRAM_OFFSET);
+            for (final int windows : windowsByGc) out.writeInt(windows);
+        } finally {
+            out.close();
+        }
+
+        if (!tmpFile.renameTo(cacheFile)) {
+            throw new PicardException("Could not rename " + tmpFile.getAbsolutePath() + " to " + cacheFile.getAbsolutePath());
+        }
+    }
+
+    private static long headerLength(final SAMSequenceDictionary dictionary, final int bins) {
+        long length = HISTOGRAM_OFFSET + 4L * bins + 4;
+        for (final SAMSequenceRecord sequence : dictionary.getSequences()) {
+            length += utfLength(sequence.getSequenceName()) + 4 + utfLength(md5Of(sequence));
+        }
+        return length;
+    }
+
+    /** The number of bytes DataOutput.writeUTF writes for the given string. */
+    private static int utfLength(final String s) {
+        int length = 2;
+        for (int i = 0; i < s.length(); ++i) {
+            final char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) length += 1;
+            else if (c > 0x07FF) length += 3;
+            else length += 2;
+        }
+        return length;
+    }
+
+    private static String md5Of(final SAMSequenceRecord sequence) {
+        final String md5 = sequence.getAttribute(SAMSequenceRecord.MD5_TAG);
+        return md5 == null ? "" : md5;
+    }
+
+    private static PicardException mismatchedReference(final File file) {
+        return new PicardException("GC window cache " + file.getAbsolutePath() +
+                " was built for a different reference sequence dictionary. Delete it to rebuild it.");
+    }
+}
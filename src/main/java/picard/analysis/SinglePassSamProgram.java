@@ -42,8 +42,14 @@ import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Super class that is designed to provide some consistent structure between subclasses that
@@ -68,6 +74,12 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
 
     private static final Log log = Log.getInstance(SinglePassSamProgram.class);
 
+    /** Number of records handed to each worker at a time when running programs in parallel. */
+    static final int PARALLEL_BATCH_SIZE = 1000;
+
+    /** Number of batches that may be queued up for each worker before the reading thread blocks. */
+    static final int PARALLEL_QUEUE_SIZE = 16;
+
     /**
      * Final implementation of doWork() that checks and loads the input and optionally reference
      * sequence files and the runs the sublcass through the setup() acceptRead() and finish() steps.
@@ -83,6 +95,22 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
                                 final boolean assumeSorted,
                                 final long stopAfter,
                                 final Collection<SinglePassSamProgram> programs) {
+        makeItSo(input, referenceSequence, assumeSorted, stopAfter, programs, 1);
+    }
+
+    /**
+     * Runs the given programs over the input in a single pass.  When numThreads is greater than one and there is
+     * more than one program the records are read and decoded on the calling thread and then handed, in batches,
+     * to up to numThreads worker threads, each of which runs its share of the programs.  Each program still sees
+     * every record in file order and on a single thread, so programs need not be thread-safe; setup() and
+     * finish() are always called on the calling thread.
+     */
+    public static void makeItSo(final File input,
+                                final File referenceSequence,
+                                final boolean assumeSorted,
+                                final long stopAfter,
+                                final Collection<SinglePassSamProgram> programs,
+                                final int numThreads) {
 
         // Setup the standard inputs
         IOUtil.assertFileIsReadable(input);
@@ -125,34 +153,37 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
 
 
         final ProgressLogger progress = new ProgressLogger(log);
+        final RecordConsumer consumer = (numThreads > 1 && programs.size() > 1) ?
+                new ParallelRecordConsumer(programs, numThreads) : new SerialRecordConsumer(programs);
 
-        for (final SAMRecord rec : in) {
-            final ReferenceSequence ref;
-            if (walker == null || rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-                ref = null;
-            } else {
-                ref = walker.get(rec.getReferenceIndex());
-            }
+        try {
+            for (final SAMRecord rec : in) {
+                final ReferenceSequence ref;
+                if (walker == null || rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+                    ref = null;
+                } else {
+                    ref = walker.get(rec.getReferenceIndex());
+                }
 
-            for (final SinglePassSamProgram program : programs) {
-                program.acceptRead(rec, ref);
-            }
+                consumer.accept(rec, ref);
 
-            progress.record(rec);
+                progress.record(rec);
 
-            // See if we need to terminate early?
-            if (stopAfter > 0 && progress.getCount() >= stopAfter) {
-                break;
-            }
+                // See if we need to terminate early?
+                if (stopAfter > 0 && progress.getCount() >= stopAfter) {
+                    break;
+                }
 
-            // And see if we're into the unmapped reads at the end
-            if (!anyUseNoRefReads && rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-                break;
+                // And see if we're into the unmapped reads at the end
+                if (!anyUseNoRefReads && rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+                    break;
+                }
             }
+        } finally {
+            consumer.close();
+            CloserUtil.close(in);
         }
 
-        CloserUtil.close(in);
-
         for (final SinglePassSamProgram program : programs) {
             program.finish();
         }
@@ -174,4 +205,177 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
     /** Should be implemented by subclasses to do one-time finalization work. */
     protected abstract void finish();
 
+    /** Receives each record (and its reference, if any) read by makeItSo() and passes it on to the programs. */
+    private interface RecordConsumer {
+        void accept(final SAMRecord rec, final ReferenceSequence ref);
+
+        /** Blocks until every accepted record has been seen by every program. */
+        void close();
+    }
+
+    /** Calls acceptRead() on each program in turn, on the calling thread. */
+    private static class SerialRecordConsumer implements RecordConsumer {
+        private final Collection<SinglePassSamProgram> programs;
+
+        SerialRecordConsumer(final Collection<SinglePassSamProgram> programs) {
+            this.programs = programs;
+        }
+
+        @Override
+        public void accept(final SAMRecord rec, final ReferenceSequence ref) {
+            for (final SinglePassSamProgram program : programs) {
+                program.acceptRead(rec, ref);
+            }
+        }
+
+        @Override
+        public void close() { }
+    }
+
+    /**
+     * Fans batches of records out to a set of worker threads, each of which owns a fixed subset of the programs.
+     * Every worker has its own bounded queue so that a slow program throttles the reader rather than causing
+     * records to pile up in memory.
+     */
+    private static class ParallelRecordConsumer implements RecordConsumer {
+        /** Sentinel batch telling a worker that there is no more input. */
+        private static final Batch END_OF_INPUT = new Batch(0);
+
+        private final List<Worker> workers = new ArrayList<>();
+        private final AtomicReference<Throwable> error = new AtomicReference<>(null);
+        private Batch batch = new Batch(PARALLEL_BATCH_SIZE);
+        private boolean closed = false;
+
+        ParallelRecordConsumer(final Collection<SinglePassSamProgram> programs, final int numThreads) {
+            final int numWorkers = Math.min(numThreads, programs.size());
+            final List<List<SinglePassSamProgram>> assignments = new ArrayList<>();
+            for (int i = 0; i < numWorkers; ++i) assignments.add(new ArrayList<SinglePassSamProgram>());
+
+            int i = 0;
+            for (final SinglePassSamProgram program : programs) {
+                assignments.get(i++ % numWorkers).add(program);
+            }
+
+            log.info("Running " + programs.size() + " programs on " + numWorkers + " worker threads.");
+            for (final List<SinglePassSamProgram> assignment : assignments) {
+                final Worker worker = new Worker(assignment);
+                worker.setDaemon(true);
+                workers.add(worker);
+                worker.start();
+            }
+        }
+
+        @Override
+        public void accept(final SAMRecord rec, final ReferenceSequence ref) {
+            // Force any lazy decoding to happen here, so that the workers only ever read the record.
+            rec.getReadBases();
+            rec.getBaseQualities();
+            rec.getCigar();
+            rec.getAttributes();
+            rec.getAlignmentEnd();
+
+            batch.add(rec, ref);
+            if (batch.isFull()) {
+                dispatch(batch);
+                batch = new Batch(PARALLEL_BATCH_SIZE);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+
+            if (error.get() == null) {
+                if (batch.size() > 0) dispatch(batch);
+                dispatch(END_OF_INPUT);
+            } else {
+                for (final Worker worker : workers) worker.interrupt();
+            }
+
+            for (final Worker worker : workers) {
+                try {
+                    worker.join();
+                } catch (final InterruptedException ie) {
+                    throw new PicardException("Interrupted waiting for metrics worker threads to finish.", ie);
+                }
+            }
+            checkAndRethrow();
+        }
+
+        /** Places the batch on every worker's queue, giving up as soon as any worker has failed. */
+        private void dispatch(final Batch b) {
+            try {
+                for (final Worker worker : workers) {
+                    while (!worker.queue.offer(b, 1, TimeUnit.SECONDS)) {
+                        checkAndRethrow();
+                    }
+                }
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted queueing records for metrics worker threads.", ie);
+            }
+            checkAndRethrow();
+        }
+
+        private void checkAndRethrow() {
+            final Throwable t = error.get();
+            if (t != null) {
+                if (!closed) close();
+                if (t instanceof Error) throw (Error) t;
+                if (t instanceof RuntimeException) throw (RuntimeException) t;
+                throw new PicardException(t.getMessage(), t);
+            }
+        }
+
+        /** Runs acceptRead() for its programs over every batch it is handed, in order. */
+        private class Worker extends Thread {
+            private final List<SinglePassSamProgram> programs;
+            private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(PARALLEL_QUEUE_SIZE);
+
+            Worker(final List<SinglePassSamProgram> programs) {
+                super("SinglePassSamProgramWorker-" + workers.size());
+                this.programs = programs;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    Batch b;
+                    while ((b = queue.take()) != END_OF_INPUT) {
+                        for (int i = 0; i < b.size(); ++i) {
+                            for (final SinglePassSamProgram program : programs) {
+                                program.acceptRead(b.records[i], b.refs[i]);
+                            }
+                        }
+                    }
+                } catch (final InterruptedException ie) {
+                    // Only happens when another worker has already failed and we are being shut down.
+                } catch (final Throwable t) {
+                    error.compareAndSet(null, t);
+                }
+            }
+        }
+    }
+
+    /** A fixed-size block of records and their reference sequences. */
+    private static class Batch {
+        final SAMRecord[] records;
+        final ReferenceSequence[] refs;
+        private int size = 0;
+
+        Batch(final int capacity) {
+            this.records = new SAMRecord[capacity];
+            this.refs = new ReferenceSequence[capacity];
+        }
+
+        void add(final SAMRecord rec, final ReferenceSequence ref) {
+            records[size] = rec;
+            refs[size] = ref;
+            ++size;
+        }
+
+        int size() { return size; }
+
+        boolean isFull() { return size == records.length; }
+    }
 }
@@ -39,6 +39,7 @@ import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.zip.DeflaterFactory;
 import htsjdk.variant.variantcontext.writer.Options;
 import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import picard.util.ParallelCompressionWriterFactory;
 
 import java.io.File;
 import java.lang.annotation.Annotation;
@@ -91,6 +92,10 @@ public abstract class CommandLineProgram {
     @Option(doc = "Compression level for all compressed files created (e.g. BAM and GELI).", common=true)
     public int COMPRESSION_LEVEL = BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL;
 
+    @Option(doc = "Number of threads with which to compress the blocks of BAM and block compressed VCF files created. " +
+            "The output is identical whatever the number of threads.", common=true)
+    public int COMPRESSION_THREADS = 1;
+
     @Option(doc = "When writing SAM files that need to be sorted, this will specify the number of records stored in RAM before spilling to disk. Increasing this number reduces the number of file handles needed to sort a SAM file, and increases the amount of RAM needed.", optional=true, common=true)
     public Integer MAX_RECORDS_IN_RAM = SAMFileWriterImpl.getDefaultMaxRecordsInRam();
 
@@ -175,9 +180,12 @@ public abstract class CommandLineProgram {
 
         if (CREATE_INDEX){
             SAMFileWriterFactory.setDefaultCreateIndexWhileWriting(true);
+            ParallelCompressionWriterFactory.setDefaultCreateIndex(true);
         }
 
         SAMFileWriterFactory.setDefaultCreateMd5File(CREATE_MD5_FILE);
+        ParallelCompressionWriterFactory.setDefaultCreateMd5File(CREATE_MD5_FILE);
+        ParallelCompressionWriterFactory.setDefaultCompressionThreads(COMPRESSION_THREADS);
 
         for (final File f : TMP_DIR) {
             // Intentially not checking the return values, because it may be that the program does not
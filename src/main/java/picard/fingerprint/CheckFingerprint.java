@@ -105,6 +105,16 @@ public class CheckFingerprint extends CommandLineProgram {
             "ignoring RG annotations, and producing a single fingerprint metric for the entire BAM.")
     public boolean IGNORE_READ_GROUPS = false;
 
+    @Option(doc="If true, fingerprint indexed inputs with one index query per haplotype block, reading the base at each SNP " +
+            "directly from the reads instead of iterating over every locus.  Much faster on large inputs, and memory use does " +
+            "not grow with the input, but a read or read pair may then contribute evidence to more than one haplotype block.")
+    public boolean QUERY_BY_HAPLOTYPE_BLOCK = false;
+
+    @Option(doc="A directory in which to cache the fingerprints generated from each input, so that later runs over unchanged " +
+            "inputs load them instead of reading the inputs again.  A cached fingerprint is regenerated if its input's path, size, " +
+            "modification time or checksum, or the haplotype map or fingerprinting options, have changed.", optional=true)
+    public File FINGERPRINT_CACHE_DIR;
+
     private final Log log = Log.getInstance(CheckFingerprint.class);
 
     public static final String FINGERPRINT_SUMMARY_FILE_SUFFIX = "fingerprinting_summary_metrics";
@@ -136,6 +146,11 @@ public class CheckFingerprint extends CommandLineProgram {
         IOUtil.assertFileIsWritable(outputSummaryMetricsFile);
 
         final FingerprintChecker checker = new FingerprintChecker(HAPLOTYPE_MAP);
+        checker.setQueryByHaplotypeBlock(QUERY_BY_HAPLOTYPE_BLOCK);
+        if (FINGERPRINT_CACHE_DIR != null) {
+            IOUtil.assertDirectoryIsWritable(FINGERPRINT_CACHE_DIR);
+            checker.setFingerprintCacheDirectory(FINGERPRINT_CACHE_DIR);
+        }
 
         SequenceUtil.assertSequenceDictionariesEqual(SAMSequenceDictionaryExtractor.extractDictionary(INPUT), SAMSequenceDictionaryExtractor.extractDictionary(GENOTYPES), true);
         SequenceUtil.assertSequenceDictionariesEqual(SAMSequenceDictionaryExtractor.extractDictionary(INPUT), checker.getHeader().getSequenceDictionary(), true);
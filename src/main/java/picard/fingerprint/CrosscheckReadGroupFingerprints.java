@@ -81,13 +81,23 @@ public class CrosscheckReadGroupFingerprints extends CommandLineProgram {
             "and print out a library x library matrix with LOD scores.")
     public boolean CROSSCHECK_LIBRARIES = false;
 
-	@Option(doc="The number of threads to use to process BAM files and generate Fingerprints.")
+	@Option(doc="The number of threads to use to process BAM files and generate Fingerprints, and to compare them.")
 	public int NUM_THREADS = 1;
 
     @Option(doc="Allow the use of duplicate reads in performing the comparison. Can be useful when duplicate " +
             "marking has been overly aggressive and coverage is low.")
     public boolean ALLOW_DUPLICATE_READS = false;
 
+    @Option(doc="If true, fingerprint indexed inputs with one index query per haplotype block, reading the base at each SNP " +
+            "directly from the reads instead of iterating over every locus.  Much faster on large inputs, and memory use does " +
+            "not grow with the input, but a read or read pair may then contribute evidence to more than one haplotype block.")
+    public boolean QUERY_BY_HAPLOTYPE_BLOCK = false;
+
+    @Option(doc="A directory in which to cache the fingerprints generated from each input, so that later runs over unchanged " +
+            "inputs load them instead of reading the inputs again.  A cached fingerprint is regenerated if its input's path, size, " +
+            "modification time or checksum, or the haplotype map or fingerprinting options, have changed.", optional=true)
+    public File FINGERPRINT_CACHE_DIR;
+
     @Option(doc="Assumed genotyping error rate that provides a floor on the probability that a genotype comes from" +
             " the expected sample.")
     public double GENOTYPING_ERROR_RATE = 0.01;
@@ -131,6 +141,11 @@ public class CrosscheckReadGroupFingerprints extends CommandLineProgram {
         final FingerprintChecker checker = new FingerprintChecker(map);
 
         checker.setAllowDuplicateReads(ALLOW_DUPLICATE_READS);
+        checker.setQueryByHaplotypeBlock(QUERY_BY_HAPLOTYPE_BLOCK);
+        if (FINGERPRINT_CACHE_DIR != null) {
+            IOUtil.assertDirectoryIsWritable(FINGERPRINT_CACHE_DIR);
+            checker.setFingerprintCacheDirectory(FINGERPRINT_CACHE_DIR);
+        }
 
 		log.info("Done checking input files, moving onto fingerprinting files.");
 
@@ -176,18 +191,15 @@ public class CrosscheckReadGroupFingerprints extends CommandLineProgram {
 		out.println();
 
 		// Print results rows
-		for (final String sample : samples) {
-			out.print(sample);
-			final Fingerprint fp = sampleFps.get(sample);
-
-			for (final String otherSample : samples) {
-				final MatchResults results = FingerprintChecker.calculateMatchResults(fp, sampleFps.get(otherSample), GENOTYPING_ERROR_RATE, LOSS_OF_HET_RATE);
-				out.print("\t");
-				out.print(formatUtil.format(results.getLOD()));
-			}
-
-			out.println();
-		}
+		final List<String> sampleNames = new ArrayList<>(samples);
+		final PairwiseLodCalculator calculator =
+				new PairwiseLodCalculator(new ArrayList<>(sampleFps.values()), GENOTYPING_ERROR_RATE, LOSS_OF_HET_RATE);
+		calculator.compareAll(false, NUM_THREADS, (row, column, lod, lodTumorNormal, lodNormalTumor) -> {
+			if (column == 0) out.print(sampleNames.get(row));
+			out.print("\t");
+			out.print(formatUtil.format(lod));
+			if (column == sampleNames.size() - 1) out.println();
+		});
 	}
 
     /**
@@ -213,48 +225,49 @@ public class CrosscheckReadGroupFingerprints extends CommandLineProgram {
 	 * coming from the same sample.
 	 */
 	private int crossCheckReadGroups(final Map<SAMReadGroupRecord,Fingerprint> fingerprints, final PrintStream out) {
-		int mismatches = 0;
-		int unexpectedMatches = 0;
+		final int[] mismatches = {0};
+		final int[] unexpectedMatches = {0};
+		final boolean[] headerWritten = {false};
 
 		final List<SAMReadGroupRecord> readGroupRecords = new ArrayList<>(fingerprints.keySet());
-		final List<String> output = new ArrayList<>();
+		final List<Fingerprint> readGroupFingerprints = new ArrayList<>(readGroupRecords.size());
+		for (final SAMReadGroupRecord rg : readGroupRecords) readGroupFingerprints.add(fingerprints.get(rg));
 
-		for (int i = 0; i < readGroupRecords.size(); i++) {
+		// Results are written as they are calculated rather than collected, as there are n^2/2 of them
+		final PairwiseLodCalculator calculator = new PairwiseLodCalculator(readGroupFingerprints, GENOTYPING_ERROR_RATE, LOSS_OF_HET_RATE);
+		calculator.compareAll(true, NUM_THREADS, (i, j, lod, lodTumorNormal, lodNormalTumor) -> {
 			final SAMReadGroupRecord lhsRg = readGroupRecords.get(i);
-			for (int j= i+1; j < readGroupRecords.size(); j++) {
-				final SAMReadGroupRecord rhsRg = readGroupRecords.get(j);
-				final boolean expectedToMatch = EXPECT_ALL_READ_GROUPS_TO_MATCH || lhsRg.getSample().equals(rhsRg.getSample());
-
-				final MatchResults results = FingerprintChecker.calculateMatchResults(fingerprints.get(lhsRg), fingerprints.get(rhsRg), GENOTYPING_ERROR_RATE, LOSS_OF_HET_RATE);
-                if (expectedToMatch) {
-                    if (results.getLOD() < LOD_THRESHOLD) {
-                        mismatches++;
-                        output.add(getMatchDetails(UNEXPECTED_MISMATCH, results, lhsRg, rhsRg));
-                    } else {
-                        if (!OUTPUT_ERRORS_ONLY) {
-                            output.add(getMatchDetails(EXPECTED_MATCH, results, lhsRg, rhsRg));
-                        }
-                    }
-                } else {
-                    if (results.getLOD() > -LOD_THRESHOLD) {
-                        unexpectedMatches++;
-                        output.add(getMatchDetails(UNEXPECTED_MATCH, results, lhsRg, rhsRg));
-                    } else {
-                        if (!OUTPUT_ERRORS_ONLY) {
-                            output.add(getMatchDetails(EXPECTED_MISMATCH, results, lhsRg, rhsRg));
-                        }
-                    }
-                }
+			final SAMReadGroupRecord rhsRg = readGroupRecords.get(j);
+			final boolean expectedToMatch = EXPECT_ALL_READ_GROUPS_TO_MATCH || lhsRg.getSample().equals(rhsRg.getSample());
+
+			final String matchResult;
+			if (expectedToMatch) {
+				if (lod < LOD_THRESHOLD) {
+					mismatches[0]++;
+					matchResult = UNEXPECTED_MISMATCH;
+				} else {
+					matchResult = OUTPUT_ERRORS_ONLY ? null : EXPECTED_MATCH;
+				}
+			} else {
+				if (lod > -LOD_THRESHOLD) {
+					unexpectedMatches[0]++;
+					matchResult = UNEXPECTED_MATCH;
+				} else {
+					matchResult = OUTPUT_ERRORS_ONLY ? null : EXPECTED_MISMATCH;
+				}
 			}
-		}
 
-		if (!output.isEmpty()) {
-			out.println("RESULT\tLOD_SCORE\tLOD_SCORE_TUMOR_NORMAL\tLOD_SCORE_NORMAL_TUMOR\tLEFT_RUN_BARCODE\tLEFT_LANE\tLEFT_MOLECULAR_BARCODE_SEQUENCE\tLEFT_LIBRARY\tLEFT_SAMPLE\t" +
-				"RIGHT_RUN_BARCODE\tRIGHT_LANE\tRIGHT_MOLECULAR_BARCODE_SEQUENCE\tRIGHT_LIBRARY\tRIGHT_SAMPLE");
-			out.println(String.join("\n", output));
-		}
+			if (matchResult != null) {
+				if (!headerWritten[0]) {
+					out.println("RESULT\tLOD_SCORE\tLOD_SCORE_TUMOR_NORMAL\tLOD_SCORE_NORMAL_TUMOR\tLEFT_RUN_BARCODE\tLEFT_LANE\tLEFT_MOLECULAR_BARCODE_SEQUENCE\tLEFT_LIBRARY\tLEFT_SAMPLE\t" +
+						"RIGHT_RUN_BARCODE\tRIGHT_LANE\tRIGHT_MOLECULAR_BARCODE_SEQUENCE\tRIGHT_LIBRARY\tRIGHT_SAMPLE");
+					headerWritten[0] = true;
+				}
+				out.println(getMatchDetails(matchResult, lod, lodTumorNormal, lodNormalTumor, lhsRg, rhsRg));
+			}
+		});
 
-		if (mismatches + unexpectedMatches > 0) {
+		if (mismatches[0] + unexpectedMatches[0] > 0) {
 			log.info("WARNING: At least two read groups did not relate as expected.");
 			return EXIT_CODE_WHEN_MISMATCH;
 		}
@@ -267,17 +280,20 @@ public class CrosscheckReadGroupFingerprints extends CommandLineProgram {
     /**
      * Generates tab delimited string containing details about a possible match between fingerprints on two different SAMReadGroupRecords
      * @param matchResult String describing the match type.
-     * @param results MatchResults object
+     * @param lod LOD score that the two read groups come from the same individual
+     * @param lodTumorNormal LOD score assuming the left read group is from a tumor and the right from the normal
+     * @param lodNormalTumor LOD score assuming the left read group is from the normal and the right from a tumor
      * @param left left hand side SAMReadGroupRecord
      * @param right right hand side SAMReadGroupRecord
      * @return tab delimited string containing details about a possible match
      */
-    private String getMatchDetails(final String matchResult, final MatchResults results, final SAMReadGroupRecord left, final SAMReadGroupRecord right) {
+    private String getMatchDetails(final String matchResult, final double lod, final double lodTumorNormal, final double lodNormalTumor,
+                                   final SAMReadGroupRecord left, final SAMReadGroupRecord right) {
         final List<String> elements = new ArrayList<>(4);
         elements.add(matchResult);
-        elements.add(formatUtil.format(results.getLOD()));
-        elements.add(formatUtil.format(results.getLodTN()));
-        elements.add(formatUtil.format(results.getLodNT()));
+        elements.add(formatUtil.format(lod));
+        elements.add(formatUtil.format(lodTumorNormal));
+        elements.add(formatUtil.format(lodNormalTumor));
         elements.add(getReadGroupDetails(left));
         elements.add(getReadGroupDetails(right));
         return String.join("\t", elements);
@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.fingerprint;
+
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary file caching the fingerprints generated from one SAM/BAM file, so that they can be loaded
+ * rather than regenerated while the file is unchanged.
+ * <p/>
+ * The cache records the source file's path, size, modification time and a checksum of its first and last
+ * {@value #CHECKSUM_BYTES} bytes, along with a digest of the haplotype map, the loci fingerprinted and the settings
+ * that affect fingerprinting.  If any of these differ the cache is ignored.  For each read group it then holds,
+ * for each haplotype block with any observations, the block's index in the haplotype map, its log likelihoods and
+ * its allele observation counts.
+ */
+final class FingerprintCache {
+    private static final Log log = Log.getInstance(FingerprintCache.class);
+
+    static final String FILE_EXTENSION = ".fingerprint";
+    private static final int MAGIC = 0x46505243; // "FPRC"
+    private static final int VERSION = 1;
+    static final int CHECKSUM_BYTES = 64 * 1024;
+
+    private final File cacheFile;
+    private final File samFile;
+    private final byte[] parametersDigest;
+
+    /**
+     * @param directory  the directory holding the cache files
+     * @param samFile    the SAM/BAM file whose fingerprints are cached
+     * @param haplotypes the haplotype map used to generate the fingerprints
+     * @param loci       the loci fingerprinted
+     * @param settings   a description of any other settings that affect the fingerprints
+     */
+    FingerprintCache(final File directory, final File samFile, final HaplotypeMap haplotypes, final IntervalList loci, final String settings) {
+        this.samFile = samFile.getAbsoluteFile();
+        // Include a digest of the full path so that identically named files in different directories do not collide
+        this.cacheFile = new File(directory, samFile.getName() + "." + toHex(md5(this.samFile.getPath()), 4) + FILE_EXTENSION);
+        this.parametersDigest = parametersDigest(haplotypes, loci, settings);
+    }
+
+    File getCacheFile() {
+        return cacheFile;
+    }
+
+    /**
+     * Populates the supplied empty fingerprints, one per read group, from the cache.  Returns false, leaving the
+     * fingerprints untouched, if there is no cache or it does not match the SAM file, haplotype map, loci or settings.
+     */
+    boolean read(final Map<SAMReadGroupRecord, Fingerprint> fingerprints, final List<HaplotypeBlock> blocks) {
+        if (!cacheFile.exists()) return false;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.warn("Ignoring unrecognized fingerprint cache " + cacheFile.getAbsolutePath());
+                return false;
+            }
+            final byte[] digest = new byte[parametersDigest.length];
+            in.readFully(digest);
+            if (!in.readUTF().equals(samFile.getPath()) || in.readLong() != samFile.length() ||
+                    in.readLong() != samFile.lastModified() || in.readLong() != sourceChecksum(samFile) ||
+                    !Arrays.equals(digest, parametersDigest)) {
+                log.info("Fingerprint cache " + cacheFile.getAbsolutePath() + " is out of date.");
+                return false;
+            }
+
+            final Map<String, Fingerprint> fingerprintsById = new HashMap<>();
+            for (final Map.Entry<SAMReadGroupRecord, Fingerprint> entry : fingerprints.entrySet()) {
+                fingerprintsById.put(entry.getKey().getId(), entry.getValue());
+            }
+
+            // Read everything before touching the fingerprints, so that a bad cache leaves them untouched
+            final int numReadGroups = in.readInt();
+            if (numReadGroups != fingerprintsById.size()) return false;
+            final List<Fingerprint> targets = new ArrayList<>(numReadGroups);
+            final List<HaplotypeProbabilitiesFromSequence> values = new ArrayList<>();
+            for (int i = 0; i < numReadGroups; ++i) {
+                final Fingerprint fingerprint = fingerprintsById.get(in.readUTF());
+                if (fingerprint == null) return false;
+                final int numBlocks = in.readInt();
+                for (int j = 0; j < numBlocks; ++j) {
+                    final int index = in.readInt();
+                    if (index < 0 || index >= blocks.size()) return false;
+                    final HaplotypeProbabilitiesFromSequence probs = new HaplotypeProbabilitiesFromSequence(blocks.get(index));
+                    probs.setLogLikelihoods(new double[]{in.readDouble(), in.readDouble(), in.readDouble()});
+                    probs.obsAllele1 = in.readInt();
+                    probs.obsAllele2 = in.readInt();
+                    probs.obsAlleleOther = in.readInt();
+                    targets.add(fingerprint);
+                    values.add(probs);
+                }
+            }
+
+            for (int i = 0; i < values.size(); ++i) targets.get(i).add(values.get(i));
+            return true;
+        } catch (final IOException e) {
+            log.warn(e, "Ignoring unreadable fingerprint cache " + cacheFile.getAbsolutePath());
+            return false;
+        } finally {
+            CloserUtil.close(in);
+        }
+    }
+
+    /** Writes the fingerprints to the cache, replacing any existing cache for the SAM file. */
+    void write(final Map<SAMReadGroupRecord, Fingerprint> fingerprints, final List<HaplotypeBlock> blocks) {
+        final Map<HaplotypeBlock, Integer> blockIndices = new HashMap<>();
+        for (int i = 0; i < blocks.size(); ++i) blockIndices.put(blocks.get(i), i);
+
+        final File tmpFile = new File(cacheFile.getParentFile(), cacheFile.getName() + ".tmp");
+        IOUtil.assertFileIsWritable(tmpFile);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(parametersDigest);
+                out.writeUTF(samFile.getPath());
+                out.writeLong(samFile.length());
+                out.writeLong(samFile.lastModified());
+                out.writeLong(sourceChecksum(samFile));
+
+                out.writeInt(fingerprints.size());
+                for (final Map.Entry<SAMReadGroupRecord, Fingerprint> entry : fingerprints.entrySet()) {
+                    out.writeUTF(entry.getKey().getId());
+
+                    final List<HaplotypeProbabilitiesFromSequence> observed = new ArrayList<>();
+                    for (final HaplotypeProbabilities probs : entry.getValue().values()) {
+                        final HaplotypeProbabilitiesFromSequence seqProbs = (HaplotypeProbabilitiesFromSequence) probs;
+                        if (seqProbs.getTotalObs() > 0 || seqProbs.hasEvidence()) observed.add(seqProbs);
+                    }
+                    out.writeInt(observed.size());
+                    for (final HaplotypeProbabilitiesFromSequence probs : observed) {
+                        out.writeInt(blockIndices.get(probs.getHaplotype()));
+                        for (final double ll : probs.getLogLikelihoods()) out.writeDouble(ll);
+                        out.writeInt(probs.obsAllele1);
+                        out.writeInt(probs.obsAllele2);
+                        out.writeInt(probs.obsAlleleOther);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Error writing fingerprint cache " + tmpFile.getAbsolutePath(), e);
+        }
+
+        if (!tmpFile.renameTo(cacheFile)) {
+            throw new PicardException("Could not rename " + tmpFile.getAbsolutePath() + " to " + cacheFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * A cheap checksum of the file's contents, over its first and last CHECKSUM_BYTES bytes, which for a BAM covers
+     * the header and the final blocks of records.
+     */
+    private static long sourceChecksum(final File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final long length = in.length();
+            final byte[] buffer = new byte[(int) Math.min(length, CHECKSUM_BYTES)];
+            in.readFully(buffer);
+            crc.update(buffer);
+            if (length > CHECKSUM_BYTES) {
+                final int tailLength = (int) Math.min(length - CHECKSUM_BYTES, CHECKSUM_BYTES);
+                in.seek(length - tailLength);
+                in.readFully(buffer, 0, tailLength);
+                crc.update(buffer, 0, tailLength);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    /** An MD5 digest of the haplotype map, the loci and the settings. */
+    private static byte[] parametersDigest(final HaplotypeMap haplotypes, final IntervalList loci, final String settings) {
+        final StringBuilder builder = new StringBuilder();
+        for (final HaplotypeBlock block : haplotypes.getHaplotypes()) {
+            builder.append("block\t").append(block.getMaf()).append('\n');
+            final List<Snp> snps = new ArrayList<>(block.getSnps());
+            Collections.sort(snps);
+            for (final Snp snp : snps) {
+                builder.append(snp.getName()).append('\t').append(snp.getChrom()).append('\t').append(snp.getPos()).append('\t')
+                        .append((char) snp.getAllele1()).append((char) snp.getAllele2()).append('\t').append(snp.getMaf()).append('\n');
+            }
+        }
+        for (final Interval interval : loci) {
+            builder.append("locus\t").append(interval.getContig()).append(':').append(interval.getStart()).append('-')
+                    .append(interval.getEnd()).append('\n');
+        }
+        builder.append(settings);
+        return md5(builder.toString());
+    }
+
+    private static byte[] md5(final String s) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new PicardException("MD5 digests are not available.", e);
+        }
+    }
+
+    private static String toHex(final byte[] bytes, final int length) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; ++i) builder.append(String.format("%02x", bytes[i]));
+        return builder.toString();
+    }
+}
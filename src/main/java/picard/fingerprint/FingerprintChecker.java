@@ -24,11 +24,18 @@
 
 package picard.fingerprint;
 
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.QueryInterval;
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.filter.DuplicateReadFilter;
 import htsjdk.samtools.filter.NotPrimaryAlignmentFilter;
 import htsjdk.samtools.filter.SamRecordFilter;
+import htsjdk.samtools.filter.SecondaryOrSupplementaryFilter;
+import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.IntervalList;
 import htsjdk.samtools.util.Log;
@@ -67,6 +74,8 @@ public class FingerprintChecker {
     private int maximalPLDifference     = DEFAULT_MAXIMAL_PL_DIFFERENCE;
 
     private boolean allowDuplicateReads = false;
+    private boolean queryByHaplotypeBlock = false;
+    private File fingerprintCacheDirectory = null;
     private double pLossofHet = 0;
 
     private final Log log = Log.getInstance(FingerprintChecker.class);
@@ -116,6 +125,24 @@ public class FingerprintChecker {
         this.allowDuplicateReads = allowDuplicateReads;
     }
 
+    /**
+     * Sets whether indexed SAM files should be fingerprinted by querying the index once per haplotype block and
+     * reading the base at each SNP directly from the reads, rather than by iterating over every locus with a
+     * SamLocusIterator.  In this mode each read or read pair may contribute evidence to more than one haplotype
+     * block (but still only once to each), since used read names are only remembered for the current block.
+     */
+    public void setQueryByHaplotypeBlock(final boolean queryByHaplotypeBlock) {
+        this.queryByHaplotypeBlock = queryByHaplotypeBlock;
+    }
+
+    /**
+     * Sets a directory in which the fingerprints generated from each SAM file are cached, so that later calls for
+     * the same, unchanged, file load them instead of regenerating them.  Null (the default) disables caching.
+     */
+    public void setFingerprintCacheDirectory(final File fingerprintCacheDirectory) {
+        this.fingerprintCacheDirectory = fingerprintCacheDirectory;
+    }
+
     //sets the value of the probability that a genotype underwent a Loss of Hetrozygosity (for Tumors)
     public void setpLossofHet(final double pLossofHet) {
         this.pLossofHet = pLossofHet;
@@ -272,6 +299,39 @@ public class FingerprintChecker {
      * the interval list.
      */
     public Map<SAMReadGroupRecord, Fingerprint> fingerprintSamFile(final File samFile, final IntervalList loci) {
+        if (this.fingerprintCacheDirectory != null) {
+            final FingerprintCache cache = new FingerprintCache(this.fingerprintCacheDirectory, samFile, this.haplotypes, loci,
+                    "minimumBaseQuality=" + minimumBaseQuality + ",minimumMappingQuality=" + minimumMappingQuality +
+                            ",allowDuplicateReads=" + allowDuplicateReads + ",queryByHaplotypeBlock=" + queryByHaplotypeBlock);
+
+            final SamReader in = SamReaderFactory.makeDefault().open(samFile);
+            final Map<SAMReadGroupRecord, Fingerprint> fingerprintsByReadGroup = newFingerprintsByReadGroup(in.getFileHeader(), samFile);
+            CloserUtil.close(in);
+            if (cache.read(fingerprintsByReadGroup, this.haplotypes.getHaplotypes())) {
+                log.debug("Loaded fingerprints for " + samFile.getAbsolutePath() + " from " + cache.getCacheFile().getAbsolutePath());
+                return fingerprintsByReadGroup;
+            }
+
+            final Map<SAMReadGroupRecord, Fingerprint> generated = generateSamFileFingerprints(samFile, loci);
+            cache.write(generated, this.haplotypes.getHaplotypes());
+            return generated;
+        }
+
+        return generateSamFileFingerprints(samFile, loci);
+    }
+
+    /** Generates a Fingerprint per read group in the supplied SAM file, without consulting any cache. */
+    private Map<SAMReadGroupRecord, Fingerprint> generateSamFileFingerprints(final File samFile, final IntervalList loci) {
+        if (this.queryByHaplotypeBlock) {
+            final SamReader in = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.CACHE_FILE_BASED_INDEXES).open(samFile);
+            try {
+                if (in.hasIndex()) return fingerprintSamFileByHaplotypeBlock(in, samFile, loci);
+                log.warn("No index found for " + samFile.getAbsolutePath() + ", fingerprinting it by iterating over all loci.");
+            } finally {
+                CloserUtil.close(in);
+            }
+        }
+
         final SAMFileReader in = new SAMFileReader(samFile);
         in.enableIndexCaching(true);
         SequenceUtil.assertSequenceDictionariesEqual(this.haplotypes.getHeader().getSequenceDictionary(),
@@ -291,19 +351,7 @@ public class FingerprintChecker {
             iterator.setSamFilters(filters);
         }
 
-        final Map<SAMReadGroupRecord, Fingerprint> fingerprintsByReadGroup = new HashMap<>();
-        final List<SAMReadGroupRecord> rgs = in.getFileHeader().getReadGroups();
-
-        for (final SAMReadGroupRecord rg : rgs) {
-            final Fingerprint fingerprint = new Fingerprint(rg.getSample(),
-                                                            samFile,
-                                                            rg.getPlatformUnit() != null ? rg.getPlatformUnit() : rg.getId());
-            fingerprintsByReadGroup.put(rg, fingerprint);
-
-            for (final HaplotypeBlock h : this.haplotypes.getHaplotypes()) {
-                fingerprint.add(new HaplotypeProbabilitiesFromSequence(h));
-            }
-        }
+        final Map<SAMReadGroupRecord, Fingerprint> fingerprintsByReadGroup = newFingerprintsByReadGroup(in.getFileHeader(), samFile);
 
         // Set of read/template names from which we have already sampled a base and a qual. Since we assume
         // that all evidence for a haplotype is independent we can't sample two or more bases from a single
@@ -344,6 +392,149 @@ public class FingerprintChecker {
         return fingerprintsByReadGroup;
     }
 
+    /** Creates an empty Fingerprint, with no evidence for any haplotype, for each read group in the header. */
+    private Map<SAMReadGroupRecord, Fingerprint> newFingerprintsByReadGroup(final SAMFileHeader header, final File samFile) {
+        final Map<SAMReadGroupRecord, Fingerprint> fingerprintsByReadGroup = new HashMap<>();
+        for (final SAMReadGroupRecord rg : header.getReadGroups()) {
+            final Fingerprint fingerprint = new Fingerprint(rg.getSample(),
+                                                            samFile,
+                                                            rg.getPlatformUnit() != null ? rg.getPlatformUnit() : rg.getId());
+            fingerprintsByReadGroup.put(rg, fingerprint);
+
+            for (final HaplotypeBlock h : this.haplotypes.getHaplotypes()) {
+                fingerprint.add(new HaplotypeProbabilitiesFromSequence(h));
+            }
+        }
+        return fingerprintsByReadGroup;
+    }
+
+    /**
+     * Generates a Fingerprint per read group in the supplied indexed SAM file using the loci provided in the interval
+     * list, issuing one index query per haplotype block for all of the block's SNPs.  Reads are filtered and the
+     * base at each SNP is chosen exactly as SamLocusIterator would, and within a block evidence is assigned SNP by
+     * SNP in the order in which SamLocusIterator would emit it, so that the set of used read names need only be kept
+     * for one block at a time.
+     */
+    private Map<SAMReadGroupRecord, Fingerprint> fingerprintSamFileByHaplotypeBlock(final SamReader in, final File samFile, final IntervalList loci) {
+        final SAMFileHeader header = in.getFileHeader();
+        SequenceUtil.assertSequenceDictionariesEqual(this.haplotypes.getHeader().getSequenceDictionary(),
+                                                     header.getSequenceDictionary());
+
+        // The same filters SamLocusIterator applies by default, or instead when duplicates are allowed
+        final List<SamRecordFilter> filters = new ArrayList<>(2);
+        if (this.allowDuplicateReads) {
+            filters.add(new NotPrimaryAlignmentFilter());
+        } else {
+            filters.add(new SecondaryOrSupplementaryFilter());
+            filters.add(new DuplicateReadFilter());
+        }
+
+        final Map<SAMReadGroupRecord, Fingerprint> fingerprintsByReadGroup = newFingerprintsByReadGroup(header, samFile);
+
+        // Group the SNPs at the requested loci by haplotype block, keeping them in coordinate order within each block
+        final Map<HaplotypeBlock, List<Snp>> snpsByBlock = new LinkedHashMap<>();
+        for (final Interval interval : loci.uniqued()) {
+            for (int pos = interval.getStart(); pos <= interval.getEnd(); ++pos) {
+                final Snp snp = this.haplotypes.getSnp(interval.getContig(), pos);
+                if (snp == null) continue;
+                final HaplotypeBlock haplotypeBlock = this.haplotypes.getHaplotype(interval.getContig(), pos);
+                List<Snp> snps = snpsByBlock.get(haplotypeBlock);
+                if (snps == null) {
+                    snps = new ArrayList<>();
+                    snpsByBlock.put(haplotypeBlock, snps);
+                }
+                snps.add(snp);
+            }
+        }
+
+        for (final Map.Entry<HaplotypeBlock, List<Snp>> entry : snpsByBlock.entrySet()) {
+            final HaplotypeBlock haplotypeBlock = entry.getKey();
+            final List<Snp> snps = entry.getValue();
+
+            final QueryInterval[] intervals = new QueryInterval[snps.size()];
+            for (int i = 0; i < snps.size(); ++i) {
+                final Snp snp = snps.get(i);
+                intervals[i] = new QueryInterval(header.getSequenceIndex(snp.getChrom()), snp.getPos(), snp.getPos());
+            }
+
+            // The reads covering each SNP with a usable base, in file order, along with the offset of that base
+            final List<List<SAMRecord>> recordsBySnp = new ArrayList<>(snps.size());
+            final List<List<Integer>> offsetsBySnp = new ArrayList<>(snps.size());
+            for (int i = 0; i < snps.size(); ++i) {
+                recordsBySnp.add(new ArrayList<>());
+                offsetsBySnp.add(new ArrayList<>());
+            }
+
+            final SAMRecordIterator iterator = in.queryOverlapping(QueryInterval.optimizeIntervals(intervals));
+            try {
+                while (iterator.hasNext()) {
+                    final SAMRecord rec = iterator.next();
+                    if (rec.getReadUnmappedFlag() || rec.getMappingQuality() < this.minimumMappingQuality) continue;
+                    if (isFiltered(rec, filters)) continue;
+
+                    final byte[] quals = rec.getBaseQualities();
+                    final boolean checkQuals = this.minimumBaseQuality != 0 && quals.length > 0;
+                    for (int i = 0; i < snps.size(); ++i) {
+                        final int offset = getReadOffset(rec, snps.get(i).getPos());
+                        if (offset >= 0 && (!checkQuals || quals[offset] >= this.minimumBaseQuality)) {
+                            recordsBySnp.get(i).add(rec);
+                            offsetsBySnp.get(i).add(offset);
+                        }
+                    }
+                }
+            } finally {
+                iterator.close();
+            }
+
+            // Set of read/template names from which we have already sampled a base and a qual within this block.
+            // Since we assume that all evidence for a haplotype is independent we can't sample two or more bases
+            // from a single read or read-pair because they would not be independent!
+            final Set<String> usedReadNames = new HashSet<>();
+
+            for (int i = 0; i < snps.size(); ++i) {
+                final Snp snp = snps.get(i);
+                final List<SAMRecord> records = recordsBySnp.get(i);
+                final List<Integer> offsets = offsetsBySnp.get(i);
+
+                for (int j = 0; j < records.size(); ++j) {
+                    final SAMRecord rec = records.get(j);
+                    final SAMReadGroupRecord rg = rec.getReadGroup();
+                    if (rg == null || !fingerprintsByReadGroup.containsKey(rg)) {
+                        final PicardException e = new PicardException("Unknown read group: " + rg);
+                        log.error(e);
+                        throw e;
+                    }
+                    else if (usedReadNames.add(rec.getReadName())) {
+                        final HaplotypeProbabilitiesFromSequence probs = (HaplotypeProbabilitiesFromSequence) fingerprintsByReadGroup.get(rg).get(haplotypeBlock);
+                        final int offset = offsets.get(j);
+                        probs.addToProbs(snp, StringUtil.toUpperCase(rec.getReadBases()[offset]), rec.getBaseQualities()[offset]);
+                    }
+                }
+            }
+        }
+
+        return fingerprintsByReadGroup;
+    }
+
+    /** Returns true if any of the filters filters out the record. */
+    private static boolean isFiltered(final SAMRecord rec, final List<SamRecordFilter> filters) {
+        for (final SamRecordFilter filter : filters) {
+            if (filter.filterOut(rec)) return true;
+        }
+        return false;
+    }
+
+    /** Returns the 0-based offset of the read base aligned to the given reference position, or -1 if there is none. */
+    private static int getReadOffset(final SAMRecord rec, final int referencePosition) {
+        for (final AlignmentBlock block : rec.getAlignmentBlocks()) {
+            final int offsetInBlock = referencePosition - block.getReferenceStart();
+            if (offsetInBlock >= 0 && offsetInBlock < block.getLength()) {
+                return block.getReadStart() - 1 + offsetInBlock;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Generates a per-sample Fingerprint for the contaminant in the supplied SAM file.
      * Data is aggregated by sample, not read-group.
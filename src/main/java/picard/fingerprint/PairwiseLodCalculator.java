@@ -0,0 +1,264 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.fingerprint;
+
+import htsjdk.samtools.util.Log;
+import picard.PicardException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.lang.Math.log10;
+
+/**
+ * Calculates the LOD scores of {@link FingerprintChecker#calculateMatchResults(Fingerprint, Fingerprint, double, double)}
+ * for every pair of a list of fingerprints, without building the per-locus results.
+ *
+ * Everything calculateMatchResults derives from a single fingerprint (likelihoods, posteriors and population evidence
+ * probabilities, both as given and assuming the evidence is from a tumor) is calculated once per fingerprint up front
+ * into dense arrays indexed by haplotype block, so that comparing a pair is a single loop over those arrays.  The
+ * pairs are compared in square tiles of the comparison matrix on multiple threads, one band of rows at a time, and
+ * each band's results are handed out in row order as soon as it is complete.  The results are identical to those of
+ * calculateMatchResults, as the same values are summed in the same order.
+ */
+final class PairwiseLodCalculator {
+    private static final Log log = Log.getInstance(PairwiseLodCalculator.class);
+
+    /** Receives the results of comparing the observed fingerprint at index row to the expected one at index column. */
+    interface ResultConsumer {
+        void accept(int row, int column, double lod, double lodTumorNormal, double lodNormalTumor);
+    }
+
+    static final int DEFAULT_TILE_SIZE = 64;
+
+    // Layout of the per-block values used when a fingerprint is the observed one
+    private static final int OBSERVED_STRIDE = 8;
+    private static final int LIKELIHOODS = 0;
+    private static final int TUMOR_LIKELIHOODS = 3;
+    private static final int L_RANDOM = 6;
+    private static final int TUMOR_L_RANDOM = 7;
+
+    // Layout of the per-block values used when a fingerprint is the expected one
+    private static final int EXPECTED_STRIDE = 6;
+    private static final int POSTERIORS = 0;
+    private static final int TUMOR_POSTERIORS = 3;
+
+    private final int numFingerprints;
+    private final double lMinPExpected;
+    private final int tileSize;
+
+    private final double[][] observed;
+    private final double[][] expected;
+    private final boolean[][] hasEvidence;
+    /** The indices of the blocks for which each fingerprint has evidence, in ascending order. */
+    private final int[][] blocksWithEvidence;
+
+    PairwiseLodCalculator(final List<Fingerprint> fingerprints, final double minPExpected, final double pLoH) {
+        this(fingerprints, minPExpected, pLoH, DEFAULT_TILE_SIZE);
+    }
+
+    PairwiseLodCalculator(final List<Fingerprint> fingerprints, final double minPExpected, final double pLoH, final int tileSize) {
+        if (tileSize < 1) throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+        this.numFingerprints = fingerprints.size();
+        this.lMinPExpected = log10(minPExpected);
+        this.tileSize = tileSize;
+
+        // Index the blocks in their natural order, which is the order in which calculateMatchResults visits them
+        final SortedSet<HaplotypeBlock> blocks = new TreeSet<>();
+        for (final Fingerprint fp : fingerprints) blocks.addAll(fp.keySet());
+        final Map<HaplotypeBlock, Integer> blockIndices = new TreeMap<>();
+        for (final HaplotypeBlock block : blocks) blockIndices.put(block, blockIndices.size());
+        final int numBlocks = blocks.size();
+
+        this.observed = new double[numFingerprints][];
+        this.expected = new double[numFingerprints][];
+        this.hasEvidence = new boolean[numFingerprints][];
+        this.blocksWithEvidence = new int[numFingerprints][];
+
+        for (int i = 0; i < numFingerprints; ++i) {
+            final double[] obs = new double[numBlocks * OBSERVED_STRIDE];
+            final double[] exp = new double[numBlocks * EXPECTED_STRIDE];
+            final boolean[] evidence = new boolean[numBlocks];
+            int evidenceCount = 0;
+
+            for (final HaplotypeProbabilities probs : fingerprints.get(i).values()) {
+                if (!probs.hasEvidence()) continue;
+                final int block = blockIndices.get(probs.getHaplotype());
+                final HaplotypeProbabilities probsAssumingDataFromTumor = new HaplotypeProbabilityOfNormalGivenTumor(probs, pLoH);
+
+                final int o = block * OBSERVED_STRIDE;
+                System.arraycopy(probs.getLikelihoods(), 0, obs, o + LIKELIHOODS, 3);
+                System.arraycopy(probsAssumingDataFromTumor.getLikelihoods(), 0, obs, o + TUMOR_LIKELIHOODS, 3);
+                obs[o + L_RANDOM] = probs.shiftedLogEvidenceProbability();
+                obs[o + TUMOR_L_RANDOM] = probsAssumingDataFromTumor.shiftedLogEvidenceProbability();
+
+                final int e = block * EXPECTED_STRIDE;
+                System.arraycopy(probs.getPosteriorProbabilities(), 0, exp, e + POSTERIORS, 3);
+                System.arraycopy(probsAssumingDataFromTumor.getPosteriorProbabilities(), 0, exp, e + TUMOR_POSTERIORS, 3);
+
+                evidence[block] = true;
+                ++evidenceCount;
+            }
+
+            final int[] evidenceBlocks = new int[evidenceCount];
+            for (int block = 0, k = 0; block < numBlocks; ++block) {
+                if (evidence[block]) evidenceBlocks[k++] = block;
+            }
+
+            observed[i] = obs;
+            expected[i] = exp;
+            hasEvidence[i] = evidence;
+            blocksWithEvidence[i] = evidenceBlocks;
+        }
+    }
+
+    /**
+     * Compares every pair of fingerprints, handing the results to the consumer on the calling thread in row-major
+     * order.  If upperTriangleOnly is true only pairs with row < column are compared, otherwise all pairs are
+     * (including each fingerprint with itself, and each pair in both orders).
+     */
+    void compareAll(final boolean upperTriangleOnly, final int threads, final ResultConsumer consumer) {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // Keep the next band computing while the results of the current one are handed out
+            Band current = submitBand(0, upperTriangleOnly, executor);
+            while (current != null) {
+                final Band next = submitBand(current.rowEnd, upperTriangleOnly, executor);
+                current.await();
+                current.emit(upperTriangleOnly, consumer);
+                if (current.rowEnd % (tileSize * 16) == 0) {
+                    log.info("Compared " + current.rowEnd + " of " + numFingerprints + " fingerprints.");
+                }
+                current = next;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Submits one tile task per column tile for the band of rows starting at rowStart, or returns null if there are none. */
+    private Band submitBand(final int rowStart, final boolean upperTriangleOnly, final ExecutorService executor) {
+        if (rowStart >= numFingerprints) return null;
+        final Band band = new Band(rowStart, Math.min(rowStart + tileSize, numFingerprints));
+        final int firstColumn = upperTriangleOnly ? rowStart : 0;
+        for (int columnStart = firstColumn; columnStart < numFingerprints; columnStart += tileSize) {
+            final int columnEnd = Math.min(columnStart + tileSize, numFingerprints);
+            final int tileColumnStart = columnStart;
+            band.tiles.add(executor.submit(() -> {
+                for (int row = band.rowStart; row < band.rowEnd; ++row) {
+                    final int start = upperTriangleOnly ? Math.max(tileColumnStart, row + 1) : tileColumnStart;
+                    for (int column = start; column < columnEnd; ++column) {
+                        compare(row, column, band.results, band.offset(row, column));
+                    }
+                }
+            }));
+        }
+        return band;
+    }
+
+    /**
+     * Compares the observed fingerprint at row to the expected one at column, writing the LOD, the tumor-normal LOD
+     * and the normal-tumor LOD to results starting at offset.
+     */
+    private void compare(final int row, final int column, final double[] results, final int offset) {
+        final double[] obs = observed[row];
+        final double[] exp = expected[column];
+        final boolean[] expEvidence = hasEvidence[column];
+
+        double llThisSample = 0;
+        double llOtherSample = 0;
+        double lodExpectedSampleTumorNormal = 0;
+        double lodExpectedSampleNormalTumor = 0;
+
+        for (final int block : blocksWithEvidence[row]) {
+            if (!expEvidence[block]) continue;
+            final int o = block * OBSERVED_STRIDE;
+            final int e = block * EXPECTED_STRIDE;
+
+            final double lExpected = log10(obs[o + LIKELIHOODS] * exp[e + POSTERIORS] +
+                    obs[o + LIKELIHOODS + 1] * exp[e + POSTERIORS + 1] +
+                    obs[o + LIKELIHOODS + 2] * exp[e + POSTERIORS + 2]);
+            final double lExpectedAssumingObservedIsTumor = log10(obs[o + TUMOR_LIKELIHOODS] * exp[e + POSTERIORS] +
+                    obs[o + TUMOR_LIKELIHOODS + 1] * exp[e + POSTERIORS + 1] +
+                    obs[o + TUMOR_LIKELIHOODS + 2] * exp[e + POSTERIORS + 2]);
+            final double lExpectedAssumingExpectedIsTumor = log10(obs[o + LIKELIHOODS] * exp[e + TUMOR_POSTERIORS] +
+                    obs[o + LIKELIHOODS + 1] * exp[e + TUMOR_POSTERIORS + 1] +
+                    obs[o + LIKELIHOODS + 2] * exp[e + TUMOR_POSTERIORS + 2]);
+
+            llThisSample += Math.max(lMinPExpected, lExpected);
+            llOtherSample += obs[o + L_RANDOM];
+            lodExpectedSampleTumorNormal += lExpectedAssumingObservedIsTumor - obs[o + TUMOR_L_RANDOM];
+            lodExpectedSampleNormalTumor += lExpectedAssumingExpectedIsTumor - obs[o + L_RANDOM];
+        }
+
+        results[offset] = llThisSample - llOtherSample;
+        results[offset + 1] = lodExpectedSampleTumorNormal;
+        results[offset + 2] = lodExpectedSampleNormalTumor;
+    }
+
+    /** A band of rows of the comparison matrix, the tasks computing its tiles, and its results. */
+    private final class Band {
+        final int rowStart;
+        final int rowEnd;
+        final double[] results;
+        final List<Future<?>> tiles = new ArrayList<>();
+
+        Band(final int rowStart, final int rowEnd) {
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            this.results = new double[(rowEnd - rowStart) * numFingerprints * 3];
+        }
+
+        int offset(final int row, final int column) {
+            return ((row - rowStart) * numFingerprints + column) * 3;
+        }
+
+        void await() {
+            try {
+                for (final Future<?> tile : tiles) tile.get();
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted while comparing fingerprints.", ie);
+            } catch (final ExecutionException ee) {
+                throw new PicardException("Error comparing fingerprints.", ee.getCause());
+            }
+        }
+
+        void emit(final boolean upperTriangleOnly, final ResultConsumer consumer) {
+            for (int row = rowStart; row < rowEnd; ++row) {
+                for (int column = upperTriangleOnly ? row + 1 : 0; column < numFingerprints; ++column) {
+                    final int offset = offset(row, column);
+                    consumer.accept(row, column, results[offset], results[offset + 1], results[offset + 2]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina;
+
+import htsjdk.samtools.util.SequenceUtil;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the expected barcode that best matches the barcode bases of a cluster, with the same results as comparing
+ * the read to every barcode base by base.  A base counts as a mismatch against a barcode if it differs from the
+ * barcode, or if its quality is below the minimum base quality; no-calls are never counted.
+ * <p/>
+ * When every barcode consists only of A, C, G and T, and all barcodes have the same segment lengths as the read,
+ * bases are 2-bit packed into longs and mismatches against each barcode are counted with XOR and popcount.  Bases
+ * that are masked by quality, or that are not A, C, G or T, mismatch every barcode, so they are counted once up front
+ * rather than against each barcode.  Otherwise, bases are compared one at a time.
+ * <p/>
+ * When the barcodes fit in a single long, the results for every barcode and for every read one mismatch away from a
+ * barcode are precomputed, so that the common case of a read with no no-calls or masked bases that is a perfect or
+ * one-mismatch match is answered with a single hash lookup.
+ * <p/>
+ * A BarcodeMatcher is immutable and may be shared between threads, but each thread must use its own Match.
+ */
+final class BarcodeMatcher {
+    private static final int BASES_PER_WORD = 32;
+    private static final long LOW_BITS = 0x5555555555555555L;
+
+    /**
+     * The maximum number of barcode comparisons spent building the one-mismatch neighbourhood table.  Exact matches
+     * are always precomputed; neighbours are only added if they can be scored within this budget.
+     */
+    private static final long MAX_NEIGHBOURHOOD_COMPARISONS = 200000000L;
+
+    /** Maps each base to its 2-bit code, or -1 if it is not A, C, G or T. */
+    private static final byte[] BASE_CODES = new byte[256];
+
+    static {
+        Arrays.fill(BASE_CODES, (byte) -1);
+        final byte[] bases = {'A', 'C', 'G', 'T'};
+        for (byte code = 0; code < bases.length; ++code) {
+            BASE_CODES[bases[code]] = code;
+            BASE_CODES[Character.toLowerCase(bases[code])] = code;
+        }
+    }
+
+    /** The result of matching a cluster, along with the per-thread scratch space used to compute it. */
+    static final class Match {
+        /** The index of the best matching barcode, or -1 if there are no barcodes. */
+        int barcodeIndex;
+        /** The number of mismatches against the best matching barcode. */
+        int mismatches;
+        /** The number of mismatches against the second best matching barcode. */
+        int mismatchesToSecondBest;
+
+        private final long[] readWords;
+        private final long[] maskWords;
+
+        private Match(final int numWords) {
+            this.readWords = new long[numWords];
+            this.maskWords = new long[numWords];
+        }
+    }
+
+    private final byte[][][] barcodes;
+    private final int minimumBaseQuality;
+
+    /** The segment lengths shared by all barcodes, or null if the barcodes cannot be packed. */
+    private final int[] segmentLengths;
+    private final int numWords;
+    private final long[][] packedBarcodes;
+
+    /** Open-addressing table from a packed read with no masked bases to its precomputed match, or null if none. */
+    private final long[] tableKeys;
+    private final boolean[] tableUsed;
+    private final int[] tableBarcodeIndex;
+    private final int[] tableMismatches;
+    private final int[] tableMismatchesToSecondBest;
+    private final int tableShift;
+
+    /**
+     * @param barcodes           The expected barcodes, each split into one array per barcode read.  Match indices
+     *                           refer to the order of this list.
+     * @param minimumBaseQuality Bases with a quality below this count as mismatches.
+     */
+    BarcodeMatcher(final List<byte[][]> barcodes, final int minimumBaseQuality) {
+        this.barcodes = barcodes.toArray(new byte[barcodes.size()][][]);
+        this.minimumBaseQuality = minimumBaseQuality;
+
+        this.segmentLengths = packableSegmentLengths(this.barcodes);
+        if (segmentLengths == null) {
+            this.numWords = 0;
+            this.packedBarcodes = null;
+        } else {
+            int totalLength = 0;
+            for (final int length : segmentLengths) totalLength += length;
+            this.numWords = (totalLength + BASES_PER_WORD - 1) / BASES_PER_WORD;
+            this.packedBarcodes = new long[this.barcodes.length][];
+            for (int i = 0; i < this.barcodes.length; ++i) {
+                final Match match = newMatch();
+                pack(this.barcodes[i], null, match);
+                this.packedBarcodes[i] = match.readWords;
+            }
+        }
+
+        if (packedBarcodes == null || numWords != 1) {
+            this.tableKeys = null;
+            this.tableUsed = null;
+            this.tableBarcodeIndex = null;
+            this.tableMismatches = null;
+            this.tableMismatchesToSecondBest = null;
+            this.tableShift = 0;
+        } else {
+            int totalLength = 0;
+            for (final int length : segmentLengths) totalLength += length;
+            final long n = this.barcodes.length;
+            final boolean includeNeighbours = n * n * (1 + 3L * totalLength) <= MAX_NEIGHBOURHOOD_COMPARISONS;
+            final long maxEntries = n * (includeNeighbours ? 1 + 3L * totalLength : 1);
+            int bits = 1;
+            while ((1L << bits) < 2 * maxEntries) ++bits;
+            this.tableShift = 64 - bits;
+            this.tableKeys = new long[1 << bits];
+            this.tableUsed = new boolean[1 << bits];
+            this.tableBarcodeIndex = new int[1 << bits];
+            this.tableMismatches = new int[1 << bits];
+            this.tableMismatchesToSecondBest = new int[1 << bits];
+
+            // Score each candidate read as one with every base compared
+            final Match scratch = newMatch();
+            scratch.maskWords[0] = totalLength == BASES_PER_WORD ? LOW_BITS : LOW_BITS & ((1L << (2 * totalLength)) - 1);
+            for (final long[] packed : packedBarcodes) {
+                addToTable(packed[0], totalLength, scratch);
+                if (includeNeighbours) {
+                    for (int position = 0; position < totalLength; ++position) {
+                        for (long delta = 1; delta < 4; ++delta) {
+                            addToTable(packed[0] ^ (delta << (2 * position)), totalLength, scratch);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /** Creates a Match to be used by one thread for all its calls to findBestBarcode. */
+    Match newMatch() {
+        return new Match(numWords);
+    }
+
+    /**
+     * Finds the best and second best matching barcodes for the given read.  If several barcodes are equally good the
+     * first of them is the best.
+     *
+     * @param readSubsequences The bases of each barcode read.
+     * @param qualities        The qualities of each barcode read, or null if qualities are not to be considered.
+     * @param match            Receives the result.
+     */
+    void findBestBarcode(final byte[][] readSubsequences, final byte[][] qualities, final Match match) {
+        int totalBarcodeReadBases = 0;
+        for (final byte[] bc : readSubsequences) totalBarcodeReadBases += bc.length;
+
+        if (packedBarcodes != null && readFitsBarcodes(readSubsequences)) {
+            final int fixedMismatches = pack(readSubsequences, qualities, match);
+            if (fixedMismatches == 0 && tableKeys != null && lookup(match.readWords[0], match)) {
+                return;
+            }
+            scanPacked(match, fixedMismatches, totalBarcodeReadBases);
+        } else {
+            scanUnpacked(readSubsequences, qualities, match, totalBarcodeReadBases);
+        }
+    }
+
+    /** Returns the segment lengths shared by all the barcodes, or null if they differ or contain bases other than ACGT. */
+    private static int[] packableSegmentLengths(final byte[][][] barcodes) {
+        if (barcodes.length == 0) return null;
+        final int[] lengths = new int[barcodes[0].length];
+        for (int j = 0; j < lengths.length; ++j) lengths[j] = barcodes[0][j].length;
+
+        for (final byte[][] barcode : barcodes) {
+            if (barcode.length != lengths.length) return null;
+            for (int j = 0; j < barcode.length; ++j) {
+                if (barcode[j].length != lengths[j]) return null;
+                for (final byte base : barcode[j]) {
+                    if (BASE_CODES[base & 0xff] < 0) return null;
+                }
+            }
+        }
+        return lengths;
+    }
+
+    private boolean readFitsBarcodes(final byte[][] readSubsequences) {
+        if (readSubsequences.length != segmentLengths.length) return false;
+        for (int j = 0; j < segmentLengths.length; ++j) {
+            if (readSubsequences[j].length != segmentLengths[j]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Packs the read into the match's scratch words, setting the mask for each base that is compared against the
+     * barcodes.
+     *
+     * @return The number of bases that mismatch every barcode, i.e. that fall below the minimum quality or are not
+     * A, C, G or T, or -1 if there were also no-calls.  Zero means every base is compared.
+     */
+    private int pack(final byte[][] readSubsequences, final byte[][] qualities, final Match match) {
+        Arrays.fill(match.readWords, 0L);
+        Arrays.fill(match.maskWords, 0L);
+        int fixedMismatches = 0;
+        boolean noCalls = false;
+        int position = 0;
+        for (int j = 0; j < readSubsequences.length; ++j) {
+            final byte[] bases = readSubsequences[j];
+            for (int i = 0; i < bases.length; ++i, ++position) {
+                if (SequenceUtil.isNoCall(bases[i])) {
+                    noCalls = true;
+                    continue;
+                }
+                final byte code = BASE_CODES[bases[i] & 0xff];
+                if (code < 0 || (qualities != null && qualities[j][i] < minimumBaseQuality)) {
+                    ++fixedMismatches;
+                } else {
+                    final int word = position / BASES_PER_WORD;
+                    final int shift = 2 * (position % BASES_PER_WORD);
+                    match.readWords[word] |= ((long) code) << shift;
+                    match.maskWords[word] |= 1L << shift;
+                }
+            }
+        }
+        return noCalls && fixedMismatches == 0 ? -1 : fixedMismatches;
+    }
+
+    private void scanPacked(final Match match, final int fixedMismatches, final int totalBarcodeReadBases) {
+        final int alwaysMismatched = Math.max(0, fixedMismatches);
+        final long[] readWords = match.readWords;
+        final long[] maskWords = match.maskWords;
+
+        // PIC-506 When forcing all reads to match a single barcode, allow a read to match even if every
+        // base is a mismatch.
+        int bestIndex = -1;
+        int numMismatchesInBestBarcode = totalBarcodeReadBases + 1;
+        int numMismatchesInSecondBestBarcode = totalBarcodeReadBases + 1;
+
+        for (int b = 0; b < packedBarcodes.length; ++b) {
+            final long[] packed = packedBarcodes[b];
+            int numMismatches = alwaysMismatched;
+            for (int w = 0; w < numWords; ++w) {
+                final long diff = readWords[w] ^ packed[w];
+                numMismatches += Long.bitCount((diff | (diff >>> 1)) & maskWords[w]);
+            }
+            if (numMismatches < numMismatchesInBestBarcode) {
+                if (bestIndex != -1) {
+                    numMismatchesInSecondBestBarcode = numMismatchesInBestBarcode;
+                }
+                numMismatchesInBestBarcode = numMismatches;
+                bestIndex = b;
+            } else if (numMismatches < numMismatchesInSecondBestBarcode) {
+                numMismatchesInSecondBestBarcode = numMismatches;
+            }
+        }
+
+        match.barcodeIndex = bestIndex;
+        match.mismatches = numMismatchesInBestBarcode;
+        match.mismatchesToSecondBest = numMismatchesInSecondBestBarcode;
+    }
+
+    private void scanUnpacked(final byte[][] readSubsequences, final byte[][] qualities, final Match match,
+                              final int totalBarcodeReadBases) {
+        int bestIndex = -1;
+        int numMismatchesInBestBarcode = totalBarcodeReadBases + 1;
+        int numMismatchesInSecondBestBarcode = totalBarcodeReadBases + 1;
+
+        for (int b = 0; b < barcodes.length; ++b) {
+            final int numMismatches = countMismatches(barcodes[b], readSubsequences, qualities);
+            if (numMismatches < numMismatchesInBestBarcode) {
+                if (bestIndex != -1) {
+                    numMismatchesInSecondBestBarcode = numMismatchesInBestBarcode;
+                }
+                numMismatchesInBestBarcode = numMismatches;
+                bestIndex = b;
+            } else if (numMismatches < numMismatchesInSecondBestBarcode) {
+                numMismatchesInSecondBestBarcode = numMismatches;
+            }
+        }
+
+        match.barcodeIndex = bestIndex;
+        match.mismatches = numMismatchesInBestBarcode;
+        match.mismatchesToSecondBest = numMismatchesInSecondBestBarcode;
+    }
+
+    /**
+     * Compare barcode sequence to bases from read
+     *
+     * @return how many bases did not match
+     */
+    private int countMismatches(final byte[][] barcodeBytes, final byte[][] readSubsequence, final byte[][] qualities) {
+        int numMismatches = 0;
+        // Read sequence and barcode length may not be equal, so we just use the shorter of the two
+        for (int j = 0; j < barcodeBytes.length; j++) {
+            final int basesToCheck = Math.min(barcodeBytes[j].length, readSubsequence[j].length);
+            for (int i = 0; i < basesToCheck; ++i) {
+                if (!SequenceUtil.isNoCall(readSubsequence[j][i])) {
+                    if (!SequenceUtil.basesEqual(barcodeBytes[j][i], readSubsequence[j][i])) ++numMismatches;
+                    else if (qualities != null && qualities[j][i] < minimumBaseQuality) ++numMismatches;
+                }
+            }
+        }
+        return numMismatches;
+    }
+
+    private int slot(final long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> tableShift);
+    }
+
+    private void addToTable(final long key, final int totalLength, final Match scratch) {
+        final int mask = tableKeys.length - 1;
+        int slot = slot(key);
+        while (tableUsed[slot]) {
+            if (tableKeys[slot] == key) return;
+            slot = (slot + 1) & mask;
+        }
+        scratch.readWords[0] = key;
+        scanPacked(scratch, 0, totalLength);
+        tableUsed[slot] = true;
+        tableKeys[slot] = key;
+        tableBarcodeIndex[slot] = scratch.barcodeIndex;
+        tableMismatches[slot] = scratch.mismatches;
+        tableMismatchesToSecondBest[slot] = scratch.mismatchesToSecondBest;
+    }
+
+    private boolean lookup(final long key, final Match match) {
+        final int mask = tableKeys.length - 1;
+        int slot = slot(key);
+        while (tableUsed[slot]) {
+            if (tableKeys[slot] == key) {
+                match.barcodeIndex = tableBarcodeIndex[slot];
+                match.mismatches = tableMismatches[slot];
+                match.mismatchesToSecondBest = tableMismatchesToSecondBest[slot];
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+}
@@ -219,6 +219,12 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
             numProcessors = NUM_PROCESSORS;
         }
 
+        final List<byte[][]> barcodes = new ArrayList<byte[][]>(barcodeToMetrics.size());
+        for (final BarcodeMetric metric : barcodeToMetrics.values()) {
+            barcodes.add(metric.barcodeBytes);
+        }
+        final BarcodeMatcher barcodeMatcher = new BarcodeMatcher(barcodes, MINIMUM_BASE_QUALITY);
+
         LOG.info("Processing with " + numProcessors + " PerTileBarcodeExtractor(s).");
         final ExecutorService pool = Executors.newFixedThreadPool(numProcessors);
 
@@ -231,6 +237,7 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
                     barcodeToMetrics,
                     noMatchMetric,
                     factory,
+                    barcodeMatcher,
                     MINIMUM_BASE_QUALITY,
                     MAX_NO_CALLS,
                     MAX_MISMATCHES,
@@ -549,12 +556,16 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
         private final int tile;
         private final File barcodeFile;
         private final Map<String, BarcodeMetric> metrics;
+        /** The values of metrics, indexed in the same order as the barcodes of barcodeMatcher. */
+        private final BarcodeMetric[] metricsByBarcodeIndex;
         private final BarcodeMetric noMatch;
+        private final BarcodeMatcher barcodeMatcher;
+        private final BarcodeMatcher.Match barcodeMatcherMatch;
         private Exception exception = null;
         private final boolean usingQualityScores;
         private final IlluminaDataProvider provider;
         private final ReadStructure outputReadStructure;
-        private final int maxNoCalls, maxMismatches, minMismatchDelta, minimumBaseQuality;
+        private final int maxNoCalls, maxMismatches, minMismatchDelta;
 
         /** Utility class to hang onto data about the best match for a given barcode */
         class BarcodeMatch {
@@ -571,6 +582,7 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
          * @param barcodeFile      The file to write the barcodes to
          * @param noMatchMetric    A "template" metric that is cloned and the clone is stored internally for accumulating data
          * @param barcodeToMetrics A "template" metric map whose metrics are cloned, and the clones are stored internally for accumulating data
+         * @param barcodeMatcher   Matches reads against the barcodes of barcodeToMetrics, in iteration order
          */
         public PerTileBarcodeExtractor(
                 final int tile,
@@ -578,6 +590,7 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
                 final Map<String, BarcodeMetric> barcodeToMetrics,
                 final BarcodeMetric noMatchMetric,
                 final IlluminaDataProviderFactory factory,
+                final BarcodeMatcher barcodeMatcher,
                 final int minimumBaseQuality,
                 final int maxNoCalls,
                 final int maxMismatches,
@@ -589,11 +602,13 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
             this.maxNoCalls = maxNoCalls;
             this.maxMismatches = maxMismatches;
             this.minMismatchDelta = minMismatchDelta;
-            this.minimumBaseQuality = minimumBaseQuality;
             this.metrics = new LinkedHashMap<String, BarcodeMetric>(barcodeToMetrics.size());
             for (final String key : barcodeToMetrics.keySet()) {
                 this.metrics.put(key, BarcodeMetric.copy(barcodeToMetrics.get(key)));
             }
+            this.metricsByBarcodeIndex = this.metrics.values().toArray(new BarcodeMetric[this.metrics.size()]);
+            this.barcodeMatcher = barcodeMatcher;
+            this.barcodeMatcherMatch = barcodeMatcher.newMatch();
             this.noMatch = BarcodeMetric.copy(noMatchMetric);
             this.provider = factory.makeDataProvider(Arrays.asList(tile));
             this.outputReadStructure = factory.getOutputReadStructure();
@@ -632,7 +647,7 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
                         if (usingQualityScores) qualityScores[i] = cluster.getRead(barcodeIndices[i]).getQualities();
                     }
                     final boolean passingFilter = cluster.isPf();
-                    final BarcodeMatch match = findBestBarcodeAndUpdateMetrics(barcodeSubsequences, qualityScores, passingFilter, metrics, noMatch);
+                    final BarcodeMatch match = findBestBarcodeAndUpdateMetrics(barcodeSubsequences, qualityScores, passingFilter, noMatch);
 
                     final String yOrN = (match.matched ? "Y" : "N");
 
@@ -663,9 +678,7 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
         private BarcodeMatch findBestBarcodeAndUpdateMetrics(final byte[][] readSubsequences,
                                                              final byte[][] qualityScores,
                                                              final boolean passingFilter,
-                                                             final Map<String, BarcodeMetric> metrics,
                                                              final BarcodeMetric noMatchBarcodeMetric) {
-            BarcodeMetric bestBarcodeMetric = null;
             int totalBarcodeReadBases = 0;
             int numNoCalls = 0; // NoCalls are calculated for all the barcodes combined
 
@@ -674,23 +687,11 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
                 for (final byte b : bc) if (SequenceUtil.isNoCall(b)) ++numNoCalls;
             }
 
-            // PIC-506 When forcing all reads to match a single barcode, allow a read to match even if every
-            // base is a mismatch.
-            int numMismatchesInBestBarcode = totalBarcodeReadBases + 1;
-            int numMismatchesInSecondBestBarcode = totalBarcodeReadBases + 1;
-
-            for (final BarcodeMetric barcodeMetric : metrics.values()) {
-                final int numMismatches = countMismatches(barcodeMetric.barcodeBytes, readSubsequences, qualityScores);
-                if (numMismatches < numMismatchesInBestBarcode) {
-                    if (bestBarcodeMetric != null) {
-                        numMismatchesInSecondBestBarcode = numMismatchesInBestBarcode;
-                    }
-                    numMismatchesInBestBarcode = numMismatches;
-                    bestBarcodeMetric = barcodeMetric;
-                } else if (numMismatches < numMismatchesInSecondBestBarcode) {
-                    numMismatchesInSecondBestBarcode = numMismatches;
-                }
-            }
+            barcodeMatcher.findBestBarcode(readSubsequences, qualityScores, barcodeMatcherMatch);
+            final BarcodeMetric bestBarcodeMetric =
+                    barcodeMatcherMatch.barcodeIndex < 0 ? null : metricsByBarcodeIndex[barcodeMatcherMatch.barcodeIndex];
+            final int numMismatchesInBestBarcode = barcodeMatcherMatch.mismatches;
+            final int numMismatchesInSecondBestBarcode = barcodeMatcherMatch.mismatchesToSecondBest;
 
             final boolean matched = bestBarcodeMetric != null &&
                     numNoCalls <= maxNoCalls &&
@@ -738,25 +739,5 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
 
             return match;
         }
-
-        /**
-         * Compare barcode sequence to bases from read
-         *
-         * @return how many bases did not match
-         */
-        private int countMismatches(final byte[][] barcodeBytes, final byte[][] readSubsequence, final byte[][] qualities) {
-            int numMismatches = 0;
-            // Read sequence and barcode length may not be equal, so we just use the shorter of the two
-            for (int j = 0; j < barcodeBytes.length; j++) {
-                final int basesToCheck = Math.min(barcodeBytes[j].length, readSubsequence[j].length);
-                for (int i = 0; i < basesToCheck; ++i) {
-                    if (!SequenceUtil.isNoCall(readSubsequence[j][i])) {
-                        if (!SequenceUtil.basesEqual(barcodeBytes[j][i], readSubsequence[j][i])) ++numMismatches;
-                        else if (qualities != null && qualities[j][i] < minimumBaseQuality) ++numMismatches;
-                    }
-                }
-            }
-            return numMismatches;
-        }
     }
 }
@@ -43,19 +43,19 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.Queue;
-import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
@@ -85,6 +85,11 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
 
     private static final Log log = Log.getInstance(IlluminaBasecallsConverter.class);
 
+    /**
+     * The number of records each worker thread counts locally before reporting them to a shared progress logger.
+     */
+    private static final int PROGRESS_BATCH_SIZE = 10000;
+
     public static final IlluminaDataType[] DATA_TYPES_NO_BARCODE =
             {IlluminaDataType.BaseCalls, IlluminaDataType.QualityScores, IlluminaDataType.Position, IlluminaDataType.PF};
     private static final IlluminaDataType[] DATA_TYPES_WITH_BARCODE = Arrays.copyOf(DATA_TYPES_NO_BARCODE, DATA_TYPES_NO_BARCODE.length + 1);
@@ -118,6 +123,9 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
 
     private final BclQualityEvaluationStrategy bclQualityEvaluationStrategy;
     private final Map<String, ? extends ConvertedClusterDataWriter<CLUSTER_OUTPUT_RECORD>> barcodeRecordWriterMap;
+    // The keys of barcodeRecordWriterMap, and the index of each, so that per-tile state can be kept in arrays.
+    private final List<String> barcodes;
+    private final Map<String, Integer> barcodeIndices = new HashMap<String, Integer>();
     private final int maxReadsInRamPerTile;
     private final boolean demultiplex;
     private final List<File> tmpDirs;
@@ -219,6 +227,10 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
                                       final boolean ignoreUnexpectedBarcodes
     ) {
         this.barcodeRecordWriterMap = barcodeRecordWriterMap;
+        this.barcodes = new ArrayList<String>(barcodeRecordWriterMap.keySet());
+        for (int i = 0; i < barcodes.size(); ++i) {
+            this.barcodeIndices.put(barcodes.get(i), i);
+        }
         this.demultiplex = demultiplex;
         this.maxReadsInRamPerTile = maxReadsInRamPerTile;
         this.tmpDirs = tmpDirs;
@@ -400,56 +412,52 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
     /**
      * Represents the state of a tile's processing and encapsulates the data collected from that tile.
      * <p/>
-     * TileProcessingRecords are accessed from each worker thread to assess the progress of the run, so its methods
-     * are synchronized.
+     * A tile is read by exactly one TileReader, so while the tile is being read its per-barcode collections are
+     * confined to that reader's thread and records are added without any locking.  Completion of the read is
+     * published through the volatile tile state, after which the per-barcode states are advanced with atomic
+     * compare-and-set operations by whichever worker thread finds the work.
      */
     private class TileProcessingRecord {
-        final private Map<String, SortingCollection<CLUSTER_OUTPUT_RECORD>> barcodeToRecordCollection =
-                new HashMap<String, SortingCollection<CLUSTER_OUTPUT_RECORD>>();
-        final private Map<String, TileBarcodeProcessingState> barcodeToProcessingState = new HashMap<String, TileBarcodeProcessingState>();
-        private TileProcessingState state = TileProcessingState.NOT_DONE_READING;
+        final private List<SortingCollection<CLUSTER_OUTPUT_RECORD>> barcodeRecords =
+                new ArrayList<SortingCollection<CLUSTER_OUTPUT_RECORD>>(Collections.<SortingCollection<CLUSTER_OUTPUT_RECORD>>nCopies(barcodes.size(), null));
+        final private AtomicReferenceArray<TileBarcodeProcessingState> barcodeStates =
+                new AtomicReferenceArray<TileBarcodeProcessingState>(barcodes.size());
+        private volatile TileProcessingState state = TileProcessingState.NOT_DONE_READING;
         private long recordCount = 0;
+        private int barcodeCount = 0;
 
         /**
          * Returns the state of this tile's processing.
          */
-        public synchronized TileProcessingState getState() {
+        public TileProcessingState getState() {
             return this.state;
         }
 
         /**
-         * Sets the state of this tile's processing.
-         */
-        public synchronized void setState(final TileProcessingState state) {
-            this.state = state;
-        }
-
-        /**
-         * Adds the provided record to this tile.
+         * Adds the provided record to this tile.  Only the thread reading this tile may invoke this method.
          */
-        public synchronized void addRecord(final String barcode, final CLUSTER_OUTPUT_RECORD record) {
+        public void addRecord(final String barcode, final CLUSTER_OUTPUT_RECORD record) {
             this.recordCount += 1;
 
+            final Integer barcodeIndex = barcodeIndices.get(barcode);
+            if (barcodeIndex == null) {
+                if (ignoreUnexpectedBarcodes) {
+                    return;
+                }
+                throw new PicardException(String.format("Read records with barcode %s, but this barcode was not expected.  (Is it referenced in the parameters file?)", barcode));
+            }
+
             // Grab the existing collection, or initialize it if it doesn't yet exist
-            SortingCollection<CLUSTER_OUTPUT_RECORD> recordCollection = this.barcodeToRecordCollection.get(barcode);
+            SortingCollection<CLUSTER_OUTPUT_RECORD> recordCollection = this.barcodeRecords.get(barcodeIndex);
             if (recordCollection == null) {
-                // TODO: The implementation here for supporting ignoreUnexpectedBarcodes is not efficient,
-                // but the alternative is an extensive rewrite.  We are living with the inefficiency for
-                // this special case for the time being.
-                if (!barcodeRecordWriterMap.containsKey(barcode)) {
-                    if (ignoreUnexpectedBarcodes) {
-                        return;
-                    }
-                    throw new PicardException(String.format("Read records with barcode %s, but this barcode was not expected.  (Is it referenced in the parameters file?)", barcode));
-                }
                 recordCollection = this.newSortingCollection();
-                this.barcodeToRecordCollection.put(barcode, recordCollection);
-                this.barcodeToProcessingState.put(barcode, null);
+                this.barcodeRecords.set(barcodeIndex, recordCollection);
+                this.barcodeCount += 1;
             }
             recordCollection.add(record);
         }
 
-        private synchronized SortingCollection<CLUSTER_OUTPUT_RECORD> newSortingCollection() {
+        private SortingCollection<CLUSTER_OUTPUT_RECORD> newSortingCollection() {
             final int maxRecordsInRam =
                     Math.max(1, maxReadsInRamPerTile /
                             barcodeRecordWriterMap.size());
@@ -461,25 +469,42 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
                     tmpDirs);
         }
 
+        /**
+         * Marks every barcode as READ or NA and then publishes the DONE_READING state of this tile.  Only the thread
+         * reading this tile may invoke this method, and only once.
+         */
+        public void setDoneReading() {
+            for (int i = 0; i < barcodes.size(); ++i) {
+                final SortingCollection<CLUSTER_OUTPUT_RECORD> records = this.barcodeRecords.get(i);
+                if (records == null) {
+                    this.barcodeStates.set(i, TileBarcodeProcessingState.NA);
+                } else {
+                    records.doneAdding();
+                    this.barcodeStates.set(i, TileBarcodeProcessingState.READ);
+                }
+            }
+            this.state = TileProcessingState.DONE_READING;
+        }
+
         /**
          * Returns the number of unique barcodes read.
          */
-        public synchronized long getBarcodeCount() {
-            return this.barcodeToRecordCollection.size();
+        public int getBarcodeCount() {
+            return this.barcodeCount;
         }
 
         /**
          * Returns the number of records read.
          */
-        public synchronized long getRecordCount() {
+        public long getRecordCount() {
             return recordCount;
         }
 
         /**
-         * Returns the mapping of barcodes to records associated with them.
+         * Returns the records associated with the barcode at the given index, or null if there are none.
          */
-        public synchronized Map<String, SortingCollection<CLUSTER_OUTPUT_RECORD>> getBarcodeRecords() {
-            return barcodeToRecordCollection;
+        public SortingCollection<CLUSTER_OUTPUT_RECORD> getBarcodeRecords(final int barcodeIndex) {
+            return this.barcodeRecords.get(barcodeIndex);
         }
 
         /**
@@ -488,43 +513,23 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
          *
          * @throws IllegalStateException When a barcode is queried before the tile is in the DONE_READING state
          */
-        public synchronized TileBarcodeProcessingState getBarcodeState(final String barcode) {
+        public TileBarcodeProcessingState getBarcodeState(final int barcodeIndex) {
             if (this.getState() == TileProcessingState.NOT_DONE_READING) {
                 throw new IllegalStateException(
                         "A tile's barcode data's state cannot be queried until the tile has been completely read.");
             }
-
-            if (this.barcodeToProcessingState.containsKey(barcode)) {
-                return this.barcodeToProcessingState.get(barcode);
-            } else {
-                return TileBarcodeProcessingState.NA;
-            }
-        }
-
-        public synchronized Map<String, TileBarcodeProcessingState> getBarcodeProcessingStates() {
-            return this.barcodeToProcessingState;
-        }
-
-        /**
-         * Sets the processing state of the provided barcode in this record.
-         *
-         * @throws java.util.NoSuchElementException When the provided barcode is not one associated with this record.
-         */
-        public synchronized void setBarcodeState(final String barcode, final TileBarcodeProcessingState state) {
-            if (this.barcodeToProcessingState.containsKey(barcode)) {
-                this.barcodeToProcessingState.put(barcode, state);
-            } else {
-                throw new NoSuchElementException(String.format("No record of the provided barcode, %s.", barcode));
-            }
+            return this.barcodeStates.get(barcodeIndex);
         }
 
         /**
-         * Returns the distinct set of barcodes for which data has been collected in this record.
+         * Atomically moves the barcode at the given index from the expected state to the new state.
          *
-         * @return
+         * @return True if the transition was made, false if the barcode was not in the expected state
          */
-        public synchronized Set<String> getBarcodes() {
-            return this.getBarcodeRecords().keySet();
+        public boolean compareAndSetBarcodeState(final int barcodeIndex,
+                                                 final TileBarcodeProcessingState expected,
+                                                 final TileBarcodeProcessingState state) {
+            return this.barcodeStates.compareAndSet(barcodeIndex, expected, state);
         }
     }
 
@@ -551,21 +556,40 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
             final IlluminaDataProvider dataProvider = factory.makeDataProvider(Arrays.asList(this.tile.getNumber()));
             log.debug(String.format("Reading data from tile %s ...", tile.getNumber()));
 
+            int unloggedReads = 0;
             while (dataProvider.hasNext()) {
                 final ClusterData cluster = dataProvider.next();
-                readProgressLogger.record(null, 0);
+                if (++unloggedReads == PROGRESS_BATCH_SIZE) {
+                    recordProgress(readProgressLogger, unloggedReads);
+                    unloggedReads = 0;
+                }
                 // If this cluster is passing, or we do NOT want to ONLY emit passing reads, then add it to the next
                 if (cluster.isPf() || includeNonPfReads) {
                     final String barcode = (demultiplex ? cluster.getMatchedBarcode() : null);
                     this.processingRecord.addRecord(barcode, converter.convertClusterToOutputRecord(cluster));
                 }
             }
+            recordProgress(readProgressLogger, unloggedReads);
 
             this.handler.completeTile(this.tile);
             dataProvider.close();
         }
     }
 
+    /**
+     * Records a batch of records against a progress logger shared between worker threads.  The logger is locked once
+     * for the whole batch, rather than once per record, so that worker threads do not contend on it.
+     */
+    private static void recordProgress(final ProgressLogger progressLogger, final int count) {
+        if (count == 0) return;
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (progressLogger) {
+            for (int i = 0; i < count; ++i) {
+                progressLogger.record(null, 0);
+            }
+        }
+    }
+
 
     /**
      * Aggregates data collected from tiles and writes them to file. Accepts records from TileReaders and maps
@@ -575,10 +599,30 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
         /**
          * The collection of records associated with a particular tile.
          * <p/>
-         * Implemented as a TreeMap to guarantee tiles are iterated over in natural order.
+         * Implemented as a TreeMap to guarantee tiles are iterated over in natural order.  It is not modified after
+         * construction, so it may be read concurrently by the worker threads.
          */
         private final Map<Tile, TileProcessingRecord> tileRecords = new TreeMap<Tile, TileProcessingRecord>();
 
+        /**
+         * The tiles and their records in the same order as tileRecords, for indexed access.
+         */
+        private final List<Tile> orderedTiles;
+        private final List<TileProcessingRecord> orderedTileRecords;
+
+        /**
+         * For each barcode, the index of the first tile whose data for that barcode may not yet have been written.
+         * Every earlier tile is known to be either written or to have no data for the barcode.  Only the thread that
+         * writes a barcode's data advances its entry, so the values are monotonic.
+         */
+        private final AtomicIntegerArray nextTileToWrite = new AtomicIntegerArray(barcodes.size());
+
+        /**
+         * The number of units of work outstanding: one for every tile not yet completely read, plus one for every
+         * tile/barcode pair that has been read but not yet written.  The aggregator is done when this reaches zero.
+         */
+        private final AtomicLong outstandingWork;
+
         /**
          * The executor responsible for doing work.
          * <p/>
@@ -604,15 +648,14 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
         );
 
         /**
-         * The object acting as a latch to notify when the aggregator completes its work.
+         * The latch released when the aggregator completes its work.
          */
-        private final Object completionLatch = new Object();
+        private final CountDownLatch completionLatch = new CountDownLatch(1);
 
         /**
          * Stores the thread that is executing this work so that it can be interrupted upon failure.
          */
         private Thread parentThread;
-        private final Object workEnqueueMonitor = new Object();
         private final AtomicBoolean submitted = new AtomicBoolean(false);
 
 
@@ -625,6 +668,12 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
             for (final Tile t : tiles) {
                 tileRecords.put(t, new TileProcessingRecord());
             }
+            this.orderedTiles = new ArrayList<Tile>(tileRecords.keySet());
+            this.orderedTileRecords = new ArrayList<TileProcessingRecord>(tileRecords.values());
+            this.outstandingWork = new AtomicLong(tileRecords.size());
+            if (tileRecords.isEmpty()) {
+                completionLatch.countDown();
+            }
         }
 
         /**
@@ -685,18 +734,15 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
                 throw new IllegalStateException("This tile is already in the completed state.");
             }
 
-            // Update all of the barcodes and the tile to be marked as read
-            for (final String barcode : tileRecord.getBarcodes()) {
-                tileRecord.setBarcodeState(barcode, TileBarcodeProcessingState.READ);
-                tileRecord.barcodeToRecordCollection.get(barcode).doneAdding();
-            }
-            tileRecord.setState(TileProcessingState.DONE_READING);
+            // Account for this tile's writes before they can be enqueued, so the outstanding count cannot reach zero early
+            this.outstandingWork.addAndGet(tileRecord.getBarcodeCount());
+            tileRecord.setDoneReading();
 
             log.debug(String.format("Completed reading tile %s; collected %s reads spanning %s barcodes.",
                     tile.getNumber(), tileRecord.getRecordCount(), tileRecord.getBarcodeCount()));
 
-            //noinspection SynchronizationOnLocalVariableOrMethodParameter
-            this.findAndEnqueueWorkOrSignalCompletion();
+            this.findAndEnqueueWork();
+            this.retireWork();
         }
 
         /**
@@ -705,102 +751,87 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
          * @throws InterruptedException
          */
         public void awaitWorkComplete() throws InterruptedException {
-            synchronized (this.completionLatch) {
-                this.completionLatch.wait();
-            }
+            this.completionLatch.await();
         }
 
         /**
-         * Signals to any thread awaiting via awaitWorkComplete() that no work remains. Called
-         * when this aggregator has reached its completed state.
+         * Retires one unit of outstanding work, releasing any thread awaiting via awaitWorkComplete() if no work
+         * remains.
          */
-        private void signalWorkComplete() {
-            synchronized (this.completionLatch) {
-                this.completionLatch.notifyAll();
+        private void retireWork() {
+            if (this.outstandingWork.decrementAndGet() == 0) {
+                log.info("All work is complete.");
+                this.completionLatch.countDown();
             }
         }
 
         /**
          * Poll the aggregator to find more tasks for it to enqueue.  Specifically, searches for un-written data
          * read from tiles for each barcode and enqueues it for writing.
+         * <p/>
+         * This is called without a lock by every thread that completes a tile or a write, so several threads may
+         * scan concurrently; the compare-and-set from READ to QUEUED_FOR_WRITE guarantees that each tile/barcode
+         * pair is enqueued exactly once.  Because every state change is followed by a scan from the thread that
+         * made it, and the states are volatile, at least one of any two racing scans observes both changes.
          */
-        private void findAndEnqueueWorkOrSignalCompletion() {
-            synchronized (this.workEnqueueMonitor) {
-                /**
-                 * If there is work remaining to be done in this aggregator, walk through all of the barcodes and find
-                 * tiles which have not yet written their barcode data but are in a state where they are able to.
-                 */
-                if (this.isWorkCompleted()) {
-                    this.signalWorkComplete();
-                } else {
-                    final Queue<Runnable> tasks = new LinkedList<Runnable>();
-                    for (final String barcode : barcodeRecordWriterMap.keySet()) {
-                        NEXT_BARCODE:
-                        for (final Map.Entry<Tile, TileProcessingRecord> entry : this.tileRecords.entrySet()) {
-                            final Tile tile = entry.getKey();
-                            final TileProcessingRecord tileRecord = entry.getValue();
+        private void findAndEnqueueWork() {
+            for (int barcodeIndex = 0; barcodeIndex < barcodes.size(); ++barcodeIndex) {
+                for (int tileIndex = this.nextTileToWrite.get(barcodeIndex); tileIndex < this.orderedTiles.size(); ++tileIndex) {
+                    final TileProcessingRecord tileRecord = this.orderedTileRecords.get(tileIndex);
 
-                            /**
-                             * If this tile has not been read, we cannot write this or later tiles' barcode data;
-                             * move to the next barcode.
-                             */
-                            if (tileRecord.getState() != TileProcessingState.DONE_READING) {
-                                break;
-                            }
-                            switch (tileRecord.getBarcodeState(barcode)) {
-                                case NA:
-                                case WRITTEN:
-                                    /**
-                                     * There is no data for this barcode for this tile, or it is already written; in
-                                     * either scenario, this barcode will not be processed further for this tile, so
-                                     * move onto the next tile as a possible candidate.
-                                     */
-                                    continue;
-                                case QUEUED_FOR_WRITE:
-                                    /**
-                                     * The write for this barcode is in progress for this tile, so skip to the next
-                                     * barcode.
-                                     */
-                                    break NEXT_BARCODE;
-                                case READ:
-                                    /**
-                                     * This barcode has been read, and all of the earlier tiles have been written
-                                     * for this barcode, so queue its writing.
-                                     */
-                                    tileRecord.setBarcodeState(barcode, TileBarcodeProcessingState.QUEUED_FOR_WRITE);
-                                    log.debug(String.format("Enqueuing work for tile %s and barcode %s.", tile.getNumber(), barcode));
-                                    tasks.add(this.newBarcodeWorkInstance(tile, tileRecord, barcode));
-                                    break NEXT_BARCODE;
-                            }
-                        }
+                    /**
+                     * If this tile has not been read, we cannot write this or later tiles' barcode data;
+                     * move to the next barcode.
+                     */
+                    if (tileRecord.getState() != TileProcessingState.DONE_READING) {
+                        break;
                     }
-
-                    for (final Runnable task : tasks) {
-                        this.prioritizingThreadPool.execute(task);
+                    final TileBarcodeProcessingState barcodeState = tileRecord.getBarcodeState(barcodeIndex);
+                    if (barcodeState == TileBarcodeProcessingState.NA || barcodeState == TileBarcodeProcessingState.WRITTEN) {
+                        /**
+                         * There is no data for this barcode for this tile, or it is already written; in either
+                         * scenario, this barcode will not be processed further for this tile, so move onto the next
+                         * tile as a possible candidate.
+                         */
+                        continue;
+                    }
+                    /**
+                     * If this barcode has been read, and all of the earlier tiles have been written for this barcode,
+                     * queue its writing unless another thread got there first.  Either way the write for this barcode
+                     * is now pending for this tile, so skip to the next barcode.
+                     */
+                    if (barcodeState == TileBarcodeProcessingState.READ &&
+                            tileRecord.compareAndSetBarcodeState(barcodeIndex, TileBarcodeProcessingState.READ, TileBarcodeProcessingState.QUEUED_FOR_WRITE)) {
+                        log.debug(String.format("Enqueuing work for tile %s and barcode %s.", this.orderedTiles.get(tileIndex).getNumber(), barcodes.get(barcodeIndex)));
+                        this.prioritizingThreadPool.execute(this.newBarcodeWorkInstance(tileIndex, barcodeIndex));
                     }
+                    break;
                 }
             }
         }
 
         /**
-         * Returns a PriorityRunnable that encapsulates the work involved with writing the provided tileRecord's data
+         * Returns a PriorityRunnable that encapsulates the work involved with writing the provided tile's data
          * for the given barcode to disk.
          *
-         * @param tile       The tile from which the record was read
-         * @param tileRecord The processing record associated with the tile
-         * @param barcode    The barcode whose data within the tileRecord is to be written
+         * @param tileIndex    The index of the tile from which the record was read
+         * @param barcodeIndex The index of the barcode whose data within the tile's record is to be written
          * @return The runnable that upon invocation writes the barcode's data from the tileRecord to disk
          */
-        private PriorityRunnable newBarcodeWorkInstance(final Tile tile, final TileProcessingRecord tileRecord, final String barcode) {
+        private PriorityRunnable newBarcodeWorkInstance(final int tileIndex, final int barcodeIndex) {
+            final Tile tile = this.orderedTiles.get(tileIndex);
+            final TileProcessingRecord tileRecord = this.orderedTileRecords.get(tileIndex);
+            final String barcode = barcodes.get(barcodeIndex);
             return new PriorityRunnable() {
                 @Override
                 public void run() {
                     try {
-                        final SortingCollection<CLUSTER_OUTPUT_RECORD> records = tileRecord.getBarcodeRecords().get(barcode);
+                        final SortingCollection<CLUSTER_OUTPUT_RECORD> records = tileRecord.getBarcodeRecords(barcodeIndex);
                         final ConvertedClusterDataWriter<CLUSTER_OUTPUT_RECORD> writer = barcodeRecordWriterMap.get(barcode);
 
                         log.debug(String.format("Writing records from tile %s with barcode %s ...", tile.getNumber(), barcode));
 
+                        int unloggedWrites = 0;
                         final PeekIterator<CLUSTER_OUTPUT_RECORD> it = new PeekIterator<CLUSTER_OUTPUT_RECORD>(records.iterator());
                         while (it.hasNext()) {
                             final CLUSTER_OUTPUT_RECORD rec = it.next();
@@ -829,11 +860,18 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
                             }
 
                             writer.write(rec);
-                            writeProgressLogger.record(null, 0);
+                            if (++unloggedWrites == PROGRESS_BATCH_SIZE) {
+                                recordProgress(writeProgressLogger, unloggedWrites);
+                                unloggedWrites = 0;
+                            }
                         }
+                        recordProgress(writeProgressLogger, unloggedWrites);
 
-                        tileRecord.setBarcodeState(barcode, TileBarcodeProcessingState.WRITTEN);
-                        findAndEnqueueWorkOrSignalCompletion();
+                        // Earlier tiles for this barcode are all written, so later scans may start after this one
+                        tileRecord.compareAndSetBarcodeState(barcodeIndex, TileBarcodeProcessingState.QUEUED_FOR_WRITE, TileBarcodeProcessingState.WRITTEN);
+                        nextTileToWrite.set(barcodeIndex, tileIndex + 1);
+                        findAndEnqueueWork();
+                        retireWork();
 
                     } catch (final RuntimeException e) {
                         /**
@@ -852,33 +890,6 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
             };
         }
 
-        /**
-         * Returns true if this aggregator has not completed its work.  Specifically, returns false iff
-         * any tile's barcode data yas not yet been written.
-         *
-         * @return True if more work remains to be done, false otherwise
-         */
-        public boolean isWorkCompleted() {
-            for (final Map.Entry<Tile, TileProcessingRecord> entry : this.tileRecords.entrySet()) {
-                final TileProcessingRecord tileProcessingRecord = entry.getValue();
-
-                if (tileProcessingRecord.getState() != TileProcessingState.DONE_READING) {
-                    log.debug(String.format("Work is not completed because a tile isn't done being read: %s.", entry.getKey().getNumber()));
-                    return false;
-                } else {
-                    for (final Map.Entry<String, TileBarcodeProcessingState> barcodeStateEntry : tileProcessingRecord.getBarcodeProcessingStates().entrySet()) {
-                        final TileBarcodeProcessingState barcodeProcessingState = barcodeStateEntry.getValue();
-                        if (barcodeProcessingState != TileBarcodeProcessingState.WRITTEN) {
-                            log.debug(String.format("Work is not completed because a tile isn't done being read: Tile %s, Barcode %s, Processing State %s.", entry.getKey().getNumber(), barcodeStateEntry.getKey(), barcodeProcessingState));
-                            return false;
-                        }
-                    }
-                }
-            }
-            log.info("All work is complete.");
-            return true;
-        }
-
         /**
          * Terminates the threads currently exiting in the thread pool abruptly via ThreadPoolExecutor.shutdownNow().
          */
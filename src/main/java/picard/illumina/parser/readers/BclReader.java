@@ -71,12 +71,36 @@ import java.util.zip.GZIPInputStream;
  * 34          T
  * <p/>
  * So the output base/quality will be a (T/34)
+ * <p/>
+ * Rather than reading one byte per cycle per cluster, the reader reads a batch of clusters from each cycle's stream
+ * at a time into a reusable block, and decodes each cluster from that block through lookup tables.  The block is
+ * small enough to stay in cache while it is transposed from cycle-major to cluster-major order.
  */
 public class BclReader implements CloseableIterator<BclData> {
     private static final byte BASE_MASK = 0x0003;
     private static final int HEADER_SIZE = 4;
     private static final byte[] BASE_LOOKUP = new byte[]{'A', 'C', 'G', 'T'};
 
+    /** The default number of clusters read from each cycle's stream at a time. */
+    static final int DEFAULT_CLUSTER_BATCH_SIZE = 4096;
+
+    /** Bytes below this, other than 0, have a quality of 0 or 1, and so must be passed to the quality strategy. */
+    private static final int MIN_UNLOGGED_BYTE = BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY << 2;
+
+    /** The decoded base and quality for each possible byte in a BCL file. */
+    private static final byte[] BYTE_TO_BASE = new byte[256];
+    private static final byte[] BYTE_TO_QUALITY = new byte[256];
+
+    static {
+        //NO CALL, don't confuse with an A call
+        BYTE_TO_BASE[0] = (byte) '.';
+        BYTE_TO_QUALITY[0] = (byte) 2;
+        for (int i = 1; i < 256; ++i) {
+            BYTE_TO_BASE[i] = BASE_LOOKUP[i & BASE_MASK];
+            BYTE_TO_QUALITY[i] = (byte) Math.max(i >>> 2, 1);
+        }
+    }
+
     private final InputStream[] streams;
     private final File[] streamFiles;
     private final int[] outputLengths;
@@ -85,6 +109,12 @@ public class BclReader implements CloseableIterator<BclData> {
     private final BclQualityEvaluationStrategy bclQualityEvaluationStrategy;
     private BclData queue = null;
 
+    private int clusterBatchSize = DEFAULT_CLUSTER_BATCH_SIZE;
+    /** The current batch of clusters, indexed by cycle and then by cluster within the batch; allocated on first use. */
+    private byte[][] cycleBlock = null;
+    private int clustersInBlock = 0;
+    private int nextClusterInBlock = 0;
+
     public BclReader(final List<File> bclsForOneTile, final int[] outputLengths,
                      final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final boolean seekable) {
         try {
@@ -285,45 +315,83 @@ public class BclReader implements CloseableIterator<BclData> {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Sets the number of clusters read from each cycle's stream at a time.  Must be called before reading.
+     */
+    void setClusterBatchSize(final int clusterBatchSize) {
+        if (clusterBatchSize < 1) throw new IllegalArgumentException("clusterBatchSize must be at least 1");
+        if (cycleBlock != null) throw new IllegalStateException("Cannot change the batch size once reading has begun.");
+        this.clusterBatchSize = clusterBatchSize;
+    }
+
     void advance() {
+        if (nextClusterInBlock == clustersInBlock) {
+            readBlock();
+            if (clustersInBlock == 0) {
+                queue = null;
+                return;
+            }
+        }
+
+        final int cluster = nextClusterInBlock++;
         int totalCycleCount = 0;
         final BclData data = new BclData(outputLengths);
         for (int read = 0; read < outputLengths.length; read++) {
+            final byte[] bases = data.bases[read];
+            final byte[] qualities = data.qualities[read];
             for (int cycle = 0; cycle < outputLengths[read]; ++cycle) {
-                try {
-
-                    final int readByte;
-                    try {
-                        readByte = this.streams[totalCycleCount].read();
-                    } catch (IOException e) {
-                        // when logging the error, increment cycle by 1, since totalCycleCount is zero-indexed but Illumina directories are 1-indexed.
-                        throw new IOException(String.format("Error while reading from BCL file for cycle %d. Offending file on disk is %s",
-                                (totalCycleCount+1), this.streamFiles[totalCycleCount].getAbsolutePath()), e);
-                    }
-
-                    if (readByte == -1) {
-                        queue = null;
-                        return;
-                    }
-
-                    if (readByte == 0) {
-                        //NO CALL, don't confuse with an A call
-                        data.bases[read][cycle] = (byte) '.';
-                        data.qualities[read][cycle] = (byte) 2;
-                    } else {
-                        data.bases[read][cycle] = BASE_LOOKUP[readByte & BASE_MASK];
-                        data.qualities[read][cycle] = bclQualityEvaluationStrategy.reviseAndConditionallyLogQuality((byte) (readByte >>> 2));
-                    }
-                    totalCycleCount++;
-                } catch (final IOException ioe) {
-                    throw new RuntimeIOException(ioe);
+                final int readByte = cycleBlock[totalCycleCount++][cluster] & 0xff;
+                bases[cycle] = BYTE_TO_BASE[readByte];
+                if (readByte != 0 && readByte < MIN_UNLOGGED_BYTE) {
+                    qualities[cycle] = bclQualityEvaluationStrategy.reviseAndConditionallyLogQuality((byte) (readByte >>> 2));
+                } else {
+                    qualities[cycle] = BYTE_TO_QUALITY[readByte];
                 }
-
             }
         }
         this.queue = data;
     }
 
+    /**
+     * Reads the next batch of clusters from every cycle's stream into the block.  If the streams end, the block holds
+     * only the clusters for which every cycle could be read.
+     */
+    private void readBlock() {
+        if (cycleBlock == null) {
+            cycleBlock = new byte[streams.length][clusterBatchSize];
+        }
+        int clustersRead = clusterBatchSize;
+        for (int i = 0; i < streams.length; ++i) {
+            try {
+                clustersRead = Math.min(clustersRead, readFully(streams[i], cycleBlock[i], clustersRead));
+            } catch (final IOException e) {
+                // when logging the error, increment cycle by 1, since i is zero-indexed but Illumina directories are 1-indexed.
+                throw new RuntimeIOException(new IOException(String.format("Error while reading from BCL file for cycle %d. Offending file on disk is %s",
+                        (i + 1), this.streamFiles[i].getAbsolutePath()), e));
+            }
+        }
+        clustersInBlock = clustersRead;
+        nextClusterInBlock = 0;
+    }
+
+    /** Reads up to length bytes, stopping early only at the end of the stream, and returns the number read. */
+    private static int readFully(final InputStream stream, final byte[] buffer, final int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            final int read = stream.read(buffer, total, length - total);
+            if (read == -1) break;
+            total += read;
+        }
+        return total;
+    }
+
+    /** Discards any clusters that have been read ahead of the streams' current positions. */
+    private void discardBlock() {
+        clustersInBlock = 0;
+        nextClusterInBlock = 0;
+        queue = null;
+    }
+
     public static BclReader makeSeekable(final List<File> files, final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final int[] outputLengths) {
         return new BclReader(files, outputLengths, bclQualityEvaluationStrategy, true);
     }
@@ -351,6 +419,7 @@ public class BclReader implements CloseableIterator<BclData> {
             }
             count++;
         }
+        discardBlock();
         return numClustersInTile;
     }
 }
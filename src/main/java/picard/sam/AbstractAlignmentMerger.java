@@ -31,7 +31,6 @@ import htsjdk.samtools.ReservedTagConstants;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileHeader.SortOrder;
 import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMProgramRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordCoordinateComparator;
@@ -57,10 +56,21 @@ import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.util.SequenceUtil;
 import htsjdk.samtools.util.SortingCollection;
 import picard.PicardException;
+import picard.util.ParallelCompressionWriterFactory;
+import picard.util.ReadAheadIterator;
 
 import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 /**
  * Abstract class that coordinates the general task of taking in a set of alignment information,
@@ -87,6 +97,15 @@ public abstract class AbstractAlignmentMerger {
 
     public static final int MAX_RECORDS_IN_RAM = 500000;
 
+    /** The number of unaligned reads or read pairs merged with their alignments as a unit of work. */
+    private static final int READS_PER_BATCH = 1000;
+
+    /** The number of sorted records whose NM and UQ tags are calculated as a unit of work. */
+    private static final int RECORDS_PER_BATCH = 10000;
+
+    /** The number of records read ahead as a unit of work from each input. */
+    private static final int READ_AHEAD_BATCH_SIZE = 1000;
+
     private static final char[] RESERVED_ATTRIBUTE_STARTS = {'X', 'Y', 'Z'};
 
     private final Log log = Log.getInstance(AbstractAlignmentMerger.class);
@@ -115,6 +134,7 @@ public abstract class AbstractAlignmentMerger {
     private boolean keepAlignerProperPairFlags = false;
     private boolean addMateCigar = false;
     private boolean unmapContaminantReads = false;
+    private int threads = 1;
 
     private final SamRecordFilter alignmentFilter = new SamRecordFilter() {
         public boolean filterOut(final SAMRecord record) {
@@ -158,6 +178,32 @@ public abstract class AbstractAlignmentMerger {
         }
     }
 
+    /** An unaligned read or read pair and its alignments, if any, which are merged together. */
+    private static class ReadsAndAlignments {
+        private final SAMRecord firstOrFragment;
+        private final SAMRecord secondOfPair;
+        private final HitsForInsert alignments;
+
+        ReadsAndAlignments(final SAMRecord firstOrFragment, final SAMRecord secondOfPair, final HitsForInsert alignments) {
+            this.firstOrFragment = firstOrFragment;
+            this.secondOfPair = secondOfPair;
+            this.alignments = alignments;
+        }
+    }
+
+    /** The records that result from merging a batch of reads, in output order, and the counts to be logged. */
+    private static class MergedRecords {
+        private final List<SAMRecord> records = new ArrayList<SAMRecord>();
+        /** Which records are reported to the progress logger, as only those merged with alignments are. */
+        private final BitSet recordProgress = new BitSet();
+        private int aligned = 0;
+        private int unmapped = 0;
+
+        void add(final SAMRecord rec, final boolean recordProgress) {
+            if (recordProgress) this.recordProgress.set(records.size());
+            records.add(rec);
+        }
+    }
 
     protected abstract CloseableIterator<SAMRecord> getQuerynameSortedAlignedRecords();
 
@@ -259,6 +305,15 @@ public abstract class AbstractAlignmentMerger {
         this.unmapContaminantReads = unmapContaminantReads;
     }
 
+    /**
+     * Sets the number of threads with which to read the inputs, merge reads with their alignments and calculate
+     * the NM and UQ tags.  The output is the same whatever the number of threads.
+     */
+    public void setThreads(final int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        this.threads = threads;
+    }
+
     /** Allows the caller to override the maximum records in RAM. */
     public void setMaxRecordsInRam(final int maxRecordsInRam) {
         this.maxRecordsInRam = maxRecordsInRam;
@@ -279,19 +334,35 @@ public abstract class AbstractAlignmentMerger {
 
     /**
      * Merges the alignment data with the non-aligned records from the source BAM file.
+     *
+     * The merge is pipelined: the unmapped and aligned records are read ahead on worker threads, batches of reads
+     * and their alignments are merged on worker threads and output in their original order, and in coordinate
+     * order the NM and UQ tags of batches of sorted records are calculated on worker threads.  With a single
+     * thread every stage runs on the calling thread.
      */
     public void mergeAlignment(final File referenceFasta) {
+        final ExecutorService executor = this.threads > 1 ? Executors.newFixedThreadPool(this.threads) : null;
+        try {
+            mergeAlignment(referenceFasta, executor);
+        } finally {
+            if (executor != null) executor.shutdownNow();
+        }
+    }
+
+    private void mergeAlignment(final File referenceFasta, final ExecutorService executor) {
         // Open the file of unmapped records and write the read groups to the the header for the merged file
-        final SamReader unmappedSam = SamReaderFactory.makeDefault().referenceSequence(referenceFasta).open(this.unmappedBamFile);
+        final SamReaderFactory readerFactory = SamReaderFactory.makeDefault().referenceSequence(referenceFasta);
+        if (executor != null) readerFactory.enable(SamReaderFactory.Option.EAGERLY_DECODE);
+        final SamReader unmappedSam = readerFactory.open(this.unmappedBamFile);
 
-        final CloseableIterator<SAMRecord> unmappedIterator = unmappedSam.iterator();
+        final CloseableIterator<SAMRecord> unmappedIterator = readAhead(unmappedSam.iterator(), executor);
         this.header.setReadGroups(unmappedSam.getFileHeader().getReadGroups());
 
         int aligned = 0;
         int unmapped = 0;
 
         // Get the aligned records and set up the first one
-        alignedIterator = new MultiHitAlignedReadIterator(new FilteringIterator(getQuerynameSortedAlignedRecords(), alignmentFilter), primaryAlignmentSelectionStrategy);
+        alignedIterator = new MultiHitAlignedReadIterator(new FilteringIterator(readAhead(getQuerynameSortedAlignedRecords(), executor), alignmentFilter), primaryAlignmentSelectionStrategy);
         HitsForInsert nextAligned = nextAligned();
 
         // Check that the program record we are going to insert is not already used in the unmapped SAM
@@ -318,11 +389,16 @@ public abstract class AbstractAlignmentMerger {
         else { // catches queryname and unsorted
             final SAMFileHeader header = this.header.clone();
             header.setSortOrder(this.sortOrder);
-            final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, this.targetBamFile);
+            final SAMFileWriter writer = new ParallelCompressionWriterFactory().makeSAMOrBAMWriter(header, true, this.targetBamFile);
             writer.setProgressLogger(new ProgressLogger(log, (int) 1e7, "Wrote", "records to output in queryname order"));
             sink = new Sink(writer);
         }
 
+        // Batches being merged on worker threads, in the order in which their records are to be output
+        final Deque<Future<MergedRecords>> pendingBatches = new ArrayDeque<Future<MergedRecords>>();
+        final int maxPendingBatches = executor == null ? 0 : 2 * this.threads;
+        List<ReadsAndAlignments> batch = new ArrayList<ReadsAndAlignments>(READS_PER_BATCH);
+
         while (unmappedIterator.hasNext()) {
             // Load next unaligned read or read pair.
             final SAMRecord rec = unmappedIterator.next();
@@ -352,96 +428,7 @@ public abstract class AbstractAlignmentMerger {
 
             // See if there are alignments for current unaligned read or read pair.
             if (nextAligned != null && rec.getReadName().equals(nextAligned.getReadName())) {
-                // If there are multiple alignments for a read (pair), then the unaligned SAMRecord must be cloned
-                // before copying info from the aligned record to the unaligned.
-                final boolean clone = nextAligned.numHits() > 1 || nextAligned.hasSupplementalHits();
-                SAMRecord r1Primary = null, r2Primary = null;
-
-                // by this point there should be a single chosen primary alignment, which we will use to determine whether the read is contaminant.
-                // this must be done before the main iteration, since secondary / supplementary alignments will be affected by the primary.
-                final boolean unmapDueToContaminant = this.unmapContaminantReads && isContaminant(nextAligned);
-
-                if (rec.getReadPairedFlag()) {
-                    for (int i = 0; i < nextAligned.numHits(); ++i) {
-                        // firstAligned or secondAligned may be null, if there wasn't an alignment for the end,
-                        // or if the alignment was rejected by ignoreAlignment.
-                        final SAMRecord firstAligned = nextAligned.getFirstOfPair(i);
-                        final SAMRecord secondAligned = nextAligned.getSecondOfPair(i);
-
-                        final boolean isPrimaryAlignment = (firstAligned != null && !firstAligned.isSecondaryOrSupplementary()) ||
-                                (secondAligned != null && !secondAligned.isSecondaryOrSupplementary());
-
-                        final SAMRecord firstToWrite;
-                        final SAMRecord secondToWrite;
-                        if (clone) {
-                            firstToWrite = clone(rec);
-                            secondToWrite = clone(secondOfPair);
-                        } else {
-                            firstToWrite = rec;
-                            secondToWrite = secondOfPair;
-                        }
-
-                        // If these are the primary alignments then stash them for use on any supplemental alignments
-                        if (isPrimaryAlignment) {
-                            r1Primary = firstToWrite;
-                            r2Primary = secondToWrite;
-                        }
-
-                        transferAlignmentInfoToPairedRead(firstToWrite, secondToWrite, firstAligned, secondAligned, unmapDueToContaminant);
-
-                        // Only write unmapped read when it has the mate info from the primary alignment.
-                        // this avoids the scenario of having multiple unmapped reads with the same name & pair flags
-                        if (!firstToWrite.getReadUnmappedFlag() || isPrimaryAlignment) {
-                            addIfNotFiltered(sink, firstToWrite);
-                            if (firstToWrite.getReadUnmappedFlag()) ++unmapped;
-                            else ++aligned;
-                        }
-                        if (!secondToWrite.getReadUnmappedFlag() || isPrimaryAlignment) {
-                            addIfNotFiltered(sink, secondToWrite);
-                            if (!secondToWrite.getReadUnmappedFlag()) ++aligned;
-                            else ++unmapped;
-                        }
-                    }
-
-                    // Take all of the supplemental reads which had been stashed and add them (as appropriate) to sorted
-                    for (final boolean isRead1 : new boolean[]{true, false}) {
-                        final List<SAMRecord> supplementals = isRead1 ? nextAligned.getSupplementalFirstOfPairOrFragment() : nextAligned.getSupplementalSecondOfPair();
-                        final SAMRecord sourceRec = isRead1 ? rec : secondOfPair;
-                        final SAMRecord matePrimary = isRead1 ? r2Primary : r1Primary;
-
-                        for (final SAMRecord supp : supplementals) {
-                            final SAMRecord out = clone(sourceRec);
-                            transferAlignmentInfoToFragment(out, supp, unmapDueToContaminant);
-                            if (matePrimary != null) SamPairUtil.setMateInformationOnSupplementalAlignment(out, matePrimary, addMateCigar);
-                            // don't write supplementary reads that were unmapped by transferAlignmentInfoToFragment
-                            if (!out.getReadUnmappedFlag()) {
-                                addIfNotFiltered(sink, out);
-                                ++aligned;
-                            } else ++unmapped;
-                        }
-                    }
-                } else {
-                    for (int i = 0; i < nextAligned.numHits(); ++i) {
-                        final SAMRecord recToWrite = clone ? clone(rec) : rec;
-                        final boolean isPrimary = !nextAligned.getFragment(i).isSecondaryOrSupplementary();
-                        transferAlignmentInfoToFragment(recToWrite, nextAligned.getFragment(i), unmapDueToContaminant);
-                        // Only write unmapped read if it was originally the primary.
-                        // this avoids the scenario of having multiple unmapped reads with the same name & pair flags
-                        if (!recToWrite.getReadUnmappedFlag() || isPrimary) addIfNotFiltered(sink, recToWrite);
-                        if (recToWrite.getReadUnmappedFlag()) ++unmapped;
-                        else ++aligned;
-                    }
-                    // Take all of the supplemental reads which had been stashed and add them (as appropriate) to sorted
-                    for (final SAMRecord supplementalRec : nextAligned.getSupplementalFirstOfPairOrFragment()) {
-                        final SAMRecord recToWrite = clone(rec);
-                        transferAlignmentInfoToFragment(recToWrite, supplementalRec, unmapDueToContaminant);
-                        // don't write supplementary reads that were unmapped by transferAlignmentInfoToFragment
-                        if (!recToWrite.getReadUnmappedFlag()) {
-                            addIfNotFiltered(sink, recToWrite);
-                            ++aligned;
-                        } else ++unmapped;
-                    }
-                }
+                batch.add(new ReadsAndAlignments(rec, secondOfPair, nextAligned));
                 nextAligned = nextAligned();
             } else {
                 // There was no alignment for this read or read pair.
@@ -450,17 +437,30 @@ public abstract class AbstractAlignmentMerger {
                     throw new IllegalStateException("Aligned record iterator (" + nextAligned.getReadName() +
                             ") is behind the unmapped reads (" + rec.getReadName() + ")");
                 }
-                // No matching read from alignedIterator -- just output reads as is.
-                if (!alignedReadsOnly) {
-                    sink.add(rec);
-                    ++unmapped;
-                    if (secondOfPair != null) {
-                        sink.add(secondOfPair);
-                        ++unmapped;
-                    }
+                batch.add(new ReadsAndAlignments(rec, secondOfPair, null));
+            }
+
+            if (batch.size() == READS_PER_BATCH) {
+                final List<ReadsAndAlignments> toMerge = batch;
+                pendingBatches.add(submit(executor, () -> mergeBatch(toMerge)));
+                batch = new ArrayList<ReadsAndAlignments>(READS_PER_BATCH);
+
+                // Bound the number of merged records held in memory while the sink catches up
+                while (pendingBatches.size() > maxPendingBatches) {
+                    final MergedRecords merged = addToSink(sink, await(pendingBatches.poll()));
+                    aligned += merged.aligned;
+                    unmapped += merged.unmapped;
                 }
             }
         }
+        final List<ReadsAndAlignments> lastBatch = batch;
+        pendingBatches.add(submit(executor, () -> mergeBatch(lastBatch)));
+        while (!pendingBatches.isEmpty()) {
+            final MergedRecords merged = addToSink(sink, await(pendingBatches.poll()));
+            aligned += merged.aligned;
+            unmapped += merged.unmapped;
+        }
+
         unmappedIterator.close();
         if (alignedIterator.hasNext()) {
             throw new IllegalStateException("Reads remaining on alignment iterator: " + alignedIterator.next().getReadName() + "!");
@@ -471,17 +471,36 @@ public abstract class AbstractAlignmentMerger {
         // Write the records to the output file in specified sorted order,
         if (this.sortOrder == SortOrder.coordinate) {
             header.setSortOrder(this.sortOrder);
-            final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, this.targetBamFile);
+            final SAMFileWriter writer = new ParallelCompressionWriterFactory().makeSAMOrBAMWriter(header, true, this.targetBamFile);
             writer.setProgressLogger(new ProgressLogger(log, (int) 1e7, "Wrote", "records from a sorting collection"));
             final ProgressLogger finalProgress = new ProgressLogger(log, 10000000, "Written in coordinate order to output", "records");
 
-            for (final SAMRecord rec : sink.sorter) {
-                if (!rec.getReadUnmappedFlag() && refSeq != null) {
-                    fixNMandUQ(rec, refSeq, bisulfiteSequence);
+            // The reference is walked in order on this thread, while the tags are calculated on worker threads
+            final Deque<Future<List<SAMRecord>>> pendingRecords = new ArrayDeque<Future<List<SAMRecord>>>();
+            final CloseableIterator<SAMRecord> sortedIterator = readAhead(sink.sorter.iterator(), executor);
+            List<SAMRecord> records = new ArrayList<SAMRecord>(RECORDS_PER_BATCH);
+            List<byte[]> referenceBases = new ArrayList<byte[]>(RECORDS_PER_BATCH);
+            while (sortedIterator.hasNext()) {
+                final SAMRecord rec = sortedIterator.next();
+                records.add(rec);
+                referenceBases.add(!rec.getReadUnmappedFlag() && refSeq != null ?
+                        refSeq.get(refSeq.getSequenceDictionary().getSequenceIndex(rec.getReferenceName())).getBases() : null);
+
+                if (records.size() == RECORDS_PER_BATCH) {
+                    final List<SAMRecord> toFix = records;
+                    final List<byte[]> toFixReferenceBases = referenceBases;
+                    pendingRecords.add(submit(executor, () -> fixNMandUQ(toFix, toFixReferenceBases)));
+                    records = new ArrayList<SAMRecord>(RECORDS_PER_BATCH);
+                    referenceBases = new ArrayList<byte[]>(RECORDS_PER_BATCH);
+
+                    while (pendingRecords.size() > maxPendingBatches) write(writer, await(pendingRecords.poll()), finalProgress);
                 }
-                writer.addAlignment(rec);
-                finalProgress.record(rec);
             }
+            final List<SAMRecord> lastRecords = records;
+            final List<byte[]> lastReferenceBases = referenceBases;
+            pendingRecords.add(submit(executor, () -> fixNMandUQ(lastRecords, lastReferenceBases)));
+            while (!pendingRecords.isEmpty()) write(writer, await(pendingRecords.poll()), finalProgress);
+            sortedIterator.close();
             writer.close();
             sink.sorter.cleanup();
         }
@@ -490,6 +509,166 @@ public abstract class AbstractAlignmentMerger {
         log.info("Wrote " + aligned + " alignment records and " + (alignedReadsOnly ? 0 : unmapped) + " unmapped reads.");
     }
 
+    /** Merges each unaligned read or read pair in the batch with its alignments, if any. */
+    private MergedRecords mergeBatch(final List<ReadsAndAlignments> batch) {
+        final MergedRecords merged = new MergedRecords();
+        for (final ReadsAndAlignments readsAndAlignments : batch) {
+            if (readsAndAlignments.alignments != null) {
+                merge(readsAndAlignments.firstOrFragment, readsAndAlignments.secondOfPair, readsAndAlignments.alignments, merged);
+            } else if (!alignedReadsOnly) {
+                // No matching read from alignedIterator -- just output reads as is.
+                merged.add(readsAndAlignments.firstOrFragment, false);
+                ++merged.unmapped;
+                if (readsAndAlignments.secondOfPair != null) {
+                    merged.add(readsAndAlignments.secondOfPair, false);
+                    ++merged.unmapped;
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Merges an unaligned read or read pair with its alignments, adding the merged records to the output.
+     *
+     * @param rec          The unaligned fragment or first of pair.
+     * @param secondOfPair The unaligned second of pair, or null for a fragment.
+     * @param nextAligned  The alignments of the read or read pair.
+     */
+    private void merge(final SAMRecord rec, final SAMRecord secondOfPair, final HitsForInsert nextAligned, final MergedRecords out) {
+        // If there are multiple alignments for a read (pair), then the unaligned SAMRecord must be cloned
+        // before copying info from the aligned record to the unaligned.
+        final boolean clone = nextAligned.numHits() > 1 || nextAligned.hasSupplementalHits();
+        SAMRecord r1Primary = null, r2Primary = null;
+
+        // by this point there should be a single chosen primary alignment, which we will use to determine whether the read is contaminant.
+        // this must be done before the main iteration, since secondary / supplementary alignments will be affected by the primary.
+        final boolean unmapDueToContaminant = this.unmapContaminantReads && isContaminant(nextAligned);
+
+        if (rec.getReadPairedFlag()) {
+            for (int i = 0; i < nextAligned.numHits(); ++i) {
+                // firstAligned or secondAligned may be null, if there wasn't an alignment for the end,
+                // or if the alignment was rejected by ignoreAlignment.
+                final SAMRecord firstAligned = nextAligned.getFirstOfPair(i);
+                final SAMRecord secondAligned = nextAligned.getSecondOfPair(i);
+
+                final boolean isPrimaryAlignment = (firstAligned != null && !firstAligned.isSecondaryOrSupplementary()) ||
+                        (secondAligned != null && !secondAligned.isSecondaryOrSupplementary());
+
+                final SAMRecord firstToWrite;
+                final SAMRecord secondToWrite;
+                if (clone) {
+                    firstToWrite = clone(rec);
+                    secondToWrite = clone(secondOfPair);
+                } else {
+                    firstToWrite = rec;
+                    secondToWrite = secondOfPair;
+                }
+
+                // If these are the primary alignments then stash them for use on any supplemental alignments
+                if (isPrimaryAlignment) {
+                    r1Primary = firstToWrite;
+                    r2Primary = secondToWrite;
+                }
+
+                transferAlignmentInfoToPairedRead(firstToWrite, secondToWrite, firstAligned, secondAligned, unmapDueToContaminant);
+
+                // Only write unmapped read when it has the mate info from the primary alignment.
+                // this avoids the scenario of having multiple unmapped reads with the same name & pair flags
+                if (!firstToWrite.getReadUnmappedFlag() || isPrimaryAlignment) {
+                    addIfNotFiltered(out, firstToWrite);
+                }
+                if (!secondToWrite.getReadUnmappedFlag() || isPrimaryAlignment) {
+                    addIfNotFiltered(out, secondToWrite);
+                }
+            }
+
+            // Take all of the supplemental reads which had been stashed and add them (as appropriate) to sorted
+            for (final boolean isRead1 : new boolean[]{true, false}) {
+                final List<SAMRecord> supplementals = isRead1 ? nextAligned.getSupplementalFirstOfPairOrFragment() : nextAligned.getSupplementalSecondOfPair();
+                final SAMRecord sourceRec = isRead1 ? rec : secondOfPair;
+                final SAMRecord matePrimary = isRead1 ? r2Primary : r1Primary;
+
+                for (final SAMRecord supp : supplementals) {
+                    final SAMRecord merged = clone(sourceRec);
+                    transferAlignmentInfoToFragment(merged, supp, unmapDueToContaminant);
+                    if (matePrimary != null) SamPairUtil.setMateInformationOnSupplementalAlignment(merged, matePrimary, addMateCigar);
+                    // don't write supplementary reads that were unmapped by transferAlignmentInfoToFragment
+                    if (!merged.getReadUnmappedFlag()) addIfNotFiltered(out, merged);
+                    else ++out.unmapped;
+                }
+            }
+        } else {
+            for (int i = 0; i < nextAligned.numHits(); ++i) {
+                final SAMRecord recToWrite = clone ? clone(rec) : rec;
+                final boolean isPrimary = !nextAligned.getFragment(i).isSecondaryOrSupplementary();
+                transferAlignmentInfoToFragment(recToWrite, nextAligned.getFragment(i), unmapDueToContaminant);
+                // Only write unmapped read if it was originally the primary.
+                // this avoids the scenario of having multiple unmapped reads with the same name & pair flags
+                if (!recToWrite.getReadUnmappedFlag() || isPrimary) addIfNotFiltered(out, recToWrite);
+                else ++out.unmapped;
+            }
+            // Take all of the supplemental reads which had been stashed and add them (as appropriate) to sorted
+            for (final SAMRecord supplementalRec : nextAligned.getSupplementalFirstOfPairOrFragment()) {
+                final SAMRecord recToWrite = clone(rec);
+                transferAlignmentInfoToFragment(recToWrite, supplementalRec, unmapDueToContaminant);
+                // don't write supplementary reads that were unmapped by transferAlignmentInfoToFragment
+                if (!recToWrite.getReadUnmappedFlag()) addIfNotFiltered(out, recToWrite);
+                else ++out.unmapped;
+            }
+        }
+    }
+
+    /** Adds the merged records to the sink in order, on the thread that owns the sink, and returns them. */
+    private MergedRecords addToSink(final Sink sink, final MergedRecords merged) {
+        for (int i = 0; i < merged.records.size(); ++i) {
+            final SAMRecord rec = merged.records.get(i);
+            sink.add(rec);
+            if (merged.recordProgress.get(i)) this.progress.record(rec);
+        }
+        return merged;
+    }
+
+    /** Calculates the NM and UQ tags of each mapped record from the reference bases of its contig, where given. */
+    private List<SAMRecord> fixNMandUQ(final List<SAMRecord> records, final List<byte[]> referenceBases) {
+        for (int i = 0; i < records.size(); ++i) {
+            if (referenceBases.get(i) != null) fixNMandUQ(records.get(i), referenceBases.get(i), bisulfiteSequence);
+        }
+        return records;
+    }
+
+    private static void write(final SAMFileWriter writer, final List<SAMRecord> records, final ProgressLogger progress) {
+        for (final SAMRecord rec : records) {
+            writer.addAlignment(rec);
+            progress.record(rec);
+        }
+    }
+
+    /** Wraps the iterator so that it is read ahead on the executor, or returns it as is if there is no executor. */
+    private static CloseableIterator<SAMRecord> readAhead(final CloseableIterator<SAMRecord> iterator, final ExecutorService executor) {
+        return executor == null ? iterator : new ReadAheadIterator<SAMRecord>(iterator, READ_AHEAD_BATCH_SIZE, executor);
+    }
+
+    /** Runs the task on the executor, or on this thread if there is no executor. */
+    private static <T> Future<T> submit(final ExecutorService executor, final Supplier<T> task) {
+        if (executor == null) return CompletableFuture.completedFuture(task.get());
+        return executor.submit(task::get);
+    }
+
+    /** Waits for work on a worker thread, rethrowing any exception it threw so that it is handled as on this thread. */
+    private static <T> T await(final Future<T> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException ie) {
+            throw new PicardException("Interrupted while merging alignments.", ie);
+        } catch (final ExecutionException ee) {
+            final Throwable t = ee.getCause();
+            if (t instanceof Error) throw (Error) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            throw new PicardException("Error while merging alignments.", t);
+        }
+    }
+
     /** Calculates and sets the NM and UQ tags from the record and the reference
      *
      * @param record the record to be fixed
@@ -501,6 +680,11 @@ public abstract class AbstractAlignmentMerger {
      */
     public static void fixNMandUQ(final SAMRecord record, final ReferenceSequenceFileWalker refSeqWalker, final boolean isBisulfiteSequence) {
         final byte[] referenceBases = refSeqWalker.get(refSeqWalker.getSequenceDictionary().getSequenceIndex(record.getReferenceName())).getBases();
+        fixNMandUQ(record, referenceBases, isBisulfiteSequence);
+    }
+
+    /** Calculates and sets the NM and UQ tags from the record and the bases of the contig to which it is aligned. */
+    private static void fixNMandUQ(final SAMRecord record, final byte[] referenceBases, final boolean isBisulfiteSequence) {
         record.setAttribute(SAMTag.NM.name(), SequenceUtil.calculateSamNmTag(record, referenceBases, 0, isBisulfiteSequence));
 
         if (record.getBaseQualities() != SAMRecord.NULL_QUALS) {
@@ -511,11 +695,12 @@ public abstract class AbstractAlignmentMerger {
     /**
      * Add record if it is primary or optionally secondary.
      */
-    private void addIfNotFiltered(final Sink out, final SAMRecord rec) {
+    private void addIfNotFiltered(final MergedRecords out, final SAMRecord rec) {
         if (includeSecondaryAlignments || !rec.getNotPrimaryAlignmentFlag()) {
-            out.add(rec);
-            this.progress.record(rec);
+            out.add(rec, true);
         }
+        if (rec.getReadUnmappedFlag()) ++out.unmapped;
+        else ++out.aligned;
     }
 
     private SAMRecord clone(final SAMRecord rec) {
@@ -204,6 +204,11 @@ public class MergeBamAlignment extends CommandLineProgram {
     @Option(doc = "If UNMAP_CONTAMINANT_READS is set, require this many unclipped bases or else the read will be marked as contaminant.")
     public int MIN_UNCLIPPED_BASES = 32;
 
+    @Option(doc = "The number of threads to use. When greater than one, the inputs are read ahead, reads are merged with their " +
+            "alignments in batches and the NM and UQ tags are calculated in batches, on a pool of this many threads. " +
+            "The output is the same whatever the number of threads.")
+    public int THREADS = 1;
+
     private static final Log log = Log.getInstance(MergeBamAlignment.class);
 
     /**
@@ -263,6 +268,7 @@ public class MergeBamAlignment extends CommandLineProgram {
         merger.setMaxRecordsInRam(MAX_RECORDS_IN_RAM);
         merger.setKeepAlignerProperPairFlags(ALIGNER_PROPER_PAIR_FLAGS);
         merger.setIncludeSecondaryAlignments(INCLUDE_SECONDARY_ALIGNMENTS);
+        merger.setThreads(THREADS);
         merger.mergeAlignment(REFERENCE_SEQUENCE);
         merger.close();
 
@@ -279,6 +285,10 @@ public class MergeBamAlignment extends CommandLineProgram {
      */
     protected String[] customCommandLineValidation() {
 
+        if (THREADS < 1) {
+            return new String[]{"THREADS must be at least 1."};
+        }
+
         if ((PROGRAM_RECORD_ID != null || PROGRAM_GROUP_VERSION != null ||
                 PROGRAM_GROUP_COMMAND_LINE != null) &&
                 (PROGRAM_RECORD_ID == null || PROGRAM_GROUP_VERSION == null ||
@@ -46,12 +46,17 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
 import picard.cmdline.programgroups.SamOrBam;
+import picard.util.ParallelCompressionWriterFactory;
+import picard.util.ReadAheadIterator;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Reads a SAM or BAM file and combines the output to one file
@@ -114,8 +119,15 @@ public class MergeSamFiles extends CommandLineProgram {
             optional = true)
     public File INTERVALS = null;
 
+    @Option(doc = "The number of threads to use. When greater than one, the records of each INPUT are read and fully decoded " +
+            "ahead of the merge, in batches, on a pool of this many threads.")
+    public int THREADS = 1;
+
     private static final int PROGRESS_INTERVAL = 1000000;
 
+    /** Records decoded ahead at a time for each input; kept small since there may be hundreds of inputs. */
+    private static final int READ_AHEAD_BATCH_SIZE = 500;
+
     /** Required main method implementation. */
     public static void main(final String[] argv) {
         System.exit(new MergeSamFiles().instanceMain(argv));
@@ -134,12 +146,15 @@ public class MergeSamFiles extends CommandLineProgram {
         // Open the files for reading and writing
         final List<SamReader> readers = new ArrayList<SamReader>();
         final List<SAMFileHeader> headers = new ArrayList<SAMFileHeader>();
+        // When reading ahead, decode records completely on the read-ahead threads rather than lazily on the merging thread
+        final SamReaderFactory readerFactory = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE);
+        if (THREADS > 1) readerFactory.enable(SamReaderFactory.Option.EAGERLY_DECODE);
         {
             SAMSequenceDictionary dict = null; // Used to try and reduce redundant SDs in memory
 
             for (final File inFile : INPUT) {
                 IOUtil.assertFileIsReadable(inFile);
-                final SamReader in = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(inFile);
+                final SamReader in = readerFactory.open(inFile);
                  if ( INTERVALS != null ) {
                      if( ! in.hasIndex() ) throw new PicardException("Merging with interval but Bam file is not indexed "+ inFile);
                      final CloseableIterator<SAMRecord> samIterator = new SamRecordIntervalIteratorFactory().makeSamRecordIntervalIterator(in, intervalList, true);
@@ -181,16 +196,32 @@ public class MergeSamFiles extends CommandLineProgram {
             presorted = false;
         }
         final SamFileHeaderMerger headerMerger = new SamFileHeaderMerger(headerMergerSortOrder, headers, MERGE_SEQUENCE_DICTIONARIES);
+        final ExecutorService readAheadExecutor = THREADS > 1 ? Executors.newFixedThreadPool(THREADS) : null;
         final MergingSamRecordIterator iterator;
         // no interval defined, get an iterator for the whole bam
         if( intervalList == null) {
-            iterator = new MergingSamRecordIterator(headerMerger, readers, mergingSamRecordIteratorAssumeSorted);
+            if (readAheadExecutor == null) {
+                iterator = new MergingSamRecordIterator(headerMerger, readers, mergingSamRecordIteratorAssumeSorted);
+            } else {
+                // Same merge, over iterators that read ahead; a LinkedHashMap keeps the inputs in their original order
+                final Map<SamReader, CloseableIterator<SAMRecord>> readAheadIterators = new LinkedHashMap<SamReader, CloseableIterator<SAMRecord>>();
+                for (final SamReader reader : readers) {
+                    readAheadIterators.put(reader, new ReadAheadIterator<SAMRecord>(reader.iterator(), READ_AHEAD_BATCH_SIZE, readAheadExecutor));
+                }
+                iterator = new MergingSamRecordIterator(headerMerger, readAheadIterators, mergingSamRecordIteratorAssumeSorted);
+            }
         }
         else {
             // show warning related to https://github.com/broadinstitute/picard/pull/314/files
             log.info("Warning: merged bams from different interval lists may contain the same read in both files");
+            if (readAheadExecutor != null) {
+                for (final Map.Entry<SamReader, CloseableIterator<SAMRecord>> entry : samReaderToIterator.entrySet()) {
+                    entry.setValue(new ReadAheadIterator<SAMRecord>(entry.getValue(), READ_AHEAD_BATCH_SIZE, readAheadExecutor));
+                }
+            }
             iterator = new MergingSamRecordIterator(headerMerger, samReaderToIterator, true);
         }
+        if (readAheadExecutor != null) log.info("Decoding inputs ahead of the merge using " + THREADS + " threads.");
         final SAMFileHeader header = headerMerger.getMergedHeader();
         for (final String comment : COMMENT) {
             header.addComment(comment);
@@ -200,18 +231,22 @@ public class MergeSamFiles extends CommandLineProgram {
         if (USE_THREADING) {
             samFileWriterFactory.setUseAsyncIo(true);
         }
-        final SAMFileWriter out = samFileWriterFactory.makeSAMOrBAMWriter(header, presorted, OUTPUT);
+        final SAMFileWriter out = new ParallelCompressionWriterFactory(samFileWriterFactory).makeSAMOrBAMWriter(header, presorted, OUTPUT);
 
         // Lastly loop through and write out the records
         final ProgressLogger progress = new ProgressLogger(log, PROGRESS_INTERVAL);
-        while (iterator.hasNext()) {
-            final SAMRecord record = iterator.next();
-            out.addAlignment(record);
-            progress.record(record);
-        }
+        try {
+            while (iterator.hasNext()) {
+                final SAMRecord record = iterator.next();
+                out.addAlignment(record);
+                progress.record(record);
+            }
 
-        log.info("Finished reading inputs.");
-        for(final CloseableIterator<SAMRecord> iter : samReaderToIterator.values())  CloserUtil.close(iter);
+            log.info("Finished reading inputs.");
+            for(final CloseableIterator<SAMRecord> iter : samReaderToIterator.values())  CloserUtil.close(iter);
+        } finally {
+            if (readAheadExecutor != null) readAheadExecutor.shutdownNow();
+        }
         CloserUtil.close(readers);
         out.close();
         return 0;
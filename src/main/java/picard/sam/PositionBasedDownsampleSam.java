@@ -31,6 +31,11 @@ import htsjdk.samtools.SAMProgramRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.metrics.Header;
+import htsjdk.samtools.metrics.MetricBase;
+import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.metrics.StringHeader;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.CollectionUtil;
 import htsjdk.samtools.util.Histogram;
@@ -45,12 +50,17 @@ import picard.cmdline.StandardOptionDefinitions;
 import picard.cmdline.programgroups.SamOrBam;
 import picard.sam.markduplicates.util.OpticalDuplicateFinder;
 import picard.sam.util.PhysicalLocationInt;
+import picard.util.ReadAheadIterator;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
@@ -70,6 +80,12 @@ import java.util.Map;
  * In particular, since the reads may be distributed non-evenly within the lanes/tiles, the resulting downsampling percentage will not be accurately
  * determined by the input argument FRACTION. One should re-MarkDuplicates after downsampling in order to "expose" the duplicates whose representative has
  * been downsampled away.
+ * <p/>
+ * Finding the extent of each tile requires a full pass over the input before the pass that does the downsampling. When
+ * TILE_EXTENTS is given, the extents found are saved to that file together with the path, size and modification time of
+ * the input, and later runs over the same input (e.g. downsampling it to several fractions) read them from there and only
+ * pass over the input once. If the file was written for a different input, or the input has a tile that the file does
+ * not, the extents are found again and the file is overwritten.
  *
  * @author Yossi Farjoun
  */
@@ -112,6 +128,15 @@ public class PositionBasedDownsampleSam extends CommandLineProgram {
     @Option(doc = "Determines whether the duplicate tag should be reset since the downsampling requires re-marking duplicates.")
     public boolean REMOVE_DUPLICATE_INFORMATION = true;
 
+    @Option(doc = "A file holding the extent of the reads in each tile of INPUT. If it exists and was written for this INPUT " +
+            "(same path, size and modification time) the extents are read from it and the first pass over INPUT is skipped, " +
+            "otherwise they are found as usual and written to it, so that downsampling the same INPUT again (e.g. to a " +
+            "different FRACTION) only needs to read INPUT once.", optional = true)
+    public File TILE_EXTENTS = null;
+
+    @Option(doc = "The number of threads to use. When greater than one, INPUT is read and decoded ahead of the downsampling on a separate thread.")
+    public int THREADS = 1;
+
     private final Log log = Log.getInstance(PositionBasedDownsampleSam.class);
 
     private OpticalDuplicateFinder opticalDuplicateFinder;
@@ -119,6 +144,10 @@ public class PositionBasedDownsampleSam extends CommandLineProgram {
     private long kept = 0;
     public static String PG_PROGRAM_NAME = "PositionBasedDownsampleSam";
     private final static double ACCEPTABLE_FUDGE_FACTOR = 0.2;
+    private final static String TILE_EXTENTS_INPUT_HEADER = "Tile extents of INPUT: ";
+    private final static int READ_AHEAD_BATCH_SIZE = 1000;
+
+    private ExecutorService readAheadExecutor = null;
 
     /* max-position in tile as a function of tile. We might need to
        look per-readgroup, but at this point I'm making the assumptions that I need to downsample a
@@ -149,6 +178,14 @@ public class PositionBasedDownsampleSam extends CommandLineProgram {
             errors.add("FRACTION must be a value between 0 and 1, found: " + FRACTION);
         }
 
+        if (TILE_EXTENTS != null && STOP_AFTER != null) {
+            errors.add("TILE_EXTENTS cannot be used together with STOP_AFTER, since the extents would only cover part of INPUT.");
+        }
+
+        if (THREADS < 1) {
+            errors.add("THREADS must be at least 1, found: " + THREADS);
+        }
+
         if (errors.isEmpty()) {
             return null;
         } else {
@@ -166,14 +203,12 @@ public class PositionBasedDownsampleSam extends CommandLineProgram {
         checkProgramRecords();
 
         opticalDuplicateFinder = new OpticalDuplicateFinder();
-
-        log.info("Starting first pass. Examining read distribution in tiles.");
-        fillTileMinMaxCoord();
-        log.info("First pass done.");
-
-        log.info("Starting second pass. Outputting reads.");
-        outputSamRecords();
-        log.info("Second pass done.");
+        if (THREADS > 1) readAheadExecutor = Executors.newSingleThreadExecutor();
+        try {
+            downsample();
+        } finally {
+            if (readAheadExecutor != null) readAheadExecutor.shutdownNow();
+        }
 
         final double finalP = kept / (double) total;
         if (Math.abs(finalP - FRACTION) / (Math.min(finalP, FRACTION) + 1e-10) > ACCEPTABLE_FUDGE_FACTOR) {
@@ -184,10 +219,53 @@ public class PositionBasedDownsampleSam extends CommandLineProgram {
         return 0;
     }
 
-    private void outputSamRecords() {
+    // finds the extent of each tile and writes the downsampled records to OUTPUT
+    private void downsample() {
+        final boolean extentsFromFile = readTileExtents();
+        if (extentsFromFile) {
+            log.info("Read the extent of each tile from " + TILE_EXTENTS + ", skipping the first pass.");
+        } else {
+            findTileExtents();
+        }
+        padTileMinMaxCoord();
+
+        log.info("Starting second pass. Outputting reads.");
+        if (!outputSamRecords(extentsFromFile)) {
+            log.warn("INPUT has a tile that is not in " + TILE_EXTENTS + ", finding the extents again.");
+            tileCoord.clear();
+            findTileExtents();
+            padTileMinMaxCoord();
+
+            log.info("Restarting second pass. Outputting reads.");
+            outputSamRecords(false);
+        }
+        log.info("Second pass done.");
+    }
+
+    private void findTileExtents() {
+        log.info("Starting first pass. Examining read distribution in tiles.");
+        fillTileMinMaxCoord();
+        log.info("First pass done.");
+
+        if (TILE_EXTENTS != null) {
+            log.info("Writing the extent of each tile to " + TILE_EXTENTS + ".");
+            writeTileExtents();
+        }
+    }
+
+    /**
+     * Writes the downsampled records to OUTPUT. If requireKnownTiles is true, gives up and returns false as soon as a
+     * record from a tile without an extent is found, since the extents then did not come from this INPUT.
+     */
+    private boolean outputSamRecords(final boolean requireKnownTiles) {
+        total = 0;
+        kept = 0;
+        xPositions.clear();
+        yPositions.clear();
 
         final ProgressLogger progress = new ProgressLogger(log, (int) 1e7);
-        final SamReader in = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(INPUT);
+        final SamReader in = openInput();
+        final CloseableIterator<SAMRecord> iterator = readAhead(in);
 
         final SAMFileHeader header = in.getFileHeader().clone();
         final SAMFileHeader.PgIdGenerator pgIdGenerator = new SAMFileHeader.PgIdGenerator(header);
@@ -201,13 +279,19 @@ public class PositionBasedDownsampleSam extends CommandLineProgram {
         final SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, OUTPUT);
 
         final CircleSelector selector = new CircleSelector(FRACTION);
+        boolean allTilesKnown = true;
 
-        for (final SAMRecord rec : in) {
+        while (iterator.hasNext()) {
+            final SAMRecord rec = iterator.next();
             if (STOP_AFTER != null && total >= STOP_AFTER) break;
 
-            total++;
-
             final PhysicalLocationInt pos = getSamRecordLocation(rec);
+            if (requireKnownTiles && !tileCoord.containsKey(pos.getTile())) {
+                allTilesKnown = false;
+                break;
+            }
+
+            total++;
 
             if (!xPositions.containsKey(pos.getTile())) {
                 xPositions.put(pos.getTile(), new Histogram<Short>(pos.getTile() + "-xpos", "count"));
@@ -228,7 +312,10 @@ public class PositionBasedDownsampleSam extends CommandLineProgram {
 
         out.close();
 
+        iterator.close();
         CloserUtil.close(in);
+
+        return allTilesKnown;
     }
 
     private void checkProgramRecords() {
@@ -256,13 +343,15 @@ public class PositionBasedDownsampleSam extends CommandLineProgram {
     // scan all the tiles and find the smallest and largest coordinate (x & y) in that tile.
     private void fillTileMinMaxCoord() {
 
-        final SamReader in = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(INPUT);
+        final SamReader in = openInput();
+        final CloseableIterator<SAMRecord> iterator = readAhead(in);
 
         final ProgressLogger progress = new ProgressLogger(log, (int) 1e7, "Read");
 
         int total = 0;
 
-        for (final SAMRecord rec : in) {
+        while (iterator.hasNext()) {
+            final SAMRecord rec = iterator.next();
             if (STOP_AFTER != null && total >= STOP_AFTER) break;
 
             total++;
@@ -283,7 +372,12 @@ public class PositionBasedDownsampleSam extends CommandLineProgram {
 
         }
 
-        // now that we know what the maximal/minimal numbers were, we should increase/decrease them a little, to account for sampling error
+        iterator.close();
+        CloserUtil.close(in);
+    }
+
+    // now that we know what the maximal/minimal numbers were, we should increase/decrease them a little, to account for sampling error
+    private void padTileMinMaxCoord() {
         for (final Coord coord : tileCoord.values()) {
 
             final int diffX = coord.maxX - coord.minX;
@@ -295,8 +389,76 @@ public class PositionBasedDownsampleSam extends CommandLineProgram {
             coord.maxY += diffY / coord.count;
             coord.minY -= diffY / coord.count;
         }
+    }
 
-        CloserUtil.close(in);
+    // identifies the INPUT that the extents were found in, so that they are not used for another file.
+    private String tileExtentsInputHeader() {
+        return TILE_EXTENTS_INPUT_HEADER + INPUT.getAbsolutePath() + " (" + INPUT.length() + " bytes, last modified " + INPUT.lastModified() + ")";
+    }
+
+    // the extents are stored before padding, so that reading them back gives exactly what the first pass would have found.
+    private void writeTileExtents() {
+        final MetricsFile<TileExtentMetrics, Integer> metricsFile = getMetricsFile();
+        metricsFile.addHeader(new StringHeader(tileExtentsInputHeader()));
+        for (final Map.Entry<Short, Coord> entry : tileCoord.entrySet()) {
+            final TileExtentMetrics metrics = new TileExtentMetrics();
+            metrics.TILE = entry.getKey();
+            metrics.MIN_X = entry.getValue().minX;
+            metrics.MAX_X = entry.getValue().maxX;
+            metrics.MIN_Y = entry.getValue().minY;
+            metrics.MAX_Y = entry.getValue().maxY;
+            metrics.READS = entry.getValue().count;
+            metricsFile.addMetric(metrics);
+        }
+        metricsFile.write(TILE_EXTENTS);
+    }
+
+    /**
+     * Reads the extents from TILE_EXTENTS into tileCoord. Returns false, leaving tileCoord empty, if there is no such file
+     * or if it was not written for this INPUT.
+     */
+    private boolean readTileExtents() {
+        if (TILE_EXTENTS == null || !TILE_EXTENTS.exists()) return false;
+
+        IOUtil.assertFileIsReadable(TILE_EXTENTS);
+        final MetricsFile<TileExtentMetrics, Integer> metricsFile = new MetricsFile<TileExtentMetrics, Integer>();
+        try {
+            final FileReader reader = new FileReader(TILE_EXTENTS);
+            metricsFile.read(reader);
+            CloserUtil.close(reader);
+        } catch (final FileNotFoundException e) {
+            throw new PicardException("Could not read " + TILE_EXTENTS, e);
+        }
+
+        final String expectedHeader = tileExtentsInputHeader();
+        boolean sameInput = false;
+        for (final Header header : metricsFile.getHeaders()) {
+            if (header instanceof StringHeader && expectedHeader.equals(((StringHeader) header).getValue())) sameInput = true;
+        }
+        if (!sameInput) {
+            log.warn(TILE_EXTENTS + " was not written for " + INPUT + ", it will be overwritten.");
+            return false;
+        }
+
+        for (final TileExtentMetrics metrics : metricsFile.getMetrics()) {
+            final Coord coord = tileCoord.get(metrics.TILE);
+            coord.minX = metrics.MIN_X;
+            coord.maxX = metrics.MAX_X;
+            coord.minY = metrics.MIN_Y;
+            coord.maxY = metrics.MAX_Y;
+            coord.count = metrics.READS;
+        }
+        return true;
+    }
+
+    private SamReader openInput() {
+        final SamReaderFactory readerFactory = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE);
+        if (THREADS > 1) readerFactory.enable(SamReaderFactory.Option.EAGERLY_DECODE);
+        return readerFactory.open(INPUT);
+    }
+
+    private CloseableIterator<SAMRecord> readAhead(final SamReader in) {
+        return readAheadExecutor == null ? in.iterator() : new ReadAheadIterator<SAMRecord>(in.iterator(), READ_AHEAD_BATCH_SIZE, readAheadExecutor);
     }
 
     private PhysicalLocationInt getSamRecordLocation(final SAMRecord rec) {
@@ -363,6 +525,22 @@ public class PositionBasedDownsampleSam extends CommandLineProgram {
         }
     }
 
+    /** The extent of the read positions found in one tile, as stored in the TILE_EXTENTS file. */
+    public static class TileExtentMetrics extends MetricBase {
+        /** The tile number. */
+        public short TILE;
+        /** The smallest x coordinate of a read in the tile. */
+        public int MIN_X;
+        /** The largest x coordinate of a read in the tile. */
+        public int MAX_X;
+        /** The smallest y coordinate of a read in the tile. */
+        public int MIN_Y;
+        /** The largest y coordinate of a read in the tile. */
+        public int MAX_Y;
+        /** The number of records from the tile. */
+        public int READS;
+    }
+
     private class Coord {
         public int minX;
         public int minY;
@@ -36,9 +36,6 @@ import htsjdk.samtools.SAMRecordUtil;
 import htsjdk.samtools.SAMTag;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.ValidationStringency;
-import htsjdk.samtools.filter.FilteringIterator;
-import htsjdk.samtools.filter.SamRecordFilter;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.FastqQualityFormat;
 import htsjdk.samtools.util.IOUtil;
@@ -55,6 +52,7 @@ import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
 import picard.cmdline.programgroups.SamOrBam;
 import picard.util.TabbedTextFileWithHeaderParser;
+import picard.util.ParallelCompressionWriterFactory;
 
 import java.io.File;
 import java.nio.file.Files;
@@ -62,10 +60,22 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * Reverts a SAM file by optionally restoring original quality scores and by removing
@@ -166,6 +176,14 @@ public class RevertSam extends CommandLineProgram {
             "same library name ", shortName = StandardOptionDefinitions.LIBRARY_NAME_SHORT_NAME, optional = true)
     public String LIBRARY_NAME;
 
+    @Option(doc = "The number of threads to use. When greater than one and OUTPUT_BY_READGROUP is true, records are read on one " +
+            "thread and reverted, sanitized, sorted and written by read group on a pool of this many threads, with " +
+            "MAX_RECORDS_IN_RAM divided between the read groups. The output is the same whatever the number of threads.")
+    public int THREADS = 1;
+
+    /** The number of records of a read group handed to a worker thread at a time when THREADS is greater than one. */
+    private static final int RECORDS_PER_BATCH = 1000;
+
     private final static Log log = Log.getInstance(RevertSam.class);
 
     /** Default main method impl. */
@@ -181,6 +199,7 @@ public class RevertSam extends CommandLineProgram {
         final List<String> errors = new ArrayList<String>();
         ValidationUtil.validateSanitizeSortOrder(SANITIZE, SORT_ORDER, errors);
         ValidationUtil.validateOutputParams(OUTPUT_BY_READGROUP, OUTPUT, OUTPUT_MAP, errors);
+        if (THREADS < 1) errors.add("THREADS must be at least 1.");
 
         if (!errors.isEmpty()) {
             return errors.toArray(new String[errors.size()]);
@@ -218,49 +237,63 @@ public class RevertSam extends CommandLineProgram {
             headerMap = null;
         }
 
-        final SAMFileWriterFactory factory = new SAMFileWriterFactory();
-        final RevertSamWriter out = new RevertSamWriter(OUTPUT_BY_READGROUP, headerMap, outputMap, singleOutHeader, OUTPUT, presorted, factory, REFERENCE_SEQUENCE);
-        
-        ////////////////////////////////////////////////////////////////////////////
-        // Build a sorting collection to use if we are sanitizing
-        ////////////////////////////////////////////////////////////////////////////
-        final RevertSamSorter sorter;
-        if (sanitizing) sorter = new RevertSamSorter(OUTPUT_BY_READGROUP, headerMap, singleOutHeader, MAX_RECORDS_IN_RAM);
-        else sorter = null;
+        // The quality encoding of each read group is detected from the records as they are read, for sanitizing
+        final ReadGroupQualityDetector qualityDetector = sanitizing ? new ReadGroupQualityDetector(inHeader.getReadGroups(), RESTORE_ORIGINAL_QUALITIES) : null;
 
-        final ProgressLogger progress = new ProgressLogger(log, 1000000, "Reverted");
-        for (final SAMRecord rec : in) {
-            // Weed out non-primary and supplemental read as we don't want duplicates in the reverted file!
-            if (rec.isSecondaryOrSupplementary()) continue;
+        final long[] sanitizeResults;
+        if (OUTPUT_BY_READGROUP && THREADS > 1) {
+            sanitizeResults = revertByReadGroupInParallel(in, headerMap, outputMap, presorted, qualityDetector);
+            if (sanitizeResults == null) return -1;
+        } else {
+            final ParallelCompressionWriterFactory factory = new ParallelCompressionWriterFactory();
+            final RevertSamWriter out = new RevertSamWriter(OUTPUT_BY_READGROUP, headerMap, outputMap, singleOutHeader, OUTPUT, presorted, factory, REFERENCE_SEQUENCE);
 
-            // log the progress before you revert because otherwise the "last read position" might not be accurate
-            progress.record(rec);
+            ////////////////////////////////////////////////////////////////////////////
+            // Build a sorting collection to use if we are sanitizing
+            ////////////////////////////////////////////////////////////////////////////
+            final RevertSamSorter sorter;
+            if (sanitizing) sorter = new RevertSamSorter(OUTPUT_BY_READGROUP, headerMap, singleOutHeader, MAX_RECORDS_IN_RAM);
+            else sorter = null;
 
-            // Actually do the reverting of the remaining records
-            revertSamRecord(rec);
+            final ProgressLogger progress = new ProgressLogger(log, 1000000, "Reverted");
+            for (final SAMRecord rec : in) {
+                if (sanitizing) qualityDetector.add(rec);
 
-            if (sanitizing) sorter.add(rec);
-            else out.addAlignment(rec);
-        }
+                // Weed out non-primary and supplemental read as we don't want duplicates in the reverted file!
+                if (rec.isSecondaryOrSupplementary()) continue;
 
-        ////////////////////////////////////////////////////////////////////////////
-        // Now if we're sanitizing, clean up the records and write them to the output
-        ////////////////////////////////////////////////////////////////////////////
-        if (!sanitizing) {
-            out.close();
-        } else {
-            final Map<SAMReadGroupRecord, FastqQualityFormat> readGroupToFormat;
-            try {
-                readGroupToFormat = createReadGroupFormatMap(inHeader, REFERENCE_SEQUENCE, VALIDATION_STRINGENCY, INPUT, RESTORE_ORIGINAL_QUALITIES);
-            } catch (final PicardException e) {
-                log.error(e.getMessage());
-                return -1;
+                // log the progress before you revert because otherwise the "last read position" might not be accurate
+                progress.record(rec);
+
+                // Actually do the reverting of the remaining records
+                revertSamRecord(rec);
+
+                if (sanitizing) sorter.add(rec);
+                else out.addAlignment(rec);
+            }
+
+            ////////////////////////////////////////////////////////////////////////////
+            // Now if we're sanitizing, clean up the records and write them to the output
+            ////////////////////////////////////////////////////////////////////////////
+            if (!sanitizing) {
+                sanitizeResults = null;
+            } else {
+                final Map<SAMReadGroupRecord, FastqQualityFormat> readGroupToFormat;
+                try {
+                    readGroupToFormat = qualityDetector.detectFormats();
+                } catch (final PicardException e) {
+                    log.error(e.getMessage());
+                    return -1;
+                }
+
+                sanitizeResults = sanitize(readGroupToFormat, sorter.iterators(), out::addAlignment);
             }
+            out.close();
+        }
 
-            final long[] sanitizeResults = sanitize(readGroupToFormat, sorter, out);
+        if (sanitizing) {
             final long discarded = sanitizeResults[0];
             final long total = sanitizeResults[1];
-            out.close();
 
             final double discardRate = discarded / (double) total;
             final NumberFormat fmt = new DecimalFormat("0.000%");
@@ -275,6 +308,136 @@ public class RevertSam extends CommandLineProgram {
         return 0;
     }
 
+    /**
+     * Reverts each read group on a pool of THREADS threads.  Records are read and handed out in batches by read group
+     * on this thread, and each read group's batches are reverted and then sorted or written in order, one at a time,
+     * on the pool.  When sanitizing, the read groups are then sanitized and written in parallel.
+     *
+     * @return the number of records discarded and the total number of records when sanitizing, or an empty array
+     * when not sanitizing, or null if the quality encoding of a read group could not be converted.
+     */
+    private long[] revertByReadGroupInParallel(final SamReader in,
+                                               final Map<String, SAMFileHeader> headerMap,
+                                               final Map<String, File> outputMap,
+                                               final boolean presorted,
+                                               final ReadGroupQualityDetector qualityDetector) {
+        // Divide the records in RAM between the read groups, as they are all sorted at once
+        final int maxRecordsInRam = Math.max(1, MAX_RECORDS_IN_RAM / Math.max(1, outputMap.size()));
+        final ParallelCompressionWriterFactory factory = new ParallelCompressionWriterFactory(new SAMFileWriterFactory().setMaxRecordsInRam(maxRecordsInRam));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            // At most this many batches are waiting for or being reverted, which bounds the records in memory
+            final int maxPendingBatches = 2 * THREADS;
+            final Semaphore pendingBatches = new Semaphore(maxPendingBatches);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+            final Map<String, ReadGroupReverter> reverters = new HashMap<String, ReadGroupReverter>();
+            for (final Map.Entry<String, File> entry : outputMap.entrySet()) {
+                final SAMFileHeader header = headerMap.get(entry.getKey());
+                final SAMFileWriter writer = factory.makeWriter(header, presorted, entry.getValue(), REFERENCE_SEQUENCE);
+                final SortingCollection<SAMRecord> sorter = qualityDetector == null ? null :
+                        SortingCollection.newInstance(SAMRecord.class, new BAMRecordCodec(header), new SAMRecordQueryNameComparator(), maxRecordsInRam);
+                reverters.put(entry.getKey(), new ReadGroupReverter(writer, sorter, executor, pendingBatches, failure));
+            }
+
+            final Map<String, List<SAMRecord>> batches = new HashMap<String, List<SAMRecord>>();
+            final ProgressLogger progress = new ProgressLogger(log, 1000000, "Reverted");
+            for (final SAMRecord rec : in) {
+                if (qualityDetector != null) qualityDetector.add(rec);
+
+                // Weed out non-primary and supplemental read as we don't want duplicates in the reverted file!
+                if (rec.isSecondaryOrSupplementary()) continue;
+
+                // log the progress before you revert because otherwise the "last read position" might not be accurate
+                progress.record(rec);
+
+                final String readGroupId = rec.getReadGroup().getId();
+                List<SAMRecord> batch = batches.get(readGroupId);
+                if (batch == null) {
+                    batch = new ArrayList<SAMRecord>(RECORDS_PER_BATCH);
+                    batches.put(readGroupId, batch);
+                }
+                batch.add(rec);
+                if (batch.size() == RECORDS_PER_BATCH) {
+                    acquire(pendingBatches, 1, failure);
+                    reverters.get(readGroupId).add(batch);
+                    batches.remove(readGroupId);
+                }
+            }
+            for (final Map.Entry<String, List<SAMRecord>> entry : batches.entrySet()) {
+                acquire(pendingBatches, 1, failure);
+                reverters.get(entry.getKey()).add(entry.getValue());
+            }
+            // Wait for all of the batches to be reverted
+            acquire(pendingBatches, maxPendingBatches, failure);
+
+            final Map<SAMReadGroupRecord, FastqQualityFormat> readGroupToFormat;
+            if (qualityDetector == null) {
+                readGroupToFormat = null;
+            } else {
+                try {
+                    readGroupToFormat = qualityDetector.detectFormats();
+                } catch (final PicardException e) {
+                    log.error(e.getMessage());
+                    return null;
+                }
+            }
+
+            // Sanitize, if need be, and close each read group's output in parallel
+            final List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+            for (final ReadGroupReverter reverter : reverters.values()) {
+                results.add(executor.submit(() -> {
+                    final long[] sanitizeResults = reverter.sorter == null ? new long[0] :
+                            sanitize(readGroupToFormat, Collections.singletonList(new PeekableIterator<SAMRecord>(reverter.sorter.iterator())), reverter.writer::addAlignment);
+                    reverter.writer.close();
+                    return sanitizeResults;
+                }));
+            }
+            final long[] sanitizeResults = qualityDetector == null ? new long[0] : new long[2];
+            for (final Future<long[]> result : results) {
+                final long[] readGroupResults = await(result);
+                for (int i = 0; i < sanitizeResults.length; ++i) sanitizeResults[i] += readGroupResults[i];
+            }
+            return sanitizeResults;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Acquires permits, failing with the exception of a worker thread if one has failed. */
+    private static void acquire(final Semaphore semaphore, final int permits, final AtomicReference<Throwable> failure) {
+        try {
+            while (!semaphore.tryAcquire(permits, 1, TimeUnit.SECONDS)) {
+                checkForFailure(failure);
+            }
+        } catch (final InterruptedException ie) {
+            throw new PicardException("Interrupted while reverting read groups.", ie);
+        }
+        checkForFailure(failure);
+    }
+
+    private static void checkForFailure(final AtomicReference<Throwable> failure) {
+        if (failure.get() != null) rethrow(failure.get());
+    }
+
+    private static <T> T await(final Future<T> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException ie) {
+            throw new PicardException("Interrupted while reverting read groups.", ie);
+        } catch (final ExecutionException ee) {
+            return rethrow(ee.getCause());
+        }
+    }
+
+    /** Rethrows an exception from a worker thread as it would have been thrown on this thread. */
+    private static <T> T rethrow(final Throwable t) {
+        if (t instanceof Error) throw (Error) t;
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        throw new PicardException("Error while reverting read groups.", t);
+    }
+
     static String getDefaultExtension(final String input) {
         if (input.endsWith(".sam")) {
             return ".sam";
@@ -334,13 +497,12 @@ public class RevertSam extends CommandLineProgram {
         }
     }
 
-    private long[] sanitize(final Map<SAMReadGroupRecord, FastqQualityFormat> readGroupToFormat, final RevertSamSorter sorter, final RevertSamWriter out) {
+    private long[] sanitize(final Map<SAMReadGroupRecord, FastqQualityFormat> readGroupToFormat, final List<PeekableIterator<SAMRecord>> iterators,
+                            final Consumer<SAMRecord> out) {
 
         long total = 0, discarded = 0;
         final ProgressLogger sanitizerProgress = new ProgressLogger(log, 1000000, "Sanitized");
 
-        final List<PeekableIterator<SAMRecord>> iterators = sorter.iterators();
-
         for (final PeekableIterator<SAMRecord> iterator : iterators) {
             readNameLoop:
             while (iterator.hasNext()) {
@@ -390,7 +552,7 @@ public class RevertSam extends CommandLineProgram {
                         }
                         rec.setBaseQualities(quals);
                     }
-                    out.addAlignment(rec);
+                    out.accept(rec);
                     sanitizerProgress.record(rec);
                 }
             }
@@ -493,38 +655,110 @@ public class RevertSam extends CommandLineProgram {
         return outHeader;
     }
 
-    private Map<SAMReadGroupRecord, FastqQualityFormat> createReadGroupFormatMap(
-            final SAMFileHeader inHeader,
-            final File referenceSequence,
-            final ValidationStringency validationStringency,
-            final File input,
-            final boolean restoreOriginalQualities) {
-
-        final Map<SAMReadGroupRecord, FastqQualityFormat> readGroupToFormat = new HashMap<SAMReadGroupRecord, FastqQualityFormat>();
-
-        // Figure out the quality score encoding scheme for each read group.
-        for (final SAMReadGroupRecord rg : inHeader.getReadGroups()) {
-            final SamReader reader = SamReaderFactory.makeDefault().referenceSequence(referenceSequence).validationStringency(validationStringency).open(input);
-            final SamRecordFilter filter = new SamRecordFilter() {
-                public boolean filterOut(final SAMRecord rec) {
-                    return !rec.getReadGroup().getId().equals(rg.getId());
-                }
+    /**
+     * Detects the quality score encoding of each read group from the records as they are read, examining the same
+     * records that QualityEncodingDetector.detect would on a filtered re-reading of the input for each read group.
+     */
+    private static class ReadGroupQualityDetector {
+        private final Map<String, SAMReadGroupRecord> readGroups = new LinkedHashMap<String, SAMReadGroupRecord>();
+        private final Map<String, QualityEncodingDetector> detectors = new HashMap<String, QualityEncodingDetector>();
+        private final Map<String, Long> recordsExamined = new HashMap<String, Long>();
+        private final boolean restoreOriginalQualities;
+
+        ReadGroupQualityDetector(final List<SAMReadGroupRecord> readGroups, final boolean restoreOriginalQualities) {
+            for (final SAMReadGroupRecord rg : readGroups) {
+                this.readGroups.put(rg.getId(), rg);
+                this.detectors.put(rg.getId(), new QualityEncodingDetector());
+                this.recordsExamined.put(rg.getId(), 0L);
+            }
+            this.restoreOriginalQualities = restoreOriginalQualities;
+        }
 
-                public boolean filterOut(final SAMRecord first, final SAMRecord second) {
-                    throw new UnsupportedOperationException();
-                }
-            };
-            readGroupToFormat.put(rg, QualityEncodingDetector.detect(QualityEncodingDetector.DEFAULT_MAX_RECORDS_TO_ITERATE, new FilteringIterator(reader.iterator(), filter), restoreOriginalQualities));
-            CloserUtil.close(reader);
+        /** Examines the qualities of the record, which must not yet have been reverted. */
+        void add(final SAMRecord rec) {
+            final SAMReadGroupRecord rg = rec.getReadGroup();
+            final QualityEncodingDetector detector = rg == null ? null : detectors.get(rg.getId());
+            if (detector == null) return;
+
+            final long examined = recordsExamined.get(rg.getId());
+            if (examined < QualityEncodingDetector.DEFAULT_MAX_RECORDS_TO_ITERATE) {
+                detector.add(rec, restoreOriginalQualities);
+                recordsExamined.put(rg.getId(), examined + 1);
+            }
         }
-        for (final SAMReadGroupRecord r : readGroupToFormat.keySet()) {
-            log.info("Detected quality format for " + r.getReadGroupId() + ": " + readGroupToFormat.get(r));
+
+        /** Returns the quality format of each read group, throwing a PicardException if one cannot be converted. */
+        Map<SAMReadGroupRecord, FastqQualityFormat> detectFormats() {
+            final Map<SAMReadGroupRecord, FastqQualityFormat> readGroupToFormat = new HashMap<SAMReadGroupRecord, FastqQualityFormat>();
+            for (final Map.Entry<String, SAMReadGroupRecord> entry : readGroups.entrySet()) {
+                readGroupToFormat.put(entry.getValue(), detectors.get(entry.getKey()).generateBestGuess(QualityEncodingDetector.FileContext.SAM, null));
+            }
+            for (final SAMReadGroupRecord r : readGroupToFormat.keySet()) {
+                log.info("Detected quality format for " + r.getReadGroupId() + ": " + readGroupToFormat.get(r));
+            }
+            if (readGroupToFormat.values().contains(FastqQualityFormat.Solexa)) {
+                throw new PicardException("No quality score encoding conversion implemented for " + FastqQualityFormat.Solexa);
+            }
+
+            return readGroupToFormat;
         }
-        if (readGroupToFormat.values().contains(FastqQualityFormat.Solexa)) {
-            throw new PicardException("No quality score encoding conversion implemented for " + FastqQualityFormat.Solexa);
+    }
+
+    /**
+     * Reverts the records of one read group when THREADS is greater than one.  Batches are reverted in the order they
+     * are added, one at a time, on the threads of a shared pool, and then added to the sorter if sanitizing or else
+     * written.  Each batch releases a permit when done, whether or not it succeeded.
+     */
+    private class ReadGroupReverter {
+        private final SAMFileWriter writer;
+        private final SortingCollection<SAMRecord> sorter;
+        private final ExecutorService executor;
+        private final Semaphore pendingBatches;
+        private final AtomicReference<Throwable> failure;
+        private final Deque<List<SAMRecord>> batches = new ArrayDeque<List<SAMRecord>>();
+        private boolean scheduled = false;
+
+        ReadGroupReverter(final SAMFileWriter writer, final SortingCollection<SAMRecord> sorter, final ExecutorService executor,
+                          final Semaphore pendingBatches, final AtomicReference<Throwable> failure) {
+            this.writer = writer;
+            this.sorter = sorter;
+            this.executor = executor;
+            this.pendingBatches = pendingBatches;
+            this.failure = failure;
+        }
+
+        synchronized void add(final List<SAMRecord> batch) {
+            batches.add(batch);
+            if (!scheduled) {
+                scheduled = true;
+                executor.execute(this::revertBatches);
+            }
         }
 
-        return readGroupToFormat;
+        private void revertBatches() {
+            while (true) {
+                final List<SAMRecord> batch;
+                synchronized (this) {
+                    batch = batches.poll();
+                    if (batch == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    if (failure.get() != null) continue;
+                    for (final SAMRecord rec : batch) {
+                        revertSamRecord(rec);
+                        if (sorter != null) sorter.add(rec);
+                        else writer.addAlignment(rec);
+                    }
+                } catch (final Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    pendingBatches.release();
+                }
+            }
+        }
     }
 
     /**
@@ -543,7 +777,7 @@ public class RevertSam extends CommandLineProgram {
                 final SAMFileHeader singleOutHeader,
                 final File singleOutput,
                 final boolean presorted,
-                final SAMFileWriterFactory factory,
+                final ParallelCompressionWriterFactory factory,
                 final File referenceFasta) {
 
             this.outputByReadGroup = outputByReadGroup;
@@ -23,8 +23,10 @@
  */
 package picard.sam;
 
+import htsjdk.samtools.BAMRecordCodec;
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordQueryNameComparator;
 import htsjdk.samtools.SAMUtils;
 import htsjdk.samtools.SAMValidationError;
 import htsjdk.samtools.SamReader;
@@ -32,12 +34,14 @@ import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.fastq.FastqRecord;
 import htsjdk.samtools.fastq.FastqWriter;
 import htsjdk.samtools.fastq.FastqWriterFactory;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Lazy;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.util.SequenceUtil;
+import htsjdk.samtools.util.SortingCollection;
 import htsjdk.samtools.util.StringUtil;
 import htsjdk.samtools.util.TrimmingUtil;
 import picard.PicardException;
@@ -50,6 +54,8 @@ import picard.cmdline.programgroups.SamOrBam;
 import java.io.File;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -156,6 +162,15 @@ public class SamToFastq extends CommandLineProgram {
             "is not comprehensive, so there may be exceptions if this is set to true and there are paired reads with non-primary alignments.")
     public boolean INCLUDE_NON_PRIMARY_ALIGNMENTS = false;
 
+    @Option(shortName = "MAX_MATES", doc = "If set, at most this many records waiting for their mates are kept in memory. " +
+            "Beyond that, the records that have waited longest are spilled to TMP_DIR and paired with their mates in a final " +
+            "pass over the spilled records, so pairs whose mates are far apart in the input, e.g. in a coordinate sorted " +
+            "file, are written at the end of the output.", optional = true)
+    public Integer MAX_RECORDS_AWAITING_MATES_IN_RAM;
+
+    @Option(doc = "If true, each FASTQ file is formatted, compressed and written on its own background thread.")
+    public boolean USE_THREADING = false;
+
     private final Log log = Log.getInstance(SamToFastq.class);
 
     public static void main(final String[] argv) {
@@ -165,9 +180,13 @@ public class SamToFastq extends CommandLineProgram {
     protected int doWork() {
         IOUtil.assertFileIsReadable(INPUT);
         final SamReader reader = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(INPUT);
-        final Map<String, SAMRecord> firstSeenMates = new HashMap<String, SAMRecord>();
+        // In insertion order when bounded, so that the records waiting longest are the first to be spilled
+        final Map<String, SAMRecord> firstSeenMates = MAX_RECORDS_AWAITING_MATES_IN_RAM == null ?
+                new HashMap<String, SAMRecord>() : new LinkedHashMap<String, SAMRecord>();
+        SortingCollection<SAMRecord> spilledMates = null;
         final FastqWriterFactory factory = new FastqWriterFactory();
         factory.setCreateMd5(CREATE_MD5_FILE);
+        factory.setUseAsyncIo(USE_THREADING);
         final Map<SAMReadGroupRecord, FastqWriters> writers = generateWriters(reader.getFileHeader().getReadGroups(), factory);
 
         final ProgressLogger progress = new ProgressLogger(log);
@@ -185,19 +204,19 @@ public class SamToFastq extends CommandLineProgram {
                 final SAMRecord firstRecord = firstSeenMates.remove(currentReadName);
                 if (firstRecord == null) {
                     firstSeenMates.put(currentReadName, currentRecord);
-                } else {
-                    assertPairedMates(firstRecord, currentRecord);
-
-                    final SAMRecord read1 =
-                            currentRecord.getFirstOfPairFlag() ? currentRecord : firstRecord;
-                    final SAMRecord read2 =
-                            currentRecord.getFirstOfPairFlag() ? firstRecord : currentRecord;
-                    writeRecord(read1, 1, fq.getFirstOfPair(), READ1_TRIM, READ1_MAX_BASES_TO_WRITE);
-                    final FastqWriter secondOfPairWriter = fq.getSecondOfPair();
-                    if (secondOfPairWriter == null) {
-                        throw new PicardException("Input contains paired reads but no SECOND_END_FASTQ specified.");
+                    if (MAX_RECORDS_AWAITING_MATES_IN_RAM != null && firstSeenMates.size() > MAX_RECORDS_AWAITING_MATES_IN_RAM) {
+                        if (spilledMates == null) {
+                            log.info("More than " + MAX_RECORDS_AWAITING_MATES_IN_RAM + " records are awaiting their mates; " +
+                                    "spilling the oldest to " + TMP_DIR);
+                            spilledMates = SortingCollection.newInstance(SAMRecord.class, new BAMRecordCodec(reader.getFileHeader()),
+                                    new SAMRecordQueryNameComparator(), MAX_RECORDS_IN_RAM, TMP_DIR);
+                        }
+                        final Iterator<SAMRecord> oldest = firstSeenMates.values().iterator();
+                        spilledMates.add(oldest.next());
+                        oldest.remove();
                     }
-                    writeRecord(read2, 2, secondOfPairWriter, READ2_TRIM, READ2_MAX_BASES_TO_WRITE);
+                } else {
+                    writePair(firstRecord, currentRecord, fq);
                 }
             } else {
                 writeRecord(currentRecord, null, fq.getUnpaired(), READ1_TRIM, READ1_MAX_BASES_TO_WRITE);
@@ -208,19 +227,67 @@ public class SamToFastq extends CommandLineProgram {
 
         CloserUtil.close(reader);
 
+        long unpairedMates = firstSeenMates.size();
+        if (spilledMates != null) {
+            for (final SAMRecord record : firstSeenMates.values()) spilledMates.add(record);
+            firstSeenMates.clear();
+            unpairedMates = writeSpilledPairs(spilledMates, writers);
+        }
+
         // Close all the fastq writers being careful to close each one only once!
         for (final FastqWriters writerMapping : new HashSet<FastqWriters>(writers.values())) {
             writerMapping.closeAll();
         }
 
-        if (!firstSeenMates.isEmpty()) {
+        if (unpairedMates > 0) {
             SAMUtils.processValidationError(new SAMValidationError(SAMValidationError.Type.MATE_NOT_FOUND,
-                    "Found " + firstSeenMates.size() + " unpaired mates", null), VALIDATION_STRINGENCY);
+                    "Found " + unpairedMates + " unpaired mates", null), VALIDATION_STRINGENCY);
         }
 
         return 0;
     }
 
+    /**
+     * Pairs the spilled records, which come back sorted by read name, as the main loop pairs records from the input.
+     * Returns the number of records left without a mate.
+     */
+    private long writeSpilledPairs(final SortingCollection<SAMRecord> spilledMates, final Map<SAMReadGroupRecord, FastqWriters> writers) {
+        log.info("Pairing records spilled while awaiting their mates.");
+        spilledMates.doneAdding();
+        long unpairedMates = 0;
+        SAMRecord firstRecord = null;
+        final CloseableIterator<SAMRecord> iterator = spilledMates.iterator();
+        while (iterator.hasNext()) {
+            final SAMRecord currentRecord = iterator.next();
+            if (firstRecord != null && firstRecord.getReadName().equals(currentRecord.getReadName())) {
+                writePair(firstRecord, currentRecord, writers.get(currentRecord.getReadGroup()));
+                firstRecord = null;
+            } else {
+                if (firstRecord != null) ++unpairedMates;
+                firstRecord = currentRecord;
+            }
+        }
+        if (firstRecord != null) ++unpairedMates;
+        iterator.close();
+        spilledMates.cleanup();
+        return unpairedMates;
+    }
+
+    private void writePair(final SAMRecord firstRecord, final SAMRecord currentRecord, final FastqWriters fq) {
+        assertPairedMates(firstRecord, currentRecord);
+
+        final SAMRecord read1 =
+                currentRecord.getFirstOfPairFlag() ? currentRecord : firstRecord;
+        final SAMRecord read2 =
+                currentRecord.getFirstOfPairFlag() ? firstRecord : currentRecord;
+        writeRecord(read1, 1, fq.getFirstOfPair(), READ1_TRIM, READ1_MAX_BASES_TO_WRITE);
+        final FastqWriter secondOfPairWriter = fq.getSecondOfPair();
+        if (secondOfPairWriter == null) {
+            throw new PicardException("Input contains paired reads but no SECOND_END_FASTQ specified.");
+        }
+        writeRecord(read2, 2, secondOfPairWriter, READ2_TRIM, READ2_MAX_BASES_TO_WRITE);
+    }
+
     /**
      * Generates the writers for the given read groups or, if we are not emitting per-read-group, just returns the single set of writers.
      */
@@ -431,6 +498,10 @@ public class SamToFastq extends CommandLineProgram {
                             "If "};
         }
 
+        if (MAX_RECORDS_AWAITING_MATES_IN_RAM != null && MAX_RECORDS_AWAITING_MATES_IN_RAM < 1) {
+            return new String[]{"MAX_RECORDS_AWAITING_MATES_IN_RAM must be at least 1."};
+        }
+
         if (OUTPUT_PER_RG) {
             if (RG_TAG == null) {
                 return new String[]{"If OUTPUT_PER_RG is true, then RG_TAG should be set."};
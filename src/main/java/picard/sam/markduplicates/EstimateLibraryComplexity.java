@@ -37,7 +37,6 @@ import htsjdk.samtools.util.PeekableIterator;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.util.SequenceUtil;
 import htsjdk.samtools.util.SortingCollection;
-import htsjdk.samtools.util.StringUtil;
 import picard.PicardException;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
@@ -46,6 +45,7 @@ import picard.cmdline.programgroups.Metrics;
 import picard.sam.DuplicationMetrics;
 import picard.sam.markduplicates.util.AbstractOpticalDuplicateFinderCommandLineProgram;
 import picard.sam.markduplicates.util.OpticalDuplicateFinder;
+import picard.sam.markduplicates.util.PackedBases;
 import picard.sam.util.PhysicalLocation;
 import picard.sam.util.PhysicalLocationShort;
 
@@ -56,11 +56,17 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static java.lang.Math.pow;
 
@@ -164,6 +170,13 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
             "size calculation, for example, adapter dimers.", optional = true)
     public int MIN_GROUP_COUNT = 2;
 
+    @Option(doc = "The number of threads to use. When greater than one, groups of read pairs sharing the same first bases " +
+            "are compared for duplicates on a pool of this many threads while further groups are read from the sorted pairs.")
+    public int THREADS = 1;
+
+    /** Groups are handed to worker threads in batches of at least this many read pairs. */
+    private static final int PAIRS_PER_BATCH = 10000;
+
     private final Log log = Log.getInstance(EstimateLibraryComplexity.class);
 
     @Override
@@ -179,17 +192,18 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
     }
 
     /**
-     * Little class to hold the sequence of a pair of reads and tile location information.
+     * Little class to hold the sequence of a pair of reads and tile location information.  The sequences
+     * are held packed at two bits per base.
      */
     static class PairedReadSequence extends PhysicalLocationShort {
         short readGroup = -1;
         boolean qualityOk = true;
-        byte[] read1;
-        byte[] read2;
+        PackedBases read1;
+        PackedBases read2;
         short libraryId;
 
         public static int getSizeInBytes() {
-            return 2 + 1 + 4 + 1 + 300; // rough guess at memory footprint
+            return 2 + 1 + 4 + 1 + 160; // rough guess at memory footprint, with two packed 150 base reads
         }
 
         public short getReadGroup() { return this.readGroup; }
@@ -221,8 +235,8 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
             this.x = val.getX();
             this.y = val.getY();
             this.qualityOk = val.qualityOk;
-            this.read1 = val.read1.clone();
-            this.read2 = val.read2.clone();
+            this.read1 = val.read1;
+            this.read2 = val.read2;
             this.libraryId = val.getLibraryId();
         }
 
@@ -252,10 +266,8 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
                 this.out.writeShort(val.tile);
                 this.out.writeShort(val.x);
                 this.out.writeShort(val.y);
-                this.out.writeInt(val.read1.length);
-                this.out.write(val.read1);
-                this.out.writeInt(val.read2.length);
-                this.out.write(val.read2);
+                val.read1.write(this.out);
+                val.read2.write(this.out);
             } catch (final IOException ioe) {
                 throw new PicardException("Error write out read pair.", ioe);
             }
@@ -274,17 +286,8 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
                 val.x = this.in.readShort();
                 val.y = this.in.readShort();
 
-                int length = this.in.readInt();
-                val.read1 = new byte[length];
-                if (this.in.read(val.read1) != length) {
-                    throw new PicardException("Could not read " + length + " bytes from temporary file.");
-                }
-
-                length = this.in.readInt();
-                val.read2 = new byte[length];
-                if (this.in.read(val.read2) != length) {
-                    throw new PicardException("Could not read " + length + " bytes from temporary file.");
-                }
+                val.read1 = PackedBases.read(this.in);
+                val.read2 = PackedBases.read(this.in);
 
                 return val;
             } catch (final IOException ioe) {
@@ -349,13 +352,13 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         public int compare(final PairedReadSequence lhs, final PairedReadSequence rhs) {
             // First compare the first N bases of the first read
             for (int i = 0; i < BASES; ++i) {
-                final int retval = lhs.read1[i] - rhs.read1[i];
+                final int retval = lhs.read1.baseAt(i) - rhs.read1.baseAt(i);
                 if (retval != 0) return retval;
             }
 
             // Then compare the first N bases of the second read
             for (int i = 0; i < BASES; ++i) {
-                final int retval = lhs.read2[i] - rhs.read2[i];
+                final int retval = lhs.read2.baseAt(i) - rhs.read2.baseAt(i);
                 if (retval != 0) return retval;
             }
 
@@ -466,13 +469,13 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
                 final PairedReadSequenceWithBarcodes prsWithBarcodes = (useBarcodes) ? (PairedReadSequenceWithBarcodes) prs : null;
 
                 if (rec.getFirstOfPairFlag()) {
-                    prs.read1 = bases;
+                    prs.read1 = PackedBases.pack(bases);
                     if (useBarcodes) {
                         prsWithBarcodes.barcode = getBarcodeValue(rec);
                         prsWithBarcodes.readOneBarcode = getReadOneBarcodeValue(rec);
                     }
                 } else {
-                    prs.read2 = bases;
+                    prs.read2 = PackedBases.pack(bases);
                     if (useBarcodes) {
                         prsWithBarcodes.readTwoBarcode = getReadTwoBarcodeValue(rec);
                     }
@@ -492,87 +495,68 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         // Now go through the sorted reads and attempt to find duplicates
         final PeekableIterator<PairedReadSequence> iterator = new PeekableIterator<PairedReadSequence>(sorter.iterator());
 
-        final Map<String, Histogram<Integer>> duplicationHistosByLibrary = new HashMap<String, Histogram<Integer>>();
-        final Map<String, Histogram<Integer>> opticalHistosByLibrary = new HashMap<String, Histogram<Integer>>();
+        final DuplicationHistograms histograms = new DuplicationHistograms();
 
         int groupsProcessed = 0;
         long lastLogTime = System.currentTimeMillis();
         final int meanGroupSize = (int) (Math.max(1, (progress.getCount() / 2) / (int) pow(4, MIN_IDENTICAL_BASES * 2)));
 
-        while (iterator.hasNext()) {
-            // Get the next group and split it apart by library
-            final List<PairedReadSequence> group = getNextGroup(iterator);
-
-            if (group.size() > meanGroupSize * MAX_GROUP_RATIO) {
-                final PairedReadSequence prs = group.get(0);
-                log.warn("Omitting group with over " + MAX_GROUP_RATIO + " times the expected mean number of read pairs. " +
-                        "Mean=" + meanGroupSize + ", Actual=" + group.size() + ". Prefixes: " +
-                        StringUtil.bytesToString(prs.read1, 0, MIN_IDENTICAL_BASES) +
-                        " / " +
-                        StringUtil.bytesToString(prs.read2, 0, MIN_IDENTICAL_BASES));
-            } else {
-                final Map<String, List<PairedReadSequence>> sequencesByLibrary = splitByLibrary(group, readGroups);
-
-                // Now process the reads by library
-                for (final Map.Entry<String, List<PairedReadSequence>> entry : sequencesByLibrary.entrySet()) {
-                    final String library = entry.getKey();
-                    final List<PairedReadSequence> seqs = entry.getValue();
-
-                    Histogram<Integer> duplicationHisto = duplicationHistosByLibrary.get(library);
-                    Histogram<Integer> opticalHisto = opticalHistosByLibrary.get(library);
-                    if (duplicationHisto == null) {
-                        duplicationHisto = new Histogram<Integer>("duplication_group_count", library);
-                        opticalHisto = new Histogram<Integer>("duplication_group_count", "optical_duplicates");
-                        duplicationHistosByLibrary.put(library, duplicationHisto);
-                        opticalHistosByLibrary.put(library, opticalHisto);
-                    }
-
-                    // Figure out if any reads within this group are duplicates of one another
-                    for (int i = 0; i < seqs.size(); ++i) {
-                        final PairedReadSequence lhs = seqs.get(i);
-                        if (lhs == null) continue;
-                        final List<PairedReadSequence> dupes = new ArrayList<PairedReadSequence>();
-
-                        for (int j = i + 1; j < seqs.size(); ++j) {
-                            final PairedReadSequence rhs = seqs.get(j);
-                            if (rhs == null) continue;
-
-                            if (matches(lhs, rhs, MAX_DIFF_RATE, useBarcodes)) {
-                                dupes.add(rhs);
-                                seqs.set(j, null);
-                            }
+        // With multiple threads, batches of groups are counted into their own histograms, which are added in as they complete
+        final ExecutorService executor = THREADS > 1 ? Executors.newFixedThreadPool(THREADS) : null;
+        final Deque<Future<DuplicationHistograms>> pending = new ArrayDeque<Future<DuplicationHistograms>>();
+        List<List<PairedReadSequence>> batch = new ArrayList<List<PairedReadSequence>>();
+        int pairsInBatch = 0;
+        try {
+            while (iterator.hasNext()) {
+                // Get the next group and split it apart by library
+                final List<PairedReadSequence> group = getNextGroup(iterator);
+
+                if (group.size() > meanGroupSize * MAX_GROUP_RATIO) {
+                    final PairedReadSequence prs = group.get(0);
+                    log.warn("Omitting group with over " + MAX_GROUP_RATIO + " times the expected mean number of read pairs. " +
+                            "Mean=" + meanGroupSize + ", Actual=" + group.size() + ". Prefixes: " +
+                            prs.read1.toString(0, MIN_IDENTICAL_BASES) +
+                            " / " +
+                            prs.read2.toString(0, MIN_IDENTICAL_BASES));
+                } else {
+                    if (executor == null) {
+                        countDuplicates(group, readGroups, useBarcodes, histograms);
+                    } else {
+                        batch.add(group);
+                        pairsInBatch += group.size();
+                        if (pairsInBatch >= PAIRS_PER_BATCH) {
+                            final List<List<PairedReadSequence>> groups = batch;
+                            pending.add(executor.submit(() -> countDuplicates(groups, readGroups, useBarcodes)));
+                            batch = new ArrayList<List<PairedReadSequence>>();
+                            pairsInBatch = 0;
+                            // Bound the number of groups held in memory
+                            while (pending.size() > 2 * THREADS) histograms.add(await(pending.poll()));
                         }
+                    }
 
-                        if (!dupes.isEmpty()) {
-                            dupes.add(lhs);
-                            final int duplicateCount = dupes.size();
-                            duplicationHisto.increment(duplicateCount);
-
-                            final boolean[] flags = opticalDuplicateFinder.findOpticalDuplicates(dupes, lhs);
-                            for (final boolean b : flags) {
-                                if (b) opticalHisto.increment(duplicateCount);
-                            }
-                        } else {
-                            duplicationHisto.increment(1);
-                        }
+                    ++groupsProcessed;
+                    if (lastLogTime < System.currentTimeMillis() - 60000) {
+                        log.info("Processed " + groupsProcessed + " groups.");
+                        lastLogTime = System.currentTimeMillis();
                     }
                 }
+            }
 
-                ++groupsProcessed;
-                if (lastLogTime < System.currentTimeMillis() - 60000) {
-                    log.info("Processed " + groupsProcessed + " groups.");
-                    lastLogTime = System.currentTimeMillis();
-                }
+            if (executor != null) {
+                if (!batch.isEmpty()) histograms.add(countDuplicates(batch, readGroups, useBarcodes));
+                while (!pending.isEmpty()) histograms.add(await(pending.poll()));
             }
+        } finally {
+            if (executor != null) executor.shutdownNow();
         }
 
         iterator.close();
         sorter.cleanup();
 
         final MetricsFile<DuplicationMetrics, Integer> file = getMetricsFile();
-        for (final String library : duplicationHistosByLibrary.keySet()) {
-            final Histogram<Integer> duplicationHisto = duplicationHistosByLibrary.get(library);
-            final Histogram<Integer> opticalHisto = opticalHistosByLibrary.get(library);
+        for (final String library : histograms.duplicationHistosByLibrary.keySet()) {
+            final Histogram<Integer> duplicationHisto = histograms.duplicationHistosByLibrary.get(library);
+            final Histogram<Integer> opticalHisto = histograms.opticalHistosByLibrary.get(library);
             final DuplicationMetrics metrics = new DuplicationMetrics();
             metrics.LIBRARY = library;
 
@@ -599,16 +583,110 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         return 0;
     }
 
+    /** Duplication and optical duplication histograms, by library. */
+    private static class DuplicationHistograms {
+        final Map<String, Histogram<Integer>> duplicationHistosByLibrary = new HashMap<String, Histogram<Integer>>();
+        final Map<String, Histogram<Integer>> opticalHistosByLibrary = new HashMap<String, Histogram<Integer>>();
+
+        Histogram<Integer> getDuplicationHisto(final String library) {
+            Histogram<Integer> duplicationHisto = duplicationHistosByLibrary.get(library);
+            if (duplicationHisto == null) {
+                duplicationHisto = new Histogram<Integer>("duplication_group_count", library);
+                duplicationHistosByLibrary.put(library, duplicationHisto);
+                opticalHistosByLibrary.put(library, new Histogram<Integer>("duplication_group_count", "optical_duplicates"));
+            }
+            return duplicationHisto;
+        }
+
+        Histogram<Integer> getOpticalHisto(final String library) {
+            getDuplicationHisto(library);
+            return opticalHistosByLibrary.get(library);
+        }
+
+        void add(final DuplicationHistograms other) {
+            for (final String library : other.duplicationHistosByLibrary.keySet()) {
+                getDuplicationHisto(library).addHistogram(other.duplicationHistosByLibrary.get(library));
+                getOpticalHisto(library).addHistogram(other.opticalHistosByLibrary.get(library));
+            }
+        }
+    }
+
+    /** Counts the duplicates within each of the groups into a new set of histograms. */
+    private DuplicationHistograms countDuplicates(final List<List<PairedReadSequence>> groups,
+                                                  final List<SAMReadGroupRecord> readGroups,
+                                                  final boolean useBarcodes) {
+        final DuplicationHistograms histograms = new DuplicationHistograms();
+        for (final List<PairedReadSequence> group : groups) countDuplicates(group, readGroups, useBarcodes, histograms);
+        return histograms;
+    }
+
+    /** Splits the group by library and counts the sets of duplicates within each library into the histograms. */
+    private void countDuplicates(final List<PairedReadSequence> group,
+                                 final List<SAMReadGroupRecord> readGroups,
+                                 final boolean useBarcodes,
+                                 final DuplicationHistograms histograms) {
+        final Map<String, List<PairedReadSequence>> sequencesByLibrary = splitByLibrary(group, readGroups);
+
+        // Now process the reads by library
+        for (final Map.Entry<String, List<PairedReadSequence>> entry : sequencesByLibrary.entrySet()) {
+            final String library = entry.getKey();
+            final List<PairedReadSequence> seqs = entry.getValue();
+
+            final Histogram<Integer> duplicationHisto = histograms.getDuplicationHisto(library);
+            final Histogram<Integer> opticalHisto = histograms.getOpticalHisto(library);
+
+            // Figure out if any reads within this group are duplicates of one another
+            for (int i = 0; i < seqs.size(); ++i) {
+                final PairedReadSequence lhs = seqs.get(i);
+                if (lhs == null) continue;
+                final List<PairedReadSequence> dupes = new ArrayList<PairedReadSequence>();
+
+                for (int j = i + 1; j < seqs.size(); ++j) {
+                    final PairedReadSequence rhs = seqs.get(j);
+                    if (rhs == null) continue;
+
+                    if (matches(lhs, rhs, MAX_DIFF_RATE, useBarcodes)) {
+                        dupes.add(rhs);
+                        seqs.set(j, null);
+                    }
+                }
+
+                if (!dupes.isEmpty()) {
+                    dupes.add(lhs);
+                    final int duplicateCount = dupes.size();
+                    duplicationHisto.increment(duplicateCount);
+
+                    final boolean[] flags = opticalDuplicateFinder.findOpticalDuplicates(dupes, lhs);
+                    for (final boolean b : flags) {
+                        if (b) opticalHisto.increment(duplicateCount);
+                    }
+                } else {
+                    duplicationHisto.increment(1);
+                }
+            }
+        }
+    }
+
+    private static DuplicationHistograms await(final Future<DuplicationHistograms> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException ie) {
+            throw new PicardException("Interrupted while counting duplicates.", ie);
+        } catch (final ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+            throw new PicardException("Error counting duplicates.", ee.getCause());
+        }
+    }
+
     /**
      * Checks to see if two reads pairs have sequence that are the same, give or take a few
      * errors/diffs as dictated by the maxDiffRate.
      */
     private boolean matches(final PairedReadSequence lhs, final PairedReadSequence rhs, final double maxDiffRate, final boolean useBarcodes) {
         final int maxReadLength = (MAX_READ_LENGTH <= 0) ? Integer.MAX_VALUE : MAX_READ_LENGTH;
-        final int read1Length = Math.min(Math.min(lhs.read1.length, rhs.read1.length), maxReadLength);
-        final int read2Length = Math.min(Math.min(lhs.read2.length, rhs.read2.length), maxReadLength);
+        final int read1Length = Math.min(Math.min(lhs.read1.length(), rhs.read1.length()), maxReadLength);
+        final int read2Length = Math.min(Math.min(lhs.read2.length(), rhs.read2.length()), maxReadLength);
         final int maxErrors = (int) Math.floor((read1Length + read2Length) * maxDiffRate);
-        int errors = 0;
 
         if (useBarcodes) {
             final PairedReadSequenceWithBarcodes lhsWithBarcodes = (PairedReadSequenceWithBarcodes) lhs;
@@ -620,21 +698,12 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
             }
         }
 
-        // The loop can start from MIN_IDENTICAL_BASES because we've already confirmed that
+        // The comparisons can start from MIN_IDENTICAL_BASES because we've already confirmed that
         // at least those first few bases are identical when sorting.
-        for (int i = MIN_IDENTICAL_BASES; i < read1Length; ++i) {
-            if (lhs.read1[i] != rhs.read1[i] && ++errors > maxErrors) {
-                return false;
-            }
-        }
-
-        for (int i = MIN_IDENTICAL_BASES; i < read2Length; ++i) {
-            if (lhs.read2[i] != rhs.read2[i] && ++errors > maxErrors) {
-                return false;
-            }
-        }
+        final int errors = lhs.read1.countMismatches(rhs.read1, MIN_IDENTICAL_BASES, read1Length, maxErrors);
+        if (errors > maxErrors) return false;
 
-        return true;
+        return errors + lhs.read2.countMismatches(rhs.read2, MIN_IDENTICAL_BASES, read2Length, maxErrors - errors) <= maxErrors;
     }
 
     /**
@@ -650,7 +719,7 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         while (iterator.hasNext()) {
             final PairedReadSequence next = iterator.peek();
             for (int i = 0; i < MIN_IDENTICAL_BASES; ++i) {
-                if (first.read1[i] != next.read1[i] || first.read2[i] != next.read2[i]) break outer;
+                if (first.read1.baseAt(i) != next.read1.baseAt(i) || first.read2.baseAt(i) != next.read2.baseAt(i)) break outer;
             }
 
             group.add(iterator.next());
@@ -35,21 +35,32 @@ import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.*;
 import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Histogram;
 import htsjdk.samtools.util.SortingCollection;
 import htsjdk.samtools.util.SortingLongCollection;
 import picard.sam.markduplicates.util.AbstractMarkDuplicatesCommandLineProgram;
 import picard.sam.markduplicates.util.DiskBasedReadEndsForMarkDuplicatesMap;
 import picard.sam.markduplicates.util.LibraryIdGenerator;
+import picard.sam.markduplicates.util.MemoryMappedReadEndsForMarkDuplicatesMap;
+import picard.sam.markduplicates.util.ObjectBasedReadEndsForMarkDuplicatesSorter;
+import picard.sam.markduplicates.util.PackedReadEndsForMarkDuplicatesSorter;
 import picard.sam.markduplicates.util.ReadEnds;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicates;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesCodec;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesMap;
+import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesSorter;
 import htsjdk.samtools.DuplicateScoringStrategy.ScoringStrategy;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodes;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodesCodec;
+import picard.util.AsyncIterator;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A better duplication marking algorithm that handles all cases including clipped
@@ -150,6 +161,11 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                     "This number can be found by executing the 'ulimit -n' command on a Unix system.")
     public int MAX_FILE_HANDLES_FOR_READ_ENDS_MAP = 8000;
 
+    @Option(doc = "If true, read ends waiting for their mates on other reference sequences are spilled to a single " +
+            "memory-mapped file with an in-memory index, rather than to one file per reference sequence.  Recommended " +
+            "for references with very many sequences, where MAX_FILE_HANDLES_FOR_READ_ENDS_MAP would otherwise be exceeded.")
+    public boolean MEMORY_MAPPED_READ_ENDS_MAP = false;
+
     @Option(doc = "This number, plus the maximum RAM available to the JVM, determine the memory footprint used by " +
             "some of the sorting collections.  If you are running out of memory, try reducing this number.")
     public double SORTING_COLLECTION_SIZE_RATIO = 0.25;
@@ -171,8 +187,18 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
     @Option(doc= "Determines how duplicate types are recorded in the DT optional attribute.")
     public DuplicateTaggingPolicy TAGGING_POLICY = DuplicateTaggingPolicy.DontTag;
 
-    private SortingCollection<ReadEndsForMarkDuplicates> pairSort;
-    private SortingCollection<ReadEndsForMarkDuplicates> fragSort;
+    @Option(doc = "The number of threads to use. When greater than one, the input is read on a separate thread while read " +
+            "ends are built, and sets of duplicate read ends are scored on a pool of this many worker threads.")
+    public int THREADS = 1;
+
+    @Option(doc = "If true, hold the read ends that are sorted to find duplicates as fixed-width records in off-heap memory, " +
+            "spilling sorted runs to memory-mapped files, rather than as Java objects.  This greatly reduces heap use and " +
+            "garbage collection on large inputs.  Off-heap memory use is bounded by SORTING_COLLECTION_SIZE_RATIO times " +
+            "the maximum heap size for each of the two collections.")
+    public boolean OFF_HEAP_READ_ENDS = false;
+
+    private ReadEndsForMarkDuplicatesSorter pairSort;
+    private ReadEndsForMarkDuplicatesSorter fragSort;
     private SortingLongCollection duplicateIndexes;
     private SortingLongCollection opticalDuplicateIndexes;
 
@@ -197,6 +223,14 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         DUPLICATE_SCORING_STRATEGY = ScoringStrategy.SUM_OF_BASE_QUALITIES;
     }
 
+    @Override
+    protected String[] customCommandLineValidation() {
+        if (THREADS < 1) {
+            return new String[]{"THREADS must be at least 1."};
+        }
+        return super.customCommandLineValidation();
+    }
+
     /** Stock main method. */
     public static void main(final String[] args) {
         new MarkDuplicates().instanceMainWithExit(args);
@@ -392,39 +426,58 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
             sizeInBytes = ReadEndsForMarkDuplicates.getSizeOf();
         }
         MAX_RECORDS_IN_RAM = (int) (Runtime.getRuntime().maxMemory() / sizeInBytes) / 2;
-        final int maxInMemory = (int) ((Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO) / sizeInBytes);
-        log.info("Will retain up to " + maxInMemory + " data points before spilling to disk.");
 
-        final ReadEndsForMarkDuplicatesCodec fragCodec, pairCodec, diskCodec;
+        final ReadEndsForMarkDuplicatesCodec diskCodec;
         if (useBarcodes) {
-            fragCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
-            pairCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
             diskCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
         } else {
-            fragCodec = new ReadEndsForMarkDuplicatesCodec();
-            pairCodec = new ReadEndsForMarkDuplicatesCodec();
             diskCodec = new ReadEndsForMarkDuplicatesCodec();
         }
 
-        this.pairSort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
-                pairCodec,
-                new ReadEndsMDComparator(useBarcodes),
-                maxInMemory,
-                TMP_DIR);
+        if (OFF_HEAP_READ_ENDS) {
+            final int recordSize = PackedReadEndsForMarkDuplicatesSorter.getRecordSize(useBarcodes);
+            final int maxInMemory = (int) Math.min((Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO) / recordSize, Integer.MAX_VALUE);
+            log.info("Will retain up to " + maxInMemory + " data points off-heap before spilling to disk.");
+
+            this.pairSort = new PackedReadEndsForMarkDuplicatesSorter(useBarcodes, maxInMemory, TMP_DIR);
+            this.fragSort = new PackedReadEndsForMarkDuplicatesSorter(useBarcodes, maxInMemory, TMP_DIR);
+        } else {
+            final int maxInMemory = (int) ((Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO) / sizeInBytes);
+            log.info("Will retain up to " + maxInMemory + " data points before spilling to disk.");
+
+            final ReadEndsForMarkDuplicatesCodec fragCodec, pairCodec;
+            if (useBarcodes) {
+                fragCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
+                pairCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
+            } else {
+                fragCodec = new ReadEndsForMarkDuplicatesCodec();
+                pairCodec = new ReadEndsForMarkDuplicatesCodec();
+            }
 
-        this.fragSort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
-                fragCodec,
-                new ReadEndsMDComparator(useBarcodes),
-                maxInMemory,
-                TMP_DIR);
+            this.pairSort = new ObjectBasedReadEndsForMarkDuplicatesSorter(SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
+                    pairCodec,
+                    new ReadEndsMDComparator(useBarcodes),
+                    maxInMemory,
+                    TMP_DIR));
+
+            this.fragSort = new ObjectBasedReadEndsForMarkDuplicatesSorter(SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
+                    fragCodec,
+                    new ReadEndsMDComparator(useBarcodes),
+                    maxInMemory,
+                    TMP_DIR));
+        }
 
         final SamHeaderAndIterator headerAndIterator = openInputs();
         final SAMFileHeader.SortOrder assumedSortOrder = headerAndIterator.header.getSortOrder();
         final SAMFileHeader header = headerAndIterator.header;
-        final ReadEndsForMarkDuplicatesMap tmp = new DiskBasedReadEndsForMarkDuplicatesMap(MAX_FILE_HANDLES_FOR_READ_ENDS_MAP, diskCodec);
+        final ReadEndsForMarkDuplicatesMap tmp = MEMORY_MAPPED_READ_ENDS_MAP ?
+                new MemoryMappedReadEndsForMarkDuplicatesMap(diskCodec, TMP_DIR) :
+                new DiskBasedReadEndsForMarkDuplicatesMap(MAX_FILE_HANDLES_FOR_READ_ENDS_MAP, diskCodec);
         long index = 0;
         final ProgressLogger progress = new ProgressLogger(log, (int) 1e6, "Read");
-        final CloseableIterator<SAMRecord> iterator = headerAndIterator.iterator;
+        final CloseableIterator<SAMRecord> iterator = THREADS > 1 ?
+                new AsyncIterator<>(headerAndIterator.iterator, AsyncIterator.DEFAULT_QUEUE_SIZE, "MarkDuplicatesReader") :
+                headerAndIterator.iterator;
 
         if (null == this.libraryIdGenerator) {
             this.libraryIdGenerator = new LibraryIdGenerator(header);
@@ -534,6 +587,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
 
         log.info("Read " + index + " records. " + tmp.size() + " pairs never matched.");
         iterator.close();
+        CloserUtil.close(tmp);
 
         // Tell these collections to free up memory if possible.
         this.pairSort.doneAdding();
@@ -608,6 +662,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         log.info("Will retain up to " + maxInMemory + " duplicate indices before spilling to disk.");
         this.duplicateIndexes = new SortingLongCollection(maxInMemory, TMP_DIR.toArray(new File[TMP_DIR.size()]));
 
+        final DuplicateSetProcessor processor = THREADS > 1 ? new ParallelDuplicateSetProcessor(THREADS) : new DuplicateSetProcessor();
         ReadEndsForMarkDuplicates firstOfNextChunk = null;
         final List<ReadEndsForMarkDuplicates> nextChunk = new ArrayList<ReadEndsForMarkDuplicates>(200);
 
@@ -618,14 +673,15 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                 nextChunk.add(next);
             } else {
                 if (nextChunk.size() > 1) {
-                    markDuplicatePairs(nextChunk);
+                    processor.addPairs(nextChunk);
                 }
                 nextChunk.clear();
                 nextChunk.add(next);
                 firstOfNextChunk = next;
             }
         }
-        if (nextChunk.size() > 1) markDuplicatePairs(nextChunk);
+        if (nextChunk.size() > 1) processor.addPairs(nextChunk);
+        processor.flush();
         this.pairSort.cleanup();
         this.pairSort = null;
 
@@ -643,7 +699,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                 containsFrags = containsFrags || !next.isPaired();
             } else {
                 if (nextChunk.size() > 1 && containsFrags) {
-                    markDuplicateFragments(nextChunk, containsPairs);
+                    processor.addFragments(nextChunk, containsPairs);
                 }
                 nextChunk.clear();
                 nextChunk.add(next);
@@ -652,7 +708,8 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                 containsFrags = !next.isPaired();
             }
         }
-        markDuplicateFragments(nextChunk, containsPairs);
+        processor.addFragments(nextChunk, containsPairs);
+        processor.close();
         this.fragSort.cleanup();
         this.fragSort = null;
 
@@ -686,18 +743,14 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         return areComparable;
     }
 
-    private void addIndexAsDuplicate(final long bamIndex) {
-        this.duplicateIndexes.add(bamIndex);
-        ++this.numDuplicateIndices;
-    }
-
     /**
-     * Takes a list of ReadEndsForMarkDuplicates objects and removes from it all objects that should
-     * not be marked as duplicates.  This assumes that the list contains objects representing pairs.
+     * Takes a list of ReadEndsForMarkDuplicates objects and records in the given results all objects that should
+     * be marked as duplicates.  This assumes that the list contains objects representing pairs.
      *
      * @param list
+     * @param results where to record the duplicate (and optical duplicate) indexes
      */
-    private void markDuplicatePairs(final List<ReadEndsForMarkDuplicates> list) {
+    private void markDuplicatePairs(final List<ReadEndsForMarkDuplicates> list, final DuplicateIndexResults results) {
         short maxScore = 0;
         ReadEndsForMarkDuplicates best = null;
 
@@ -710,36 +763,37 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         }
 
         if (this.READ_NAME_REGEX != null) {
-            AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(list, best, opticalDuplicateFinder, libraryIdGenerator);
+            AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(list, best, opticalDuplicateFinder, results.opticalDuplicatesByLibraryId);
         }
 
         for (final ReadEndsForMarkDuplicates end : list) {
             if (end != best) {
-                addIndexAsDuplicate(end.read1IndexInFile);
+                results.addDuplicate(end.read1IndexInFile);
 
                 // in query-sorted case, these will be the same.
                 // TODO: also in coordinate sorted, when one read is unmapped
-                if(end.read2IndexInFile != end.read1IndexInFile) addIndexAsDuplicate(end.read2IndexInFile);
+                if(end.read2IndexInFile != end.read1IndexInFile) results.addDuplicate(end.read2IndexInFile);
 
                 if (end.isOpticalDuplicate && this.opticalDuplicateIndexes != null) {
-                    this.opticalDuplicateIndexes.add(end.read1IndexInFile);
-                    this.opticalDuplicateIndexes.add(end.read2IndexInFile);
+                    results.addOpticalDuplicate(end.read1IndexInFile);
+                    results.addOpticalDuplicate(end.read2IndexInFile);
                 }
             }
         }
     }
 
     /**
-     * Takes a list of ReadEndsForMarkDuplicates objects and removes from it all objects that should
-     * not be marked as duplicates.  This will set the duplicate index for only list items are fragments.
+     * Takes a list of ReadEndsForMarkDuplicates objects and records in the given results all objects that should
+     * be marked as duplicates.  This will set the duplicate index for only list items are fragments.
      *
      * @param list
      * @param containsPairs true if the list also contains objects containing pairs, false otherwise.
+     * @param results where to record the duplicate indexes
      */
-    private void markDuplicateFragments(final List<ReadEndsForMarkDuplicates> list, final boolean containsPairs) {
+    private void markDuplicateFragments(final List<ReadEndsForMarkDuplicates> list, final boolean containsPairs, final DuplicateIndexResults results) {
         if (containsPairs) {
             for (final ReadEndsForMarkDuplicates end : list) {
-                if (!end.isPaired()) addIndexAsDuplicate(end.read1IndexInFile);
+                if (!end.isPaired()) results.addDuplicate(end.read1IndexInFile);
             }
         } else {
             short maxScore = 0;
@@ -753,12 +807,184 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
 
             for (final ReadEndsForMarkDuplicates end : list) {
                 if (end != best) {
-                    addIndexAsDuplicate(end.read1IndexInFile);
+                    results.addDuplicate(end.read1IndexInFile);
                 }
             }
         }
     }
 
+    /**
+     * Holds the file indexes of duplicates (and optical duplicates) found while scoring some number of duplicate
+     * sets, until they can be moved into the sorting collections, which may only be touched by one thread.
+     */
+    private static class DuplicateIndexResults {
+        private long[] duplicates = new long[64];
+        private int numDuplicates = 0;
+        private long[] opticalDuplicates = new long[16];
+        private int numOpticalDuplicates = 0;
+        final Histogram<Short> opticalDuplicatesByLibraryId = new Histogram<Short>();
+
+        void addDuplicate(final long index) {
+            if (numDuplicates == duplicates.length) duplicates = Arrays.copyOf(duplicates, duplicates.length * 2);
+            duplicates[numDuplicates++] = index;
+        }
+
+        void addOpticalDuplicate(final long index) {
+            if (numOpticalDuplicates == opticalDuplicates.length) opticalDuplicates = Arrays.copyOf(opticalDuplicates, opticalDuplicates.length * 2);
+            opticalDuplicates[numOpticalDuplicates++] = index;
+        }
+
+        int size() { return numDuplicates + numOpticalDuplicates; }
+    }
+
+    /**
+     * Scores duplicate sets handed to it by generateDuplicateIndexes().  This implementation does the work
+     * immediately on the calling thread.
+     */
+    private class DuplicateSetProcessor {
+        /** How many indexes to hold before moving them into the sorting collections. */
+        private static final int MAX_PENDING_INDEXES = 10000;
+
+        private DuplicateIndexResults results = new DuplicateIndexResults();
+
+        /** Scores a set of pairs that all share the same ends; the list may be reused by the caller afterwards. */
+        void addPairs(final List<ReadEndsForMarkDuplicates> list) {
+            markDuplicatePairs(list, results);
+            if (results.size() > MAX_PENDING_INDEXES) flush();
+        }
+
+        /** Scores a set of fragments that share the same end; the list may be reused by the caller afterwards. */
+        void addFragments(final List<ReadEndsForMarkDuplicates> list, final boolean containsPairs) {
+            markDuplicateFragments(list, containsPairs, results);
+            if (results.size() > MAX_PENDING_INDEXES) flush();
+        }
+
+        /** Makes sure that everything handed in so far has been scored and recorded. */
+        void flush() {
+            record(results);
+            results = new DuplicateIndexResults();
+        }
+
+        /** Flushes and releases any resources. */
+        void close() {
+            flush();
+        }
+
+        /** Moves the results into the sorting collections and metrics; must be called on the main thread. */
+        protected void record(final DuplicateIndexResults r) {
+            for (int i = 0; i < r.numDuplicates; ++i) {
+                duplicateIndexes.add(r.duplicates[i]);
+            }
+            numDuplicateIndices += r.numDuplicates;
+
+            if (opticalDuplicateIndexes != null) {
+                for (int i = 0; i < r.numOpticalDuplicates; ++i) {
+                    opticalDuplicateIndexes.add(r.opticalDuplicates[i]);
+                }
+            }
+
+            if (!r.opticalDuplicatesByLibraryId.isEmpty()) {
+                libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap().addHistogram(r.opticalDuplicatesByLibraryId);
+            }
+        }
+    }
+
+    /**
+     * Gathers duplicate sets into batches and scores each batch on a pool of worker threads.  Each batch gets its
+     * own DuplicateIndexResults, which are recorded on the main thread as batches complete, so the sorting
+     * collections and library metrics never need to be shared between threads.  Since the duplicate indexes are
+     * sorted before use, and the optical duplicate counts are simply summed, the output is the same as when
+     * scoring on a single thread.
+     */
+    private class ParallelDuplicateSetProcessor extends DuplicateSetProcessor {
+        /** Number of read ends to gather into a batch before handing it to a worker. */
+        private static final int BATCH_SIZE = 10000;
+
+        private final ExecutorService executor;
+        private final int maxPendingBatches;
+        private final Deque<Future<DuplicateIndexResults>> pending = new ArrayDeque<>();
+
+        private List<List<ReadEndsForMarkDuplicates>> batch = new ArrayList<>();
+        private List<Boolean> batchIsPairs = new ArrayList<>();
+        private List<Boolean> batchContainsPairs = new ArrayList<>();
+        private int batchSize = 0;
+
+        ParallelDuplicateSetProcessor(final int numThreads) {
+            this.executor = Executors.newFixedThreadPool(numThreads);
+            this.maxPendingBatches = numThreads * 2;
+        }
+
+        @Override
+        void addPairs(final List<ReadEndsForMarkDuplicates> list) {
+            addToBatch(list, true, true);
+        }
+
+        @Override
+        void addFragments(final List<ReadEndsForMarkDuplicates> list, final boolean containsPairs) {
+            addToBatch(list, false, containsPairs);
+        }
+
+        private void addToBatch(final List<ReadEndsForMarkDuplicates> list, final boolean isPairs, final boolean containsPairs) {
+            batch.add(new ArrayList<>(list));
+            batchIsPairs.add(isPairs);
+            batchContainsPairs.add(containsPairs);
+            batchSize += list.size();
+            if (batchSize >= BATCH_SIZE) submitBatch();
+        }
+
+        private void submitBatch() {
+            if (batch.isEmpty()) return;
+
+            final List<List<ReadEndsForMarkDuplicates>> sets = batch;
+            final List<Boolean> isPairs = batchIsPairs;
+            final List<Boolean> containsPairs = batchContainsPairs;
+            pending.add(executor.submit(() -> {
+                final DuplicateIndexResults r = new DuplicateIndexResults();
+                for (int i = 0; i < sets.size(); ++i) {
+                    if (isPairs.get(i)) markDuplicatePairs(sets.get(i), r);
+                    else markDuplicateFragments(sets.get(i), containsPairs.get(i), r);
+                }
+                return r;
+            }));
+
+            batch = new ArrayList<>();
+            batchIsPairs = new ArrayList<>();
+            batchContainsPairs = new ArrayList<>();
+            batchSize = 0;
+
+            while (pending.size() > maxPendingBatches) recordNext();
+        }
+
+        /** Waits for the oldest outstanding batch and records its results. */
+        private void recordNext() {
+            try {
+                record(pending.removeFirst().get());
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted while scoring duplicate sets.", ie);
+            } catch (final ExecutionException ee) {
+                final Throwable cause = ee.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new PicardException("Error while scoring duplicate sets.", cause);
+            }
+        }
+
+        @Override
+        void flush() {
+            submitBatch();
+            while (!pending.isEmpty()) recordNext();
+        }
+
+        @Override
+        void close() {
+            try {
+                flush();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
     // To avoid overflows or underflows when subtracting two large (positive and negative) numbers
     static int compareInteger(final int x, final int y) {
         return (x < y) ? -1 : ((x == y) ? 0 : 1);
@@ -0,0 +1,340 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk-based implementation of ReadEndsForMarkDuplicatesMap that, unlike DiskBasedReadEndsForMarkDuplicatesMap, does
+ * not need a file per reference sequence, and so does not run into open file limits on references with very many
+ * sequences.
+ * <p/>
+ * As in DiskBasedReadEndsForMarkDuplicatesMap, the reference sequence that is currently being queried (i.e. the
+ * sequence for which remove() has been most recently called) is stored in RAM.  ReadEnds put() for any other sequence
+ * are encoded and appended to a small per-sequence buffer, and when that buffer fills up it is copied as a block
+ * into a single temporary file, which is memory-mapped in fixed-size windows through one open channel.  An in-memory
+ * index records the location of every block belonging to each sequence.
+ * <p/>
+ * When remove() is called for a sequence other than the current RAM sequence, whatever is left of the current RAM
+ * sequence is encoded into that sequence's buffer, and the new sequence is decoded from its blocks and buffer into
+ * RAM.  Windows whose blocks have all been read back are reused for later blocks, so the file only grows to hold the
+ * largest number of read ends that are waiting for their mates at any one time.
+ */
+public class MemoryMappedReadEndsForMarkDuplicatesMap implements ReadEndsForMarkDuplicatesMap, Closeable {
+    /** Default size of each memory-mapped window of the file. */
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    /** Default size at which a sequence's buffer is written to the file as a block. */
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /** Default total of buffered bytes, across all sequences, at which every buffer is written to the file. */
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 32L * 1024 * 1024;
+
+    private final int windowSize;
+    private final int blockSize;
+    private final long maxBufferedBytes;
+
+    private final ReadEndsForMarkDuplicatesCodec codec;
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+
+    /** The windows of the file that have been mapped, and how many bytes in each have yet to be read back. */
+    private final List<MappedByteBuffer> windows = new ArrayList<>();
+    private final List<Integer> liveBytesPerWindow = new ArrayList<>();
+    private final Deque<Integer> freeWindows = new ArrayDeque<>();
+    private int currentWindow = -1;
+    private int currentWindowPosition = 0;
+
+    /** For each sequence not in RAM, the blocks written to the file and the bytes not yet written. */
+    private final Map<Integer, Blocks> blocksBySequence = new HashMap<>();
+    private final Map<Integer, ByteArrayOutputStream> bufferBySequence = new HashMap<>();
+    private long bufferedBytes = 0;
+
+    private final ByteArrayOutputStream encodingBuffer = new ByteArrayOutputStream();
+
+    private int sequenceIndexOfMapInRam = -1;
+    private final Map<String, ReadEndsForMarkDuplicates> mapInRam = new HashMap<>();
+
+    private int size = 0;
+
+    /**
+     * @param readEndsForMarkDuplicatesCodec used to encode read ends stored on disk
+     * @param tmpDirs                        directories in which the backing file may be created
+     */
+    public MemoryMappedReadEndsForMarkDuplicatesMap(final ReadEndsForMarkDuplicatesCodec readEndsForMarkDuplicatesCodec,
+                                                    final List<File> tmpDirs) {
+        this(readEndsForMarkDuplicatesCodec, tmpDirs, DEFAULT_WINDOW_SIZE, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    /**
+     * @param windowSize       size of each memory-mapped window of the file
+     * @param blockSize        size at which a sequence's buffer is written to the file as a block; must be well
+     *                         below windowSize
+     * @param maxBufferedBytes total of buffered bytes, across all sequences, at which every buffer is written out
+     */
+    public MemoryMappedReadEndsForMarkDuplicatesMap(final ReadEndsForMarkDuplicatesCodec readEndsForMarkDuplicatesCodec,
+                                                    final List<File> tmpDirs,
+                                                    final int windowSize,
+                                                    final int blockSize,
+                                                    final long maxBufferedBytes) {
+        this.windowSize = windowSize;
+        this.blockSize = blockSize;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.codec = readEndsForMarkDuplicatesCodec;
+        this.codec.setOutputStream(encodingBuffer);
+        try {
+            this.file = IOUtil.newTempFile("readEndsMap.", ".tmp", tmpDirs.toArray(new File[tmpDirs.size()]), IOUtil.FIVE_GBS);
+            this.file.deleteOnExit();
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.channel = randomAccessFile.getChannel();
+        } catch (final IOException ioe) {
+            throw new PicardException("Could not create temporary file for ReadEndsForMarkDuplicatesMap.", ioe);
+        }
+    }
+
+    public ReadEndsForMarkDuplicates remove(final int mateSequenceIndex, final String key) {
+        ensureSequenceLoaded(mateSequenceIndex);
+        final ReadEndsForMarkDuplicates readEnds = mapInRam.remove(key);
+        if (readEnds != null) --size;
+        return readEnds;
+    }
+
+    public void put(final int mateSequenceIndex, final String key, final ReadEndsForMarkDuplicates readEnds) {
+        if (mateSequenceIndex == sequenceIndexOfMapInRam) {
+            mapInRam.put(key, readEnds);
+        } else {
+            encode(mateSequenceIndex, key, readEnds);
+        }
+        ++size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int sizeInRam() {
+        return mapInRam.size();
+    }
+
+    /** Closes and deletes the backing file. */
+    @Override
+    public void close() throws IOException {
+        windows.clear();
+        channel.close();
+        randomAccessFile.close();
+        IOUtil.deleteFiles(file);
+    }
+
+    /** Swaps the current RAM sequence out and the requested one in, if they differ. */
+    private void ensureSequenceLoaded(final int sequenceIndex) {
+        if (sequenceIndex < 0) {
+            throw new IllegalArgumentException("Negative sequence index: " + sequenceIndex);
+        }
+        if (sequenceIndex == sequenceIndexOfMapInRam) return;
+
+        for (final Map.Entry<String, ReadEndsForMarkDuplicates> entry : mapInRam.entrySet()) {
+            encode(sequenceIndexOfMapInRam, entry.getKey(), entry.getValue());
+        }
+        mapInRam.clear();
+        sequenceIndexOfMapInRam = sequenceIndex;
+
+        final Blocks blocks = blocksBySequence.remove(sequenceIndex);
+        if (blocks != null) {
+            for (int i = 0; i < blocks.count; ++i) {
+                final int window = (int) (blocks.positions[i] >>> 32);
+                final int offset = (int) blocks.positions[i];
+                final ByteBuffer block = windows.get(window).duplicate();
+                block.limit(offset + blocks.lengths[i]).position(offset);
+                decodeInto(new ByteBufferInputStream(block));
+                release(window, blocks.lengths[i]);
+            }
+        }
+
+        final ByteArrayOutputStream buffer = bufferBySequence.remove(sequenceIndex);
+        if (buffer != null) {
+            bufferedBytes -= buffer.size();
+            decodeInto(new ByteArrayInputStream(buffer.toByteArray()));
+        }
+    }
+
+    /** Decodes every key and read ends in the stream into the RAM map. */
+    private void decodeInto(final InputStream stream) {
+        codec.setInputStream(stream);
+        final DataInputStream in = codec.getInputStream();
+        try {
+            while (stream.available() > 0) {
+                final String key = in.readUTF();
+                mapInRam.put(key, codec.decode());
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Error loading ReadEndsForMarkDuplicatesMap from disk", ioe);
+        }
+    }
+
+    /** Appends the key and read ends to the sequence's buffer, writing buffers out to the file as needed. */
+    private void encode(final int sequenceIndex, final String key, final ReadEndsForMarkDuplicates readEnds) {
+        encodingBuffer.reset();
+        try {
+            codec.getOutputStream().writeUTF(key);
+            codec.encode(readEnds);
+            codec.getOutputStream().flush();
+        } catch (final IOException ioe) {
+            throw new PicardException("Error spilling ReadEndsForMarkDuplicatesMap to disk.", ioe);
+        }
+
+        ByteArrayOutputStream buffer = bufferBySequence.get(sequenceIndex);
+        if (buffer == null) {
+            buffer = new ByteArrayOutputStream(256);
+            bufferBySequence.put(sequenceIndex, buffer);
+        }
+        buffer.write(encodingBuffer.toByteArray(), 0, encodingBuffer.size());
+        bufferedBytes += encodingBuffer.size();
+
+        if (buffer.size() >= blockSize) {
+            writeBlock(sequenceIndex, buffer);
+            bufferBySequence.remove(sequenceIndex);
+        }
+        if (bufferedBytes >= maxBufferedBytes) {
+            for (final Map.Entry<Integer, ByteArrayOutputStream> entry : bufferBySequence.entrySet()) {
+                writeBlock(entry.getKey(), entry.getValue());
+            }
+            bufferBySequence.clear();
+        }
+    }
+
+    /** Copies the buffer into the file and records where it went. */
+    private void writeBlock(final int sequenceIndex, final ByteArrayOutputStream buffer) {
+        final int length = buffer.size();
+        if (currentWindow == -1 || currentWindowPosition + length > windowSize) {
+            nextWindow();
+        }
+
+        final ByteBuffer window = windows.get(currentWindow).duplicate();
+        window.position(currentWindowPosition);
+        window.put(buffer.toByteArray(), 0, length);
+
+        Blocks blocks = blocksBySequence.get(sequenceIndex);
+        if (blocks == null) {
+            blocks = new Blocks();
+            blocksBySequence.put(sequenceIndex, blocks);
+        }
+        blocks.add(((long) currentWindow << 32) | currentWindowPosition, length);
+
+        liveBytesPerWindow.set(currentWindow, liveBytesPerWindow.get(currentWindow) + length);
+        currentWindowPosition += length;
+        bufferedBytes -= length;
+    }
+
+    /** Moves writing on to a window that has been fully read back, or to a newly mapped one. */
+    private void nextWindow() {
+        if (currentWindow != -1 && liveBytesPerWindow.get(currentWindow) == 0) {
+            // Everything written to the current window has already been read back, so just start it over
+        } else if (!freeWindows.isEmpty()) {
+            currentWindow = freeWindows.removeFirst();
+        } else {
+            try {
+                windows.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) windows.size() * windowSize, windowSize));
+            } catch (final IOException ioe) {
+                throw new PicardException("Error mapping " + file.getAbsolutePath(), ioe);
+            }
+            liveBytesPerWindow.add(0);
+            currentWindow = windows.size() - 1;
+        }
+        currentWindowPosition = 0;
+    }
+
+    /** Notes that a block has been read back, freeing its window for reuse once nothing else in it is needed. */
+    private void release(final int window, final int length) {
+        final int live = liveBytesPerWindow.get(window) - length;
+        liveBytesPerWindow.set(window, live);
+        if (live == 0 && window != currentWindow) {
+            freeWindows.addLast(window);
+        }
+    }
+
+    /** Locations (window and offset packed into a long) and lengths of the blocks for one sequence. */
+    private static class Blocks {
+        long[] positions = new long[4];
+        int[] lengths = new int[4];
+        int count = 0;
+
+        void add(final long position, final int length) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            positions[count] = position;
+            lengths[count] = length;
+            ++count;
+        }
+    }
+
+    /** Minimal InputStream over the remaining bytes of a ByteBuffer. */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (!buffer.hasRemaining()) return -1;
+            final int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.SortingCollection;
+
+import java.util.Iterator;
+
+/**
+ * ReadEndsForMarkDuplicatesSorter that keeps read ends as objects in a SortingCollection, spilling them to
+ * disk through a ReadEndsForMarkDuplicatesCodec as needed.
+ */
+public class ObjectBasedReadEndsForMarkDuplicatesSorter implements ReadEndsForMarkDuplicatesSorter {
+    private final SortingCollection<ReadEndsForMarkDuplicates> sortingCollection;
+
+    public ObjectBasedReadEndsForMarkDuplicatesSorter(final SortingCollection<ReadEndsForMarkDuplicates> sortingCollection) {
+        this.sortingCollection = sortingCollection;
+    }
+
+    @Override
+    public void add(final ReadEndsForMarkDuplicates readEnds) { sortingCollection.add(readEnds); }
+
+    @Override
+    public void doneAdding() { sortingCollection.doneAdding(); }
+
+    @Override
+    public Iterator<ReadEndsForMarkDuplicates> iterator() { return sortingCollection.iterator(); }
+
+    @Override
+    public void cleanup() { sortingCollection.cleanup(); }
+}
@@ -29,7 +29,10 @@ import htsjdk.samtools.util.ProgressLogger;
 import picard.sam.util.PhysicalLocation;
 import picard.sam.util.ReadNameParser;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Contains methods for finding optical/co-localized/sequencing duplicates.
@@ -44,6 +47,12 @@ public class OpticalDuplicateFinder extends ReadNameParser {
     public static final int DEFAULT_OPTICAL_DUPLICATE_DISTANCE = 100;
     public static final int DEFAULT_BIG_DUPLICATE_SET_SIZE = 1000;
 
+    /**
+     * Duplicate sets at least this large are searched using a spatial index rather than by comparing every pair of reads.
+     * Below this size the pairwise comparison is cheaper than building the index.
+     */
+    static final int SPATIAL_INDEX_MIN_SET_SIZE = 500;
+
     /**
      * Sets the size of a set that is big enough to log progress about.
      * Defaults to {@value OpticalDuplicateFinder#DEFAULT_BIG_DUPLICATE_SET_SIZE}
@@ -90,6 +99,15 @@ public class OpticalDuplicateFinder extends ReadNameParser {
      * @return a boolean[] of the same length as the incoming list marking which reads are optical duplicates
      */
     public boolean[] findOpticalDuplicates(final List<? extends PhysicalLocation> list, final PhysicalLocation keeper) {
+        return findOpticalDuplicates(list, keeper, null);
+    }
+
+    /**
+     * As {@link #findOpticalDuplicates(List, PhysicalLocation)}, but allows the caller to force (true) or prevent (false)
+     * the use of the spatial index. When null the choice is made based on the size of the list. Both searches produce
+     * identical results.
+     */
+    boolean[] findOpticalDuplicates(final List<? extends PhysicalLocation> list, final PhysicalLocation keeper, final Boolean spatialIndex) {
         // If there is only one or zero reads passed in, then just return an array of all false
         if (list.size() < 2) return new boolean[list.size()];
 
@@ -98,6 +116,7 @@ public class OpticalDuplicateFinder extends ReadNameParser {
         final int distance = this.opticalDuplicatePixelDistance;
 
         final PhysicalLocation actualKeeper = keeperOrNull(list, keeper);
+        final boolean useSpatialIndex = spatialIndex != null ? spatialIndex : length >= SPATIAL_INDEX_MIN_SET_SIZE;
 
         final Log log;
         final ProgressLogger progressLoggerForKeeper, progressLoggerForRest;
@@ -134,13 +153,30 @@ public class OpticalDuplicateFinder extends ReadNameParser {
         }
         if (logProgress) log.debug("Done with comparing to keeper, now the rest.");
 
-        // Now go through and do each pairwise comparison not involving the actualKeeper
+        // Now go through and compare the reads to each other, not involving the actualKeeper
+        if (useSpatialIndex) {
+            markDuplicatesUsingSpatialIndex(list, actualKeeper, distance, opticalDuplicateFlags, progressLoggerForRest);
+        } else {
+            markDuplicatesPairwise(list, actualKeeper, distance, opticalDuplicateFlags, progressLoggerForRest);
+        }
+
+        return opticalDuplicateFlags;
+    }
+
+    /**
+     * Compares every pair of reads in the list, other than the keeper, marking one read of each pair that is close
+     * enough as an optical duplicate.
+     */
+    private void markDuplicatesPairwise(final List<? extends PhysicalLocation> list, final PhysicalLocation actualKeeper,
+                                        final int distance, final boolean[] opticalDuplicateFlags,
+                                        final ProgressLogger progressLogger) {
+        final int length = list.size();
         for (int i = 0; i < length; ++i) {
             final PhysicalLocation lhs = list.get(i);
             if (lhs == actualKeeper) continue; // no comparisons to actualKeeper since those are all handled above
 
             // logging here for same reason as above
-            if (logProgress) progressLoggerForRest.record(String.format("%d", lhs.getReadGroup()), lhs.getX());
+            if (progressLogger != null) progressLogger.record(String.format("%d", lhs.getReadGroup()), lhs.getX());
 
             for (int j = i + 1; j < length; ++j) {
                 final PhysicalLocation rhs = list.get(j);
@@ -156,8 +192,106 @@ public class OpticalDuplicateFinder extends ReadNameParser {
                 }
             }
         }
+    }
 
-        return opticalDuplicateFlags;
+    /**
+     * Produces exactly the same flags as {@link #markDuplicatesPairwise}, but only compares each read to the reads in the
+     * same read group and tile that fall into the neighbouring cells of a grid whose cells are the optical duplicate
+     * distance wide. Pairs further apart than that can never be close enough, and so never change any flags. The
+     * remaining pairs are visited in the same (i, j) order as the pairwise comparison, since the outcome depends on it.
+     */
+    private void markDuplicatesUsingSpatialIndex(final List<? extends PhysicalLocation> list, final PhysicalLocation actualKeeper,
+                                                 final int distance, final boolean[] opticalDuplicateFlags,
+                                                 final ProgressLogger progressLogger) {
+        final int length = list.size();
+        final int cellSize = Math.max(distance, 1);
+
+        // Index every read with a location, other than the keeper, by read group and tile, then by grid cell. Indices
+        // are added in ascending order, so every cell holds its indices in ascending order.
+        final Map<Integer, Map<Long, IndexList>> tiles = new HashMap<>();
+        for (int i = 0; i < length; ++i) {
+            final PhysicalLocation loc = list.get(i);
+            if (loc == actualKeeper || !loc.hasLocation()) continue;
+
+            final Map<Long, IndexList> cells = tiles.computeIfAbsent(tileKey(loc), k -> new HashMap<>());
+            cells.computeIfAbsent(cellKey(Math.floorDiv(loc.getX(), cellSize), Math.floorDiv(loc.getY(), cellSize)), k -> new IndexList())
+                    .add(i);
+        }
+
+        final IndexList neighbours = new IndexList();
+        for (int i = 0; i < length; ++i) {
+            final PhysicalLocation lhs = list.get(i);
+            if (lhs == actualKeeper || !lhs.hasLocation()) continue;
+
+            // logging here for the same reason as in findOpticalDuplicates
+            if (progressLogger != null) progressLogger.record(String.format("%d", lhs.getReadGroup()), lhs.getX());
+
+            // Gather the reads after this one that are close enough to it, then visit them in list order
+            final Map<Long, IndexList> cells = tiles.get(tileKey(lhs));
+            final int cellX = Math.floorDiv(lhs.getX(), cellSize);
+            final int cellY = Math.floorDiv(lhs.getY(), cellSize);
+            neighbours.clear();
+            for (int dx = -1; dx <= 1; ++dx) {
+                for (int dy = -1; dy <= 1; ++dy) {
+                    final IndexList cell = cells.get(cellKey(cellX + dx, cellY + dy));
+                    if (cell == null) continue;
+                    for (int k = cell.firstIndexAfter(i); k < cell.size(); ++k) {
+                        final int j = cell.get(k);
+                        if (closeEnough(lhs, list.get(j), distance)) neighbours.add(j);
+                    }
+                }
+            }
+            neighbours.sort();
+
+            for (int k = 0; k < neighbours.size(); ++k) {
+                final int j = neighbours.get(k);
+                if (opticalDuplicateFlags[i] && opticalDuplicateFlags[j]) continue; // both already marked, no need to check
+
+                // As in the pairwise comparison, be careful about which of the two to now mark as a duplicate.
+                final int index = opticalDuplicateFlags[j] ? i : j;
+                opticalDuplicateFlags[index] = true;
+            }
+        }
+    }
+
+    /** Packs the read group and tile of a location into a single key. */
+    private static int tileKey(final PhysicalLocation loc) {
+        return (loc.getReadGroup() << 16) | (loc.getTile() & 0xFFFF);
+    }
+
+    /** Packs the coordinates of a grid cell into a single key. */
+    private static long cellKey(final int cellX, final int cellY) {
+        return ((long) cellX << 32) | (cellY & 0xFFFFFFFFL);
+    }
+
+    /** A minimal growable list of primitive int indices. */
+    private static class IndexList {
+        private int[] values = new int[4];
+        private int size = 0;
+
+        void add(final int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int get(final int k) { return values[k]; }
+
+        int size() { return size; }
+
+        void clear() { size = 0; }
+
+        void sort() { Arrays.sort(values, 0, size); }
+
+        /** Returns the position of the first value greater than the given one; values must be in ascending order. */
+        int firstIndexAfter(final int value) {
+            int low = 0, high = size;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (values[mid] <= value) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
     }
 
     /** Returns the keeper if it is contained within the list and has location information, otherwise null. */
@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An immutable read sequence packed at two bits per base, 32 bases per long, so that a 150 base read takes 40 bytes
+ * instead of 150 and two reads can be compared 32 bases at a time.  Bases other than A, C, G and T (no-calls, IUPAC
+ * codes, lower case) are rare, so a read containing any is additionally kept as the original bytes, along with a mask
+ * of where they are; comparisons at those positions use the original bytes and so behave exactly as comparing the
+ * byte[]s would.
+ */
+public final class PackedBases {
+    private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+    /** The low bit of each two-bit lane. */
+    private static final long LOW_BITS = 0x5555555555555555L;
+
+    private final int length;
+    private final long[] codes;
+    /** The low bit of the lane of each base other than A, C, G or T is set; null if there are none. */
+    private final long[] otherMask;
+    /** The original bases, kept only if there are bases other than A, C, G or T. */
+    private final byte[] bases;
+
+    private PackedBases(final int length, final long[] codes, final long[] otherMask, final byte[] bases) {
+        this.length = length;
+        this.codes = codes;
+        this.otherMask = otherMask;
+        this.bases = bases;
+    }
+
+    /** Packs the given bases, which are not retained unless they contain bases other than A, C, G or T. */
+    public static PackedBases pack(final byte[] bases) {
+        final long[] codes = new long[words(bases.length)];
+        long[] otherMask = null;
+        for (int i = 0; i < bases.length; ++i) {
+            final int code;
+            switch (bases[i]) {
+                case 'A': code = 0; break;
+                case 'C': code = 1; break;
+                case 'G': code = 2; break;
+                case 'T': code = 3; break;
+                default:
+                    code = 0;
+                    if (otherMask == null) otherMask = new long[codes.length];
+                    otherMask[i >> 5] |= 1L << ((i & 31) << 1);
+            }
+            codes[i >> 5] |= ((long) code) << ((i & 31) << 1);
+        }
+        return new PackedBases(bases.length, codes, otherMask, otherMask == null ? null : bases.clone());
+    }
+
+    private static int words(final int length) {
+        return (length + 31) >> 5;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /** Returns the base at the given 0-based offset. */
+    public byte baseAt(final int i) {
+        if (bases != null) return bases[i];
+        return BASES[(int) (codes[i >> 5] >>> ((i & 31) << 1)) & 3];
+    }
+
+    /**
+     * Counts the offsets in [from, to) at which this and the other sequence have different bases, stopping early once
+     * the count exceeds limit.  Both sequences must be at least to bases long.
+     *
+     * @return the number of mismatches, or some number greater than limit if there are more than limit
+     */
+    public int countMismatches(final PackedBases other, final int from, final int to, final int limit) {
+        int mismatches = 0;
+        if (from >= to) return mismatches;
+        for (int word = from >> 5; word <= (to - 1) >> 5; ++word) {
+            final long x = codes[word] ^ other.codes[word];
+            long diff = (x | (x >>> 1)) & LOW_BITS & laneMask(word, from, to);
+            if (otherMask != null || other.otherMask != null) {
+                long others = (otherMask == null ? 0 : otherMask[word]) | (other.otherMask == null ? 0 : other.otherMask[word]);
+                others &= laneMask(word, from, to);
+                diff &= ~others;
+                while (others != 0) {
+                    final int i = (word << 5) + (Long.numberOfTrailingZeros(others) >> 1);
+                    if (baseAt(i) != other.baseAt(i)) ++mismatches;
+                    others &= others - 1;
+                }
+            }
+            mismatches += Long.bitCount(diff);
+            if (mismatches > limit) return mismatches;
+        }
+        return mismatches;
+    }
+
+    /** The low bits of the lanes of the given word that fall within [from, to). */
+    private static long laneMask(final int word, final int from, final int to) {
+        final int lo = Math.max(from - (word << 5), 0);
+        final int hi = Math.min(to - (word << 5), 32);
+        final long below = hi == 32 ? -1L : (1L << (hi << 1)) - 1;
+        return below & ~((1L << (lo << 1)) - 1) & LOW_BITS;
+    }
+
+    /** Returns the bases in [from, to) as a String. */
+    public String toString(final int from, final int to) {
+        final StringBuilder builder = new StringBuilder(to - from);
+        for (int i = from; i < to; ++i) builder.append((char) baseAt(i));
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toString(0, length);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PackedBases)) return false;
+        final PackedBases that = (PackedBases) o;
+        return length == that.length && Arrays.equals(codes, that.codes) && Arrays.equals(bases, that.bases);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * length + Arrays.hashCode(codes);
+    }
+
+    /** Writes the packed form: the length, the packed words and, if present, the mask and original bases. */
+    public void write(final DataOutputStream out) throws IOException {
+        out.writeInt(length);
+        for (final long word : codes) out.writeLong(word);
+        out.writeBoolean(bases != null);
+        if (bases != null) {
+            for (final long word : otherMask) out.writeLong(word);
+            out.write(bases);
+        }
+    }
+
+    /** Reads a sequence written by {@link #write(DataOutputStream)}. */
+    public static PackedBases read(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        final long[] codes = new long[words(length)];
+        for (int i = 0; i < codes.length; ++i) codes[i] = in.readLong();
+        if (!in.readBoolean()) return new PackedBases(length, codes, null, null);
+
+        final long[] otherMask = new long[codes.length];
+        for (int i = 0; i < otherMask.length; ++i) otherMask[i] = in.readLong();
+        final byte[] bases = new byte[length];
+        in.readFully(bases);
+        return new PackedBases(length, codes, otherMask, bases);
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import picard.PicardException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * ReadEndsForMarkDuplicatesSorter that packs each read end into a fixed-width record in an off-heap buffer instead
+ * of keeping it as an object, so that holding many millions of read ends costs neither heap nor garbage collection
+ * time.  Records are sorted by merge-sorting an int[] of record numbers, written to temporary files in sorted runs
+ * whenever the buffer fills up, and read back through memory-mapped buffers in a final k-way merge.  Objects are only
+ * created for read ends as they are handed out by the iterator.
+ *
+ * The sort order is that of MarkDuplicates.ReadEndsMDComparator: library, barcodes (if used), read1 position,
+ * orientation, read2 position and then position in the input file.
+ */
+public class PackedReadEndsForMarkDuplicatesSorter implements ReadEndsForMarkDuplicatesSorter {
+    private static final Log log = Log.getInstance(PackedReadEndsForMarkDuplicatesSorter.class);
+
+    // Offsets of each field within a record.  The fields used for sorting come first.
+    private static final int LIBRARY_ID = 0;
+    private static final int ORIENTATION = 2;
+    private static final int ORIENTATION_FOR_OPTICAL_DUPLICATES = 3;
+    private static final int READ1_REFERENCE_INDEX = 4;
+    private static final int READ1_COORDINATE = 8;
+    private static final int READ2_REFERENCE_INDEX = 12;
+    private static final int READ2_COORDINATE = 16;
+    private static final int READ1_INDEX_IN_FILE = 20;
+    private static final int READ2_INDEX_IN_FILE = 28;
+    private static final int SCORE = 36;
+    private static final int READ_GROUP = 38;
+    private static final int TILE = 40;
+    private static final int X = 42;
+    private static final int Y = 46;
+    private static final int BARCODE = 50;
+    private static final int READ_ONE_BARCODE = 54;
+    private static final int READ_TWO_BARCODE = 58;
+
+    /** Width in bytes of a record without and with barcodes. */
+    private static final int RECORD_SIZE = 50;
+    private static final int RECORD_SIZE_WITH_BARCODES = 62;
+
+    /** Number of records to make room for initially; the buffer grows up to maxRecordsInRam as needed. */
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    /** Runs shorter than this are sorted by insertion sort before merging. */
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+
+    /** Number of records to write to a spill file at a time. */
+    private static final int SPILL_BATCH_SIZE = 8192;
+
+    private final boolean useBarcodes;
+    private final int recordSize;
+    private final int maxRecordsInRam;
+    private final File[] tmpDirs;
+    private final List<File> spillFiles = new ArrayList<>();
+
+    private ByteBuffer buffer;
+    private int numRecords = 0;
+    private int[] order;
+    private int[] scratch;
+    private boolean doneAdding = false;
+
+    /**
+     * @param useBarcodes     true if the read ends will be ReadEndsForMarkDuplicatesWithBarcodes
+     * @param maxRecordsInRam the number of records to hold in memory before spilling to disk
+     * @param tmpDirs         the directories in which to write spill files
+     */
+    public PackedReadEndsForMarkDuplicatesSorter(final boolean useBarcodes, final int maxRecordsInRam, final Collection<File> tmpDirs) {
+        this.useBarcodes = useBarcodes;
+        this.recordSize = getRecordSize(useBarcodes);
+        // A single run must fit in a ByteBuffer, which is indexed by int
+        this.maxRecordsInRam = Math.max(1, Math.min(maxRecordsInRam, Integer.MAX_VALUE / recordSize));
+        this.tmpDirs = tmpDirs.toArray(new File[tmpDirs.size()]);
+        this.buffer = ByteBuffer.allocateDirect(Math.min(this.maxRecordsInRam, INITIAL_CAPACITY) * recordSize);
+    }
+
+    /** Returns the number of bytes used to store each read end. */
+    public static int getRecordSize(final boolean useBarcodes) {
+        return useBarcodes ? RECORD_SIZE_WITH_BARCODES : RECORD_SIZE;
+    }
+
+    @Override
+    public void add(final ReadEndsForMarkDuplicates readEnds) {
+        if (doneAdding) throw new IllegalStateException("Cannot add read ends after calling doneAdding()");
+
+        if (numRecords == maxRecordsInRam) {
+            spill();
+        } else if ((numRecords + 1) * recordSize > buffer.capacity()) {
+            grow();
+        }
+
+        encode(readEnds, numRecords * recordSize);
+        ++numRecords;
+    }
+
+    @Override
+    public void doneAdding() {
+        if (doneAdding) return;
+        doneAdding = true;
+
+        // If anything has been spilled then spill the remainder too, so that we can let go of the buffer
+        if (!spillFiles.isEmpty()) {
+            if (numRecords > 0) spill();
+            buffer = null;
+            order = null;
+            scratch = null;
+        }
+    }
+
+    @Override
+    public Iterator<ReadEndsForMarkDuplicates> iterator() {
+        doneAdding();
+
+        final List<Run> runs = new ArrayList<>();
+        if (numRecords > 0) {
+            sort();
+            runs.add(new Run(buffer, order, numRecords, 0));
+        }
+        for (final File spillFile : spillFiles) {
+            runs.add(new Run(map(spillFile), null, (int) (spillFile.length() / recordSize), runs.size()));
+        }
+
+        return new MergingIterator(runs);
+    }
+
+    @Override
+    public void cleanup() {
+        buffer = null;
+        order = null;
+        scratch = null;
+        for (final File spillFile : spillFiles) {
+            IOUtil.deleteFiles(spillFile);
+        }
+        spillFiles.clear();
+    }
+
+    /** Doubles the size of the buffer, up to maxRecordsInRam records. */
+    private void grow() {
+        final int newCapacity = (int) Math.min((long) maxRecordsInRam, 2L * buffer.capacity() / recordSize);
+        final ByteBuffer newBuffer = ByteBuffer.allocateDirect(newCapacity * recordSize);
+        final ByteBuffer source = buffer.duplicate();
+        source.position(0).limit(numRecords * recordSize);
+        newBuffer.put(source);
+        buffer = newBuffer;
+    }
+
+    /** Sorts the records in memory and writes them, in order, to a new temporary file. */
+    private void spill() {
+        sort();
+
+        final File spillFile;
+        try {
+            spillFile = IOUtil.newTempFile("readEnds.", ".packed", tmpDirs, IOUtil.FIVE_GBS);
+        } catch (final IOException ioe) {
+            throw new PicardException("Could not create temporary file for read ends.", ioe);
+        }
+        spillFile.deleteOnExit();
+
+        try (final RandomAccessFile raf = new RandomAccessFile(spillFile, "rw")) {
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer out = ByteBuffer.allocateDirect(SPILL_BATCH_SIZE * recordSize);
+            final ByteBuffer source = buffer.duplicate();
+
+            for (int i = 0; i < numRecords; ++i) {
+                if (out.remaining() < recordSize) writeFully(channel, out);
+                final int offset = order[i] * recordSize;
+                source.limit(offset + recordSize).position(offset);
+                out.put(source);
+            }
+            writeFully(channel, out);
+        } catch (final IOException ioe) {
+            throw new PicardException("Error writing read ends to " + spillFile.getAbsolutePath(), ioe);
+        }
+
+        log.debug("Spilled " + numRecords + " read ends to " + spillFile.getAbsolutePath());
+        spillFiles.add(spillFile);
+        numRecords = 0;
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) channel.write(out);
+        out.clear();
+    }
+
+    private ByteBuffer map(final File spillFile) {
+        try (final RandomAccessFile raf = new RandomAccessFile(spillFile, "r")) {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } catch (final IOException ioe) {
+            throw new PicardException("Error mapping read ends file " + spillFile.getAbsolutePath(), ioe);
+        }
+    }
+
+    /** Sorts the in-memory records, leaving the record numbers in sorted order in order[0..numRecords). */
+    private void sort() {
+        final int n = numRecords;
+        if (order == null || order.length < n) {
+            order = new int[n];
+            scratch = new int[n];
+        }
+        for (int i = 0; i < n; ++i) order[i] = i;
+
+        for (int lo = 0; lo < n; lo += INSERTION_SORT_THRESHOLD) {
+            insertionSort(order, lo, Math.min(lo + INSERTION_SORT_THRESHOLD, n));
+        }
+
+        int[] source = order;
+        int[] destination = scratch;
+        for (int width = INSERTION_SORT_THRESHOLD; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                final int mid = Math.min(lo + width, n);
+                final int hi = Math.min(lo + 2 * width, n);
+                merge(source, destination, lo, mid, hi);
+            }
+            final int[] tmp = source;
+            source = destination;
+            destination = tmp;
+        }
+        order = source;
+        scratch = destination;
+    }
+
+    private void insertionSort(final int[] a, final int lo, final int hi) {
+        for (int i = lo + 1; i < hi; ++i) {
+            final int record = a[i];
+            int j = i - 1;
+            while (j >= lo && compareRecords(a[j], record) > 0) {
+                a[j + 1] = a[j];
+                --j;
+            }
+            a[j + 1] = record;
+        }
+    }
+
+    /** Merges the sorted ranges source[lo..mid) and source[mid..hi) into destination[lo..hi). */
+    private void merge(final int[] source, final int[] destination, final int lo, final int mid, final int hi) {
+        int i = lo, j = mid, k = lo;
+        while (i < mid && j < hi) {
+            destination[k++] = compareRecords(source[j], source[i]) < 0 ? source[j++] : source[i++];
+        }
+        while (i < mid) destination[k++] = source[i++];
+        while (j < hi) destination[k++] = source[j++];
+    }
+
+    private int compareRecords(final int lhs, final int rhs) {
+        return compare(buffer, lhs * recordSize, buffer, rhs * recordSize);
+    }
+
+    /** Compares two packed records in the same order as MarkDuplicates.ReadEndsMDComparator. */
+    private int compare(final ByteBuffer lhs, final int lhsOffset, final ByteBuffer rhs, final int rhsOffset) {
+        int diff = Short.compare(lhs.getShort(lhsOffset + LIBRARY_ID), rhs.getShort(rhsOffset + LIBRARY_ID));
+        if (useBarcodes) {
+            if (diff == 0) diff = Integer.compare(lhs.getInt(lhsOffset + BARCODE), rhs.getInt(rhsOffset + BARCODE));
+            if (diff == 0) diff = Integer.compare(lhs.getInt(lhsOffset + READ_ONE_BARCODE), rhs.getInt(rhsOffset + READ_ONE_BARCODE));
+            if (diff == 0) diff = Integer.compare(lhs.getInt(lhsOffset + READ_TWO_BARCODE), rhs.getInt(rhsOffset + READ_TWO_BARCODE));
+        }
+        if (diff == 0) diff = Integer.compare(lhs.getInt(lhsOffset + READ1_REFERENCE_INDEX), rhs.getInt(rhsOffset + READ1_REFERENCE_INDEX));
+        if (diff == 0) diff = Integer.compare(lhs.getInt(lhsOffset + READ1_COORDINATE), rhs.getInt(rhsOffset + READ1_COORDINATE));
+        if (diff == 0) diff = Byte.compare(lhs.get(lhsOffset + ORIENTATION), rhs.get(rhsOffset + ORIENTATION));
+        if (diff == 0) diff = Integer.compare(lhs.getInt(lhsOffset + READ2_REFERENCE_INDEX), rhs.getInt(rhsOffset + READ2_REFERENCE_INDEX));
+        if (diff == 0) diff = Integer.compare(lhs.getInt(lhsOffset + READ2_COORDINATE), rhs.getInt(rhsOffset + READ2_COORDINATE));
+        if (diff == 0) diff = Long.compare(lhs.getLong(lhsOffset + READ1_INDEX_IN_FILE), rhs.getLong(rhsOffset + READ1_INDEX_IN_FILE));
+        if (diff == 0) diff = Long.compare(lhs.getLong(lhsOffset + READ2_INDEX_IN_FILE), rhs.getLong(rhsOffset + READ2_INDEX_IN_FILE));
+        return diff;
+    }
+
+    private void encode(final ReadEndsForMarkDuplicates read, final int offset) {
+        buffer.putShort(offset + LIBRARY_ID, read.libraryId);
+        buffer.put(offset + ORIENTATION, read.orientation);
+        buffer.put(offset + ORIENTATION_FOR_OPTICAL_DUPLICATES, read.orientationForOpticalDuplicates);
+        buffer.putInt(offset + READ1_REFERENCE_INDEX, read.read1ReferenceIndex);
+        buffer.putInt(offset + READ1_COORDINATE, read.read1Coordinate);
+        buffer.putInt(offset + READ2_REFERENCE_INDEX, read.read2ReferenceIndex);
+        buffer.putInt(offset + READ2_COORDINATE, read.read2Coordinate);
+        buffer.putLong(offset + READ1_INDEX_IN_FILE, read.read1IndexInFile);
+        buffer.putLong(offset + READ2_INDEX_IN_FILE, read.read2IndexInFile);
+        buffer.putShort(offset + SCORE, read.score);
+        buffer.putShort(offset + READ_GROUP, read.readGroup);
+        buffer.putShort(offset + TILE, read.tile);
+        buffer.putInt(offset + X, read.x);
+        buffer.putInt(offset + Y, read.y);
+
+        if (useBarcodes) {
+            if (!(read instanceof ReadEndsForMarkDuplicatesWithBarcodes)) {
+                throw new PicardException("Read was not a ReadEndsForMarkDuplicatesWithBarcodes");
+            }
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) read;
+            buffer.putInt(offset + BARCODE, withBarcodes.barcode);
+            buffer.putInt(offset + READ_ONE_BARCODE, withBarcodes.readOneBarcode);
+            buffer.putInt(offset + READ_TWO_BARCODE, withBarcodes.readTwoBarcode);
+        }
+    }
+
+    private ReadEndsForMarkDuplicates decode(final ByteBuffer source, final int offset) {
+        final ReadEndsForMarkDuplicates read;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = new ReadEndsForMarkDuplicatesWithBarcodes();
+            withBarcodes.barcode = source.getInt(offset + BARCODE);
+            withBarcodes.readOneBarcode = source.getInt(offset + READ_ONE_BARCODE);
+            withBarcodes.readTwoBarcode = source.getInt(offset + READ_TWO_BARCODE);
+            read = withBarcodes;
+        } else {
+            read = new ReadEndsForMarkDuplicates();
+        }
+
+        read.libraryId = source.getShort(offset + LIBRARY_ID);
+        read.orientation = source.get(offset + ORIENTATION);
+        read.orientationForOpticalDuplicates = source.get(offset + ORIENTATION_FOR_OPTICAL_DUPLICATES);
+        read.read1ReferenceIndex = source.getInt(offset + READ1_REFERENCE_INDEX);
+        read.read1Coordinate = source.getInt(offset + READ1_COORDINATE);
+        read.read2ReferenceIndex = source.getInt(offset + READ2_REFERENCE_INDEX);
+        read.read2Coordinate = source.getInt(offset + READ2_COORDINATE);
+        read.read1IndexInFile = source.getLong(offset + READ1_INDEX_IN_FILE);
+        read.read2IndexInFile = source.getLong(offset + READ2_INDEX_IN_FILE);
+        read.score = source.getShort(offset + SCORE);
+        read.readGroup = source.getShort(offset + READ_GROUP);
+        read.tile = source.getShort(offset + TILE);
+        read.x = source.getInt(offset + X);
+        read.y = source.getInt(offset + Y);
+        return read;
+    }
+
+    /** A sorted sequence of records, either in memory (ordered by record numbers) or in a mapped spill file. */
+    private class Run {
+        final ByteBuffer records;
+        final int[] recordOrder;
+        final int numRecords;
+        final int runIndex;
+        int position = 0;
+
+        Run(final ByteBuffer records, final int[] recordOrder, final int numRecords, final int runIndex) {
+            this.records = records;
+            this.recordOrder = recordOrder;
+            this.numRecords = numRecords;
+            this.runIndex = runIndex;
+        }
+
+        boolean hasNext() { return position < numRecords; }
+
+        int offset() { return (recordOrder == null ? position : recordOrder[position]) * recordSize; }
+    }
+
+    /** Merges the runs into a single sorted iteration, decoding each record into a new object as it goes. */
+    private class MergingIterator implements Iterator<ReadEndsForMarkDuplicates> {
+        private final PriorityQueue<Run> queue;
+
+        MergingIterator(final List<Run> runs) {
+            this.queue = new PriorityQueue<>(Math.max(1, runs.size()), (lhs, rhs) -> {
+                final int diff = compare(lhs.records, lhs.offset(), rhs.records, rhs.offset());
+                return diff != 0 ? diff : Integer.compare(lhs.runIndex, rhs.runIndex);
+            });
+            for (final Run run : runs) {
+                if (run.hasNext()) queue.add(run);
+            }
+        }
+
+        @Override
+        public boolean hasNext() { return !queue.isEmpty(); }
+
+        @Override
+        public ReadEndsForMarkDuplicates next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final Run run = queue.poll();
+            final ReadEndsForMarkDuplicates read = decode(run.records, run.offset());
+            ++run.position;
+            if (run.hasNext()) queue.add(run);
+            return read;
+        }
+    }
+}
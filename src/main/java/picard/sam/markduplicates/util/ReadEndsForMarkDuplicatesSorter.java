@@ -0,0 +1,40 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+/**
+ * Interface for collecting ReadEndsForMarkDuplicates objects and then iterating over them in sorted order.
+ * An implementation may spill to disk to reduce memory footprint, and the objects returned while iterating
+ * may not be the same objects that were added.
+ */
+public interface ReadEndsForMarkDuplicatesSorter extends Iterable<ReadEndsForMarkDuplicates> {
+    /** Adds a read end.  The implementation may copy the read end, so it may be modified after this returns. */
+    void add(ReadEndsForMarkDuplicates readEnds);
+
+    /** Indicates that no more read ends will be added, so that any memory held for adding may be freed. */
+    void doneAdding();
+
+    /** Deletes any temporary files and releases any memory held. */
+    void cleanup();
+}
@@ -34,16 +34,17 @@ import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Wrapper around a CloseableIterator that reads in a separate thread, for cases in which that might be
- * efficient.
+ * efficient.  The reader thread puts an end-of-stream marker on the queue when it is done, so that the
+ * consumer is woken as soon as the input is exhausted.
  */
 public class AsyncIterator<T> implements CloseableIterator<T> {
     private static volatile int threadsCreated = 0; // Just used for thread naming.
     public static final int DEFAULT_QUEUE_SIZE = 2000;
+    private static final Object END_OF_STREAM = new Object();
 
     private final AtomicBoolean isClosed = new AtomicBoolean(false);
-    private final BlockingQueue<T> queue;
+    private final BlockingQueue<Object> queue;
     private final Thread reader;
-    private final ReaderRunnable readerRunnable;
     private final AtomicReference<Throwable> ex = new AtomicReference<Throwable>(null);
     private T theNext = null;
     private final CloseableIterator<T> underlyingIterator;
@@ -53,9 +54,8 @@ public class AsyncIterator<T> implements CloseableIterator<T> {
                             final int queueSize,
                             final String threadNamePrefix) {
         this.underlyingIterator = underlyingIterator;
-        this.queue = new ArrayBlockingQueue<T>(queueSize);
-        this.readerRunnable = new ReaderRunnable();
-        this.reader = new Thread(readerRunnable, threadNamePrefix + threadsCreated++);
+        this.queue = new ArrayBlockingQueue<Object>(queueSize);
+        this.reader = new Thread(new ReaderRunnable(), threadNamePrefix + threadsCreated++);
         this.reader.setDaemon(true);
         this.reader.start();
         getNext();
@@ -65,18 +65,15 @@ public class AsyncIterator<T> implements CloseableIterator<T> {
     /**
      * Set theNext to the next item to be returned, or null if there are no more items.
      */
+    @SuppressWarnings("unchecked")
     private void getNext() {
         assertOpen();
 
         checkAndRethrow();
         try {
-            theNext = null;
-            while (!this.queue.isEmpty() || !this.readerRunnable.isDone()) {
-                theNext = this.queue.poll(5, TimeUnit.SECONDS);
-                checkAndRethrow();
-                if (theNext != null) break;
-            }
-        } catch (InterruptedException ie) { throw new RuntimeException("Interrupted queueing item for writing.", ie); }
+            final Object item = this.queue.take();
+            theNext = item == END_OF_STREAM ? null : (T) item;
+        } catch (InterruptedException ie) { throw new RuntimeException("Interrupted waiting on reader thread.", ie); }
         checkAndRethrow();
     }
 
@@ -133,14 +130,17 @@ public class AsyncIterator<T> implements CloseableIterator<T> {
         }
     }
 
+    /** Puts the item on the queue, waiting for space unless close() has been called. */
+    private void put(final Object item) throws InterruptedException {
+        while (!isClosed.get() && !queue.offer(item, 2, TimeUnit.SECONDS)) {
+        }
+    }
+
     /**
-     * Small Runnable implementation that simply reads from underlying iterator and stores on the blocking queue.
+     * Small Runnable implementation that simply reads from underlying iterator and stores on the blocking queue,
+     * followed by the end-of-stream marker.
      */
     private class ReaderRunnable implements Runnable {
-        private final AtomicBoolean readerDone = new AtomicBoolean(false);
-
-        public boolean isDone() { return readerDone.get(); }
-
         public void run() {
             try {
                 boolean isEof = false;
@@ -149,10 +149,7 @@ public class AsyncIterator<T> implements CloseableIterator<T> {
                         if (!underlyingIterator.hasNext()) {
                             isEof = true;
                         } else {
-                            final T item = underlyingIterator.next();
-                            // Keep trying to put item on the queue unless close() has been called.
-                            while (!isClosed.get() && !queue.offer(item, 2, TimeUnit.SECONDS)) {
-                            }
+                            put(underlyingIterator.next());
                         }
                     }
                     catch (InterruptedException ie) {
@@ -163,7 +160,17 @@ public class AsyncIterator<T> implements CloseableIterator<T> {
             catch (Throwable t) {
                 ex.compareAndSet(null, t);
             } finally {
-                readerDone.set(true);
+                // Also sent after an exception, so that the consumer wakes up and rethrows it.
+                boolean isSent = false;
+                while (!isSent) {
+                    try {
+                        put(END_OF_STREAM);
+                        isSent = true;
+                    }
+                    catch (InterruptedException ie) {
+                        /* Do Nothing */
+                    }
+                }
             }
         }
     }
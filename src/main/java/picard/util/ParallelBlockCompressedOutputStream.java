@@ -0,0 +1,341 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An OutputStream that accepts BGZF written at compression level 0 (e.g. by a {@link BlockCompressedOutputStream}
+ * created with level 0) and writes the same blocks recompressed at the requested level, deflating the blocks on a
+ * pool of threads and writing them to the underlying stream in their original order.
+ *
+ * Each block is deflated exactly as {@link BlockCompressedOutputStream} would have deflated it, and the block
+ * boundaries are those chosen by the level 0 writer, so the bytes written are identical to writing with a
+ * {@link BlockCompressedOutputStream} at the requested level on a single thread.  Empty blocks (i.e. the BGZF
+ * terminator) are passed through as they are.
+ *
+ * A {@link BlockListener} may be given to learn where each block was written, e.g. in order to index the output.
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+    private static final AtomicInteger streamsCreated = new AtomicInteger(0); // Just used for thread naming.
+
+    /** Number of blocks that may be queued for compression per thread before the writer waits. */
+    private static final int BLOCKS_IN_FLIGHT_PER_THREAD = 4;
+
+    private static final int COMPRESSED_BUFFER_SIZE =
+            BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+
+    private final OutputStream out;
+    private final int compressionLevel;
+    private final ExecutorService executor;
+    private final int maxBlocksInFlight;
+    private final BlockListener listener;
+    private final Deque<Future<CompressedBlock>> blocksInFlight = new ArrayDeque<Future<CompressedBlock>>();
+
+    /** One compressor per worker thread; all are kept so that their deflaters can be released on close. */
+    private final Queue<BlockCompressor> compressors = new ConcurrentLinkedQueue<BlockCompressor>();
+    private final ThreadLocal<BlockCompressor> compressor = new ThreadLocal<BlockCompressor>() {
+        @Override
+        protected BlockCompressor initialValue() {
+            final BlockCompressor compressor = new BlockCompressor();
+            compressors.add(compressor);
+            return compressor;
+        }
+    };
+
+    /** The level 0 block currently being received. */
+    private final byte[] block = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+    private int blockBytes = 0;
+    private int blockSize = -1;
+
+    /** The address of the next block in the level 0 input and in the recompressed output. */
+    private long sourceAddress = 0;
+    private long address = 0;
+
+    private boolean closed = false;
+
+    /**
+     * Is told about each block once it has been written to the underlying stream.  It is called in the order the
+     * blocks are written, on the thread writing to this stream.
+     */
+    public interface BlockListener {
+        /**
+         * @param sourceAddress the address of the block in the level 0 BGZF written to this stream
+         * @param address the address of the block in the recompressed output
+         * @param blockSize the size of the block in the recompressed output
+         * @param uncompressed the uncompressed contents of the block, in the first uncompressedSize bytes
+         * @param uncompressedSize the number of bytes of data in the block, which is 0 for the BGZF terminator
+         */
+        void blockWritten(long sourceAddress, long address, int blockSize, byte[] uncompressed, int uncompressedSize);
+    }
+
+    /**
+     * @param out the stream to which the recompressed BGZF is written; it is closed when this stream is closed
+     * @param compressionLevel the level at which to deflate each block
+     * @param threads the number of threads with which to deflate blocks
+     */
+    public ParallelBlockCompressedOutputStream(final OutputStream out, final int compressionLevel, final int threads) {
+        this(out, compressionLevel, threads, null);
+    }
+
+    /**
+     * @param out the stream to which the recompressed BGZF is written; it is closed when this stream is closed
+     * @param compressionLevel the level at which to deflate each block
+     * @param threads the number of threads with which to deflate blocks
+     * @param listener told about each block as it is written, or null
+     */
+    public ParallelBlockCompressedOutputStream(final OutputStream out, final int compressionLevel, final int threads,
+                                               final BlockListener listener) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        if (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+        }
+        this.out = out;
+        this.compressionLevel = compressionLevel;
+        this.maxBlocksInFlight = threads * BLOCKS_IN_FLIGHT_PER_THREAD;
+        this.listener = listener;
+
+        final String threadNamePrefix = "ParallelBlockCompressedOutputStream-" + streamsCreated.getAndIncrement() + "-";
+        final AtomicInteger threadsCreated = new AtomicInteger(0);
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, threadNamePrefix + threadsCreated.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] bytes, int offset, int length) throws IOException {
+        assertOpen();
+        while (length > 0) {
+            final int needed = (blockSize < 0 ? BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH : blockSize) - blockBytes;
+            final int copied = Math.min(needed, length);
+            System.arraycopy(bytes, offset, block, blockBytes, copied);
+            blockBytes += copied;
+            offset += copied;
+            length -= copied;
+
+            if (blockSize < 0 && blockBytes == BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH) {
+                blockSize = readBlockSize();
+            }
+            if (blockBytes == blockSize) {
+                submitBlock();
+                blockBytes = 0;
+                blockSize = -1;
+            }
+        }
+    }
+
+    /** Writes all of the blocks received so far and flushes the underlying stream. */
+    @Override
+    public void flush() throws IOException {
+        assertOpen();
+        writeBlocks(0);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        try {
+            if (blockBytes != 0) throw new IOException("Stream closed in the middle of a BGZF block.");
+            writeBlocks(0);
+            out.close();
+        } finally {
+            closed = true;
+            executor.shutdownNow();
+            for (final BlockCompressor compressor : compressors) compressor.end();
+        }
+    }
+
+    /** Validates the header of the block being received and returns the total size of the block. */
+    private int readBlockSize() throws IOException {
+        final byte[] preamble = BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE;
+        for (int i = 0; i < preamble.length; ++i) {
+            if (block[i] != preamble[i]) throw new IOException("Data written is not BGZF.");
+        }
+        final int size = readUnsignedShort(block, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+        if (size < BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH) {
+            throw new IOException("Invalid BGZF block size: " + size);
+        }
+        return size;
+    }
+
+    /** Queues the block just received for compression, first writing blocks if too many are in flight. */
+    private void submitBlock() throws IOException {
+        final int footerOffset = blockSize - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        final int uncompressedSize = readInt(block, footerOffset + 4);
+
+        final long blockSourceAddress = sourceAddress;
+        sourceAddress += blockSize;
+
+        writeBlocks(maxBlocksInFlight - 1);
+        if (uncompressedSize == 0) {
+            final byte[] emptyBlock = new byte[blockSize];
+            System.arraycopy(block, 0, emptyBlock, 0, blockSize);
+            blocksInFlight.add(CompletableFuture.completedFuture(new CompressedBlock(blockSourceAddress, emptyBlock, null, 0)));
+        } else {
+            final byte[] deflated = new byte[footerOffset - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+            System.arraycopy(block, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, deflated, 0, deflated.length);
+            final int crc = readInt(block, footerOffset);
+            blocksInFlight.add(executor.submit(new Callable<CompressedBlock>() {
+                @Override
+                public CompressedBlock call() throws DataFormatException {
+                    return compressor.get().recompress(blockSourceAddress, deflated, uncompressedSize, crc);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Writes blocks in order until at most maxRemaining remain in flight, and then also writes any further
+     * blocks whose compression has already finished.
+     */
+    private void writeBlocks(final int maxRemaining) throws IOException {
+        while (!blocksInFlight.isEmpty() && (blocksInFlight.size() > maxRemaining || blocksInFlight.peek().isDone())) {
+            try {
+                final CompressedBlock compressedBlock = blocksInFlight.poll().get();
+                out.write(compressedBlock.block);
+                if (listener != null) {
+                    listener.blockWritten(compressedBlock.sourceAddress, address, compressedBlock.block.length,
+                            compressedBlock.uncompressed, compressedBlock.uncompressedSize);
+                }
+                address += compressedBlock.block.length;
+            } catch (final InterruptedException e) {
+                throw new IOException("Interrupted waiting for a block to be compressed.", e);
+            } catch (final ExecutionException e) {
+                throw new IOException("Exception compressing BGZF block.", e.getCause());
+            }
+        }
+    }
+
+    private void assertOpen() throws IOException {
+        if (closed) throw new IOException("Stream is closed.");
+    }
+
+    private static int readUnsignedShort(final byte[] buffer, final int offset) {
+        return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int readInt(final byte[] buffer, final int offset) {
+        return readUnsignedShort(buffer, offset) | (readUnsignedShort(buffer, offset + 2) << 16);
+    }
+
+    private static void writeShort(final byte[] buffer, final int offset, final int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void writeInt(final byte[] buffer, final int offset, final int value) {
+        writeShort(buffer, offset, value);
+        writeShort(buffer, offset + 2, value >> 16);
+    }
+
+    /** A recompressed block, along with its uncompressed contents if there is a listener to be told about them. */
+    private static class CompressedBlock {
+        final long sourceAddress;
+        final byte[] block;
+        final byte[] uncompressed;
+        final int uncompressedSize;
+
+        CompressedBlock(final long sourceAddress, final byte[] block, final byte[] uncompressed, final int uncompressedSize) {
+            this.sourceAddress = sourceAddress;
+            this.block = block;
+            this.uncompressed = uncompressed;
+            this.uncompressedSize = uncompressedSize;
+        }
+    }
+
+    /** The per-thread state needed to inflate a level 0 block and deflate it as BlockCompressedOutputStream does. */
+    private class BlockCompressor {
+        private final Inflater inflater = new Inflater(true);
+        private final Deflater deflater = BlockCompressedOutputStream.getDefaultDeflaterFactory().makeDeflater(compressionLevel, true);
+        private final Deflater noCompressionDeflater = BlockCompressedOutputStream.getDefaultDeflaterFactory().makeDeflater(Deflater.NO_COMPRESSION, true);
+        private final byte[] uncompressed = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+        private final byte[] compressed = new byte[COMPRESSED_BUFFER_SIZE];
+
+        /** Returns the complete BGZF block holding the given data deflated at the compression level of the stream. */
+        CompressedBlock recompress(final long sourceAddress, final byte[] deflated, final int uncompressedSize, final int crc)
+                throws DataFormatException {
+            inflater.reset();
+            inflater.setInput(deflated);
+            if (inflater.inflate(uncompressed, 0, uncompressedSize) != uncompressedSize || !inflater.finished()) {
+                throw new DataFormatException("BGZF block does not inflate to its recorded size of " + uncompressedSize);
+            }
+
+            deflater.reset();
+            deflater.setInput(uncompressed, 0, uncompressedSize);
+            deflater.finish();
+            int compressedSize = deflater.deflate(compressed, 0, compressed.length);
+            if (!deflater.finished()) {
+                noCompressionDeflater.reset();
+                noCompressionDeflater.setInput(uncompressed, 0, uncompressedSize);
+                noCompressionDeflater.finish();
+                compressedSize = noCompressionDeflater.deflate(compressed, 0, compressed.length);
+                if (!noCompressionDeflater.finished()) throw new IllegalStateException("Block does not fit in a BGZF block.");
+            }
+
+            final int totalSize = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + compressedSize + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+            final byte[] block = new byte[totalSize];
+            final byte[] preamble = BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE;
+            System.arraycopy(preamble, 0, block, 0, preamble.length);
+            writeShort(block, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET, totalSize - 1);
+            System.arraycopy(compressed, 0, block, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, compressedSize);
+            writeInt(block, totalSize - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH, crc);
+            writeInt(block, totalSize - 4, uncompressedSize);
+            return new CompressedBlock(sourceAddress, block,
+                    listener == null ? null : Arrays.copyOf(uncompressed, uncompressedSize), uncompressedSize);
+        }
+
+        void end() {
+            inflater.end();
+            deflater.end();
+            noCompressionDeflater.end();
+        }
+    }
+}
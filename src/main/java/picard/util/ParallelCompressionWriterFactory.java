@@ -0,0 +1,504 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexer;
+import htsjdk.samtools.BAMRecord;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.BamFileIoUtils;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileSource;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordFactory;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.cram.build.CramIO;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.Md5CalculatingOutputStream;
+import htsjdk.samtools.util.ProgressLoggerInterface;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.IndexCreator;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFHeader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Creates the BAM and block compressed VCF writers used by Picard tools, deflating their BGZF blocks on several
+ * threads when more than one compression thread is requested.
+ *
+ * With one compression thread the writers are made exactly as htsjdk makes them.  With more, the htsjdk writer is
+ * given a stream that block compresses at level 0, and a {@link ParallelBlockCompressedOutputStream} recompresses
+ * those blocks at the requested level, so the output is byte for byte the same as with a single thread.  htsjdk
+ * cannot index a stream as it is written, so the BAM or tabix index is built here from the positions of the blocks
+ * in the recompressed output, and is also the same as with a single thread.  SAM, CRAM, BCF and uncompressed VCF
+ * outputs are always written by htsjdk directly.
+ */
+public class ParallelCompressionWriterFactory {
+    private static final Log log = Log.getInstance(ParallelCompressionWriterFactory.class);
+
+    private static int defaultCompressionThreads = 1;
+    private static boolean defaultCreateIndex = Defaults.CREATE_INDEX;
+    private static boolean defaultCreateMd5File = Defaults.CREATE_MD5;
+
+    private final SAMFileWriterFactory samFileWriterFactory;
+    private int compressionThreads = defaultCompressionThreads;
+    private boolean createIndex = defaultCreateIndex;
+    private boolean createMd5File = defaultCreateMd5File;
+
+    /** Creates a factory whose SAM writers are otherwise configured as by a default SAMFileWriterFactory. */
+    public ParallelCompressionWriterFactory() {
+        this(new SAMFileWriterFactory());
+    }
+
+    /**
+     * Creates a factory whose SAM writers are otherwise configured as by the given SAMFileWriterFactory, e.g. for
+     * asynchronous IO or the maximum records in RAM.  The index and MD5 settings of this factory are applied to it.
+     */
+    public ParallelCompressionWriterFactory(final SAMFileWriterFactory samFileWriterFactory) {
+        this.samFileWriterFactory = samFileWriterFactory;
+        samFileWriterFactory.setCreateIndex(createIndex);
+        samFileWriterFactory.setCreateMd5File(createMd5File);
+    }
+
+    /** Sets the number of compression threads used by factories created after this call. */
+    public static void setDefaultCompressionThreads(final int compressionThreads) {
+        if (compressionThreads < 1) throw new IllegalArgumentException("compressionThreads must be at least 1: " + compressionThreads);
+        defaultCompressionThreads = compressionThreads;
+    }
+
+    public static int getDefaultCompressionThreads() {
+        return defaultCompressionThreads;
+    }
+
+    /** Sets whether factories created after this call index coordinate sorted BAM files, as SAMFileWriterFactory.setDefaultCreateIndexWhileWriting does. */
+    public static void setDefaultCreateIndex(final boolean createIndex) {
+        defaultCreateIndex = createIndex;
+    }
+
+    /** Sets whether factories created after this call write an MD5 file for each BAM file, as SAMFileWriterFactory.setDefaultCreateMd5File does. */
+    public static void setDefaultCreateMd5File(final boolean createMd5File) {
+        defaultCreateMd5File = createMd5File;
+    }
+
+    public ParallelCompressionWriterFactory setCompressionThreads(final int compressionThreads) {
+        if (compressionThreads < 1) throw new IllegalArgumentException("compressionThreads must be at least 1: " + compressionThreads);
+        this.compressionThreads = compressionThreads;
+        return this;
+    }
+
+    /** Sets whether to index coordinate sorted BAM files and block compressed VCF files. */
+    public ParallelCompressionWriterFactory setCreateIndex(final boolean createIndex) {
+        this.createIndex = createIndex;
+        samFileWriterFactory.setCreateIndex(createIndex);
+        return this;
+    }
+
+    /** Sets whether to write an MD5 file alongside each BAM file. */
+    public ParallelCompressionWriterFactory setCreateMd5File(final boolean createMd5File) {
+        this.createMd5File = createMd5File;
+        samFileWriterFactory.setCreateMd5File(createMd5File);
+        return this;
+    }
+
+    /** The equivalent of SAMFileWriterFactory.makeSAMOrBAMWriter: writes SAM if the file name ends in .sam, otherwise BAM. */
+    public SAMFileWriter makeSAMOrBAMWriter(final SAMFileHeader header, final boolean presorted, final File output) {
+        if (compressionThreads == 1 || output.getName().endsWith(IOUtil.SAM_FILE_EXTENSION)) {
+            return samFileWriterFactory.makeSAMOrBAMWriter(header, presorted, output);
+        }
+        return makeBAMWriter(header, presorted, output);
+    }
+
+    /** The equivalent of SAMFileWriterFactory.makeWriter: writes SAM, CRAM or BAM according to the file name. */
+    public SAMFileWriter makeWriter(final SAMFileHeader header, final boolean presorted, final File output, final File referenceFasta) {
+        if (compressionThreads == 1 || output.getName().endsWith(IOUtil.SAM_FILE_EXTENSION) ||
+                output.getName().endsWith(CramIO.CRAM_FILE_EXTENSION)) {
+            return samFileWriterFactory.makeWriter(header, presorted, output, referenceFasta);
+        }
+        return makeBAMWriter(header, presorted, output);
+    }
+
+    /**
+     * Builds a writer for the given VCF, BCF or block compressed VCF file with the given builder, whose other options
+     * are kept.  The output file and reference dictionary must not already be set on the builder.
+     */
+    public VariantContextWriter makeVariantContextWriter(final VariantContextWriterBuilder builder, final File output,
+                                                         final SAMSequenceDictionary referenceDictionary) {
+        builder.setReferenceDictionary(referenceDictionary);
+        if (compressionThreads == 1 || !AbstractFeatureReader.hasBlockCompressedExtension(output)) {
+            return builder.setOutputFile(output).build();
+        }
+
+        // Index as VariantContextWriterBuilder would, but with positions translated to the recompressed output
+        final VcfIndexingListener indexer = !createIndex ? null : new VcfIndexingListener(referenceDictionary == null ?
+                new TabixIndexCreator(TabixFormat.VCF) : new TabixIndexCreator(referenceDictionary, TabixFormat.VCF));
+        final BlockCompressedOutputStream levelZeroOut = new BlockCompressedOutputStream(
+                new ParallelBlockCompressedOutputStream(openForWriting(output),
+                        BlockCompressedOutputStream.getDefaultCompressionLevel(), compressionThreads, indexer),
+                null, 0);
+        final VariantContextWriter writer = builder.unsetOption(Options.INDEX_ON_THE_FLY)
+                .setOutputVCFStream(levelZeroOut)
+                .build();
+        return indexer == null ? writer : new IndexingVariantContextWriter(writer, levelZeroOut, indexer, output);
+    }
+
+    private SAMFileWriter makeBAMWriter(final SAMFileHeader header, final boolean presorted, final File output) {
+        final boolean indexing = createIndex && header.getSortOrder() == SAMFileHeader.SortOrder.coordinate;
+        if (createIndex && !indexing) {
+            log.warn("Cannot create index for BAM because output is not coordinate sorted: " + output.getAbsolutePath());
+        }
+
+        OutputStream os = openForWriting(output);
+        if (createMd5File) os = new Md5CalculatingOutputStream(os, new File(output.getAbsolutePath() + ".md5"));
+        final BamIndexingListener indexer = indexing ? new BamIndexingListener(header, bamIndexFile(output)) : null;
+        final OutputStream recompressor = new ParallelBlockCompressedOutputStream(os,
+                samFileWriterFactory.getCompressionLevel(), compressionThreads, indexer);
+        final SAMFileWriter writer = samFileWriterFactory.clone()
+                .setCompressionLevel(0)
+                .setCreateIndex(false)
+                .setCreateMd5File(false)
+                .makeBAMWriter(header, presorted, recompressor);
+        return indexer == null ? writer : new IndexingSAMFileWriter(writer, indexer);
+    }
+
+    private static OutputStream openForWriting(final File output) {
+        try {
+            return IOUtil.maybeBufferOutputStream(new FileOutputStream(output, false));
+        } catch (final FileNotFoundException e) {
+            throw new RuntimeIOException("Error opening file: " + output.getAbsolutePath(), e);
+        }
+    }
+
+    /** Returns the file htsjdk would index a BAM into, i.e. with .bam replaced by .bai. */
+    static File bamIndexFile(final File bam) {
+        final String path = bam.getAbsolutePath();
+        final String base = path.endsWith(BamFileIoUtils.BAM_FILE_EXTENSION) ? path.substring(0, path.lastIndexOf('.')) : path;
+        return new File(base + BAMIndex.BAMIndexSuffix);
+    }
+
+    /**
+     * Builds a BAM index from the recompressed blocks as they are written, decoding the records from the blocks and
+     * giving the indexer the same positions that BAMFileWriter would have given it.
+     */
+    private static class BamIndexingListener implements ParallelBlockCompressedOutputStream.BlockListener {
+        private final BAMIndexer indexer;
+        private final BAMRecordCodec codec;
+
+        /** Bytes written that have not been parsed yet, and the blocks in which they were written. */
+        private byte[] buffer = new byte[2 * BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+        private int bufferLength = 0;
+        private final List<BufferedBlock> blocks = new ArrayList<BufferedBlock>();
+        private boolean headerParsed = false;
+
+        BamIndexingListener(final SAMFileHeader header, final File indexFile) {
+            this.indexer = new BAMIndexer(indexFile, header);
+            this.codec = new BAMRecordCodec(header, new SAMRecordFactory() {
+                @Override
+                public SAMRecord createSAMRecord(final SAMFileHeader header) {
+                    return new SAMRecord(header);
+                }
+
+                @Override
+                public BAMRecord createBAMRecord(final SAMFileHeader header, final int referenceSequenceIndex, final int alignmentStart,
+                                                 final short readNameLength, final short mappingQuality, final int indexingBin,
+                                                 final int cigarLen, final int flags, final int readLen, final int mateReferenceSequenceIndex,
+                                                 final int mateAlignmentStart, final int insertSize, final byte[] variableLengthBlock) {
+                    return new PositionedBAMRecord(header, referenceSequenceIndex, alignmentStart, readNameLength, mappingQuality,
+                            indexingBin, cigarLen, flags, readLen, mateReferenceSequenceIndex, mateAlignmentStart, insertSize,
+                            variableLengthBlock);
+                }
+            });
+        }
+
+        @Override
+        public void blockWritten(final long sourceAddress, final long address, final int blockSize,
+                                 final byte[] uncompressed, final int uncompressedSize) {
+            if (uncompressedSize == 0) return;
+            if (bufferLength + uncompressedSize > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, bufferLength + uncompressedSize));
+            }
+            System.arraycopy(uncompressed, 0, buffer, bufferLength, uncompressedSize);
+            blocks.add(new BufferedBlock(bufferLength, bufferLength + uncompressedSize, address, blockSize));
+            bufferLength += uncompressedSize;
+
+            int position = 0;
+            if (!headerParsed) {
+                position = headerLength();
+                if (position < 0) return;
+                headerParsed = true;
+            }
+            while (bufferLength - position >= 4) {
+                final int recordLength = 4 + readInt(position);
+                if (bufferLength - position < recordLength) break;
+                indexRecord(position, recordLength);
+                position += recordLength;
+            }
+            discard(position);
+        }
+
+        void finish() {
+            indexer.finish();
+        }
+
+        /** Returns the length of the BAM header at the start of the buffer, or -1 if it has not all been written yet. */
+        private int headerLength() {
+            if (bufferLength < 8) return -1;
+            int position = 8 + readInt(4);
+            if (bufferLength < position + 4) return -1;
+            final int sequenceCount = readInt(position);
+            position += 4;
+            for (int i = 0; i < sequenceCount; ++i) {
+                if (bufferLength < position + 4) return -1;
+                position += 4 + readInt(position) + 4;
+            }
+            return bufferLength < position ? -1 : position;
+        }
+
+        private void indexRecord(final int position, final int length) {
+            codec.setInputStream(new ByteArrayInputStream(buffer, position, length));
+            final PositionedBAMRecord record = (PositionedBAMRecord) codec.decode();
+            record.setChunk(new Chunk(filePointer(position, false), filePointer(position + length, true)));
+            indexer.processAlignment(record);
+        }
+
+        /**
+         * Returns the virtual file pointer BlockCompressedOutputStream.getFilePointer() would have returned at this
+         * position in the buffer.  A record that starts at the end of a block starts in the next block, but one that
+         * ends at the end of a block ends in that block unless it was full, since the block was only ended by a later
+         * flush.
+         */
+        private long filePointer(final int position, final boolean endOfRecord) {
+            for (final BufferedBlock block : blocks) {
+                if (position < block.end || (endOfRecord && position == block.end)) {
+                    if (position == block.end && block.end - block.start == BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE) {
+                        return (block.address + block.size) << 16;
+                    }
+                    return (block.address << 16) | (position - block.start);
+                }
+            }
+            throw new IllegalStateException("Position is beyond the blocks written: " + position);
+        }
+
+        /** Removes the given number of parsed bytes from the start of the buffer, along with the blocks they were in. */
+        private void discard(final int length) {
+            System.arraycopy(buffer, length, buffer, 0, bufferLength - length);
+            bufferLength -= length;
+            final Iterator<BufferedBlock> iterator = blocks.iterator();
+            while (iterator.hasNext()) {
+                final BufferedBlock block = iterator.next();
+                if (block.end <= length) {
+                    iterator.remove();
+                } else {
+                    block.start -= length;
+                    block.end -= length;
+                }
+            }
+        }
+
+        private int readInt(final int position) {
+            return (buffer[position] & 0xFF) | ((buffer[position + 1] & 0xFF) << 8) |
+                    ((buffer[position + 2] & 0xFF) << 16) | ((buffer[position + 3] & 0xFF) << 24);
+        }
+
+        /** A decoded record that can be given the position BAMIndexer needs. */
+        private static class PositionedBAMRecord extends BAMRecord {
+            PositionedBAMRecord(final SAMFileHeader header, final int referenceSequenceIndex, final int alignmentStart,
+                                final short readNameLength, final short mappingQuality, final int indexingBin,
+                                final int cigarLen, final int flags, final int readLen, final int mateReferenceSequenceIndex,
+                                final int mateAlignmentStart, final int insertSize, final byte[] variableLengthBlock) {
+                super(header, referenceSequenceIndex, alignmentStart, readNameLength, mappingQuality, indexingBin, cigarLen,
+                        flags, readLen, mateReferenceSequenceIndex, mateAlignmentStart, insertSize, variableLengthBlock);
+            }
+
+            void setChunk(final Chunk chunk) {
+                setFileSource(new SAMFileSource(null, new BAMFileSpan(chunk)));
+            }
+        }
+
+        /** The span of the buffer holding the contents of one block, which may start before the buffer does. */
+        private static class BufferedBlock {
+            int start;
+            int end;
+            final long address;
+            final int size;
+
+            BufferedBlock(final int start, final int end, final long address, final int size) {
+                this.start = start;
+                this.end = end;
+                this.address = address;
+                this.size = size;
+            }
+        }
+    }
+
+    /** Finishes the BAM index once the BAM file has been written. */
+    private static class IndexingSAMFileWriter implements SAMFileWriter {
+        private final SAMFileWriter writer;
+        private final BamIndexingListener indexer;
+
+        IndexingSAMFileWriter(final SAMFileWriter writer, final BamIndexingListener indexer) {
+            this.writer = writer;
+            this.indexer = indexer;
+        }
+
+        @Override
+        public void addAlignment(final SAMRecord alignment) {
+            writer.addAlignment(alignment);
+        }
+
+        @Override
+        public SAMFileHeader getFileHeader() {
+            return writer.getFileHeader();
+        }
+
+        @Override
+        public void setProgressLogger(final ProgressLoggerInterface progress) {
+            writer.setProgressLogger(progress);
+        }
+
+        @Override
+        public void close() {
+            writer.close();
+            indexer.finish();
+        }
+    }
+
+    /**
+     * Gives a tabix index creator each variant at its position in the recompressed output, which is known once the
+     * block holding its start has been written.
+     */
+    private static class VcfIndexingListener implements ParallelBlockCompressedOutputStream.BlockListener {
+        private final IndexCreator indexCreator;
+        private final Deque<Feature> features = new ArrayDeque<Feature>();
+        private final Deque<Long> sourcePositions = new ArrayDeque<Long>();
+        /** The level 0 and recompressed addresses of the blocks written that may still hold positions to translate. */
+        private final Deque<long[]> blockAddresses = new ArrayDeque<long[]>();
+
+        VcfIndexingListener(final IndexCreator indexCreator) {
+            this.indexCreator = indexCreator;
+        }
+
+        /** Adds a feature at the given virtual file pointer in the level 0 BGZF. */
+        void addFeature(final Feature feature, final long sourcePosition) {
+            features.add(feature);
+            sourcePositions.add(sourcePosition);
+        }
+
+        @Override
+        public void blockWritten(final long sourceAddress, final long address, final int blockSize,
+                                 final byte[] uncompressed, final int uncompressedSize) {
+            blockAddresses.add(new long[]{sourceAddress, address});
+            while (!sourcePositions.isEmpty()) {
+                final long position = translate(sourcePositions.peek());
+                if (position < 0) break;
+                sourcePositions.poll();
+                indexCreator.addFeature(features.poll(), position);
+            }
+        }
+
+        /** Finishes the index once everything has been written, given the final position in the level 0 BGZF. */
+        Index finish(final long sourcePosition) {
+            final long position = translate(sourcePosition);
+            if (!features.isEmpty() || position < 0) throw new IllegalStateException("Not all blocks have been written.");
+            return indexCreator.finalizeIndex(position);
+        }
+
+        /** Returns the recompressed virtual file pointer, or -1 if the block holding the position has not been written yet. */
+        private long translate(final long sourcePosition) {
+            final long sourceAddress = sourcePosition >>> 16;
+            while (!blockAddresses.isEmpty() && blockAddresses.peek()[0] < sourceAddress) blockAddresses.poll();
+            if (blockAddresses.isEmpty() || blockAddresses.peek()[0] != sourceAddress) return -1;
+            return (blockAddresses.peek()[1] << 16) | (sourcePosition & 0xFFFF);
+        }
+    }
+
+    /** Indexes each variant at the position of the level 0 stream before it is written, as htsjdk's indexing writer does. */
+    private static class IndexingVariantContextWriter implements VariantContextWriter {
+        private final VariantContextWriter writer;
+        private final BlockCompressedOutputStream levelZeroOut;
+        private final VcfIndexingListener indexer;
+        private final File output;
+
+        IndexingVariantContextWriter(final VariantContextWriter writer, final BlockCompressedOutputStream levelZeroOut,
+                                     final VcfIndexingListener indexer, final File output) {
+            this.writer = writer;
+            this.levelZeroOut = levelZeroOut;
+            this.indexer = indexer;
+            this.output = output;
+        }
+
+        @Override
+        public void writeHeader(final VCFHeader header) {
+            writer.writeHeader(header);
+        }
+
+        @Override
+        public void add(final VariantContext vc) {
+            indexer.addFeature(vc, levelZeroOut.getFilePointer());
+            writer.add(vc);
+        }
+
+        @Override
+        public boolean checkError() {
+            return writer.checkError();
+        }
+
+        @Override
+        public void close() {
+            writer.close();
+            try {
+                indexer.finish(levelZeroOut.getFilePointer()).writeBasedOnFeatureFile(output);
+            } catch (final IOException e) {
+                throw new RuntimeIOException("Error writing index for " + output.getAbsolutePath(), e);
+            }
+        }
+    }
+}
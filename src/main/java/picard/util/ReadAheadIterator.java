@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import htsjdk.samtools.util.CloseableIterator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Wrapper around a CloseableIterator that reads batches of elements ahead of the consumer on a shared ExecutorService.
+ * Unlike {@link AsyncIterator}, which dedicates a thread to each iterator, many ReadAheadIterators can share a small
+ * pool of threads, e.g. one per input of a merge.  At most one batch is read ahead of the batch being consumed, so
+ * memory is bounded by twice the batch size, and the underlying iterator is only ever used by one thread at a time.
+ */
+public class ReadAheadIterator<T> implements CloseableIterator<T> {
+    private final CloseableIterator<T> underlyingIterator;
+    private final int batchSize;
+    private final ExecutorService executor;
+
+    private List<T> batch = Collections.emptyList();
+    private int position = 0;
+    private Future<List<T>> pending;
+    private boolean isClosed = false;
+
+    public ReadAheadIterator(final CloseableIterator<T> underlyingIterator, final int batchSize, final ExecutorService executor) {
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize must be at least 1.");
+        this.underlyingIterator = underlyingIterator;
+        this.batchSize = batchSize;
+        this.executor = executor;
+        this.pending = executor.submit(this::readBatch);
+    }
+
+    /** Reads the next batch from the underlying iterator; an empty batch signals the end of the input. */
+    private List<T> readBatch() {
+        final List<T> next = new ArrayList<T>(batchSize);
+        while (next.size() < batchSize && underlyingIterator.hasNext()) {
+            next.add(underlyingIterator.next());
+        }
+        return next;
+    }
+
+    @Override
+    public boolean hasNext() {
+        assertOpen();
+        if (position < batch.size()) return true;
+        if (pending == null) return false;
+
+        batch = await(pending);
+        position = 0;
+        if (batch.isEmpty()) {
+            pending = null;
+            return false;
+        }
+        pending = batch.size() < batchSize ? null : executor.submit(this::readBatch);
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        final T item = batch.get(position);
+        batch.set(position++, null); // let consumed elements be collected while the rest of the batch is in use
+        return item;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /** Waits for any batch being read to complete, since the underlying iterator may not be closed concurrently. */
+    @Override
+    public void close() {
+        if (isClosed) return;
+        isClosed = true;
+        try {
+            if (pending != null) await(pending);
+        } finally {
+            pending = null;
+            batch = Collections.emptyList();
+            underlyingIterator.close();
+        }
+    }
+
+    private void assertOpen() {
+        if (isClosed) throw new RuntimeException("ReadAheadIterator already closed.");
+    }
+
+    /** Returns the result of the read, rethrowing anything thrown by the underlying iterator as AsyncIterator does. */
+    private static <T> List<T> await(final Future<List<T>> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException ie) {
+            throw new RuntimeException("Interrupted waiting on read-ahead.", ie);
+        } catch (final ExecutionException ee) {
+            final Throwable t = ee.getCause();
+            if (t instanceof Error) throw (Error) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            else throw new RuntimeException(t);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+
+/**
+ * Merges sorted iterators into one sorted iterator using a tournament (loser) tree, so that each element costs about
+ * log2(k) comparisons for k inputs rather than the 2*log2(k) of a binary heap.  Elements that compare equal are returned
+ * in the order of their inputs.
+ *
+ * When one input supplies many consecutive elements, as happens when the inputs are non-overlapping scatter shards,
+ * the best head of the other inputs is remembered and each further element of the run costs a single comparison.
+ *
+ * Like {@link htsjdk.samtools.util.MergingIterator}, an IllegalStateException is thrown if an input is found not to be
+ * sorted according to the comparator.
+ */
+public class TournamentMergingIterator<T> implements CloseableIterator<T> {
+    private final Comparator<T> comparator;
+    private final CloseableIterator<T>[] iterators;
+    /** The current head of each input, or null once the input is exhausted. */
+    private final T[] heads;
+    /** tree[0] is the input holding the smallest head; tree[1..k-1] hold the loser of the match at each internal node. */
+    private final int[] tree;
+    /** While the winner keeps winning, the input with the best head among the others; otherwise -1. */
+    private int runnerUp = -1;
+
+    @SuppressWarnings("unchecked")
+    public TournamentMergingIterator(final Comparator<T> comparator, final Collection<? extends CloseableIterator<T>> iterators) {
+        if (iterators.isEmpty()) throw new IllegalArgumentException("One or more CloseableIterators must be provided.");
+        this.comparator = comparator;
+        this.iterators = iterators.toArray(new CloseableIterator[iterators.size()]);
+        final int k = this.iterators.length;
+        this.heads = (T[]) new Object[k];
+        for (int i = 0; i < k; ++i) {
+            if (this.iterators[i].hasNext()) this.heads[i] = this.iterators[i].next();
+        }
+
+        // Leaves are nodes k..2k-1; play the matches bottom up
+        this.tree = new int[k];
+        final int[] winners = new int[2 * k];
+        for (int i = 0; i < k; ++i) winners[k + i] = i;
+        for (int node = k - 1; node >= 1; --node) {
+            final int left = winners[2 * node];
+            final int right = winners[2 * node + 1];
+            if (beats(left, right)) {
+                winners[node] = left;
+                tree[node] = right;
+            } else {
+                winners[node] = right;
+                tree[node] = left;
+            }
+        }
+        tree[0] = k == 1 ? 0 : winners[1];
+    }
+
+    @Override
+    public boolean hasNext() {
+        return heads[tree[0]] != null;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        final int winner = tree[0];
+        final T result = heads[winner];
+        final CloseableIterator<T> iterator = iterators[winner];
+        if (iterator.hasNext()) {
+            heads[winner] = iterator.next();
+            if (comparator.compare(result, heads[winner]) > 0) {
+                throw new IllegalStateException("The elements of the input Iterators are not sorted according to the comparator " +
+                        iterator.getClass().getName());
+            }
+        } else {
+            heads[winner] = null;
+        }
+
+        // The tree is unchanged if the winner's new head still beats the best of the other inputs
+        if (runnerUp < 0 || !beats(winner, runnerUp)) {
+            replay(winner);
+            runnerUp = (tree[0] == winner) ? bestLoserOnPath(winner) : -1;
+        }
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        for (final CloseableIterator<T> iterator : iterators) CloserUtil.close(iterator);
+    }
+
+    /** Replays the matches from the leaf of the given input up to the root. */
+    private void replay(final int input) {
+        int winner = input;
+        for (int node = (input + iterators.length) / 2; node >= 1; node /= 2) {
+            if (beats(tree[node], winner)) {
+                final int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    /** Returns the input with the best head among the losers on the path from the given input's leaf to the root. */
+    private int bestLoserOnPath(final int input) {
+        int best = -1;
+        for (int node = (input + iterators.length) / 2; node >= 1; node /= 2) {
+            if (best < 0 || beats(tree[node], best)) best = tree[node];
+        }
+        return best;
+    }
+
+    /** True if the head of input a is returned before the head of input b. Exhausted inputs lose to everything. */
+    private boolean beats(final int a, final int b) {
+        if (heads[a] == null) return false;
+        if (heads[b] == null) return true;
+        final int cmp = comparator.compare(heads[a], heads[b]);
+        return cmp < 0 || (cmp == 0 && a < b);
+    }
+}
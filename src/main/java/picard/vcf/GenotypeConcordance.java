@@ -25,9 +25,12 @@ package picard.vcf;
 
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.IntervalList;
 import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.OverlapDetector;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.util.SequenceUtil;
 import htsjdk.tribble.Tribble;
@@ -42,14 +45,23 @@ import picard.cmdline.StandardOptionDefinitions;
 import picard.cmdline.programgroups.VcfOrBcf;
 import picard.vcf.GenotypeConcordanceStates.*;
 import picard.vcf.PairedVariantSubContextIterator.VcfTuple;
+import picard.vcf.processor.VcfFileSegment;
+import picard.vcf.processor.VcfFileSegmentGenerator;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static htsjdk.variant.variantcontext.VariantContext.Type.*;
 
@@ -150,9 +162,16 @@ public class GenotypeConcordance extends CommandLineProgram {
             "This flag can only be used with a high confidence interval list.")
     public boolean MISSING_SITES_HOM_REF = false;
 
+    @Option(doc="The number of threads to use.  If greater than one, the genome is split into segments that are evaluated in parallel, " +
+            "and the VCF files must be indexed.")
+    public int THREADS = 1;
+
     private final Log log = Log.getInstance(GenotypeConcordance.class);
     private final ProgressLogger progress = new ProgressLogger(log, 10000, "checked", "variants");
 
+    /** The width of the segments evaluated in parallel when THREADS is greater than one. */
+    private static final long SEGMENT_WIDTH = 10 * 1000 * 1000;
+
     public static final String SUMMARY_METRICS_FILE_EXTENSION = ".genotype_concordance_summary_metrics";
     public static final String DETAILED_METRICS_FILE_EXTENSION = ".genotype_concordance_detail_metrics";
     public static final String CONTINGENCY_METRICS_FILE_EXTENSION = ".genotype_concordance_contingency_metrics";
@@ -178,18 +197,21 @@ public class GenotypeConcordance extends CommandLineProgram {
         IOUtil.assertFileIsReadable(CALL_VCF);
         final boolean usingIntervals = this.INTERVALS != null && !this.INTERVALS.isEmpty();
         final List<String> errors = new ArrayList<String>();
-        if (usingIntervals) {
+        if (usingIntervals || THREADS > 1) {
             USE_VCF_INDEX = true;
         }
         if (USE_VCF_INDEX) {
             // Index file is required either because we are using intervals, or because user-set parameter
             if (!indexExists(TRUTH_VCF)) {
-                errors.add("The index file was not found for the TRUTH VCF.  Note that if intervals are specified, the VCF files must be indexed.");
+                errors.add("The index file was not found for the TRUTH VCF.  Note that if intervals are specified or THREADS is greater than one, the VCF files must be indexed.");
             }
             if (!indexExists(CALL_VCF)) {
-                errors.add("The index file was not found for the CALL VCF.  Note that if intervals are specified, the VCF files must be indexed.");
+                errors.add("The index file was not found for the CALL VCF.  Note that if intervals are specified or THREADS is greater than one, the VCF files must be indexed.");
             }
         }
+        if (THREADS < 1) {
+            errors.add("THREADS must be at least 1.");
+        }
         if (MISSING_SITES_HOM_REF) {
             //If you are using this flag you must include a high confidence interval list where missing sites are hom_ref.
             if (!usingIntervals) {
@@ -265,45 +287,31 @@ public class GenotypeConcordance extends CommandLineProgram {
             SequenceUtil.assertSequenceDictionariesEqual(intervalsSamSequenceDictionary, truthReader.getFileHeader().getSequenceDictionary());
         }
 
-        // Build the pair of iterators over the regions of interest
-        final Iterator<VariantContext> truthIterator, callIterator;
-        if (usingIntervals) {
-            truthIterator = new ByIntervalListVariantContextIterator(truthReader, intervals);
-            callIterator = new ByIntervalListVariantContextIterator(callReader, intervals);
-        }
-        else {
-            truthIterator = truthReader.iterator();
-            callIterator = callReader.iterator();
-        }
-
-        // Now do the iteration and count things up
-        final PairedVariantSubContextIterator pairedIterator = new PairedVariantSubContextIterator(truthIterator, TRUTH_SAMPLE, callIterator, CALL_SAMPLE, truthReader.getFileHeader().getSequenceDictionary());
         snpCounter   = new GenotypeConcordanceCounts();
         indelCounter = new GenotypeConcordanceCounts();
 
         // A map to keep track of the count of Truth/Call States which we could not successfully classify
         final Map<String, Integer> unClassifiedStatesMap = new HashMap<String, Integer>();
 
-        log.info("Starting iteration over variants.");
-        while (pairedIterator.hasNext()) {
-            final VcfTuple tuple = pairedIterator.next();
-            final VariantContext.Type truthVariantContextType = tuple.leftVariantContext.map(VariantContext::getType).orElse(NO_VARIATION);
-            final VariantContext.Type callVariantContextType  = tuple.rightVariantContext.map(VariantContext::getType).orElse(NO_VARIATION);
-
-            final boolean stateClassified = classifyVariants(tuple.leftVariantContext, TRUTH_SAMPLE,
-                    tuple.rightVariantContext, CALL_SAMPLE,
-                    Optional.of(snpCounter), Optional.of(indelCounter),
-                    MIN_GQ, MIN_DP);
-
-            if (!stateClassified) {
-                final String condition = truthVariantContextType + " " + callVariantContextType;
-                final Integer count = unClassifiedStatesMap.getOrDefault(condition, 0) + 1;
-                unClassifiedStatesMap.put(condition, count);
+        if (THREADS > 1) {
+            countVariantsBySegment(intervals, truthReader.getFileHeader().getSequenceDictionary(), unClassifiedStatesMap);
+        }
+        else {
+            // Build the pair of iterators over the regions of interest
+            final Iterator<VariantContext> truthIterator, callIterator;
+            if (usingIntervals) {
+                truthIterator = new ByIntervalListVariantContextIterator(truthReader, intervals);
+                callIterator = new ByIntervalListVariantContextIterator(callReader, intervals);
+            }
+            else {
+                truthIterator = truthReader.iterator();
+                callIterator = callReader.iterator();
             }
 
-            //final VariantContext variantContextForLogging = tuple.leftVariantContext.orElseGet(tuple.rightVariantContext::get); // FIXME
-            final VariantContext variantContextForLogging = tuple.leftVariantContext.isPresent() ? tuple.leftVariantContext.get() : tuple.rightVariantContext.get();
-            progress.record(variantContextForLogging.getContig(), variantContextForLogging.getStart());
+            // Now do the iteration and count things up
+            final PairedVariantSubContextIterator pairedIterator = new PairedVariantSubContextIterator(truthIterator, TRUTH_SAMPLE, callIterator, CALL_SAMPLE, truthReader.getFileHeader().getSequenceDictionary());
+            log.info("Starting iteration over variants.");
+            countVariants(pairedIterator, snpCounter, indelCounter, unClassifiedStatesMap);
         }
 
         //snp counter add in X number of missing-missing hom ref's (truth and call state)
@@ -344,6 +352,201 @@ public class GenotypeConcordance extends CommandLineProgram {
         return 0;
     }
 
+    /**
+     * Classifies each pair of truth and call variants produced by the iterator, incrementing the given counters.  Pairs that cannot be
+     * classified are tallied in unClassifiedStatesMap by their truth and call variant types.
+     */
+    private void countVariants(final Iterator<VcfTuple> pairedIterator,
+                               final GenotypeConcordanceCounts snpCounter,
+                               final GenotypeConcordanceCounts indelCounter,
+                               final Map<String, Integer> unClassifiedStatesMap) {
+        while (pairedIterator.hasNext()) {
+            final VcfTuple tuple = pairedIterator.next();
+            final VariantContext.Type truthVariantContextType = tuple.leftVariantContext.map(VariantContext::getType).orElse(NO_VARIATION);
+            final VariantContext.Type callVariantContextType  = tuple.rightVariantContext.map(VariantContext::getType).orElse(NO_VARIATION);
+
+            final boolean stateClassified = classifyVariants(tuple.leftVariantContext, TRUTH_SAMPLE,
+                    tuple.rightVariantContext, CALL_SAMPLE,
+                    Optional.of(snpCounter), Optional.of(indelCounter),
+                    MIN_GQ, MIN_DP);
+
+            if (!stateClassified) {
+                final String condition = truthVariantContextType + " " + callVariantContextType;
+                final Integer count = unClassifiedStatesMap.getOrDefault(condition, 0) + 1;
+                unClassifiedStatesMap.put(condition, count);
+            }
+
+            //final VariantContext variantContextForLogging = tuple.leftVariantContext.orElseGet(tuple.rightVariantContext::get); // FIXME
+            final VariantContext variantContextForLogging = tuple.leftVariantContext.isPresent() ? tuple.leftVariantContext.get() : tuple.rightVariantContext.get();
+            synchronized (progress) {
+                progress.record(variantContextForLogging.getContig(), variantContextForLogging.getStart());
+            }
+        }
+    }
+
+    /**
+     * Splits the genome into segments (see {@link VcfFileSegmentGenerator}) and counts each segment in parallel on THREADS threads,
+     * each thread holding its own pair of indexed readers.  The per-segment counts are merged, in segment order, into
+     * {@link #snpCounter} and {@link #indelCounter}.
+     *
+     * A variant is counted in the segment that contains its start, or, when it only overlaps an interval that begins in a later
+     * segment, in the segment containing the start of that interval.  This visits exactly the variants that a single pass over the
+     * VCFs or the intervals would.
+     */
+    private void countVariantsBySegment(final IntervalList intervals, final SAMSequenceDictionary dictionary,
+                                        final Map<String, Integer> unClassifiedStatesMap) {
+        VcfFileSegmentGenerator segmenter = VcfFileSegmentGenerator.byWholeContigSubdividingWithWidth(SEGMENT_WIDTH);
+        final OverlapDetector<Interval> intervalsDetector;
+        if (intervals != null) {
+            intervalsDetector = new OverlapDetector<Interval>(0, 0);
+            intervalsDetector.addAll(intervals.getIntervals(), intervals.getIntervals());
+            segmenter = VcfFileSegmentGenerator.excludingNonOverlaps(segmenter, intervalsDetector);
+        }
+        else {
+            intervalsDetector = null;
+        }
+
+        // Threads never share readers; keep track of all of them so they can be closed at the end.
+        final List<VCFFileReader> allReaders = Collections.synchronizedList(new ArrayList<VCFFileReader>());
+        final ThreadLocal<VCFFileReader[]> localReaders = ThreadLocal.withInitial(() -> {
+            final VCFFileReader[] readers = {new VCFFileReader(TRUTH_VCF, true), new VCFFileReader(CALL_VCF, true)};
+            allReaders.addAll(Arrays.asList(readers));
+            return readers;
+        });
+
+        log.info("Starting iteration over variants using " + THREADS + " threads.");
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<SegmentCounts>> futures = new ArrayList<Future<SegmentCounts>>();
+            for (final VcfFileSegment segment : segmenter.forVcf(TRUTH_VCF)) {
+                final List<Interval> pieces = segmentPieces(segment, intervalsDetector);
+                final int minimumStart = continuesPreviousSegment(segment, intervalsDetector) ? segment.start() : 0;
+                futures.add(executor.submit(() -> {
+                    final VCFFileReader[] readers = localReaders.get();
+                    final SegmentCounts counts = new SegmentCounts();
+                    final SegmentVariantIterator truthIterator = new SegmentVariantIterator(readers[0], pieces, minimumStart);
+                    final SegmentVariantIterator callIterator = new SegmentVariantIterator(readers[1], pieces, minimumStart);
+                    try {
+                        countVariants(new PairedVariantSubContextIterator(truthIterator, TRUTH_SAMPLE, callIterator, CALL_SAMPLE, dictionary),
+                                counts.snpCounter, counts.indelCounter, counts.unClassifiedStatesMap);
+                    } finally {
+                        truthIterator.close();
+                        callIterator.close();
+                    }
+                    return counts;
+                }));
+            }
+
+            for (final Future<SegmentCounts> future : futures) {
+                final SegmentCounts counts = future.get();
+                snpCounter.add(counts.snpCounter);
+                indelCounter.add(counts.indelCounter);
+                for (final Map.Entry<String, Integer> entry : counts.unClassifiedStatesMap.entrySet()) {
+                    unClassifiedStatesMap.merge(entry.getKey(), entry.getValue(), Integer::sum);
+                }
+            }
+        } catch (final InterruptedException e) {
+            throw new PicardException("Interrupted while counting variants.", e);
+        } catch (final ExecutionException e) {
+            throw new PicardException("Error while counting variants: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+            for (final VCFFileReader reader : allReaders) reader.close();
+        }
+    }
+
+    /**
+     * Returns the regions of the segment to query, in order: the whole segment when there are no intervals, otherwise the intervals
+     * overlapping the segment, clipped to it.
+     */
+    private static List<Interval> segmentPieces(final VcfFileSegment segment, final OverlapDetector<Interval> intervalsDetector) {
+        final Interval segmentInterval = new Interval(segment.contig(), segment.start(), segment.stop());
+        if (intervalsDetector == null) return Collections.singletonList(segmentInterval);
+
+        final List<Interval> pieces = new ArrayList<Interval>();
+        for (final Interval interval : intervalsDetector.getOverlaps(segmentInterval)) {
+            pieces.add(interval.intersect(segmentInterval));
+        }
+        Collections.sort(pieces);
+        return pieces;
+    }
+
+    /**
+     * Returns true if the first region of the segment is the continuation of a contig or interval that was split at the start of the
+     * segment, in which case variants starting before the segment belong to the previous one.
+     */
+    private static boolean continuesPreviousSegment(final VcfFileSegment segment, final OverlapDetector<Interval> intervalsDetector) {
+        if (intervalsDetector == null) return true;
+        for (final Interval interval : intervalsDetector.getOverlaps(new Interval(segment.contig(), segment.start(), segment.start()))) {
+            if (interval.getStart() < segment.start()) return true;
+        }
+        return false;
+    }
+
+    /** The counts accumulated over a single segment. */
+    private static final class SegmentCounts {
+        final GenotypeConcordanceCounts snpCounter = new GenotypeConcordanceCounts();
+        final GenotypeConcordanceCounts indelCounter = new GenotypeConcordanceCounts();
+        final Map<String, Integer> unClassifiedStatesMap = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Iterates over the variants overlapping each of the given (sorted, non-overlapping) regions of a segment in turn, skipping variants
+     * in the first region that start before minimumStart.
+     */
+    private static final class SegmentVariantIterator implements CloseableIterator<VariantContext> {
+        private final VCFFileReader reader;
+        private final Iterator<Interval> pieces;
+        private int minimumStart;
+        private CloseableIterator<VariantContext> currentIterator;
+        private VariantContext next;
+
+        SegmentVariantIterator(final VCFFileReader reader, final List<Interval> pieces, final int minimumStart) {
+            this.reader = reader;
+            this.pieces = pieces.iterator();
+            this.minimumStart = minimumStart;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (true) {
+                while (currentIterator != null && currentIterator.hasNext()) {
+                    final VariantContext vc = currentIterator.next();
+                    if (vc.getStart() >= minimumStart) {
+                        next = vc;
+                        return;
+                    }
+                }
+                if (currentIterator != null) {
+                    currentIterator.close();
+                    currentIterator = null;
+                    minimumStart = 0;
+                }
+                if (!pieces.hasNext()) return;
+
+                final Interval piece = pieces.next();
+                currentIterator = reader.query(piece.getContig(), piece.getStart(), piece.getEnd());
+            }
+        }
+
+        @Override public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override public VariantContext next() {
+            if (next == null) throw new NoSuchElementException();
+            final VariantContext ret = next;
+            advance();
+            return ret;
+        }
+
+        @Override public void close() {
+            if (currentIterator != null) currentIterator.close();
+            currentIterator = null;
+        }
+    }
+
     public static boolean classifyVariants(final Optional<VariantContext> truthContext,
                                            final String truthSample,
                                            final Optional<VariantContext> callContext,
@@ -57,6 +57,13 @@ public class GenotypeConcordanceCounts {
         this.counter.increment(truthAndCallStates, count);
     }
 
+    /**
+     * Adds all of the counts from another set of counts into this one, e.g. to combine counts computed over disjoint regions.
+     */
+    public void add(final GenotypeConcordanceCounts other) {
+        this.counter.addHistogram(other.counter);
+    }
+
     public double getCounterSize() {
         return this.counter.getCount();
     }
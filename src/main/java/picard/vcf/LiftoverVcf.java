@@ -23,7 +23,6 @@ import htsjdk.variant.vcf.VCFFilterHeaderLine;
 import htsjdk.variant.vcf.VCFHeader;
 import htsjdk.variant.vcf.VCFHeaderLineType;
 import htsjdk.variant.vcf.VCFInfoHeaderLine;
-import htsjdk.variant.vcf.VCFRecordCodec;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
@@ -193,9 +192,11 @@ public class LiftoverVcf extends CommandLineProgram {
         long failedLiftover = 0, failedAlleleCheck = 0, total = 0;
         log.info("Lifting variants over and sorting.");
 
+        final VariantContextSortingCodec codec = new VariantContextSortingCodec(outHeader,
+                ALLOW_MISSING_FIELDS_IN_HEADER || VALIDATION_STRINGENCY != ValidationStringency.STRICT);
         final SortingCollection<VariantContext> sorter = SortingCollection.newInstance(VariantContext.class,
-                new VCFRecordCodec(outHeader, ALLOW_MISSING_FIELDS_IN_HEADER || VALIDATION_STRINGENCY != ValidationStringency.STRICT),
-                outHeader.getVCFRecordComparator(),
+                codec,
+                codec.getComparator(),
                 MAX_RECORDS_IN_RAM,
                 TMP_DIR);
 
@@ -1,5 +1,6 @@
 package picard.vcf;
 
+import com.google.common.collect.Iterators;
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
@@ -20,6 +21,7 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
 import picard.cmdline.programgroups.VcfOrBcf;
+import picard.vcf.processor.ShardedVcfRewriter;
 
 import java.io.File;
 import java.util.Set;
@@ -48,6 +50,12 @@ public class MakeSitesOnlyVcf extends CommandLineProgram {
     @Option(shortName="S", doc="Optionally one or more samples to retain when building the 'sites-only' VCF.", optional=true)
     public Set<String> SAMPLE = new TreeSet<String>();
 
+    @Option(doc="The number of threads to use.  If greater than one and the INPUT is indexed and the OUTPUT is a .vcf.gz, segments of " +
+            "the INPUT are processed in parallel and their outputs concatenated.")
+    public int THREADS = 1;
+
+    private final Log log = Log.getInstance(MakeSitesOnlyVcf.class);
+
     // Stock main method
     public static void main(final String[] args) {
         new MakeSitesOnlyVcf().instanceMainWithExit(args);
@@ -70,7 +78,21 @@ public class MakeSitesOnlyVcf extends CommandLineProgram {
 		    throw new PicardException("A sequence dictionary must be available (either through the input file or by setting it explicitly) when creating indexed output.");
 	    }
 
-        final ProgressLogger progress = new ProgressLogger(Log.getInstance(MakeSitesOnlyVcf.class), 10000);
+        final VCFHeader header = new VCFHeader(inputVcfHeader.getMetaDataInInputOrder(), SAMPLE);
+
+        if (THREADS > 1) {
+            if (ShardedVcfRewriter.canRewrite(INPUT, OUTPUT)) {
+                CloserUtil.close(reader);
+                final ShardedVcfRewriter rewriter = new ShardedVcfRewriter(INPUT, OUTPUT, header,
+                        variants -> Iterators.transform(variants, full -> subsetToSamplesWithOriginalAnnotations(full, SAMPLE)),
+                        THREADS, CREATE_INDEX, TMP_DIR.isEmpty() ? IOUtil.getDefaultTmpDir() : TMP_DIR.get(0));
+                rewriter.rewrite();
+                return 0;
+            }
+            log.warn("Writing with a single thread: using multiple threads requires an indexed INPUT and a .vcf.gz OUTPUT.");
+        }
+
+        final ProgressLogger progress = new ProgressLogger(log, 10000);
 
         // Setup the site-only file writer
         final VariantContextWriterBuilder builder = new VariantContextWriterBuilder()
@@ -81,8 +103,6 @@ public class MakeSitesOnlyVcf extends CommandLineProgram {
         else
             builder.unsetOption(Options.INDEX_ON_THE_FLY);
         final VariantContextWriter writer = builder.build();
-
-        final VCFHeader header = new VCFHeader(inputVcfHeader.getMetaDataInInputOrder(), SAMPLE);
         writer.writeHeader(header);
 
         // Go through the input, strip the records and write them to the output
@@ -29,7 +29,6 @@ import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
-import htsjdk.samtools.util.MergingIterator;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.VariantContextComparator;
@@ -45,12 +44,17 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
 import picard.cmdline.programgroups.VcfOrBcf;
+import picard.util.ParallelCompressionWriterFactory;
+import picard.util.ReadAheadIterator;
+import picard.util.TournamentMergingIterator;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Combines multiple VCF files into a single file. Input files must be sorted by their contigs
@@ -80,6 +84,13 @@ public class MergeVcfs extends CommandLineProgram {
     @Option(shortName = "D", doc = "The index sequence dictionary to use instead of the sequence dictionary in the input file", optional = true)
     public File SEQUENCE_DICTIONARY;
 
+    @Option(doc = "The number of threads to use. When greater than one, the records of each INPUT are decoded ahead of the " +
+            "merge, in batches, on a pool of this many threads.")
+    public int THREADS = 1;
+
+    /** Records decoded ahead at a time for each input; kept small since there may be hundreds of inputs. */
+    private static final int READ_AHEAD_BATCH_SIZE = 100;
+
     private final Log log = Log.getInstance(MergeVcfs.class);
 
     public static void main(final String[] argv) {
@@ -136,24 +147,40 @@ public class MergeVcfs extends CommandLineProgram {
             throw new PicardException("A sequence dictionary must be available (either through the input file or by setting it explicitly) when creating indexed output.");
         }
 
-        final VariantContextWriterBuilder builder = new VariantContextWriterBuilder()
-                .setOutputFile(OUTPUT)
-                .setReferenceDictionary(sequenceDictionary);
+        final VariantContextWriterBuilder builder = new VariantContextWriterBuilder();
         if (CREATE_INDEX) {
             builder.setOption(Options.INDEX_ON_THE_FLY);
         }
-        final VariantContextWriter writer = builder.build();
+        final VariantContextWriter writer = new ParallelCompressionWriterFactory().setCreateIndex(CREATE_INDEX)
+                .makeVariantContextWriter(builder, OUTPUT, sequenceDictionary);
 
         writer.writeHeader(new VCFHeader(VCFUtils.smartMergeHeaders(headers, false), sampleList));
 
-        final MergingIterator<VariantContext> mergingIterator = new MergingIterator<VariantContext>(variantContextComparator, iteratorCollection);
-        while (mergingIterator.hasNext()) {
-            final VariantContext context = mergingIterator.next();
-            writer.add(context);
-            progress.record(context.getChr(), context.getStart());
-        }
+        final ExecutorService readAheadExecutor = THREADS > 1 ? Executors.newFixedThreadPool(THREADS) : null;
+        try {
+            final Collection<CloseableIterator<VariantContext>> mergeInputs;
+            if (readAheadExecutor == null) {
+                mergeInputs = iteratorCollection;
+            } else {
+                log.info("Decoding inputs ahead of the merge using " + THREADS + " threads.");
+                mergeInputs = new ArrayList<CloseableIterator<VariantContext>>(iteratorCollection.size());
+                for (final CloseableIterator<VariantContext> iterator : iteratorCollection) {
+                    mergeInputs.add(new ReadAheadIterator<VariantContext>(iterator, READ_AHEAD_BATCH_SIZE, readAheadExecutor));
+                }
+            }
+
+            final TournamentMergingIterator<VariantContext> mergingIterator =
+                    new TournamentMergingIterator<VariantContext>(variantContextComparator, mergeInputs);
+            while (mergingIterator.hasNext()) {
+                final VariantContext context = mergingIterator.next();
+                writer.add(context);
+                progress.record(context.getChr(), context.getStart());
+            }
 
-        CloserUtil.close(mergingIterator);
+            CloserUtil.close(mergingIterator);
+        } finally {
+            if (readAheadExecutor != null) readAheadExecutor.shutdownNow();
+        }
         writer.close();
         return 0;
     }
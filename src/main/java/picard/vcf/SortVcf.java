@@ -14,13 +14,13 @@ import htsjdk.variant.variantcontext.writer.VariantContextWriter;
 import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
 import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFHeader;
-import htsjdk.variant.vcf.VCFRecordCodec;
 import htsjdk.variant.vcf.VCFUtils;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
 import picard.cmdline.programgroups.VcfOrBcf;
+import picard.util.ParallelCompressionWriterFactory;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -154,11 +154,13 @@ public class SortVcf extends CommandLineProgram {
 
         // NB: The default MAX_RECORDS_IN_RAM may not be appropriate here. VariantContexts are smaller than SamRecords
         // We would have to play around empirically to find an appropriate value. We are not performing this optimization at this time.
+        final VariantContextSortingCodec codec =
+                new VariantContextSortingCodec(outputHeader, VALIDATION_STRINGENCY != ValidationStringency.STRICT);
         final SortingCollection<VariantContext> sorter =
                 SortingCollection.newInstance(
                         VariantContext.class,
-                        new VCFRecordCodec(outputHeader, VALIDATION_STRINGENCY != ValidationStringency.STRICT),
-                        outputHeader.getVCFRecordComparator(),
+                        codec,
+                        codec.getComparator(),
                         MAX_RECORDS_IN_RAM,
                         TMP_DIR);
         int readerCount = 1;
@@ -177,10 +179,8 @@ public class SortVcf extends CommandLineProgram {
     private void writeSortedOutput(final VCFHeader outputHeader, final SortingCollection<VariantContext> sortedOutput) {
         final ProgressLogger writeProgress = new ProgressLogger(log, 25000, "wrote", "records");
         final EnumSet<Options> options = CREATE_INDEX ? EnumSet.of(Options.INDEX_ON_THE_FLY) : EnumSet.noneOf(Options.class);
-        final VariantContextWriter out = new VariantContextWriterBuilder().
-                setReferenceDictionary(outputHeader.getSequenceDictionary()).
-                setOptions(options).
-                setOutputFile(OUTPUT).build();
+        final VariantContextWriter out = new ParallelCompressionWriterFactory().setCreateIndex(CREATE_INDEX).makeVariantContextWriter(
+                new VariantContextWriterBuilder().setOptions(options), OUTPUT, outputHeader.getSequenceDictionary());
         out.writeHeader(outputHeader);
         for (final VariantContext variantContext : sortedOutput) {
             out.add(variantContext);
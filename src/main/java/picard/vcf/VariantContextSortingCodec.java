@@ -0,0 +1,344 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.vcf;
+
+import htsjdk.samtools.util.SortingCollection;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.GenotypesContext;
+import htsjdk.variant.variantcontext.LazyGenotypesContext;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFContigHeaderLine;
+import htsjdk.variant.vcf.VCFEncoder;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderVersion;
+import picard.PicardException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A binary codec for sorting VariantContexts with a SortingCollection, as a faster replacement for VCFRecordCodec.
+ *
+ * Each record starts with its sort key (the index of its contig in the header and its start), followed by the site
+ * level fields in binary, with INFO values keeping their types.  The genotypes are written as their VCF text, and
+ * are decoded lazily, so that when they are not looked at (e.g. by SortVcf) they are neither parsed nor formatted
+ * again, since VCF writers write lazily decoded VCF genotypes out as they are.
+ *
+ * Use the codec with {@link #getComparator()}, which orders records as the header's VCF record comparator does but
+ * compares the sort keys of decoded records rather than looking up their contigs.
+ */
+public class VariantContextSortingCodec implements SortingCollection.Codec<VariantContext> {
+    // Types of INFO values
+    private static final byte NULL_VALUE = 0;
+    private static final byte STRING_VALUE = 1;
+    private static final byte INTEGER_VALUE = 2;
+    private static final byte DOUBLE_VALUE = 3;
+    private static final byte BOOLEAN_VALUE = 4;
+    private static final byte LIST_VALUE = 5;
+
+    private final VCFHeader header;
+    private final boolean allowMissingFieldsInHeader;
+    private final Map<String, Integer> contigIndices;
+    private final VCFEncoder encoder;
+    private final VCFCodec genotypeCodec;
+
+    private DataOutputStream out;
+    private DataInputStream in;
+
+    /**
+     * @param header the header of the records to be sorted
+     * @param allowMissingFieldsInHeader whether to allow records to have INFO or FORMAT fields missing from the header
+     */
+    public VariantContextSortingCodec(final VCFHeader header, final boolean allowMissingFieldsInHeader) {
+        this.header = header;
+        this.allowMissingFieldsInHeader = allowMissingFieldsInHeader;
+        this.contigIndices = new HashMap<String, Integer>();
+        for (final VCFContigHeaderLine contig : header.getContigLines()) {
+            contigIndices.put(contig.getID(), contig.getContigIndex());
+        }
+        this.encoder = new VCFEncoder(header, allowMissingFieldsInHeader, false);
+        this.genotypeCodec = new VCFCodec();
+        this.genotypeCodec.setVCFHeader(header, VCFHeaderVersion.VCF4_2);
+    }
+
+    @Override
+    public SortingCollection.Codec<VariantContext> clone() {
+        return new VariantContextSortingCodec(header, allowMissingFieldsInHeader);
+    }
+
+    @Override
+    public void setOutputStream(final OutputStream os) {
+        this.out = new DataOutputStream(os);
+    }
+
+    @Override
+    public void setInputStream(final InputStream is) {
+        this.in = new DataInputStream(is);
+    }
+
+    /** Returns a comparator that orders records by the index of their contig in the header and then by start. */
+    public Comparator<VariantContext> getComparator() {
+        return new Comparator<VariantContext>() {
+            @Override
+            public int compare(final VariantContext lhs, final VariantContext rhs) {
+                final int contigComparison = contigIndex(lhs) - contigIndex(rhs);
+                return contigComparison != 0 ? contigComparison : lhs.getStart() - rhs.getStart();
+            }
+        };
+    }
+
+    private int contigIndex(final VariantContext vc) {
+        if (vc instanceof DecodedVariantContext) return ((DecodedVariantContext) vc).contigIndex;
+        final Integer contigIndex = contigIndices.get(vc.getContig());
+        if (contigIndex == null) throw new PicardException("Contig " + vc.getContig() + " is not in the VCF header.");
+        return contigIndex;
+    }
+
+    @Override
+    public void encode(final VariantContext vc) {
+        try {
+            out.writeInt(contigIndex(vc));
+            out.writeInt(vc.getStart());
+            out.writeInt(vc.getEnd());
+            writeString(vc.getContig());
+            out.writeBoolean(vc.getSource() != null);
+            if (vc.getSource() != null) writeString(vc.getSource());
+            writeString(vc.getID());
+
+            final List<Allele> alleles = vc.getAlleles();
+            out.writeShort(alleles.size());
+            for (final Allele allele : alleles) {
+                out.writeBoolean(allele.isReference());
+                writeBytes(allele.getDisplayBases());
+            }
+
+            out.writeDouble(vc.getLog10PError());
+
+            final Set<String> filters = vc.getFiltersMaybeNull();
+            out.writeInt(filters == null ? -1 : filters.size());
+            if (filters != null) {
+                for (final String filter : filters) writeString(filter);
+            }
+
+            final Map<String, Object> attributes = vc.getAttributes();
+            out.writeInt(attributes.size());
+            for (final Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                writeString(attribute.getKey());
+                writeValue(attribute.getValue());
+            }
+            out.writeBoolean(vc.isFullyDecoded());
+
+            final String genotypes = genotypeText(vc);
+            out.writeBoolean(genotypes != null);
+            if (genotypes != null) writeString(genotypes);
+        } catch (final IOException ioe) {
+            throw new PicardException("Exception writing VariantContext to file.", ioe);
+        }
+    }
+
+    @Override
+    public VariantContext decode() {
+        try {
+            final int contigIndex;
+            try {
+                contigIndex = in.readInt();
+            } catch (final EOFException eof) {
+                return null;
+            }
+            final int start = in.readInt();
+            final int end = in.readInt();
+            final String contig = readString();
+            final String source = in.readBoolean() ? readString() : null;
+            final String id = readString();
+
+            final int alleleCount = in.readShort();
+            final List<Allele> alleles = new ArrayList<Allele>(alleleCount);
+            for (int i = 0; i < alleleCount; ++i) {
+                final boolean isReference = in.readBoolean();
+                alleles.add(Allele.create(readBytes(), isReference));
+            }
+
+            final double log10PError = in.readDouble();
+
+            final int filterCount = in.readInt();
+            Set<String> filters = null;
+            if (filterCount == 0) {
+                filters = Collections.emptySet();
+            } else if (filterCount > 0) {
+                filters = new LinkedHashSet<String>(filterCount);
+                for (int i = 0; i < filterCount; ++i) filters.add(readString());
+            }
+
+            final int attributeCount = in.readInt();
+            final Map<String, Object> attributes = new LinkedHashMap<String, Object>(attributeCount);
+            for (int i = 0; i < attributeCount; ++i) {
+                final String key = readString();
+                attributes.put(key, readValue());
+            }
+            final boolean fullyDecoded = in.readBoolean();
+
+            final GenotypesContext genotypes;
+            if (in.readBoolean()) {
+                final String genotypeText = readString();
+                final LazyGenotypesContext lazyGenotypes = new LazyGenotypesContext(new LazyGenotypesContext.LazyParser() {
+                    @Override
+                    public LazyGenotypesContext.LazyData parse(final Object data) {
+                        return genotypeCodec.createGenotypeMap((String) data, alleles, contig, start);
+                    }
+                }, genotypeText, header.getNGenotypeSamples());
+                // As VCFCodec does, since the lazily parsed genotypes must be in the order of the header's samples
+                if (!header.samplesWereAlreadySorted()) lazyGenotypes.decode();
+                genotypes = lazyGenotypes;
+            } else {
+                genotypes = GenotypesContext.NO_GENOTYPES;
+            }
+
+            return new DecodedVariantContext(contigIndex, source, id, contig, start, end, alleles, genotypes,
+                    log10PError, filters, attributes, fullyDecoded);
+        } catch (final IOException ioe) {
+            throw new PicardException("Exception reading VariantContext from file.", ioe);
+        }
+    }
+
+    /**
+     * Returns the FORMAT and sample columns of the VCF line for the record, or null if the header has no samples.
+     * Genotypes that have not been decoded from VCF text are returned without being parsed or formatted.
+     */
+    private String genotypeText(final VariantContext vc) {
+        if (!header.hasGenotypingData()) return null;
+        final GenotypesContext genotypes = vc.getGenotypes();
+        if (genotypes.isLazyWithData() && ((LazyGenotypesContext) genotypes).getUnparsedGenotypeData() instanceof String) {
+            return (String) ((LazyGenotypesContext) genotypes).getUnparsedGenotypeData();
+        }
+        final String line = encoder.encode(vc);
+        int genotypeStart = 0;
+        for (int i = 0; i < 8; ++i) {
+            genotypeStart = line.indexOf('\t', genotypeStart) + 1;
+            if (genotypeStart == 0) return null;
+        }
+        return line.substring(genotypeStart);
+    }
+
+    private void writeValue(final Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL_VALUE);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER_VALUE);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE_VALUE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN_VALUE);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof List) {
+            final List<?> values = (List<?>) value;
+            out.writeByte(LIST_VALUE);
+            out.writeInt(values.size());
+            for (final Object element : values) writeValue(element);
+        } else if (value.getClass().isArray()) {
+            final int length = Array.getLength(value);
+            out.writeByte(LIST_VALUE);
+            out.writeInt(length);
+            for (int i = 0; i < length; ++i) writeValue(Array.get(value, i));
+        } else {
+            // Anything else is written to VCF as its string representation
+            out.writeByte(STRING_VALUE);
+            writeString(value.toString());
+        }
+    }
+
+    private Object readValue() throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+            case NULL_VALUE:
+                return null;
+            case STRING_VALUE:
+                return readString();
+            case INTEGER_VALUE:
+                return in.readInt();
+            case DOUBLE_VALUE:
+                return in.readDouble();
+            case BOOLEAN_VALUE:
+                return in.readBoolean();
+            case LIST_VALUE:
+                final int size = in.readInt();
+                final List<Object> values = new ArrayList<Object>(size);
+                for (int i = 0; i < size; ++i) values.add(readValue());
+                return values;
+            default:
+                throw new PicardException("Unknown INFO value type in VariantContext file: " + type);
+        }
+    }
+
+    private void writeString(final String s) throws IOException {
+        writeBytes(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String readString() throws IOException {
+        return new String(readBytes(), StandardCharsets.UTF_8);
+    }
+
+    private void writeBytes(final byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private byte[] readBytes() throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /** A decoded record, which carries its contig index so that it can be compared without looking its contig up. */
+    private static class DecodedVariantContext extends VariantContext {
+        private final int contigIndex;
+
+        DecodedVariantContext(final int contigIndex, final String source, final String id, final String contig,
+                              final int start, final int end, final List<Allele> alleles, final GenotypesContext genotypes,
+                              final double log10PError, final Set<String> filters, final Map<String, Object> attributes,
+                              final boolean fullyDecoded) {
+            super(source, id, contig, start, end, alleles, genotypes, log10PError, filters, attributes, fullyDecoded,
+                    EnumSet.noneOf(Validation.class));
+            this.contigIndex = contigIndex;
+        }
+    }
+}
@@ -28,6 +28,7 @@ import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.CollectionUtil;
 import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.filter.JavascriptVariantFilter;
 import htsjdk.variant.variantcontext.writer.VariantContextWriter;
@@ -44,6 +45,7 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
 import picard.cmdline.programgroups.VcfOrBcf;
+import picard.vcf.processor.ShardedVcfRewriter;
 
 import java.io.File;
 import java.io.IOException;
@@ -93,6 +95,12 @@ public class FilterVcf extends CommandLineProgram {
 	        optional = true)
 	public File JAVASCRIPT_FILE = null;
 
+    @Option(doc="The number of threads to use.  If greater than one and the INPUT is indexed and the OUTPUT is a .vcf.gz, segments of " +
+            "the INPUT are filtered in parallel and their outputs concatenated.")
+    public int THREADS = 1;
+
+    private final Log log = Log.getInstance(FilterVcf.class);
+
 
     /** Constructor to default to having index creation on. */
     public FilterVcf() { this.CREATE_INDEX = true; }
@@ -111,18 +119,8 @@ public class FilterVcf extends CommandLineProgram {
         VariantContextWriter out = null;
         try {// try/finally used to close 'in' and 'out'
 	        in = new VCFFileReader(INPUT, false);
-	        final List<VariantFilter>  variantFilters = new ArrayList<VariantFilter>(4);
-	        variantFilters.add(new AlleleBalanceFilter(MIN_AB));
-	        variantFilters.add(new FisherStrandFilter(MAX_FS));
-	        variantFilters.add(new QdFilter(MIN_QD));
-	        if( JAVASCRIPT_FILE != null) {
-	            try {
-	                variantFilters.add(new VariantContextJavascriptFilter(JAVASCRIPT_FILE, in.getFileHeader()));
-	            } catch(final IOException error) {
-	                throw new PicardException("javascript-related error", error);
-	            }
-	        }
-	        final List<GenotypeFilter> genotypeFilters = CollectionUtil.makeList(new GenotypeQualityFilter(MIN_GQ), new DepthFilter(MIN_DP));
+	        final List<VariantFilter> variantFilters = buildVariantFilters(in.getFileHeader());
+	        final List<GenotypeFilter> genotypeFilters = buildGenotypeFilters();
 	        @SuppressWarnings("resource")
 			final FilterApplyingVariantIterator iterator = new FilterApplyingVariantIterator(in.iterator(), variantFilters, genotypeFilters);
 	
@@ -137,7 +135,6 @@ public class FilterVcf extends CommandLineProgram {
 	            }
 	            variantContextWriterBuilder.setReferenceDictionary(sequenceDictionary);
 	        }
-	        out = variantContextWriterBuilder.setOutputFile(OUTPUT).build();
 	        header.addMetaDataLine(new VCFFilterHeaderLine("AllGtsFiltered", "Site filtered out because all genotypes are filtered out."));
 	        header.addMetaDataLine(new VCFFormatHeaderLine("FT", VCFHeaderLineCount.UNBOUNDED, VCFHeaderLineType.String, "Genotype filters."));
 	        for (final VariantFilter filter : variantFilters) {
@@ -146,6 +143,19 @@ public class FilterVcf extends CommandLineProgram {
 	            }
 	        }
 	
+	        if (THREADS > 1) {
+	            if (ShardedVcfRewriter.canRewrite(INPUT, OUTPUT)) {
+	                // Each segment gets its own filters, since the javascript filter cannot be shared between threads.
+	                final ShardedVcfRewriter rewriter = new ShardedVcfRewriter(INPUT, OUTPUT, header,
+	                        variants -> new FilterApplyingVariantIterator(variants, buildVariantFilters(header), buildGenotypeFilters()),
+	                        THREADS, CREATE_INDEX, TMP_DIR.isEmpty() ? IOUtil.getDefaultTmpDir() : TMP_DIR.get(0));
+	                rewriter.rewrite();
+	                return 0;
+	            }
+	            log.warn("Writing with a single thread: using multiple threads requires an indexed INPUT and a .vcf.gz OUTPUT.");
+	        }
+
+	        out = variantContextWriterBuilder.setOutputFile(OUTPUT).build();
 	        out.writeHeader(in.getFileHeader());
 	
 	        while (iterator.hasNext()) {
@@ -158,6 +168,27 @@ public class FilterVcf extends CommandLineProgram {
         }
     }
 
+    /** Builds the site-level filters; a fresh set is needed for each thread, as some are not thread-safe. */
+    private List<VariantFilter> buildVariantFilters(final VCFHeader header) {
+        final List<VariantFilter> variantFilters = new ArrayList<VariantFilter>(4);
+        variantFilters.add(new AlleleBalanceFilter(MIN_AB));
+        variantFilters.add(new FisherStrandFilter(MAX_FS));
+        variantFilters.add(new QdFilter(MIN_QD));
+        if (JAVASCRIPT_FILE != null) {
+            try {
+                variantFilters.add(new VariantContextJavascriptFilter(JAVASCRIPT_FILE, header));
+            } catch (final IOException error) {
+                throw new PicardException("javascript-related error", error);
+            }
+        }
+        return variantFilters;
+    }
+
+    /** Builds the genotype-level filters. */
+    private List<GenotypeFilter> buildGenotypeFilters() {
+        return CollectionUtil.makeList(new GenotypeQualityFilter(MIN_GQ), new DepthFilter(MIN_DP));
+    }
+
     private boolean isVcfOrBcf(final File file) {
         final String fileName = file.getName();
         return fileName.endsWith(".vcf") || fileName.endsWith(".bcf");
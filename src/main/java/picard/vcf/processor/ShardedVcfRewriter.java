@@ -0,0 +1,351 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.vcf.processor;
+
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.ProgressLogger;
+import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.Tribble;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFHeader;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Rewrites an indexed VCF into a block-compressed VCF in parallel, applying a {@link Transformer} to its variants.
+ * <p/>
+ * The input is split into segments of roughly equal estimated size (see {@link VcfFileSegmentGenerator#byIndexEstimatedSize(int)}),
+ * which are transformed largest-first on a pool of threads.  Each segment is written to its own BGZF shard holding only variant
+ * records; the shards are then concatenated in genomic order behind the header by copying their compressed blocks verbatim, in the
+ * manner of {@link picard.vcf.GatherVcfs}.  If an index is requested, the position of each record within its shard is recorded as it is
+ * written, so that the tabix index can be built during concatenation without decoding the output again.
+ */
+public class ShardedVcfRewriter {
+    private static final Log log = Log.getInstance(ShardedVcfRewriter.class);
+
+    /** The number of segments to aim for per thread, so that threads that finish early can pick up more work. */
+    static final int SEGMENTS_PER_THREAD = 8;
+
+    /**
+     * Transforms the variants of one segment of the input.  Called once per segment, possibly concurrently from several threads, so
+     * implementations should not share mutable state between calls.  The variants returned must stay in the order they were provided.
+     */
+    public interface Transformer {
+        Iterator<VariantContext> transform(final Iterator<VariantContext> variants);
+    }
+
+    private final File input;
+    private final File output;
+    private final VCFHeader header;
+    private final SAMSequenceDictionary dictionary;
+    private final Transformer transformer;
+    private final int threads;
+    private final boolean createIndex;
+    private final File tmpDir;
+
+    /**
+     * @param input the input VCF, which must be indexed
+     * @param output the output VCF, which must be block-compressed (see {@link #canRewrite(File, File)})
+     * @param header the header to write to the output
+     * @param transformer applied to the variants of each segment of the input
+     * @param threads the number of threads with which to transform and write segments
+     * @param createIndex whether to write a tabix index alongside the output
+     * @param tmpDir where to write the shards for each segment
+     */
+    public ShardedVcfRewriter(final File input, final File output, final VCFHeader header, final Transformer transformer,
+                              final int threads, final boolean createIndex, final File tmpDir) {
+        if (threads < 1) throw new IllegalArgumentException("Thread count must exceed 0.");
+        if (!canRewrite(input, output)) {
+            throw new IllegalArgumentException("Input must be indexed and output must be a block-compressed VCF: " + input + ", " + output);
+        }
+        this.input = input;
+        this.output = output;
+        this.header = header;
+        this.dictionary = header.getSequenceDictionary();
+        if (dictionary == null) throw new PicardException("The header must have a sequence dictionary in order to rewrite a VCF by segment.");
+        this.transformer = transformer;
+        this.threads = threads;
+        this.createIndex = createIndex;
+        this.tmpDir = tmpDir;
+    }
+
+    /** Returns true if the input is indexed and the output is a block-compressed VCF, i.e., if the output can be written by segment. */
+    public static boolean canRewrite(final File input, final File output) {
+        final boolean indexed = Tribble.indexFile(input).exists() || Tribble.tabixIndexFile(input).exists();
+        return indexed && AbstractFeatureReader.hasBlockCompressedExtension(output) && !output.getName().endsWith(".bcf");
+    }
+
+    /** Transforms every segment of the input and writes the result to the output. */
+    public void rewrite() {
+        final VariantIteratorProducer.Threadsafe producer = new VariantIteratorProducer.Threadsafe(
+                VcfFileSegmentGenerator.byIndexEstimatedSize(threads * SEGMENTS_PER_THREAD), Collections.singletonList(input));
+        final List<VcfFileSegment> segments = producer.segments;
+        final List<Shard> shards = new ArrayList<Shard>(segments.size());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final ProgressLogger progress = new ProgressLogger(log, 100000, "Wrote");
+
+        try {
+            final File headerShard = File.createTempFile("header.", ".vcf.gz", tmpDir);
+            headerShard.deleteOnExit();
+            writeHeaderShard(headerShard);
+            for (final VcfFileSegment segment : segments) shards.add(new Shard(segment));
+
+            // Submit the largest segments first, so the small ones can fill in around them at the end.
+            final List<Shard> bySize = new ArrayList<Shard>(shards);
+            Collections.sort(bySize, new Comparator<Shard>() {
+                @Override
+                public int compare(final Shard lhs, final Shard rhs) {
+                    return Long.compare(rhs.segment.estimatedSize(), lhs.segment.estimatedSize());
+                }
+            });
+            final List<Future<?>> futures = new ArrayList<Future<?>>(bySize.size());
+            for (final Shard shard : bySize) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        shard.write(producer, progress);
+                    }
+                }));
+            }
+            for (final Future<?> future : futures) future.get();
+
+            log.info("Concatenating " + shards.size() + " shards into " + output);
+            concatenate(headerShard, shards);
+            headerShard.delete();
+        } catch (final IOException e) {
+            throw new PicardException("Error writing " + output, e);
+        } catch (final InterruptedException e) {
+            throw new PicardException("Interrupted while writing " + output, e);
+        } catch (final ExecutionException e) {
+            throw new PicardException("Error writing " + output + ": " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+            producer.close();
+            for (final Shard shard : shards) shard.delete();
+        }
+    }
+
+    /** Writes the header, on its own, into a block-compressed file. */
+    private void writeHeaderShard(final File headerShard) {
+        final VariantContextWriter writer = new VariantContextWriterBuilder()
+                .setOutputFile(headerShard)
+                .setReferenceDictionary(dictionary)
+                .unsetOption(Options.INDEX_ON_THE_FLY)
+                .build();
+        synchronized (header) {
+            writer.writeHeader(header);
+        }
+        writer.close();
+    }
+
+    /**
+     * Writes the header shard and then every segment shard, in order, to the output, omitting each one's terminator block, and finishes
+     * with a single terminator block.  Builds the index on the way if requested.
+     */
+    private void concatenate(final File headerShard, final List<Shard> shards) throws IOException {
+        final TabixIndexCreator indexCreator = createIndex ? new TabixIndexCreator(dictionary, TabixFormat.VCF) : null;
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(output), Defaults.NON_ZERO_BUFFER_SIZE);
+        long outputLength = copyBlocks(headerShard, out);
+
+        for (final Shard shard : shards) {
+            if (indexCreator != null) {
+                final DataInputStream positions = new DataInputStream(new BufferedInputStream(new FileInputStream(shard.positions)));
+                try {
+                    while (true) {
+                        final int start;
+                        try {
+                            start = positions.readInt();
+                        } catch (final EOFException e) {
+                            break;
+                        }
+                        final int end = positions.readInt();
+                        final long shardPointer = positions.readLong();
+                        final long blockAddress = outputLength + BlockCompressedFilePointerUtil.getBlockAddress(shardPointer);
+                        final long pointer = (blockAddress << 16) | BlockCompressedFilePointerUtil.getBlockOffset(shardPointer);
+                        indexCreator.addFeature(new SimpleFeature(shard.segment.contig(), start, end), pointer);
+                    }
+                } finally {
+                    positions.close();
+                }
+            }
+            outputLength += copyBlocks(shard.variants, out);
+        }
+
+        out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+        out.close();
+
+        if (indexCreator != null) {
+            final Index index = indexCreator.finalizeIndex(outputLength << 16);
+            index.writeBasedOnFeatureFile(output);
+        }
+    }
+
+    /** Copies the blocks of a block-compressed file, except for its terminator block, returning the number of bytes copied. */
+    private static long copyBlocks(final File blockCompressed, final OutputStream out) throws IOException {
+        final BlockCompressedInputStream.FileTermination termination = BlockCompressedInputStream.checkTermination(blockCompressed);
+        if (termination == BlockCompressedInputStream.FileTermination.DEFECTIVE) {
+            throw new PicardException(blockCompressed.getAbsolutePath() + " does not have a valid GZIP block at the end of the file.");
+        }
+        final long length = blockCompressed.length() -
+                (termination == BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK ? BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length : 0);
+
+        final InputStream in = new FileInputStream(blockCompressed);
+        try {
+            final byte[] buffer = new byte[Defaults.NON_ZERO_BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) throw new IOException("Unexpected end of file: " + blockCompressed);
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+        return length;
+    }
+
+    /** The variants of one segment, in a block-compressed file without a header, and the positions of its records within that file. */
+    private final class Shard {
+        final VcfFileSegment segment;
+        File variants;
+        File positions;
+
+        Shard(final VcfFileSegment segment) {
+            this.segment = segment;
+        }
+
+        void write(final VariantIteratorProducer.Threadsafe producer, final ProgressLogger progress) {
+            final CloseableIterator<VariantContext> iterator = producer.iteratorForSegment(segment);
+            VariantContextWriter writer = null;
+            DataOutputStream positionsOut = null;
+            try {
+                variants = File.createTempFile("segment.", ".vcf.gz", tmpDir);
+                variants.deleteOnExit();
+                if (createIndex) {
+                    positions = File.createTempFile("segment.", ".positions", tmpDir);
+                    positions.deleteOnExit();
+                    positionsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(positions)));
+                }
+
+                // The header must be given to the writer for it to encode records, but only the records belong in the shard.
+                final BlockCompressedOutputStream blockOut = new BlockCompressedOutputStream(variants);
+                final HeaderSkippingOutputStream recordOut = new HeaderSkippingOutputStream(blockOut);
+                writer = new VariantContextWriterBuilder()
+                        .setOutputStream(recordOut)
+                        .setReferenceDictionary(dictionary)
+                        .unsetOption(Options.INDEX_ON_THE_FLY)
+                        .build();
+                synchronized (header) {
+                    writer.writeHeader(header);
+                }
+                recordOut.headerWritten();
+
+                final Iterator<VariantContext> transformed = transformer.transform(iterator);
+                while (transformed.hasNext()) {
+                    final VariantContext vc = transformed.next();
+                    if (positionsOut != null) {
+                        positionsOut.writeInt(vc.getStart());
+                        positionsOut.writeInt(vc.getEnd());
+                        positionsOut.writeLong(blockOut.getFilePointer());
+                    }
+                    writer.add(vc);
+                    synchronized (progress) {
+                        progress.record(vc.getContig(), vc.getStart());
+                    }
+                }
+            } catch (final IOException e) {
+                throw new PicardException("Error writing shard for " + segment, e);
+            } finally {
+                CloserUtil.close(iterator);
+                CloserUtil.close(writer);
+                CloserUtil.close(positionsOut);
+            }
+        }
+
+        void delete() {
+            if (variants != null) variants.delete();
+            if (positions != null) positions.delete();
+        }
+    }
+
+    /** Discards everything written to it until {@link #headerWritten()} is called, and passes everything through after that. */
+    private static final class HeaderSkippingOutputStream extends FilterOutputStream {
+        private boolean skipping = true;
+
+        HeaderSkippingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        void headerWritten() {
+            skipping = false;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (!skipping) out.write(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (!skipping) out.write(b, off, len);
+        }
+    }
+}
@@ -58,7 +58,10 @@ public interface VariantAccumulatorExecutor<ACCUMULATOR extends VariantProcessor
 
     /**
      * A {@link VariantAccumulatorExecutor} that breaks down work into chunks described by the provided {@link VariantIteratorProducer} and
-     * spreads them over the indicated number of threads.
+     * spreads them over the indicated number of threads.  Chunks are handed out in the order the producer supplies them, so a producer
+     * that orders its chunks largest-first (e.g., {@link VariantIteratorProducer#bySizeBalancedChunks}) yields largest-first scheduling.
+     * <p/>
+     * On completion, the time each thread spent processing chunks (busy) and waiting for the slowest thread to finish (idle) is logged.
      *
      * @author mccowan
      */
@@ -75,6 +78,9 @@ public interface VariantAccumulatorExecutor<ACCUMULATOR extends VariantProcessor
 
         private final List<Throwable> childrenErrors = Collections.synchronizedList(new ArrayList<Throwable>());
 
+        /** The timing of each of the workers, in the order they were started. */
+        final List<WorkerTiming> workerTimings = Collections.synchronizedList(new ArrayList<WorkerTiming>());
+
         final VariantProcessor.AccumulatorGenerator<A, R> accumulatorGenerator;
 
         public MultiThreadedChunkBased(
@@ -95,7 +101,9 @@ public interface VariantAccumulatorExecutor<ACCUMULATOR extends VariantProcessor
             for (int i = 0; i < numThreads; i++) {
                 final A accumulator = accumulatorGenerator.build();
                 accumulators.add(accumulator);
-                executor.submit(new Worker(accumulator));
+                final WorkerTiming timing = new WorkerTiming(System.nanoTime());
+                workerTimings.add(timing);
+                executor.submit(new Worker(accumulator, timing));
             }
             executor.shutdown();
         }
@@ -110,12 +118,46 @@ public interface VariantAccumulatorExecutor<ACCUMULATOR extends VariantProcessor
                 throw new IllegalStateException("This method can be called only after the executor has been started.");
             } else {
                 executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                logWorkerTimings();
                 if (!childrenErrors.isEmpty()) {
                     throw new MultiException(childrenErrors);
                 }
             }
         }
 
+        /** Returns the timing of each worker thread; only meaningful once {@link #awaitCompletion()} has returned. */
+        List<WorkerTiming> workerTimings() {
+            return Collections.unmodifiableList(workerTimings);
+        }
+
+        private void logWorkerTimings() {
+            long lastFinish = 0;
+            for (final WorkerTiming timing : workerTimings) lastFinish = Math.max(lastFinish, timing.finishNanos);
+            int i = 0;
+            for (final WorkerTiming timing : workerTimings) {
+                LOG.info(String.format("Thread %d processed %d chunks: busy %.3fs, idle %.3fs.",
+                        ++i, timing.chunks, timing.busyNanos / 1e9, timing.idleNanos(lastFinish) / 1e9));
+            }
+        }
+
+        /** Records how long a worker spent processing chunks, and when it started and finished. */
+        static final class WorkerTiming {
+            final long startNanos;
+            volatile long finishNanos;
+            volatile long busyNanos = 0;
+            volatile int chunks = 0;
+
+            WorkerTiming(final long startNanos) {
+                this.startNanos = startNanos;
+                this.finishNanos = startNanos;
+            }
+
+            /** The time the worker was not processing chunks, up until the point the last of the workers finished. */
+            long idleNanos(final long lastFinishNanos) {
+                return Math.max(0, lastFinishNanos - startNanos - busyNanos);
+            }
+        }
+
         static class MultiException extends RuntimeException {
             final List<Throwable> childrenExceptions;
 
@@ -138,9 +180,11 @@ public interface VariantAccumulatorExecutor<ACCUMULATOR extends VariantProcessor
         /** Continually requests and exhausts variant context iterators, delegating each to the child {@link Worker#processor}. */
         class Worker implements Runnable {
             final VariantProcessor.Accumulator processor;
+            final WorkerTiming timing;
 
-            Worker(final VariantProcessor.Accumulator processor) {
+            Worker(final VariantProcessor.Accumulator processor, final WorkerTiming timing) {
                 this.processor = processor;
+                this.timing = timing;
             }
 
             @Override
@@ -148,9 +192,12 @@ public interface VariantAccumulatorExecutor<ACCUMULATOR extends VariantProcessor
                 try {
                     Optional<CloseableIterator<VariantContext>> readerMaybe;
                     while ((readerMaybe = vcIterators.next()).isPresent()) {
+                        final long chunkStart = System.nanoTime();
                         final CloseableIterator<VariantContext> reader = readerMaybe.get();
                         while (reader.hasNext()) processor.accumulate(reader.next());
                         reader.close();
+                        timing.busyNanos += System.nanoTime() - chunkStart;
+                        timing.chunks++;
 
                         if (!childrenErrors.isEmpty()) {
                             LOG.error(Thread.currentThread() + " aborting: observed error in another child thread.");
@@ -161,6 +208,7 @@ public interface VariantAccumulatorExecutor<ACCUMULATOR extends VariantProcessor
                     childrenErrors.add(e);
                     LOG.error(e, "Unexpected exception encountered in child thread.");
                 } finally {
+                    timing.finishNanos = System.nanoTime();
                     LOG.debug(String.format("Thread %s is finishing.", Thread.currentThread()));
                 }
             }
@@ -41,6 +41,7 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -77,9 +78,20 @@ public abstract class VariantIteratorProducer {
         return new Threadsafe(VcfFileSegmentGenerator.byWholeContigSubdividingWithWidth(ONE_HUNDRED_MILLION), vcfs, null);
     }
 
+    /**
+     * Produces a chunking of about chunkCount segments per VCF of roughly equal estimated size (see
+     * {@link VcfFileSegmentGenerator#byIndexEstimatedSize(int)}), handed out largest-first, that also performs on-the-fly filtering of
+     * {@link VariantContext} if intervalList is not null.
+     */
+    public static VariantIteratorProducer bySizeBalancedChunks(final List<File> vcfs, final IntervalList intervalList, final int chunkCount) {
+        return new Threadsafe(VcfFileSegmentGenerator.byIndexEstimatedSize(chunkCount), vcfs, intervalList, true);
+    }
+
     /**
      * A {@link VariantIteratorProducer} that is based on a given {@link VcfFileSegmentGenerator} and a list of VCFs.  The chunks are ordered by VCF, and
-     * then by whatever ordering of segments are produced by {@link VcfFileSegmentGenerator#forVcf(java.io.File)} for each of those VCFs.
+     * then by whatever ordering of segments are produced by {@link VcfFileSegmentGenerator#forVcf(java.io.File)} for each of those VCFs,
+     * unless largest-first ordering is requested, in which case they are ordered by decreasing {@link VcfFileSegment#estimatedSize()} so
+     * that the most expensive chunks are started first and the cheap ones fill in the gaps at the end.
      * <p/>
      * The iterators produced by this class are safe to share between multiple threads.
      * <p/>
@@ -114,6 +126,10 @@ public abstract class VariantIteratorProducer {
         }
 
         Threadsafe(final VcfFileSegmentGenerator segmenter, final List<File> vcfs, final IntervalList intervals) {
+            this(segmenter, vcfs, intervals, false);
+        }
+
+        Threadsafe(final VcfFileSegmentGenerator segmenter, final List<File> vcfs, final IntervalList intervals, final boolean largestFirst) {
             if (intervals != null) {
                 final List<Interval> uniques = intervals.getUniqueIntervals(false);
                 this.intervalsOfInterestDetector = new OverlapDetector<Interval>(0, 0);
@@ -141,6 +157,15 @@ public abstract class VariantIteratorProducer {
                     segments.add(segment);
                 }
             }
+            if (largestFirst) {
+                // A stable sort, so segments of equal size stay in genomic order.
+                Collections.sort(segments, new Comparator<VcfFileSegment>() {
+                    @Override
+                    public int compare(final VcfFileSegment lhs, final VcfFileSegment rhs) {
+                        return Long.compare(rhs.estimatedSize(), lhs.estimatedSize());
+                    }
+                });
+            }
             for (final VcfFileSegment segment : segments) {
                 final Interval segmentInterval = segment.correspondingInterval();
                 final OverlapDetector<VcfFileSegment> vcfSpecificDetector = multiSegmentDetectorPerFile.get(segment.vcf());
@@ -189,7 +214,7 @@ public abstract class VariantIteratorProducer {
          * Converts a {@link VcfFileSegment} into a {@link VariantContext} iterator.  Applies filtering via {@link #intervalsOfInterestDetector}
          * if it is defined.
          */
-        private CloseableIterator<VariantContext> iteratorForSegment(final VcfFileSegment segment) {
+        CloseableIterator<VariantContext> iteratorForSegment(final VcfFileSegment segment) {
             final CloseableIterator<VariantContext> query =
                     localVcfFileReaders.get() // Get the collection of VCF file readers local to this thread
                             .get(segment.vcf()) // Get or generate the reader for this segment's VCF file
@@ -111,6 +111,9 @@ public class VariantProcessor<RESULT, ACCUMULATOR extends VariantProcessor.Accum
         final List<File> inputs = new ArrayList<File>();
         int threadCount = 1;
 
+        /** When multithreading, the number of chunks per thread to aim for when splitting up each input. */
+        static final int CHUNKS_PER_THREAD = 8;
+
         Builder(final AccumulatorGenerator<A, R> accumulatorGenerator) {
             this.accumulatorGenerator = accumulatorGenerator;
         }
@@ -160,7 +163,11 @@ public class VariantProcessor<RESULT, ACCUMULATOR extends VariantProcessor.Accum
              * per tiny chunk, which is very non-performant due to some implementations of that method.
              */
             final VariantIteratorProducer ret;
-            if (intervals == null) {
+            if (threadCount > 1) {
+                // Balance the chunks by their estimated size and start the largest ones first, so no thread is left finishing one big
+                // chunk long after the others have run out of work.
+                ret = VariantIteratorProducer.bySizeBalancedChunks(inputs, intervals, threadCount * CHUNKS_PER_THREAD);
+            } else if (intervals == null) {
                 ret = VariantIteratorProducer.byHundredMegabaseChunks(inputs);
             } else {
                 ret = VariantIteratorProducer.byHundredMegabaseChunksWithOnTheFlyFilteringByInterval(inputs, intervals);
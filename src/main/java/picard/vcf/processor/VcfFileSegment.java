@@ -39,6 +39,14 @@ public abstract class VcfFileSegment {
     abstract public String contig();
     abstract public File vcf();
     
+    /**
+     * An estimate of the amount of work required to process this segment, comparable only between segments produced by the same
+     * {@link VcfFileSegmentGenerator}.  By default, the number of bases the segment spans.
+     */
+    public long estimatedSize() {
+        return stop() - start() + 1L;
+    }
+
     public Interval correspondingInterval() {
         return new Interval(contig(), start(), stop());
     }
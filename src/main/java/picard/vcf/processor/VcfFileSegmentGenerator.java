@@ -32,10 +32,15 @@ import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.OverlapDetector;
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.tribble.Tribble;
+import htsjdk.tribble.index.Block;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.IndexFactory;
 import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFHeader;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -53,6 +58,14 @@ public abstract class VcfFileSegmentGenerator {
         return WidthLimitingDecorator.wrapping(ByWholeContig.getInstance(), segmentWidth);
     }
 
+    /**
+     * Returns a {@link VcfFileSegmentGenerator} that produces about segmentCount segments per VCF, each covering a run of a contig with
+     * roughly the same estimated amount of variant data, as judged from the VCF's tribble or tabix index.  See {@link ByIndexEstimatedSize}.
+     */
+    public static VcfFileSegmentGenerator byIndexEstimatedSize(final int segmentCount) {
+        return new ByIndexEstimatedSize(segmentCount, ByIndexEstimatedSize.DEFAULT_RESOLUTION);
+    }
+
     /**
      * Returns a decorated {@link VcfFileSegmentGenerator} that filters out {@link VcfFileSegment}s that have no overlap with the provided
      * {@link OverlapDetector}.
@@ -200,4 +213,127 @@ public abstract class VcfFileSegmentGenerator {
         }
     }
 
+    /**
+     * Breaks each contig into windows of {@link #resolution} bases, estimates the size of the variant records in each window from the
+     * number of (possibly virtual) file bytes the VCF's index reports for it, and then joins adjacent windows of a contig into segments
+     * whose estimated size reaches total / segmentCount.  Densely populated regions thus yield many narrow segments while sparse
+     * contigs yield one segment apiece, which keeps threads from idling behind a single oversized segment.
+     * <p/>
+     * The index only has bin-level resolution, so estimates of neighbouring windows may overlap somewhat; they are only used to balance
+     * and order the work.  VCFs without an index are split by width, as with {@link #byWholeContigSubdividingWithWidth(long)}.
+     */
+    static final class ByIndexEstimatedSize extends VcfFileSegmentGenerator {
+        static final int DEFAULT_RESOLUTION = (int) 1e6;
+        static final long FALLBACK_WIDTH = (long) 100e6;
+
+        final int segmentCount;
+        final int resolution;
+
+        ByIndexEstimatedSize(final int segmentCount, final int resolution) {
+            if (segmentCount < 1) throw new IllegalArgumentException("Segment count must exceed 0.");
+            if (resolution < 1) throw new IllegalArgumentException("Resolution must exceed 0.");
+            this.segmentCount = segmentCount;
+            this.resolution = resolution;
+        }
+
+        @Override
+        public Iterable<VcfFileSegment> forVcf(final File vcf) {
+            final Index index = loadIndex(vcf);
+            if (index == null) {
+                LOG.warn("No index found for " + vcf + "; splitting it into segments by width instead of by estimated size.");
+                return byWholeContigSubdividingWithWidth(FALLBACK_WIDTH).forVcf(vcf);
+            }
+
+            // Estimate the size of every window, contig by contig.
+            final List<SAMSequenceRecord> sequences = ByWholeContig.readSequences(vcf);
+            final List<long[]> windowSizesPerSequence = new ArrayList<long[]>(sequences.size());
+            long totalSize = 0;
+            for (final SAMSequenceRecord sequence : sequences) {
+                final int windowCount = (sequence.getSequenceLength() + resolution - 1) / resolution;
+                final long[] windowSizes = new long[Math.max(windowCount, 1)];
+                if (index.containsChromosome(sequence.getSequenceName())) {
+                    for (int i = 0; i < windowCount; i++) {
+                        final int start = i * resolution + 1;
+                        final int stop = Math.min(start + resolution - 1, sequence.getSequenceLength());
+                        for (final Block block : index.getBlocks(sequence.getSequenceName(), start, stop)) {
+                            windowSizes[i] += block.getSize();
+                        }
+                        totalSize += windowSizes[i];
+                    }
+                }
+                windowSizesPerSequence.add(windowSizes);
+            }
+
+            // Join adjacent windows until each segment reaches the target size; the remainder of a contig forms its last segment.
+            final long targetSize = Math.max(1, (totalSize + segmentCount - 1) / segmentCount);
+            final List<VcfFileSegment> segments = new ArrayList<VcfFileSegment>();
+            for (int s = 0; s < sequences.size(); s++) {
+                final SAMSequenceRecord sequence = sequences.get(s);
+                final long[] windowSizes = windowSizesPerSequence.get(s);
+                int segmentStart = 1;
+                long segmentSize = 0;
+                for (int i = 0; i < windowSizes.length; i++) {
+                    segmentSize += windowSizes[i];
+                    final int windowStop = Math.min((i + 1) * resolution, sequence.getSequenceLength());
+                    final boolean lastWindow = i == windowSizes.length - 1;
+                    if (segmentSize >= targetSize || lastWindow) {
+                        segments.add(new EstimatedSizeSegment(vcf, sequence.getSequenceName(), segmentStart, Math.max(windowStop, segmentStart), segmentSize));
+                        segmentStart = windowStop + 1;
+                        segmentSize = 0;
+                    }
+                }
+            }
+            return segments;
+        }
+
+        /** Loads the tribble or tabix index of the VCF, or returns null if it has neither. */
+        private static Index loadIndex(final File vcf) {
+            final File tribbleIndex = Tribble.indexFile(vcf);
+            final File tabixIndex = Tribble.tabixIndexFile(vcf);
+            if (tribbleIndex.exists()) return IndexFactory.loadIndex(tribbleIndex.getAbsolutePath());
+            else if (tabixIndex.exists()) return IndexFactory.loadIndex(tabixIndex.getAbsolutePath());
+            else return null;
+        }
+
+        private static final class EstimatedSizeSegment extends VcfFileSegment {
+            final File vcf;
+            final String contig;
+            final int start;
+            final int stop;
+            final long estimatedSize;
+
+            private EstimatedSizeSegment(final File vcf, final String contig, final int start, final int stop, final long estimatedSize) {
+                this.vcf = vcf;
+                this.contig = contig;
+                this.start = start;
+                this.stop = stop;
+                this.estimatedSize = estimatedSize;
+            }
+
+            @Override
+            public int start() {
+                return start;
+            }
+
+            @Override
+            public int stop() {
+                return stop;
+            }
+
+            @Override
+            public String contig() {
+                return contig;
+            }
+
+            @Override
+            public File vcf() {
+                return vcf;
+            }
+
+            @Override
+            public long estimatedSize() {
+                return estimatedSize;
+            }
+        }
+    }
 }
@@ -8,17 +8,23 @@ import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordSetBuilder;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.SAMException;
+import htsjdk.samtools.util.TestUtil;
 import htsjdk.variant.utils.SAMSequenceDictionaryExtractor;
 import org.testng.Assert;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
+import picard.PicardException;
 import picard.cmdline.CommandLineProgramTest;
+import picard.sam.CreateSequenceDictionary;
 import picard.sam.SortSam;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
@@ -41,6 +47,7 @@ public class CollectGcBiasMetricsTest extends CommandLineProgramTest {
 
     private final static File TEST_DIR = new File("testdata/picard/sam/CollectGcBiasMetrics/");
     private final File dict = new File(TEST_DIR, "MNOheader.dict");
+    private final static String REFERENCE_FILE = "testdata/picard/metrics/chrMNO.reference.fasta";
 
     File tempSamFileChrM_O;
     File tempSamFileAllChr;
@@ -226,6 +233,79 @@ public class CollectGcBiasMetricsTest extends CommandLineProgramTest {
         }
     }
 
+    /////////////////////////////////////////////////////////////////////////////
+    //Runs once without a GC window cache, once building the cache and once reading it, and checks that the detail and
+    // summary metrics are identical each time.
+    /////////////////////////////////////////////////////////////////////////////
+    @Test
+    public void runGcWindowCacheTest() throws IOException {
+        // The cache needs a reference with a sequence dictionary
+        final File referenceDir = Files.createTempDirectory("CollectGcBiasMetricsTest").toFile();
+        final File reference = new File(referenceDir, "chrMNO.fasta");
+        final File cache = new File(referenceDir, "chrMNO.gc_windows");
+        Files.copy(new File(REFERENCE_FILE).toPath(), reference.toPath());
+        final File referenceDict = new File(referenceDir, "chrMNO.dict");
+        Assert.assertEquals(new CreateSequenceDictionary().instanceMain(new String[]{
+                "REFERENCE=" + reference.getAbsolutePath(),
+                "OUTPUT=" + referenceDict.getAbsolutePath()
+        }), 0);
+
+        // The input must share the reference's dictionary, so build one with reads aligned to all three contigs
+        final SAMFileHeader header = new SAMFileHeader();
+        header.setSequenceDictionary(SAMSequenceDictionaryExtractor.extractDictionary(referenceDict));
+        header.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+        final SAMRecordSetBuilder setBuilder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        final SAMReadGroupRecord readGroupRecord = new SAMReadGroupRecord(readGroupId1);
+        setupTest2(1, readGroupId1, readGroupRecord, sample1, library1, header, setBuilder);
+        header.addReadGroup(readGroupRecord);
+        final File unsortedSam = File.createTempFile("CollectGcBias", ".bam", TEST_DIR);
+        unsortedSam.deleteOnExit();
+        final File input = build(Collections.singletonList(setBuilder), unsortedSam, header);
+
+        try {
+            final List<List<?>> expected = runGcBiasAndReadMetrics(input, reference);
+            Assert.assertFalse(cache.exists());
+            Assert.assertEquals(runGcBiasAndReadMetrics(input, reference, "GC_WINDOW_CACHE=" + cache.getAbsolutePath()), expected);
+            Assert.assertTrue(cache.exists());
+            final long lastModified = cache.lastModified();
+            Assert.assertEquals(runGcBiasAndReadMetrics(input, reference, "GC_WINDOW_CACHE=" + cache.getAbsolutePath()), expected);
+            Assert.assertEquals(cache.lastModified(), lastModified);
+
+            // A cache built for a different window size must be rejected
+            try {
+                runPicardCommandLine(new String[]{
+                        "INPUT=" + input.getAbsolutePath(),
+                        "OUTPUT=" + File.createTempFile("test", ".gc_bias_detail_metrics").getAbsolutePath(),
+                        "REFERENCE_SEQUENCE=" + reference.getAbsolutePath(),
+                        "SUMMARY_OUTPUT=" + File.createTempFile("test", ".gc_bias_summary_metrics").getAbsolutePath(),
+                        "CHART_OUTPUT=" + File.createTempFile("test", ".pdf").getAbsolutePath(),
+                        "SCAN_WINDOW_SIZE=50",
+                        "GC_WINDOW_CACHE=" + cache.getAbsolutePath()
+                });
+                Assert.fail("Expected a cache built for a different window size to be rejected");
+            } catch (final PicardException e) {
+                // expected
+            }
+        } finally {
+            TestUtil.recursiveDelete(referenceDir);
+        }
+    }
+
+    private List<List<?>> runGcBiasAndReadMetrics(final File input, final File reference, final String... extraArgs) throws IOException {
+        final File outfile = File.createTempFile("test", ".gc_bias_summary_metrics");
+        final File detailsOutfile = File.createTempFile("test", ".gc_bias_detail_metrics");
+        outfile.deleteOnExit();
+        detailsOutfile.deleteOnExit();
+
+        runGcBias(input, outfile, detailsOutfile, reference.getPath(), extraArgs);
+
+        final MetricsFile<GcBiasSummaryMetrics, Comparable<?>> summary = new MetricsFile<GcBiasSummaryMetrics, Comparable<?>>();
+        summary.read(new FileReader(outfile));
+        final MetricsFile<GcBiasDetailMetrics, Comparable<?>> details = new MetricsFile<GcBiasDetailMetrics, Comparable<?>>();
+        details.read(new FileReader(detailsOutfile));
+        return Arrays.<List<?>>asList(summary.getMetrics(), details.getMetrics());
+    }
+
     /////////////////////////////////////////////////////////////////////////////
     // Writes the setBuilders to a SAMFileWriter and sorts the sam.
     // Takes in a list of SAMRecordSetBuilders because of the multi-level collection: setBuilders cannot take in more than one read group
@@ -261,7 +341,11 @@ public class CollectGcBiasMetricsTest extends CommandLineProgramTest {
     // Runs CollectGcBias with input Sam file and outputs details and summary files for truth assertion.
     /////////////////////////////////////////////////////////////////////////////
     public void runGcBias (final File input, final File outfile, final File detailsOutfile) throws IOException {
-        final String referenceFile = "testdata/picard/metrics/chrMNO.reference.fasta";
+        runGcBias(input, outfile, detailsOutfile, REFERENCE_FILE);
+    }
+
+    public void runGcBias (final File input, final File outfile, final File detailsOutfile, final String referenceFile,
+                           final String... extraArgs) throws IOException {
         final File pdf = File.createTempFile("test", ".pdf");
         pdf.deleteOnExit();
 
@@ -270,7 +354,7 @@ public class CollectGcBiasMetricsTest extends CommandLineProgramTest {
         final boolean biSulfiteSeq = false;
         final boolean assumeSorted = false;
 
-        final String[] args = new String[]{
+        final List<String> args = new ArrayList<String>(Arrays.asList(
                 "INPUT=" + input.getAbsolutePath(),
                 "OUTPUT=" + detailsOutfile.getAbsolutePath(),
                 "REFERENCE_SEQUENCE=" + referenceFile,
@@ -283,7 +367,8 @@ public class CollectGcBiasMetricsTest extends CommandLineProgramTest {
                 "LEVEL=SAMPLE",
                 "LEVEL=READ_GROUP",
                 "ASSUME_SORTED=" + assumeSorted
-        };
+        ));
+        args.addAll(Arrays.asList(extraArgs));
         Assert.assertEquals(runPicardCommandLine(args), 0);
     }
 
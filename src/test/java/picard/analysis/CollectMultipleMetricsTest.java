@@ -7,6 +7,7 @@ import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordSetBuilder;
 import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.metrics.MetricBase;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.BufferedLineReader;
 import org.testng.Assert;
@@ -101,6 +102,38 @@ public class CollectMultipleMetricsTest extends CommandLineProgramTest {
         }
     }
 
+    @Test
+    public void testMultiThreadedMatchesSingleThreaded() throws IOException {
+        final File input = new File(TEST_DATA_DIR, "summary_alignment_stats_test.sam");
+        final File reference = new File(TEST_DATA_DIR, "summary_alignment_stats_test.fasta");
+        final File[] outfiles = new File[2];
+        final int[] threads = {1, 3};
+
+        for (int i = 0; i < threads.length; ++i) {
+            outfiles[i] = File.createTempFile("multiThreadedMetrics", "");
+            outfiles[i].deleteOnExit();
+            final String[] args = new String[] {
+                    "INPUT="  + input.getAbsolutePath(),
+                    "OUTPUT=" + outfiles[i].getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=" + reference.getAbsolutePath(),
+                    "THREADS=" + threads[i],
+                    "PROGRAM=null",
+                    "PROGRAM="+CollectMultipleMetrics.Program.CollectAlignmentSummaryMetrics.name(),
+                    "PROGRAM="+CollectMultipleMetrics.Program.CollectQualityYieldMetrics.name(),
+                    "PROGRAM="+CollectMultipleMetrics.Program.CollectSequencingArtifactMetrics.name()
+            };
+            Assert.assertEquals(runPicardCommandLine(args), 0);
+        }
+
+        for (final String extension : new String[] {".alignment_summary_metrics", ".quality_yield_metrics", ".pre_adapter_detail_metrics"}) {
+            final MetricsFile<?, ?> serial = new MetricsFile<MetricBase, Integer>();
+            serial.read(new FileReader(outfiles[0] + extension));
+            final MetricsFile<?, ?> parallel = new MetricsFile<MetricBase, Integer>();
+            parallel.read(new FileReader(outfiles[1] + extension));
+            Assert.assertTrue(serial.areMetricsEqual(parallel), extension);
+        }
+    }
+
     @Test
     public void testInsertSize() throws IOException {
         final File input = new File(TEST_DATA_DIR, "insert_size_metrics_test.sam");
@@ -9,6 +9,8 @@ import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordSetBuilder;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.Histogram;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
 import htsjdk.variant.utils.SAMSequenceDictionaryExtractor;
 import org.testng.Assert;
 import org.testng.annotations.BeforeTest;
@@ -18,6 +20,9 @@ import picard.cmdline.CommandLineProgramTest;
 import picard.sam.SortSam;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -287,4 +292,144 @@ public class CollectWgsMetricsTest extends CommandLineProgramTest {
         Assert.assertEquals((long) depthHistogram.get(3).getValue(), 2*10);
 
     }
-}
\ No newline at end of file
+
+    @DataProvider(name = "multiThreadedIntervals")
+    public Object[][] multiThreadedIntervals() {
+        return new Object[][] {{false}, {true}};
+    }
+
+    @Test(dataProvider = "multiThreadedIntervals")
+    public void testMultiThreadedMatchesSingleThreaded(final boolean useIntervals) throws IOException {
+        final List<String> args = makeMultiContigArgs(useIntervals);
+        args.add("COVERAGE_CAP=20");
+
+        final MetricsFile<CollectWgsMetrics.WgsMetrics, Integer> singleThreaded = runWithArgs(args, "THREADS=1");
+        final MetricsFile<CollectWgsMetrics.WgsMetrics, Integer> multiThreaded = runWithArgs(args, "THREADS=3");
+
+        Assert.assertTrue(singleThreaded.getMetrics().get(0).GENOME_TERRITORY > 0);
+        Assert.assertTrue(singleThreaded.areMetricsEqual(multiThreaded));
+        Assert.assertTrue(singleThreaded.areHistogramsEqual(multiThreaded));
+    }
+
+    @DataProvider(name = "fastAlgorithmSettings")
+    public Object[][] fastAlgorithmSettings() {
+        return new Object[][] {
+                // intervals, threads, coverage cap, locus accumulation cap
+                {false, 1, 250, 100000},
+                {true, 1, 250, 100000},
+                {false, 1, 3, 100000},
+                {false, 1, 3, 6},
+                {true, 1, 3, 6},
+                {false, 3, 3, 6},
+                {true, 3, 250, 100000}
+        };
+    }
+
+    @Test(dataProvider = "fastAlgorithmSettings")
+    public void testFastAlgorithmMatchesLocusIterator(final boolean useIntervals, final int threads, final int coverageCap,
+                                                      final int locusAccumulationCap) throws IOException {
+        final List<String> args = makeMultiContigArgs(useIntervals);
+        args.add("THREADS=" + threads);
+        args.add("COVERAGE_CAP=" + coverageCap);
+        args.add("LOCUS_ACCUMULATION_CAP=" + locusAccumulationCap);
+
+        final MetricsFile<CollectWgsMetrics.WgsMetrics, Integer> locusIterator = runWithArgs(args, "USE_FAST_ALGORITHM=false");
+        final MetricsFile<CollectWgsMetrics.WgsMetrics, Integer> fast = runWithArgs(args, "USE_FAST_ALGORITHM=true");
+
+        Assert.assertTrue(locusIterator.getMetrics().get(0).GENOME_TERRITORY > 0);
+        Assert.assertTrue(locusIterator.areMetricsEqual(fast));
+        Assert.assertTrue(locusIterator.areHistogramsEqual(fast));
+    }
+
+    /**
+     * Writes an indexed BAM with reads over all but the last contig of merger.fasta, some of them duplicates, poorly mapped,
+     * non-PF, secondary or supplementary, with indels, clipping, low quality or N bases, overlapping mates or an unmapped
+     * mate, and returns arguments to collect metrics over it, optionally restricted to intervals.
+     */
+    private List<String> makeMultiContigArgs(final boolean useIntervals) throws IOException {
+        final File reference = new File("testdata/picard/sam/merger.fasta");
+        final File tempSamFile = File.createTempFile("CollectWgsMetrics", ".bam", TEST_DIR);
+        tempSamFile.deleteOnExit();
+        new File(tempSamFile.getAbsolutePath().replaceAll("\\.bam$", ".bai")).deleteOnExit();
+
+        final SAMFileHeader header = new SAMFileHeader();
+        header.setSequenceDictionary(SAMSequenceDictionaryExtractor.extractDictionary(reference));
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        final SAMReadGroupRecord readGroupRecord = new SAMReadGroupRecord(READ_GROUP_ID);
+        readGroupRecord.setSample(SAMPLE);
+        readGroupRecord.setLibrary(LIBRARY);
+        header.addReadGroup(readGroupRecord);
+
+        final SAMRecordSetBuilder setBuilder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate, true, 100);
+        setBuilder.setReadGroup(readGroupRecord);
+        setBuilder.setHeader(header);
+        setBuilder.setReadLength(10);
+
+        final String[] cigars = {"10M", "10M", "10M", "5M2D5M", "3S7M", "4M1I5M", "6M3N4M"};
+        final Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            final int contig = random.nextInt(7);
+            final int contigLength = header.getSequence(contig).getSequenceLength();
+            final int start1 = 1 + random.nextInt(contigLength - 15);
+            final int start2 = random.nextBoolean() ? Math.min(start1 + random.nextInt(8), contigLength - 15) : 1 + random.nextInt(contigLength - 15);
+            final List<SAMRecord> pair = setBuilder.addPair("read" + i, contig, start1, start2, false, random.nextInt(20) == 0,
+                    cigars[random.nextInt(cigars.length)], cigars[random.nextInt(cigars.length)], random.nextBoolean(), random.nextBoolean(), 30);
+            for (final SAMRecord record : pair) {
+                record.setDuplicateReadFlag(random.nextInt(10) == 0);
+                record.setReadFailsVendorQualityCheckFlag(random.nextInt(30) == 0);
+                if (!record.getReadUnmappedFlag()) {
+                    record.setMappingQuality(random.nextInt(10) == 0 ? 5 : 60);
+                    record.setNotPrimaryAlignmentFlag(random.nextInt(30) == 0);
+                    record.setSupplementaryAlignmentFlag(!record.getNotPrimaryAlignmentFlag() && random.nextInt(30) == 0);
+                }
+
+                final byte[] bases = record.getReadBases().clone();
+                final byte[] quals = new byte[bases.length];
+                for (int j = 0; j < bases.length; j++) {
+                    if (random.nextInt(25) == 0) bases[j] = 'N';
+                    quals[j] = (byte) (random.nextInt(5) == 0 ? 2 + random.nextInt(15) : 20 + random.nextInt(20));
+                }
+                record.setReadBases(bases);
+                record.setBaseQualities(quals);
+            }
+        }
+
+        final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, tempSamFile);
+        for (final SAMRecord record : setBuilder) {
+            writer.addAlignment(record);
+        }
+        writer.close();
+
+        final List<String> args = new ArrayList<>(Arrays.asList(
+                "INPUT=" + tempSamFile.getAbsolutePath(),
+                "REFERENCE_SEQUENCE=" + reference.getAbsolutePath(),
+                "INCLUDE_BQ_HISTOGRAM=true",
+                "SAMPLE_SIZE=1000"));
+        if (useIntervals) {
+            final IntervalList intervals = new IntervalList(header);
+            intervals.add(new Interval("chr2", 10, 60));
+            intervals.add(new Interval("chr2", 50, 70));
+            intervals.add(new Interval("chr7", 1, 404));
+            intervals.add(new Interval("chr8", 1, 100));
+            final File intervalsFile = File.createTempFile("CollectWgsMetrics", ".interval_list");
+            intervalsFile.deleteOnExit();
+            intervals.write(intervalsFile);
+            args.add("INTERVALS=" + intervalsFile.getAbsolutePath());
+        }
+        return args;
+    }
+
+    private MetricsFile<CollectWgsMetrics.WgsMetrics, Integer> runWithArgs(final List<String> args, final String extraArg) throws IOException {
+        final File outfile = File.createTempFile("testWgsMetrics", ".txt");
+        outfile.deleteOnExit();
+
+        final List<String> allArgs = new ArrayList<>(args);
+        allArgs.add("OUTPUT=" + outfile.getAbsolutePath());
+        allArgs.add(extraArg);
+        Assert.assertEquals(runPicardCommandLine(allArgs), 0);
+
+        final MetricsFile<CollectWgsMetrics.WgsMetrics, Integer> output = new MetricsFile<>();
+        output.read(new FileReader(outfile));
+        return output;
+    }
+}
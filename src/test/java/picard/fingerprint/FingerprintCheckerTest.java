@@ -1,14 +1,26 @@
 package picard.fingerprint;
 
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.util.TestUtil;
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 /**
  * Created by farjoun on 8/27/15.
@@ -75,4 +87,145 @@ public class FingerprintCheckerTest {
         // (a hom normal isn't expected to be measured as a het in the tumor)
         Assert.assertTrue(mr.getLodTN() > mr.getLodNT());
     }
-}
\ No newline at end of file
+
+    @DataProvider(name = "allowDuplicateReads")
+    public Object[][] allowDuplicateReads() {
+        return new Object[][]{{false}, {true}};
+    }
+
+    @Test(dataProvider = "allowDuplicateReads")
+    public void testQueryByHaplotypeBlock(final boolean allowDuplicateReads) throws IOException {
+        final HaplotypeMap haplotypes = new HaplotypeMap(new File("testdata/picard/fingerprint/haplotypeMap.txt"));
+        final File dir = Files.createTempDirectory("FingerprintCheckerTest").toFile();
+        try {
+            final File bam = writeReadsOverSnps(haplotypes, new File(dir, "reads.bam"));
+
+            final FingerprintChecker locusChecker = new FingerprintChecker(haplotypes);
+            locusChecker.setAllowDuplicateReads(allowDuplicateReads);
+            final Map<SAMReadGroupRecord, Fingerprint> expected = locusChecker.fingerprintSamFile(bam, haplotypes.getIntervalList());
+
+            final FingerprintChecker blockChecker = new FingerprintChecker(haplotypes);
+            blockChecker.setAllowDuplicateReads(allowDuplicateReads);
+            blockChecker.setQueryByHaplotypeBlock(true);
+            final Map<SAMReadGroupRecord, Fingerprint> actual = blockChecker.fingerprintSamFile(bam, haplotypes.getIntervalList());
+
+            // No read spans two haplotype blocks, so the results must be identical
+            assertFingerprintsEqual(actual, expected);
+            int totalObservations = 0;
+            for (final Fingerprint fp : expected.values()) {
+                for (final HaplotypeProbabilities probs : fp.values()) totalObservations += probs.getTotalObs();
+            }
+            Assert.assertTrue(totalObservations > 0);
+        } finally {
+            TestUtil.recursiveDelete(dir);
+        }
+    }
+
+    @Test
+    public void testFingerprintCache() throws IOException {
+        final HaplotypeMap haplotypes = new HaplotypeMap(new File("testdata/picard/fingerprint/haplotypeMap.txt"));
+        final File dir = Files.createTempDirectory("FingerprintCheckerTest").toFile();
+        try {
+            final File bam = writeReadsOverSnps(haplotypes, new File(dir, "reads.bam"));
+            final File cacheDir = new File(dir, "cache");
+            Assert.assertTrue(cacheDir.mkdir());
+
+            final FingerprintChecker checker = new FingerprintChecker(haplotypes);
+            final Map<SAMReadGroupRecord, Fingerprint> expected = checker.fingerprintSamFile(bam, haplotypes.getIntervalList());
+
+            // The first run writes the cache, and the second reads it
+            checker.setFingerprintCacheDirectory(cacheDir);
+            assertFingerprintsEqual(checker.fingerprintSamFile(bam, haplotypes.getIntervalList()), expected);
+            final File[] cacheFiles = cacheDir.listFiles();
+            Assert.assertEquals(cacheFiles.length, 1);
+            final long lastModified = cacheFiles[0].lastModified();
+            assertFingerprintsEqual(checker.fingerprintSamFile(bam, haplotypes.getIntervalList()), expected);
+            Assert.assertEquals(cacheFiles[0].lastModified(), lastModified);
+
+            // Changing a setting that affects the fingerprints must not use the cache
+            final FingerprintChecker strictChecker = new FingerprintChecker(haplotypes);
+            strictChecker.setMinimumBaseQuality(35);
+            final Map<SAMReadGroupRecord, Fingerprint> strictExpected = strictChecker.fingerprintSamFile(bam, haplotypes.getIntervalList());
+            strictChecker.setFingerprintCacheDirectory(cacheDir);
+            assertFingerprintsEqual(strictChecker.fingerprintSamFile(bam, haplotypes.getIntervalList()), strictExpected);
+
+            // Nor must a change to the input
+            Assert.assertTrue(bam.setLastModified(bam.lastModified() - 10000));
+            assertFingerprintsEqual(checker.fingerprintSamFile(bam, haplotypes.getIntervalList()), expected);
+            assertFingerprintsEqual(checker.fingerprintSamFile(bam, haplotypes.getIntervalList()), expected);
+        } finally {
+            TestUtil.recursiveDelete(dir);
+        }
+    }
+
+    private void assertFingerprintsEqual(final Map<SAMReadGroupRecord, Fingerprint> actual, final Map<SAMReadGroupRecord, Fingerprint> expected) {
+        Assert.assertEquals(actual.keySet(), expected.keySet());
+        for (final SAMReadGroupRecord rg : expected.keySet()) {
+            final Fingerprint expectedFp = expected.get(rg);
+            final Fingerprint actualFp = actual.get(rg);
+            Assert.assertEquals(actualFp.getSample(), expectedFp.getSample());
+            Assert.assertEquals(actualFp.getInfo(), expectedFp.getInfo());
+            Assert.assertEquals(actualFp.keySet(), expectedFp.keySet());
+            for (final HaplotypeBlock block : expectedFp.keySet()) {
+                final HaplotypeProbabilities expectedProbs = expectedFp.get(block);
+                final HaplotypeProbabilities actualProbs = actualFp.get(block);
+                Assert.assertEquals(actualProbs.getObsAllele1(), expectedProbs.getObsAllele1(), block.toString());
+                Assert.assertEquals(actualProbs.getObsAllele2(), expectedProbs.getObsAllele2(), block.toString());
+                Assert.assertEquals(actualProbs.getTotalObs(), expectedProbs.getTotalObs(), block.toString());
+                Assert.assertEquals(actualProbs.getLikelihoods(), expectedProbs.getLikelihoods(), block.toString());
+            }
+        }
+    }
+
+    /**
+     * Writes an indexed BAM, in two read groups, of reads overlapping each SNP in the map with a mix of CIGARs, base
+     * and mapping qualities, duplicate and secondary flags, and of pairs whose mates overlap different SNPs of a block.
+     */
+    private File writeReadsOverSnps(final HaplotypeMap haplotypes, final File bam) {
+        final Random random = new Random(7);
+        final String[] cigars = {"36M", "10M2D26M", "5S31M", "15M3I18M"};
+
+        final SAMFileHeader header = new SAMFileHeader();
+        header.setSequenceDictionary(haplotypes.getHeader().getSequenceDictionary());
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        builder.setHeader(header);
+
+        int readNumber = 0;
+        for (final String readGroupId : new String[]{"rg1", "rg2"}) {
+            final SAMReadGroupRecord readGroup = new SAMReadGroupRecord(readGroupId);
+            readGroup.setSample("sample");
+            readGroup.setPlatformUnit(readGroupId);
+            header.addReadGroup(readGroup);
+            builder.setReadGroup(readGroup);
+
+            for (final HaplotypeBlock block : haplotypes.getHaplotypes()) {
+                final List<Snp> snps = new ArrayList<>(block.getSnps());
+                final int contig = header.getSequenceIndex(snps.get(0).getChrom());
+                for (int i = 0; i < 30; ++i) {
+                    final String name = "read" + readNumber++;
+                    final Snp snp1 = snps.get(random.nextInt(snps.size()));
+                    final Snp snp2 = snps.get(random.nextInt(snps.size()));
+                    final List<SAMRecord> recs = builder.addPair(name, contig, snp1.getPos() - random.nextInt(36), snp2.getPos() - random.nextInt(36),
+                            false, false, cigars[random.nextInt(cigars.length)], cigars[random.nextInt(cigars.length)], false, true, 30);
+                    if (random.nextInt(3) == 0) {
+                        recs.add(builder.addFrag(name + "_frag", contig, snp1.getPos() - random.nextInt(36), random.nextBoolean(),
+                                false, cigars[random.nextInt(cigars.length)], null, 30, random.nextInt(10) == 0));
+                    }
+                    for (final SAMRecord rec : recs) {
+                        final byte[] quals = new byte[rec.getReadLength()];
+                        for (int q = 0; q < quals.length; ++q) quals[q] = (byte) (5 + random.nextInt(36));
+                        rec.setBaseQualities(quals);
+                        rec.setMappingQuality(random.nextInt(60));
+                        rec.setDuplicateReadFlag(random.nextInt(5) == 0);
+                    }
+                }
+            }
+        }
+
+        final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bam);
+        for (final SAMRecord rec : builder) writer.addAlignment(rec);
+        writer.close();
+        return bam;
+    }
+}
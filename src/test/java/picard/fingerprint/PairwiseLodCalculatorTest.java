@@ -0,0 +1,86 @@
+package picard.fingerprint;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that PairwiseLodCalculator gives the same LODs as FingerprintChecker.calculateMatchResults.
+ */
+public class PairwiseLodCalculatorTest {
+    private static final double GENOTYPING_ERROR_RATE = 0.01;
+    private static final double LOSS_OF_HET_RATE = 0.5;
+    private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+
+    /** Makes fingerprints over a set of blocks, with some blocks missing and some present without evidence. */
+    private List<Fingerprint> makeFingerprints(final int numFingerprints, final int numBlocks) {
+        final Random random = new Random(42);
+        final List<HaplotypeBlock> blocks = new ArrayList<>();
+        final List<Snp> snps = new ArrayList<>();
+        for (int i = 0; i < numBlocks; ++i) {
+            final double maf = 0.05 + 0.45 * random.nextDouble();
+            final Snp snp = new Snp("snp" + i, "chr" + (1 + i % 3), 1000 * (i + 1), (byte) 'A', (byte) 'C', maf,
+                    Collections.singletonList("dummy"));
+            final HaplotypeBlock block = new HaplotypeBlock(maf);
+            block.addSnp(snp);
+            blocks.add(block);
+            snps.add(snp);
+        }
+
+        final List<Fingerprint> fingerprints = new ArrayList<>();
+        for (int i = 0; i < numFingerprints; ++i) {
+            final Fingerprint fp = new Fingerprint("sample" + (i % 4), null, "rg" + i);
+            for (int b = 0; b < numBlocks; ++b) {
+                if (random.nextInt(5) == 0) continue;
+                final HaplotypeProbabilitiesFromSequence probs = new HaplotypeProbabilitiesFromSequence(blocks.get(b));
+                final int observations = random.nextInt(6);
+                for (int k = 0; k < observations; ++k) {
+                    probs.addToProbs(snps.get(b), BASES[random.nextInt(BASES.length)], (byte) (10 + random.nextInt(30)));
+                }
+                fp.add(probs);
+            }
+            fingerprints.add(fp);
+        }
+        return fingerprints;
+    }
+
+    @DataProvider(name = "configurations")
+    public Object[][] configurations() {
+        return new Object[][]{
+                {1, 1, true}, {1, 1, false},
+                {3, 4, true}, {3, 4, false},
+                {2, 64, true}, {2, 64, false},
+        };
+    }
+
+    @Test(dataProvider = "configurations")
+    public void testMatchesCalculateMatchResults(final int threads, final int tileSize, final boolean upperTriangleOnly) {
+        final List<Fingerprint> fingerprints = makeFingerprints(23, 40);
+        final PairwiseLodCalculator calculator =
+                new PairwiseLodCalculator(fingerprints, GENOTYPING_ERROR_RATE, LOSS_OF_HET_RATE, tileSize);
+
+        final List<int[]> pairs = new ArrayList<>();
+        calculator.compareAll(upperTriangleOnly, threads, (row, column, lod, lodTumorNormal, lodNormalTumor) -> {
+            final MatchResults expected = FingerprintChecker.calculateMatchResults(fingerprints.get(row), fingerprints.get(column),
+                    GENOTYPING_ERROR_RATE, LOSS_OF_HET_RATE);
+            Assert.assertEquals(lod, expected.getLOD());
+            Assert.assertEquals(lodTumorNormal, expected.getLodTN());
+            Assert.assertEquals(lodNormalTumor, expected.getLodNT());
+            pairs.add(new int[]{row, column});
+        });
+
+        // Results must be handed out for every pair, in row-major order
+        int index = 0;
+        for (int row = 0; row < fingerprints.size(); ++row) {
+            for (int column = upperTriangleOnly ? row + 1 : 0; column < fingerprints.size(); ++column) {
+                Assert.assertEquals(pairs.get(index++), new int[]{row, column});
+            }
+        }
+        Assert.assertEquals(index, pairs.size());
+    }
+}
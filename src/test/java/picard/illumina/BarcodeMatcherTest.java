@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina;
+
+import htsjdk.samtools.util.SequenceUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class BarcodeMatcherTest {
+    private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+    private static final byte[] READ_BASES = {'A', 'C', 'G', 'T', 'A', 'C', 'G', 'T', 'a', 'N', '.', 'X'};
+
+    @DataProvider(name = "barcodeSets")
+    public Object[][] barcodeSets() {
+        return new Object[][]{
+                // numBarcodes, segment lengths, minimum base quality, include N in a barcode, vary barcode lengths
+                {1, new int[]{8}, 0, false, false},
+                {96, new int[]{8}, 0, false, false},
+                {96, new int[]{8}, 20, false, false},
+                {384, new int[]{8, 8}, 20, false, false},
+                {48, new int[]{16, 16}, 10, false, false},
+                {24, new int[]{20, 20}, 10, false, false},
+                {24, new int[]{6, 6}, 0, true, false},
+                {24, new int[]{6, 6}, 10, false, true}
+        };
+    }
+
+    @Test(dataProvider = "barcodeSets")
+    public void testMatchesBaseByBaseComparison(final int numBarcodes, final int[] segmentLengths,
+                                                final int minimumBaseQuality, final boolean includeN,
+                                                final boolean varyLengths) {
+        final Random random = new Random(numBarcodes * 31 + segmentLengths.length);
+        final List<byte[][]> barcodes = new ArrayList<byte[][]>();
+        for (int b = 0; b < numBarcodes; ++b) {
+            final byte[][] barcode = new byte[segmentLengths.length][];
+            for (int j = 0; j < segmentLengths.length; ++j) {
+                final int length = varyLengths && b % 2 == 1 ? segmentLengths[j] - 1 : segmentLengths[j];
+                barcode[j] = new byte[length];
+                for (int i = 0; i < length; ++i) barcode[j][i] = BASES[random.nextInt(BASES.length)];
+            }
+            barcodes.add(barcode);
+        }
+        if (includeN) barcodes.get(0)[0][0] = 'N';
+
+        final BarcodeMatcher matcher = new BarcodeMatcher(barcodes, minimumBaseQuality);
+        final BarcodeMatcher.Match match = matcher.newMatch();
+
+        for (int r = 0; r < 5000; ++r) {
+            // Start from an expected barcode most of the time, so that perfect and near matches are common
+            final byte[][] template = barcodes.get(random.nextInt(numBarcodes));
+            final byte[][] read = new byte[segmentLengths.length][];
+            final byte[][] qualities = new byte[segmentLengths.length][];
+            final int numChanges = random.nextInt(4);
+            for (int j = 0; j < segmentLengths.length; ++j) {
+                read[j] = new byte[segmentLengths[j]];
+                qualities[j] = new byte[segmentLengths[j]];
+                for (int i = 0; i < read[j].length; ++i) {
+                    read[j][i] = i < template[j].length && r % 10 != 0 ? template[j][i] : BASES[random.nextInt(BASES.length)];
+                    qualities[j][i] = (byte) (random.nextInt(10) == 0 ? random.nextInt(minimumBaseQuality + 1) : 30);
+                }
+            }
+            for (int c = 0; c < numChanges; ++c) {
+                final int j = random.nextInt(read.length);
+                read[j][random.nextInt(read[j].length)] = READ_BASES[random.nextInt(READ_BASES.length)];
+            }
+
+            final byte[][] q = minimumBaseQuality > 0 ? qualities : null;
+            matcher.findBestBarcode(read, q, match);
+            final int[] expected = findBestBarcodeBaseByBase(barcodes, read, q, minimumBaseQuality);
+            Assert.assertEquals(match.barcodeIndex, expected[0]);
+            Assert.assertEquals(match.mismatches, expected[1]);
+            Assert.assertEquals(match.mismatchesToSecondBest, expected[2]);
+        }
+    }
+
+    /** The original matching loop from ExtractIlluminaBarcodes, which compares every barcode one base at a time. */
+    private static int[] findBestBarcodeBaseByBase(final List<byte[][]> barcodes, final byte[][] read,
+                                                   final byte[][] qualities, final int minimumBaseQuality) {
+        int totalBarcodeReadBases = 0;
+        for (final byte[] bc : read) totalBarcodeReadBases += bc.length;
+        int bestIndex = -1;
+        int numMismatchesInBestBarcode = totalBarcodeReadBases + 1;
+        int numMismatchesInSecondBestBarcode = totalBarcodeReadBases + 1;
+
+        for (int b = 0; b < barcodes.size(); ++b) {
+            final byte[][] barcode = barcodes.get(b);
+            int numMismatches = 0;
+            for (int j = 0; j < barcode.length; j++) {
+                final int basesToCheck = Math.min(barcode[j].length, read[j].length);
+                for (int i = 0; i < basesToCheck; ++i) {
+                    if (!SequenceUtil.isNoCall(read[j][i])) {
+                        if (!SequenceUtil.basesEqual(barcode[j][i], read[j][i])) ++numMismatches;
+                        else if (qualities != null && qualities[j][i] < minimumBaseQuality) ++numMismatches;
+                    }
+                }
+            }
+            if (numMismatches < numMismatchesInBestBarcode) {
+                if (bestIndex != -1) {
+                    numMismatchesInSecondBestBarcode = numMismatchesInBestBarcode;
+                }
+                numMismatchesInBestBarcode = numMismatches;
+                bestIndex = b;
+            } else if (numMismatches < numMismatchesInSecondBestBarcode) {
+                numMismatchesInSecondBestBarcode = numMismatches;
+            }
+        }
+        return new int[]{bestIndex, numMismatchesInBestBarcode, numMismatchesInSecondBestBarcode};
+    }
+}
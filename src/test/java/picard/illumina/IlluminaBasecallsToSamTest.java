@@ -241,6 +241,12 @@ public class IlluminaBasecallsToSamTest extends CommandLineProgramTest {
         runStandardTest(1, "multiplexedBarcode2.", "barcode.params", 1, "25T8B4M4M17T", BASECALLS_DIR, TEST_DATA_DIR_WITH_4M4M_INDEX);
     }
 
+    @Test
+    public void testMultiplexedMultiThreaded() throws Exception {
+        runStandardTest(1, "multiplexedBarcode.", "barcode.params", 1, "25T8B25T", BASECALLS_DIR, TEST_DATA_DIR,
+                "NUM_PROCESSORS=4");
+    }
+
     //Same as testMultiplexed except we use BARCODE_1 instead of BARCODE
     @Test
     public void testMultiplexedWithAlternateBarcodeName() throws Exception {
@@ -278,11 +284,13 @@ public class IlluminaBasecallsToSamTest extends CommandLineProgramTest {
      * @param libraryParamsFile
      * @param concatNColumnFields
      * @param readStructure
+     * @param extraArgs Additional arguments passed to IlluminaBasecallsToSam
      * @throws Exception
      */
     private void runStandardTest(final int lane, final String jobName, final String libraryParamsFile,
                                  final int concatNColumnFields, final String readStructure,
-                                 final File baseCallsDir, final File testDataDir) throws Exception {
+                                 final File baseCallsDir, final File testDataDir,
+                                 final String... extraArgs) throws Exception {
         final File outputDir = File.createTempFile(jobName, ".dir");
         outputDir.delete();
         outputDir.mkdir();
@@ -309,13 +317,14 @@ public class IlluminaBasecallsToSamTest extends CommandLineProgramTest {
         writer.close();
         reader.close();
 
-        Assert.assertEquals(runPicardCommandLine(new String[]{
+        final List<String> args = new ArrayList<String>(Arrays.asList(
                 "BASECALLS_DIR=" + baseCallsDir,
                 "LANE=" + lane,
                 "RUN_BARCODE=HiMom",
                 "READ_STRUCTURE=" + readStructure,
-                "LIBRARY_PARAMS=" + libraryParams
-        }), 0);
+                "LIBRARY_PARAMS=" + libraryParams));
+        args.addAll(Arrays.asList(extraArgs));
+        Assert.assertEquals(runPicardCommandLine(args.toArray(new String[args.size()])), 0);
 
         for (final File outputSam : samFiles) {
             IOUtil.assertFilesEqual(outputSam, new File(testDataDir, outputSam.getName()));
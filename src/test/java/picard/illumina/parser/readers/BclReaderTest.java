@@ -73,6 +73,30 @@ public class BclReaderTest {
         reader.close();
     }
 
+    @DataProvider(name = "clusterBatchSizes")
+    public Object[][] clusterBatchSizes() {
+        return new Object[][]{{1}, {7}, {expectedBases.length}, {expectedBases.length + 1}};
+    }
+
+    @Test(dataProvider = "clusterBatchSizes")
+    public void readValidFileInBatches(final int clusterBatchSize) {
+        final BclQualityEvaluationStrategy bclQualityEvaluationStrategy = new BclQualityEvaluationStrategy(BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY);
+        final BclReader reader = new BclReader(PASSING_BCL_FILE, bclQualityEvaluationStrategy, false);
+        reader.setClusterBatchSize(clusterBatchSize);
+        final byte[] quals = qualsAsBytes();
+
+        int readNum = 0;
+        while (reader.hasNext()) {
+            final BclData bv = reader.next();
+            Assert.assertEquals(bv.bases[0][0], expectedBases[readNum], " On num cluster: " + readNum);
+            Assert.assertEquals(bv.qualities[0][0], quals[readNum], " On num cluster: " + readNum);
+            ++readNum;
+        }
+        Assert.assertEquals(readNum, expectedBases.length);
+        bclQualityEvaluationStrategy.assertMinimumQualities();
+        reader.close();
+    }
+
     @DataProvider(name = "failingFiles")
     public Object[][] failingFiles() {
         return new Object[][]{
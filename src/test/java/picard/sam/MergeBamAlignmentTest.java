@@ -42,6 +42,7 @@ import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.SequenceUtil;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -51,12 +52,15 @@ import picard.sam.testers.ValidateSamTester;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 /**
  *  Test for the MergeBamAlignment class
@@ -1685,4 +1689,130 @@ public class MergeBamAlignmentTest extends CommandLineProgramTest {
         assertSamValid(mergedSam);
         IOUtil.assertFilesEqual(expectedSam, mergedSam);
     }
+
+    @DataProvider(name = "threadsSortOrders")
+    public Object[][] threadsSortOrders() {
+        return new Object[][] {
+                {SAMFileHeader.SortOrder.coordinate},
+                {SAMFileHeader.SortOrder.queryname},
+        };
+    }
+
+    /** Merging, clipping and calculating NM and UQ on multiple threads gives exactly the output of a single thread. */
+    @Test(dataProvider = "threadsSortOrders")
+    public void testMultipleThreadsMatchSingleThread(final SAMFileHeader.SortOrder sortOrder) throws IOException {
+        final File dir = IOUtil.createTempDir("mergeBamAlignmentThreads", null);
+        try {
+            final File refFasta = new File(dir, "reference.fasta");
+            final File unmappedSam = new File(dir, "unmapped.sam");
+            final File alignedSam = new File(dir, "aligned.sam");
+            writeRandomPairs(refFasta, unmappedSam, alignedSam, 8000);
+
+            final List<List<String>> outputs = new ArrayList<List<String>>();
+            for (final int threads : new int[] {1, 4}) {
+                final File output = new File(dir, "merged." + threads + ".sam");
+                Assert.assertEquals(runPicardCommandLine(Arrays.asList(
+                        "UNMAPPED_BAM=" + unmappedSam.getAbsolutePath(),
+                        "ALIGNED_BAM=" + alignedSam.getAbsolutePath(),
+                        "REFERENCE_SEQUENCE=" + refFasta.getAbsolutePath(),
+                        "OUTPUT=" + output.getAbsolutePath(),
+                        "SORT_ORDER=" + sortOrder,
+                        "THREADS=" + threads)), 0);
+                // NM and UQ are only calculated for coordinate sorted output, without which the output has warnings
+                if (sortOrder == SAMFileHeader.SortOrder.coordinate) assertSamValid(output);
+                outputs.add(Files.readAllLines(output.toPath()));
+            }
+            Assert.assertEquals(outputs.get(1), outputs.get(0));
+        } finally {
+            IOUtil.deleteDirectoryTree(dir);
+        }
+    }
+
+    /**
+     * Writes a reference of two random contigs, and pairs of reads from it with a few mismatches, some of which
+     * are unaligned and some of which have inserts short enough for the reads to be clipped.
+     */
+    private static void writeRandomPairs(final File refFasta, final File unmappedSam, final File alignedSam, final int numPairs) throws IOException {
+        final Random random = new Random(42);
+        final int readLength = 50;
+        final SAMFileHeader alignedHeader = new SAMFileHeader();
+        alignedHeader.setSortOrder(SAMFileHeader.SortOrder.queryname);
+        final List<byte[]> contigs = new ArrayList<byte[]>();
+        try (final PrintWriter fasta = new PrintWriter(refFasta)) {
+            for (final String name : new String[] {"chr1", "chr2"}) {
+                final byte[] bases = new byte[20000];
+                for (int i = 0; i < bases.length; ++i) bases[i] = (byte) "ACGT".charAt(random.nextInt(4));
+                contigs.add(bases);
+                alignedHeader.addSequence(new SAMSequenceRecord(name, bases.length));
+                fasta.println(">" + name);
+                fasta.println(new String(bases));
+            }
+        }
+        final SAMFileHeader dictHeader = new SAMFileHeader();
+        dictHeader.setSequenceDictionary(alignedHeader.getSequenceDictionary());
+        new SAMFileWriterFactory().makeSAMWriter(dictHeader, false, new File(refFasta.getParentFile(), "reference.dict")).close();
+
+        final SAMFileHeader unmappedHeader = new SAMFileHeader();
+        unmappedHeader.setSortOrder(SAMFileHeader.SortOrder.queryname);
+        final SAMReadGroupRecord readGroup = new SAMReadGroupRecord("RG1");
+        readGroup.setSample("sample");
+        readGroup.setPlatform("ILLUMINA");
+        unmappedHeader.addReadGroup(readGroup);
+        final SAMFileWriter unmapped = new SAMFileWriterFactory().makeSAMWriter(unmappedHeader, true, unmappedSam);
+        final SAMFileWriter aligned = new SAMFileWriterFactory().makeSAMWriter(alignedHeader, true, alignedSam);
+        for (int i = 0; i < numPairs; ++i) {
+            final String name = String.format("read%06d", i);
+            final int contig = random.nextInt(contigs.size());
+            final int insertSize = 30 + random.nextInt(300);
+            final int start = random.nextInt(20000 - Math.max(insertSize, readLength));
+            final int mateStart = Math.max(0, start + insertSize - readLength);
+            final boolean isAligned = random.nextInt(10) != 0;
+
+            for (final boolean first : new boolean[] {true, false}) {
+                final int readStart = first ? start : mateStart;
+                final byte[] refBases = Arrays.copyOfRange(contigs.get(contig), readStart, readStart + readLength);
+                final byte[] readBases = refBases.clone();
+                for (int j = 0; j < readBases.length; ++j) {
+                    if (random.nextInt(50) == 0) readBases[j] = (byte) "ACGT".charAt(random.nextInt(4));
+                }
+                // The second of pair is sequenced from the reverse strand
+                if (!first) SequenceUtil.reverseComplement(readBases);
+                final byte[] quals = new byte[readLength];
+                for (int j = 0; j < quals.length; ++j) quals[j] = (byte) (10 + random.nextInt(30));
+
+                final SAMRecord unmappedRec = new SAMRecord(unmappedHeader);
+                unmappedRec.setReadName(name);
+                unmappedRec.setReadPairedFlag(true);
+                unmappedRec.setFirstOfPairFlag(first);
+                unmappedRec.setSecondOfPairFlag(!first);
+                unmappedRec.setReadUnmappedFlag(true);
+                unmappedRec.setMateUnmappedFlag(true);
+                unmappedRec.setReadBases(readBases);
+                unmappedRec.setBaseQualities(quals);
+                unmappedRec.setAttribute(SAMTag.RG.name(), readGroup.getId());
+                unmapped.addAlignment(unmappedRec);
+
+                if (isAligned) {
+                    final SAMRecord alignedRec = new SAMRecord(alignedHeader);
+                    alignedRec.setReadName(name);
+                    alignedRec.setReadPairedFlag(true);
+                    alignedRec.setFirstOfPairFlag(first);
+                    alignedRec.setSecondOfPairFlag(!first);
+                    alignedRec.setReferenceIndex(contig);
+                    alignedRec.setAlignmentStart(readStart + 1);
+                    alignedRec.setReadNegativeStrandFlag(!first);
+                    alignedRec.setMateReferenceIndex(contig);
+                    alignedRec.setMateAlignmentStart((first ? mateStart : start) + 1);
+                    alignedRec.setMateNegativeStrandFlag(first);
+                    alignedRec.setCigarString(readLength + "M");
+                    alignedRec.setMappingQuality(60);
+                    alignedRec.setReadBases(refBases);
+                    alignedRec.setBaseQualities(quals);
+                    aligned.addAlignment(alignedRec);
+                }
+            }
+        }
+        unmapped.close();
+        aligned.close();
+    }
 }
@@ -34,6 +34,10 @@ import picard.cmdline.CommandLineProgramTest;
 import picard.sam.testers.ValidateSamTester;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 
 public class MergeSamFilesTest extends CommandLineProgramTest {
     private static final File TEST_DATA_DIR = new File("testdata/picard/sam/MergeSamFiles");
@@ -63,4 +67,30 @@ public class MergeSamFilesTest extends CommandLineProgramTest {
         new ValidateSamTester().assertSamValid(mergedOutput);
         CloserUtil.close(reader);
     }
+
+    /**
+     * Confirm that reading ahead on multiple threads produces the same merge, including read group translation.
+     */
+    @Test
+    public void readAheadMatchesSingleThreadedMergeTest() throws Exception {
+        final File inputDir = new File(TEST_DATA_DIR, "case2");
+        final List<String> singleThreaded = mergeCase2(inputDir, 1);
+        final List<String> multiThreaded = mergeCase2(inputDir, 3);
+        Assert.assertFalse(singleThreaded.isEmpty());
+        Assert.assertEquals(multiThreaded, singleThreaded);
+    }
+
+    private List<String> mergeCase2(final File inputDir, final int threads) throws IOException {
+        final File mergedOutput = File.createTempFile("readAheadMatchesSingleThreadedMergeTest.", ".sam");
+        mergedOutput.deleteOnExit();
+        final List<String> args = new ArrayList<String>();
+        for (int i = 1; i <= 4; ++i) {
+            args.add("I=" + new File(inputDir, "chr11sub_file" + i + ".sam").getAbsolutePath());
+        }
+        args.add("O=" + mergedOutput.getAbsolutePath());
+        args.add("THREADS=" + threads);
+        args.add("VALIDATION_STRINGENCY=SILENT");
+        Assert.assertEquals(runPicardCommandLine(args.toArray(new String[args.size()])), 0);
+        return Files.readAllLines(mergedOutput.toPath());
+    }
 }
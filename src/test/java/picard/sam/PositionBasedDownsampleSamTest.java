@@ -9,6 +9,7 @@ import htsjdk.samtools.SAMRecordSetBuilder;
 import htsjdk.samtools.SAMTextHeaderCodec;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.BufferedLineReader;
 import htsjdk.samtools.util.IOUtil;
 import org.testng.Assert;
@@ -22,8 +23,10 @@ import picard.cmdline.CommandLineProgramTest;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
@@ -160,6 +163,76 @@ public class PositionBasedDownsampleSamTest extends CommandLineProgramTest {
         assertLessThan(countSamTotalRecord(downsampled), fraction * 1.2 * countSamTotalRecord(samFile));
     }
 
+    // test that reading the tile extents from a TILE_EXTENTS file, and reading ahead, give the same output as finding them in a first pass
+    @Test
+    public void testTileExtentsAndThreads() throws IOException {
+        final File tileExtents = new File(tempDir, "tile_extents.txt");
+        final List<String> expected = downsampleToSamStrings(.4);
+
+        Assert.assertFalse(tileExtents.exists());
+        Assert.assertEquals(downsampleToSamStrings(.4, "TILE_EXTENTS=" + tileExtents.getAbsolutePath()), expected);
+
+        final List<PositionBasedDownsampleSam.TileExtentMetrics> extents = MetricsFile.readBeans(tileExtents);
+        Assert.assertEquals(extents.size(), 1);
+        Assert.assertEquals(extents.get(0).TILE, 2203);
+        Assert.assertEquals(extents.get(0).READS, 2 * 10000);
+
+        final long lastModified = tileExtents.lastModified();
+        Assert.assertEquals(downsampleToSamStrings(.4, "TILE_EXTENTS=" + tileExtents.getAbsolutePath(), "THREADS=2"), expected);
+        Assert.assertEquals(tileExtents.lastModified(), lastModified);
+    }
+
+    // test that a TILE_EXTENTS file written for another input, or missing a tile of the input, is not used but overwritten
+    @Test
+    public void testTileExtentsOfOtherInput() throws IOException {
+        final File tileExtents = new File(tempDir, "other_tile_extents.txt");
+        final File otherSamFile = new File(tempDir, "other.bam");
+        IOUtil.copyFile(tempSamFile, otherSamFile);
+        final List<String> expected = downsampleToSamStrings(.4);
+
+        // extents found in a file with another path
+        Assert.assertEquals(downsampleToSamStrings(otherSamFile, .4, "TILE_EXTENTS=" + tileExtents.getAbsolutePath()), expected);
+        Assert.assertEquals(downsampleToSamStrings(.4, "TILE_EXTENTS=" + tileExtents.getAbsolutePath()), expected);
+        Assert.assertTrue(readTileExtentsFile(tileExtents).getHeaders().toString().contains(tempSamFile.getAbsolutePath()));
+
+        // extents of this input, but for another tile
+        final MetricsFile<PositionBasedDownsampleSam.TileExtentMetrics, Integer> otherTile = readTileExtentsFile(tileExtents);
+        otherTile.getMetrics().get(0).TILE = 1101;
+        otherTile.write(tileExtents);
+        Assert.assertEquals(downsampleToSamStrings(.4, "TILE_EXTENTS=" + tileExtents.getAbsolutePath()), expected);
+        Assert.assertEquals(readTileExtentsFile(tileExtents).getMetrics().get(0).TILE, 2203);
+    }
+
+    private MetricsFile<PositionBasedDownsampleSam.TileExtentMetrics, Integer> readTileExtentsFile(final File tileExtents) throws IOException {
+        final MetricsFile<PositionBasedDownsampleSam.TileExtentMetrics, Integer> metricsFile = new MetricsFile<PositionBasedDownsampleSam.TileExtentMetrics, Integer>();
+        final FileReader reader = new FileReader(tileExtents);
+        metricsFile.read(reader);
+        reader.close();
+        return metricsFile;
+    }
+
+    private List<String> downsampleToSamStrings(final double fraction, final String... extraArgs) throws IOException {
+        return downsampleToSamStrings(tempSamFile, fraction, extraArgs);
+    }
+
+    private List<String> downsampleToSamStrings(final File input, final double fraction, final String... extraArgs) throws IOException {
+        final File downsampled = File.createTempFile("PositionalDownsampleSam", ".bam", tempDir);
+        final List<String> args = new ArrayList<String>();
+        args.add("INPUT=" + input.getAbsolutePath());
+        args.add("OUTPUT=" + downsampled.getAbsolutePath());
+        args.add("FRACTION=" + fraction);
+        Collections.addAll(args, extraArgs);
+        assertEquals(runPicardCommandLine(args), 0);
+
+        final List<String> samStrings = new ArrayList<String>();
+        final SamReader reader = SamReaderFactory.makeDefault().open(downsampled);
+        for (final SAMRecord record : reader) {
+            samStrings.add(record.getSAMString());
+        }
+        reader.close();
+        return samStrings;
+    }
+
     private long countSamTotalRecord(final File samFile) {
         final SamReader reader = SamReaderFactory.make().open(samFile);
         assert reader.hasIndex();
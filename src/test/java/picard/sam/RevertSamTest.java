@@ -24,8 +24,11 @@
 package picard.sam;
 
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
 import htsjdk.samtools.SAMTag;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
@@ -48,6 +51,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 /**
  * Created by IntelliJ IDEA.
@@ -193,6 +197,88 @@ public class RevertSamTest extends CommandLineProgramTest {
         Assert.assertEquals(result, 0, "Validation of reverted single-end sample failed.");
     }
 
+    @DataProvider(name = "threadsTestData")
+    public Object[][] getThreadsTestData() {
+        return new Object[][] {
+                {false, SAMFileHeader.SortOrder.queryname},
+                {false, SAMFileHeader.SortOrder.coordinate},
+                {true, SAMFileHeader.SortOrder.queryname},
+        };
+    }
+
+    /** Reverting read groups on multiple threads gives exactly the outputs of a single thread. */
+    @Test(dataProvider = "threadsTestData")
+    public void testOutputByReadGroupWithThreads(final boolean sanitize, final SAMFileHeader.SortOrder sortOrder) throws Exception {
+        final File input = File.createTempFile("revert_sam_threads", ".sam");
+        input.deleteOnExit();
+        writeReadGroupPairs(input, 3, 3000);
+
+        final List<Map<String, List<String>>> outputs = new ArrayList<Map<String, List<String>>>();
+        for (final int threads : new int[] {1, 4}) {
+            final File outputDir = Files.createTempDirectory("picardRevertSamThreadsTest").toFile();
+            outputDir.deleteOnExit();
+            final String args[] = {
+                    "INPUT=" + input.getAbsolutePath(),
+                    "OUTPUT=" + outputDir.getAbsolutePath(),
+                    "OUTPUT_BY_READGROUP=true",
+                    "SORT_ORDER=" + sortOrder.name(),
+                    "SANITIZE=" + sanitize,
+                    "MAX_DISCARD_FRACTION=0.1",
+                    "MAX_RECORDS_IN_RAM=2000",
+                    "THREADS=" + threads
+            };
+            Assert.assertEquals(runPicardCommandLine(args), 0);
+
+            final Map<String, List<String>> linesByReadGroup = new HashMap<String, List<String>>();
+            for (final String readGroupId : new String[] {"A", "B", "C"}) {
+                final File output = new File(outputDir, readGroupId + ".sam");
+                output.deleteOnExit();
+                linesByReadGroup.put(readGroupId, Files.readAllLines(output.toPath()));
+            }
+            outputs.add(linesByReadGroup);
+        }
+        Assert.assertEquals(outputs.get(1), outputs.get(0));
+        if (sanitize) {
+            // Each read group loses its orphaned reads
+            for (final List<String> lines : outputs.get(0).values()) Assert.assertTrue(lines.size() < 2 * 3000);
+        }
+    }
+
+    /**
+     * Writes aligned pairs in coordinate order for each of the given number of read groups, with a few secondary
+     * alignments and reads whose mates are missing, which sanitizing discards.
+     */
+    private static void writeReadGroupPairs(final File output, final int numReadGroups, final int pairsPerReadGroup) {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        builder.setRandomSeed(7);
+        final Random random = new Random(7);
+        final List<SAMReadGroupRecord> readGroups = new ArrayList<SAMReadGroupRecord>();
+        for (int i = 0; i < numReadGroups; ++i) {
+            final SAMReadGroupRecord readGroup = new SAMReadGroupRecord(String.valueOf((char) ('A' + i)));
+            readGroup.setSample("sample");
+            readGroup.setLibrary("library");
+            readGroups.add(readGroup);
+            builder.setReadGroup(readGroup);
+            for (int j = 0; j < pairsPerReadGroup; ++j) {
+                final List<SAMRecord> pair = builder.addPair(readGroup.getId() + ":read" + j, random.nextInt(3), 1 + random.nextInt(100000),
+                        1 + random.nextInt(100000), false, false, "36M", "36M", false, true, 30);
+                for (final SAMRecord rec : pair) {
+                    final byte[] quals = new byte[rec.getReadLength()];
+                    for (int k = 0; k < quals.length; ++k) quals[k] = (byte) (2 + random.nextInt(39));
+                    rec.setBaseQualities(quals);
+                }
+                if (random.nextInt(100) == 0) builder.getRecords().remove(pair.get(1));
+                else if (random.nextInt(100) == 0) pair.get(0).setNotPrimaryAlignmentFlag(true);
+            }
+        }
+        // Replace the builder's default read group, which has no reads
+        builder.getHeader().setReadGroups(readGroups);
+
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMWriter(builder.getHeader(), false, output);
+        for (final SAMRecord rec : builder.getRecords()) writer.addAlignment(rec);
+        writer.close();
+    }
+
     private void verifyPositiveResults(
             final File outputFile,
             final RevertSam reverter,
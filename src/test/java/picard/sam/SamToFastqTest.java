@@ -39,10 +39,13 @@ import picard.PicardException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -192,6 +195,58 @@ public class SamToFastqTest extends CommandLineProgramTest {
     }
 
 
+    @Test(dataProvider = "okFiles")
+    public void testOkFileWithSpilledMates(final String samFilename) throws IOException {
+        final File samFile = new File(TEST_DATA_DIR,samFilename);
+        final File pair1File = newTempFastqFile("pair1");
+        final File pair2File = newTempFastqFile("pair2");
+        final File spilledPair1File = newTempFastqFile("spilledPair1");
+        final File spilledPair2File = newTempFastqFile("spilledPair2");
+
+        convertFile(new String[]{
+                "INPUT=" + samFile.getAbsolutePath(),
+                "FASTQ=" + pair1File.getAbsolutePath(),
+                "SECOND_END_FASTQ=" + pair2File.getAbsolutePath()
+        });
+        // Holding a single record forces every pair with any record between its mates through the spill files
+        convertFile(new String[]{
+                "INPUT=" + samFile.getAbsolutePath(),
+                "FASTQ=" + spilledPair1File.getAbsolutePath(),
+                "SECOND_END_FASTQ=" + spilledPair2File.getAbsolutePath(),
+                "MAX_RECORDS_AWAITING_MATES_IN_RAM=1",
+                "MAX_RECORDS_IN_RAM=2",
+                "USE_THREADING=true"
+        });
+
+        final List<String> pair1 = readFastqRecords(pair1File);
+        final List<String> pair2 = readFastqRecords(pair2File);
+        final List<String> spilledPair1 = readFastqRecords(spilledPair1File);
+        final List<String> spilledPair2 = readFastqRecords(spilledPair2File);
+
+        // The pairs may be written in a different order, but the two files must stay in step
+        Assert.assertEquals(spilledPair1.size(), spilledPair2.size());
+        for (int i = 0; i < spilledPair1.size(); ++i) {
+            Assert.assertEquals(spilledPair1.get(i).split("/1\t")[0], spilledPair2.get(i).split("/2\t")[0]);
+        }
+        Collections.sort(pair1);
+        Collections.sort(pair2);
+        Collections.sort(spilledPair1);
+        Collections.sort(spilledPair2);
+        Assert.assertEquals(spilledPair1, pair1);
+        Assert.assertEquals(spilledPair2, pair2);
+    }
+
+    @Test (dataProvider = "badFiles", expectedExceptions= SAMFormatException.class)
+    public void testBadFileWithSpilledMates(final String samFilename) throws IOException {
+        final File samFile = new File(TEST_DATA_DIR,samFilename);
+        convertFile(new String[]{
+                "INPUT=" + samFile.getAbsolutePath(),
+                "FASTQ=" + newTempFastqFile("pair1").getAbsolutePath(),
+                "SECOND_END_FASTQ=" + newTempFastqFile("pair2").getAbsolutePath(),
+                "MAX_RECORDS_AWAITING_MATES_IN_RAM=1"
+        });
+    }
+
     @Test (dataProvider = "badFiles", expectedExceptions= SAMFormatException.class)
     public void testBadFile(final String samFilename) throws IOException {
         final File samFile = new File(TEST_DATA_DIR,samFilename);
@@ -352,6 +407,18 @@ public class SamToFastqTest extends CommandLineProgramTest {
         };
     }
 
+    /** Returns each FASTQ record of the file as a single tab-separated line, in file order. */
+    private List<String> readFastqRecords(final File file) {
+        final List<String> records = new ArrayList<String>();
+        final FastqReader freader = new FastqReader(file);
+        while (freader.hasNext()) {
+            final FastqRecord frec = freader.next();
+            records.add(frec.getReadHeader() + "\t" + frec.getReadString() + "\t" + frec.getBaseQualityString());
+        }
+        freader.close();
+        return records;
+    }
+
     private Set<String> createFastqReadHeaderSet(final File file) {
         final Set<String> set = new HashSet<String>();
         final FastqReader freader = new FastqReader(file);
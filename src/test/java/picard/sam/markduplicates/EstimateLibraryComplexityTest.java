@@ -24,6 +24,12 @@
 
 package picard.sam.markduplicates;
 
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTag;
 import htsjdk.samtools.metrics.MetricsFile;
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -32,8 +38,11 @@ import picard.sam.DuplicationMetrics;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 public class EstimateLibraryComplexityTest extends CommandLineProgramTest {
 
@@ -134,4 +143,90 @@ public class EstimateLibraryComplexityTest extends CommandLineProgramTest {
         Assert.assertEquals(runPicardCommandLine(args), 0);
         examineMetricsFile(output, 0, 0); // no read pairs examined!!!
     }
+
+    /** Counting groups on multiple threads gives exactly the metrics and histogram of a single thread. */
+    @Test
+    public void testMultipleThreadsMatchSingleThread() throws IOException {
+        final File input = File.createTempFile("estimateLibraryComplexity", ".sam");
+        input.deleteOnExit();
+        writeRandomPairs(input, 30000);
+
+        final List<String> singleThreaded = runWithThreads(input, 1);
+        final List<String> multiThreaded = runWithThreads(input, 4);
+        Assert.assertEquals(multiThreaded, singleThreaded);
+
+        final List<DuplicationMetrics> metricsList = MetricsFile.readBeans(input.toPath().resolveSibling(input.getName() + ".4.els_metrics").toFile());
+        Assert.assertTrue(metricsList.get(0).READ_PAIR_DUPLICATES > 0);
+        Assert.assertTrue(metricsList.get(0).READ_PAIR_OPTICAL_DUPLICATES > 0);
+    }
+
+    /** Returns the lines of the metrics file, without the header, which includes the command line. */
+    private List<String> runWithThreads(final File input, final int threads) throws IOException {
+        final File output = new File(input.getParentFile(), input.getName() + "." + threads + ".els_metrics");
+        output.deleteOnExit();
+
+        final List<String> args = new ArrayList<>();
+        args.add("INPUT=" + input.getAbsolutePath());
+        args.add("OUTPUT=" + output.getAbsolutePath());
+        args.add("MIN_IDENTICAL_BASES=3");
+        args.add("THREADS=" + threads);
+        Assert.assertEquals(runPicardCommandLine(args), 0);
+
+        final List<String> lines = new ArrayList<>();
+        for (final String line : Files.readAllLines(output.toPath())) {
+            if (!line.startsWith("#")) lines.add(line);
+        }
+        return lines;
+    }
+
+    /**
+     * Writes unmapped pairs drawn from a limited number of templates, with a few sequencing errors and the occasional
+     * no-call, so that there are many groups and duplicate sets of many sizes, some of them optical duplicates.
+     */
+    private static void writeRandomPairs(final File output, final int numPairs) {
+        final Random random = new Random(17);
+        final SAMFileHeader header = new SAMFileHeader();
+        header.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+        final SAMReadGroupRecord readGroup = new SAMReadGroupRecord("RG1");
+        readGroup.setLibrary("library");
+        readGroup.setSample("sample");
+        header.addReadGroup(readGroup);
+
+        final byte[][] templates = new byte[numPairs / 2][];
+        for (int i = 0; i < templates.length; ++i) templates[i] = randomBases(random, 200);
+
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMWriter(header, true, output);
+        for (int i = 0; i < numPairs; ++i) {
+            final byte[] template = templates[random.nextInt(templates.length)];
+            final String name = String.format("RUN%d:8:%d:%d:%d", i, 1101 + random.nextInt(2), random.nextInt(200), random.nextInt(200));
+            for (final boolean first : new boolean[] {true, false}) {
+                final byte[] bases = new byte[100];
+                System.arraycopy(template, first ? 0 : 100, bases, 0, 100);
+                for (int j = 10; j < bases.length; ++j) {
+                    if (random.nextInt(200) == 0) bases[j] = (byte) "ACGTN".charAt(random.nextInt(5));
+                }
+                final byte[] quals = new byte[bases.length];
+                Arrays.fill(quals, (byte) 30);
+
+                final SAMRecord record = new SAMRecord(header);
+                record.setReadName(name);
+                record.setReadPairedFlag(true);
+                record.setReadUnmappedFlag(true);
+                record.setMateUnmappedFlag(true);
+                record.setFirstOfPairFlag(first);
+                record.setSecondOfPairFlag(!first);
+                record.setReadBases(bases);
+                record.setBaseQualities(quals);
+                record.setAttribute(SAMTag.RG.name(), readGroup.getId());
+                writer.addAlignment(record);
+            }
+        }
+        writer.close();
+    }
+
+    private static byte[] randomBases(final Random random, final int length) {
+        final byte[] bases = new byte[length];
+        for (int i = 0; i < length; ++i) bases[i] = (byte) "ACGT".charAt(random.nextInt(4));
+        return bases;
+    }
 }
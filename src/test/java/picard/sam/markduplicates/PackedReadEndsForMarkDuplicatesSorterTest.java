@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.sam.markduplicates.util.PackedReadEndsForMarkDuplicatesSorter;
+import picard.sam.markduplicates.util.ReadEnds;
+import picard.sam.markduplicates.util.ReadEndsForMarkDuplicates;
+import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodes;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that PackedReadEndsForMarkDuplicatesSorter returns read ends in the same order as MarkDuplicates'
+ * comparator, with all fields intact, whether or not it has to spill to disk.
+ */
+public class PackedReadEndsForMarkDuplicatesSorterTest {
+
+    @DataProvider(name = "sorterParameters")
+    public Object[][] sorterParameters() {
+        return new Object[][] {
+                // useBarcodes, numReadEnds, maxRecordsInRam
+                {false, 0, 10},
+                {false, 5000, 100000},  // all in memory
+                {false, 5000, 97},      // many spills plus a partial in-memory run
+                {false, 5000, 1000},    // spills that exactly divide the input
+                {true, 5000, 100000},
+                {true, 5000, 333}
+        };
+    }
+
+    @Test(dataProvider = "sorterParameters")
+    public void testSortOrderAndContents(final boolean useBarcodes, final int numReadEnds, final int maxRecordsInRam) {
+        final Random random = new Random(42);
+        final List<ReadEndsForMarkDuplicates> expected = new ArrayList<>();
+        final PackedReadEndsForMarkDuplicatesSorter sorter = new PackedReadEndsForMarkDuplicatesSorter(useBarcodes,
+                maxRecordsInRam, Collections.singletonList(new File(System.getProperty("java.io.tmpdir"))));
+
+        for (int i = 0; i < numReadEnds; ++i) {
+            final ReadEndsForMarkDuplicates readEnds = useBarcodes ? new ReadEndsForMarkDuplicatesWithBarcodes() : new ReadEndsForMarkDuplicates();
+            readEnds.libraryId = (short) random.nextInt(3);
+            readEnds.orientation = (byte) random.nextInt(ReadEnds.RF + 1);
+            readEnds.orientationForOpticalDuplicates = (byte) (random.nextInt(ReadEnds.RF + 2) - 1);
+            readEnds.read1ReferenceIndex = random.nextInt(3);
+            readEnds.read1Coordinate = random.nextInt(50) - 5;
+            readEnds.read2ReferenceIndex = random.nextInt(4) - 1;
+            readEnds.read2Coordinate = random.nextInt(50) - 5;
+            readEnds.read1IndexInFile = random.nextInt(100000);
+            readEnds.read2IndexInFile = i;
+            readEnds.score = (short) random.nextInt(Short.MAX_VALUE);
+            readEnds.readGroup = (short) random.nextInt(10);
+            readEnds.tile = (short) random.nextInt(1000);
+            readEnds.x = random.nextInt(100000);
+            readEnds.y = random.nextInt(100000);
+            if (useBarcodes) {
+                final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) readEnds;
+                withBarcodes.barcode = random.nextInt(2);
+                withBarcodes.readOneBarcode = random.nextInt(2);
+                withBarcodes.readTwoBarcode = random.nextInt(2);
+            }
+            expected.add(readEnds);
+            sorter.add(readEnds);
+        }
+        sorter.doneAdding();
+        Collections.sort(expected, new MarkDuplicates.ReadEndsMDComparator(useBarcodes));
+
+        final Iterator<ReadEndsForMarkDuplicates> actual = sorter.iterator();
+        for (final ReadEndsForMarkDuplicates expectedEnds : expected) {
+            Assert.assertTrue(actual.hasNext());
+            assertReadEndsEqual(actual.next(), expectedEnds, useBarcodes);
+        }
+        Assert.assertFalse(actual.hasNext());
+        sorter.cleanup();
+    }
+
+    private void assertReadEndsEqual(final ReadEndsForMarkDuplicates actual, final ReadEndsForMarkDuplicates expected, final boolean useBarcodes) {
+        Assert.assertEquals(actual.libraryId, expected.libraryId);
+        Assert.assertEquals(actual.orientation, expected.orientation);
+        Assert.assertEquals(actual.orientationForOpticalDuplicates, expected.orientationForOpticalDuplicates);
+        Assert.assertEquals(actual.read1ReferenceIndex, expected.read1ReferenceIndex);
+        Assert.assertEquals(actual.read1Coordinate, expected.read1Coordinate);
+        Assert.assertEquals(actual.read2ReferenceIndex, expected.read2ReferenceIndex);
+        Assert.assertEquals(actual.read2Coordinate, expected.read2Coordinate);
+        Assert.assertEquals(actual.read1IndexInFile, expected.read1IndexInFile);
+        Assert.assertEquals(actual.read2IndexInFile, expected.read2IndexInFile);
+        Assert.assertEquals(actual.score, expected.score);
+        Assert.assertEquals(actual.readGroup, expected.readGroup);
+        Assert.assertEquals(actual.tile, expected.tile);
+        Assert.assertEquals(actual.x, expected.x);
+        Assert.assertEquals(actual.y, expected.y);
+        if (useBarcodes) {
+            Assert.assertEquals(((ReadEndsForMarkDuplicatesWithBarcodes) actual).barcode, ((ReadEndsForMarkDuplicatesWithBarcodes) expected).barcode);
+            Assert.assertEquals(((ReadEndsForMarkDuplicatesWithBarcodes) actual).readOneBarcode, ((ReadEndsForMarkDuplicatesWithBarcodes) expected).readOneBarcode);
+            Assert.assertEquals(((ReadEndsForMarkDuplicatesWithBarcodes) actual).readTwoBarcode, ((ReadEndsForMarkDuplicatesWithBarcodes) expected).readTwoBarcode);
+        }
+    }
+}
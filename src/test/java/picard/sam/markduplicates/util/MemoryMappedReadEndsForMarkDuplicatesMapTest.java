@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Drives MemoryMappedReadEndsForMarkDuplicatesMap the way MarkDuplicates does, with reads arriving in coordinate order
+ * and mates spread across many sequences, and checks that it behaves exactly like the in-memory map.
+ */
+public class MemoryMappedReadEndsForMarkDuplicatesMapTest {
+
+    @DataProvider(name = "mapSizes")
+    public Object[][] mapSizes() {
+        return new Object[][] {
+                // windowSize, blockSize, maxBufferedBytes
+                {MemoryMappedReadEndsForMarkDuplicatesMap.DEFAULT_WINDOW_SIZE, MemoryMappedReadEndsForMarkDuplicatesMap.DEFAULT_BLOCK_SIZE,
+                        MemoryMappedReadEndsForMarkDuplicatesMap.DEFAULT_MAX_BUFFERED_BYTES},
+                {64 * 1024, 512, 16 * 1024},  // many small blocks and windows, with windows reused
+                {4096, 256, 1024 * 1024}      // blocks only written when a sequence's buffer fills
+        };
+    }
+
+    @Test(dataProvider = "mapSizes")
+    public void testMatchesMemoryBasedMap(final int windowSize, final int blockSize, final long maxBufferedBytes) throws IOException {
+        final int numSequences = 200;
+        final int numPairs = 50000;
+        final Random random = new Random(7);
+
+        // Each read is {sequence, position, pair number, mate sequence}
+        final List<int[]> reads = new ArrayList<>();
+        for (int pair = 0; pair < numPairs; ++pair) {
+            // Mostly nearby mates, plus plenty on distant sequences
+            final int sequence1 = random.nextInt(numSequences);
+            final int sequence2 = random.nextInt(4) == 0 ? random.nextInt(numSequences) : sequence1;
+            reads.add(new int[]{sequence1, random.nextInt(10000), pair, sequence2});
+            reads.add(new int[]{sequence2, random.nextInt(10000), pair, sequence1});
+        }
+        Collections.sort(reads, (lhs, rhs) -> lhs[0] != rhs[0] ? Integer.compare(lhs[0], rhs[0]) : Integer.compare(lhs[1], rhs[1]));
+
+        final ReadEndsForMarkDuplicatesMap expected = new MemoryBasedReadEndsForMarkDuplicatesMap();
+        final MemoryMappedReadEndsForMarkDuplicatesMap actual = new MemoryMappedReadEndsForMarkDuplicatesMap(
+                new ReadEndsForMarkDuplicatesCodec(), Collections.singletonList(new File(System.getProperty("java.io.tmpdir"))),
+                windowSize, blockSize, maxBufferedBytes);
+
+        int matched = 0;
+        for (final int[] read : reads) {
+            final String key = "RG1:read" + read[2];
+            final ReadEndsForMarkDuplicates expectedEnds = expected.remove(read[0], key);
+            final ReadEndsForMarkDuplicates actualEnds = actual.remove(read[0], key);
+
+            if (expectedEnds == null) {
+                Assert.assertNull(actualEnds);
+                final ReadEndsForMarkDuplicates ends = new ReadEndsForMarkDuplicates();
+                ends.libraryId = 1;
+                ends.orientation = ReadEnds.F;
+                ends.read1ReferenceIndex = read[0];
+                ends.read1Coordinate = read[1];
+                ends.read1IndexInFile = read[2];
+                ends.read2ReferenceIndex = read[3];
+                ends.score = (short) random.nextInt(1000);
+                ends.readGroup = 0;
+                ends.tile = (short) random.nextInt(100);
+                ends.x = random.nextInt(20000);
+                ends.y = random.nextInt(20000);
+                expected.put(read[3], key, ends);
+                actual.put(read[3], key, ends.clone());
+            } else {
+                Assert.assertNotNull(actualEnds, key);
+                Assert.assertEquals(actualEnds.read1ReferenceIndex, expectedEnds.read1ReferenceIndex);
+                Assert.assertEquals(actualEnds.read1Coordinate, expectedEnds.read1Coordinate);
+                Assert.assertEquals(actualEnds.read1IndexInFile, expectedEnds.read1IndexInFile);
+                Assert.assertEquals(actualEnds.read2ReferenceIndex, expectedEnds.read2ReferenceIndex);
+                Assert.assertEquals(actualEnds.score, expectedEnds.score);
+                Assert.assertEquals(actualEnds.tile, expectedEnds.tile);
+                Assert.assertEquals(actualEnds.x, expectedEnds.x);
+                Assert.assertEquals(actualEnds.y, expectedEnds.y);
+                ++matched;
+            }
+            Assert.assertEquals(actual.size(), expected.size());
+        }
+
+        Assert.assertEquals(matched, numPairs);
+        Assert.assertEquals(actual.size(), 0);
+        actual.close();
+    }
+}
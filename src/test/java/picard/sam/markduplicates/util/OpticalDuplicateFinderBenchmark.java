@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.Log;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.sam.util.PhysicalLocation;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times the pairwise and the spatially indexed optical duplicate searches in OpticalDuplicateFinder against each other
+ * over a range of duplicate set sizes. Excluded from the regular test run by the "slow" group; run it explicitly with
+ * the TestNG "slow" group to see the timings.
+ */
+public class OpticalDuplicateFinderBenchmark {
+    private static final Log log = Log.getInstance(OpticalDuplicateFinderBenchmark.class);
+
+
+    @DataProvider(name = "setSizes")
+    public Object[][] setSizes() {
+        return new Object[][] {{2}, {10}, {32}, {64}, {100}, {250}, {1000}, {10000}, {100000}};
+    }
+
+    @Test(groups = "slow", dataProvider = "setSizes")
+    public void benchmarkFindOpticalDuplicates(final int size) {
+        final OpticalDuplicateFinder finder = new OpticalDuplicateFinder(OpticalDuplicateFinder.DEFAULT_READ_NAME_REGEX,
+                OpticalDuplicateFinder.DEFAULT_OPTICAL_DUPLICATE_DISTANCE, log);
+        final List<PhysicalLocation> locs = OpticalDuplicateFinderTest.randomLocations(new Random(42), size, 4, 30000);
+
+        // Many iterations for small sets so that the JIT has warmed up, few for the biggest, where the pairwise search is very slow
+        final int iterations = size <= 1000 ? 500 : size <= 10000 ? 5 : 1;
+        final double pairwise = time(finder, locs, false, iterations);
+        final double spatialIndex = time(finder, locs, true, iterations);
+
+        log.info(String.format("Set size %,d: pairwise %.3f ms, spatial index %.3f ms", size, pairwise, spatialIndex));
+    }
+
+    /** Returns the mean time, in milliseconds, of finding the optical duplicates in the list. */
+    private static double time(final OpticalDuplicateFinder finder, final List<PhysicalLocation> locs,
+                               final boolean spatialIndex, final int iterations) {
+        for (int i = 0; i < iterations; ++i) {
+            finder.findOpticalDuplicates(locs, locs.get(0), spatialIndex);
+        }
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            finder.findOpticalDuplicates(locs, locs.get(0), spatialIndex);
+        }
+        return (System.nanoTime() - start) / 1e6 / iterations;
+    }
+}
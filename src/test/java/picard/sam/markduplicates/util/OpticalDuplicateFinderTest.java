@@ -1,6 +1,7 @@
 package picard.sam.markduplicates.util;
 
 import htsjdk.samtools.util.Log;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import org.testng.Assert;
 import picard.sam.util.PhysicalLocation;
@@ -125,6 +126,61 @@ public class OpticalDuplicateFinderTest {
         assertEquals(finder.findOpticalDuplicates(locs, locs.get(2)), new boolean[] {true, true, false});
     }
 
+    @DataProvider(name = "spatialIndexSets")
+    public Object[][] spatialIndexSets() {
+        return new Object[][] {
+                // size, distance, tiles, extent of x/y
+                {2, 100, 1, 200},
+                {501, 100, 2, 1000},
+                {500, 100, 3, 2000},
+                {2000, 15, 2, 500},
+                {2000, 0, 1, 50},
+                {5000, 2500, 4, 30000}
+        };
+    }
+
+    @Test(dataProvider = "spatialIndexSets")
+    public void testSpatialIndexMatchesPairwise(final int size, final int distance, final int tiles, final int extent) {
+        final Log log = Log.getInstance(OpticalDuplicateFinderTest.class);
+        final OpticalDuplicateFinder finder = new OpticalDuplicateFinder(OpticalDuplicateFinder.DEFAULT_READ_NAME_REGEX, distance, log);
+
+        for (int seed = 0; seed < 5; ++seed) {
+            final List<PhysicalLocation> locs = randomLocations(new Random(seed), size, tiles, extent);
+            final List<PhysicalLocation> keepers = Arrays.asList(null, locs.get(0), locs.get(size - 1), locs.get(size / 2), loc(1, 0, 0));
+
+            for (final PhysicalLocation keeper : keepers) {
+                assertEquals(finder.findOpticalDuplicates(locs, keeper, true), finder.findOpticalDuplicates(locs, keeper, false));
+            }
+        }
+    }
+
+    /** Creates randomly placed locations, clustered so that many are close together, a few of which have no location. */
+    static List<PhysicalLocation> randomLocations(final Random random, final int size, final int tiles, final int extent) {
+        final List<PhysicalLocation> locs = new ArrayList<>(size);
+        final int clusters = Math.max(1, size / 20);
+        final int[] clusterX = new int[clusters], clusterY = new int[clusters];
+        for (int c = 0; c < clusters; ++c) {
+            clusterX[c] = random.nextInt(extent);
+            clusterY[c] = random.nextInt(extent);
+        }
+
+        for (int i = 0; i < size; ++i) {
+            final short readGroup = (short) random.nextInt(2);
+            final PhysicalLocation l = new PhysicalLocationInt() {
+                @Override
+                public short getReadGroup() { return readGroup; }
+            };
+            if (random.nextInt(50) != 0) {
+                final int c = random.nextInt(clusters);
+                l.setTile((short) (1 + random.nextInt(tiles)));
+                l.setX(Math.max(0, clusterX[c] + random.nextInt(extent / 10 + 1) - extent / 20));
+                l.setY(Math.max(0, clusterY[c] + random.nextInt(extent / 10 + 1) - extent / 20));
+            }
+            locs.add(l);
+        }
+        return locs;
+    }
+
     /** Helper method to create a physical location. */
     private PhysicalLocation loc(final int tile, final int x, final int y) {
         final PhysicalLocation l = new PhysicalLocationInt() {
@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+public class PackedBasesTest {
+
+    @DataProvider(name = "alphabets")
+    public Object[][] alphabets() {
+        return new Object[][] {
+                {"ACGT"},
+                {"ACGTN"},
+                {"ACGTNacgt.RY"}
+        };
+    }
+
+    @Test(dataProvider = "alphabets")
+    public void testBasesRoundTrip(final String alphabet) throws IOException {
+        final Random random = new Random(alphabet.hashCode());
+        for (final int length : new int[] {0, 1, 31, 32, 33, 64, 101, 151, 250}) {
+            final byte[] bases = randomBases(random, alphabet, length);
+            final PackedBases packed = PackedBases.pack(bases);
+            Assert.assertEquals(packed.length(), length);
+            for (int i = 0; i < length; ++i) Assert.assertEquals(packed.baseAt(i), bases[i]);
+            Assert.assertEquals(packed.toString(), new String(bases));
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            packed.write(new DataOutputStream(bytes));
+            final PackedBases read = PackedBases.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            Assert.assertEquals(read, packed);
+            Assert.assertEquals(read.toString(), packed.toString());
+        }
+    }
+
+    @Test(dataProvider = "alphabets")
+    public void testCountMismatchesMatchesByteComparison(final String alphabet) {
+        final Random random = new Random(alphabet.hashCode() + 1);
+        for (int trial = 0; trial < 2000; ++trial) {
+            final int length = 1 + random.nextInt(200);
+            final byte[] lhs = randomBases(random, alphabet, length);
+            // Mostly similar sequences, as compared when looking for duplicates
+            final byte[] rhs = lhs.clone();
+            final int changes = random.nextInt(Math.max(1, length / 4));
+            for (int i = 0; i < changes; ++i) rhs[random.nextInt(length)] = (byte) alphabet.charAt(random.nextInt(alphabet.length()));
+
+            final int from = random.nextInt(length + 1);
+            final int to = from + random.nextInt(length - from + 1);
+            int expected = 0;
+            for (int i = from; i < to; ++i) if (lhs[i] != rhs[i]) ++expected;
+
+            final PackedBases packedLhs = PackedBases.pack(lhs);
+            final PackedBases packedRhs = PackedBases.pack(rhs);
+            Assert.assertEquals(packedLhs.countMismatches(packedRhs, from, to, Integer.MAX_VALUE), expected);
+            Assert.assertEquals(packedRhs.countMismatches(packedLhs, from, to, Integer.MAX_VALUE), expected);
+
+            // With a limit the count may stop early, but must still say whether the limit was exceeded
+            final int limit = random.nextInt(10);
+            Assert.assertEquals(packedLhs.countMismatches(packedRhs, from, to, limit) > limit, expected > limit);
+        }
+    }
+
+    private static byte[] randomBases(final Random random, final String alphabet, final int length) {
+        final byte[] bases = new byte[length];
+        for (int i = 0; i < length; ++i) bases[i] = (byte) alphabet.charAt(random.nextInt(alphabet.length()));
+        return bases;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import htsjdk.samtools.util.CloseableIterator;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AsyncIteratorTest {
+
+    private static class CountingIterator implements CloseableIterator<Integer> {
+        private final int size;
+        private final int failAt;
+        private int next = 0;
+        private boolean closed = false;
+
+        CountingIterator(final int size, final int failAt) {
+            this.size = size;
+            this.failAt = failAt;
+        }
+
+        @Override public void close() { closed = true; }
+        @Override public boolean hasNext() { return next < size; }
+        @Override public void remove() { throw new UnsupportedOperationException(); }
+
+        @Override
+        public Integer next() {
+            if (next == failAt) throw new IllegalStateException("Failed reading " + next);
+            return next++;
+        }
+    }
+
+    @DataProvider(name = "sizes")
+    public Object[][] sizes() {
+        return new Object[][] {{0, 10}, {1, 10}, {10, 10}, {1000, 7}};
+    }
+
+    // the reader marks the end of the input on the queue, so reaching it must not wait for a poll to time out
+    @Test(dataProvider = "sizes", timeOut = 2000)
+    public void testReturnsAllElementsInOrder(final int size, final int queueSize) {
+        final CountingIterator underlying = new CountingIterator(size, -1);
+        final AsyncIterator<Integer> iterator = new AsyncIterator<Integer>(underlying, queueSize, "AsyncIteratorTest");
+        final List<Integer> actual = new ArrayList<Integer>();
+        while (iterator.hasNext()) actual.add(iterator.next());
+        iterator.close();
+
+        Assert.assertEquals(actual.size(), size);
+        for (int i = 0; i < size; ++i) Assert.assertEquals(actual.get(i).intValue(), i);
+        Assert.assertTrue(underlying.closed);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, timeOut = 2000)
+    public void testRethrowsReaderException() {
+        final AsyncIterator<Integer> iterator = new AsyncIterator<Integer>(new CountingIterator(100, 25), 10, "AsyncIteratorTest");
+        while (iterator.hasNext()) iterator.next();
+    }
+}
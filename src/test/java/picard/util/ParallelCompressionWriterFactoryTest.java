@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.TestUtil;
+import htsjdk.tribble.util.TabixUtils;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFFileReader;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Tests that BAM and block compressed VCF files written with several compression threads are identical, along with
+ * their indices, to those written on a single thread.
+ */
+public class ParallelCompressionWriterFactoryTest {
+    private static final File TEST_DATA_DIR = new File("testdata/picard/vcf");
+
+    private File outputDir;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        outputDir = Files.createTempDirectory("ParallelCompressionWriterFactoryTest").toFile();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestUtil.recursiveDelete(outputDir);
+    }
+
+    @DataProvider(name = "compressionLevels")
+    public Object[][] compressionLevels() {
+        return new Object[][]{{1}, {5}, {9}};
+    }
+
+    @Test(dataProvider = "compressionLevels")
+    public void testRecompressedBlocksMatchSerialCompression(final int compressionLevel) throws IOException {
+        // A mixture of repetitive text and random bytes, so that some blocks cannot be compressed at all
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final Random random = new Random(compressionLevel);
+        for (int i = 0; i < 200; ++i) {
+            final byte[] bytes = new byte[random.nextInt(10000)];
+            if (i % 3 == 0) random.nextBytes(bytes);
+            else for (int j = 0; j < bytes.length; ++j) bytes[j] = (byte) ('A' + random.nextInt(4));
+            data.write(bytes);
+        }
+
+        final ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        final OutputStream parallelOut = new BlockCompressedOutputStream(
+                new ParallelBlockCompressedOutputStream(parallel, compressionLevel, 4), null, 0);
+        // Write in uneven pieces, with a flush in the middle that forces a short block
+        final byte[] bytes = data.toByteArray();
+        parallelOut.write(bytes, 0, 1000);
+        parallelOut.flush();
+        parallelOut.write(bytes, 1000, bytes.length - 1000);
+        parallelOut.close();
+
+        final ByteArrayOutputStream serial = new ByteArrayOutputStream();
+        final OutputStream serialOut = new BlockCompressedOutputStream(serial, null, compressionLevel);
+        serialOut.write(bytes, 0, 1000);
+        serialOut.flush();
+        serialOut.write(bytes, 1000, bytes.length - 1000);
+        serialOut.close();
+
+        Assert.assertEquals(parallel.toByteArray(), serial.toByteArray());
+    }
+
+    @Test
+    public void testBamMatchesSerialOutput() throws IOException {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        builder.setRandomSeed(42);
+        for (int i = 0; i < 20000; ++i) {
+            builder.addPair("read" + i, i % 3, 1 + (i * 37) % 100000, 1 + (i * 37) % 100000 + 200);
+        }
+        for (int i = 0; i < 100; ++i) builder.addUnmappedFragment("unmapped" + i);
+
+        final File serial = new File(outputDir, "serial.bam");
+        final File parallel = new File(outputDir, "parallel.bam");
+        writeBam(new ParallelCompressionWriterFactory(new SAMFileWriterFactory()), builder, serial);
+        writeBam(new ParallelCompressionWriterFactory(new SAMFileWriterFactory()).setCompressionThreads(3), builder, parallel);
+
+        Assert.assertEquals(Files.readAllBytes(parallel.toPath()), Files.readAllBytes(serial.toPath()));
+        Assert.assertEquals(Files.readAllBytes(new File(outputDir, "parallel.bai").toPath()),
+                Files.readAllBytes(new File(outputDir, "serial.bai").toPath()));
+        Assert.assertEquals(Files.readAllBytes(new File(parallel.getAbsolutePath() + ".md5").toPath()),
+                Files.readAllBytes(new File(serial.getAbsolutePath() + ".md5").toPath()));
+    }
+
+    private void writeBam(final ParallelCompressionWriterFactory factory, final SAMRecordSetBuilder builder, final File output) {
+        final SAMFileWriter writer = factory.setCreateIndex(true).setCreateMd5File(true)
+                .makeSAMOrBAMWriter(builder.getHeader(), false, output);
+        for (final SAMRecord record : builder) writer.addAlignment(record);
+        writer.close();
+    }
+
+    @Test
+    public void testBlockCompressedVcfMatchesSerialOutput() throws IOException {
+        final File input = new File(TEST_DATA_DIR, "CEUTrio-merged-indels-snps.vcf");
+        final File serial = new File(outputDir, "serial.vcf.gz");
+        final File parallel = new File(outputDir, "parallel.vcf.gz");
+        writeVcf(new ParallelCompressionWriterFactory(), input, serial);
+        writeVcf(new ParallelCompressionWriterFactory().setCompressionThreads(3), input, parallel);
+
+        Assert.assertEquals(Files.readAllBytes(parallel.toPath()), Files.readAllBytes(serial.toPath()));
+        Assert.assertEquals(Files.readAllBytes(new File(parallel.getAbsolutePath() + TabixUtils.STANDARD_INDEX_EXTENSION).toPath()),
+                Files.readAllBytes(new File(serial.getAbsolutePath() + TabixUtils.STANDARD_INDEX_EXTENSION).toPath()));
+    }
+
+    private void writeVcf(final ParallelCompressionWriterFactory factory, final File input, final File output) {
+        final VCFFileReader reader = new VCFFileReader(input, false);
+        final VariantContextWriter writer = factory.setCreateIndex(true).makeVariantContextWriter(
+                new VariantContextWriterBuilder().setOption(Options.INDEX_ON_THE_FLY),
+                output, reader.getFileHeader().getSequenceDictionary());
+        writer.writeHeader(reader.getFileHeader());
+        for (final VariantContext context : reader) writer.add(context);
+        writer.close();
+        reader.close();
+    }
+}
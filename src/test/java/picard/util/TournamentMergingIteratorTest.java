@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import htsjdk.samtools.util.CloseableIterator;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+public class TournamentMergingIteratorTest {
+
+    private static class ListBackedIterator<T> implements CloseableIterator<T> {
+        private final Iterator<T> backing;
+        private boolean closed = false;
+
+        ListBackedIterator(final List<T> list) {
+            this.backing = list.iterator();
+        }
+
+        @Override public void close() { closed = true; }
+        @Override public boolean hasNext() { return backing.hasNext(); }
+        @Override public T next() { return backing.next(); }
+        @Override public void remove() { throw new UnsupportedOperationException(); }
+    }
+
+    /** Compares on the value only, so that the input a tied element came from is visible in the output order. */
+    private static final Comparator<int[]> VALUE_COMPARATOR = (a, b) -> Integer.compare(a[0], b[0]);
+
+    @DataProvider(name = "inputShapes")
+    public Object[][] inputShapes() {
+        return new Object[][] {
+                // number of inputs, elements per input, range of values (small ranges give many ties)
+                {1, 50, 1000},
+                {2, 50, 1000},
+                {3, 40, 10},
+                {7, 100, 5000},
+                {16, 30, 20},
+                {33, 20, 100000}
+        };
+    }
+
+    @Test(dataProvider = "inputShapes")
+    public void testMatchesStableSort(final int numInputs, final int perInput, final int range) {
+        final Random random = new Random(numInputs * 31 + perInput);
+        final List<List<int[]>> inputs = new ArrayList<List<int[]>>();
+        final List<int[]> expected = new ArrayList<int[]>();
+        for (int input = 0; input < numInputs; ++input) {
+            final List<int[]> values = new ArrayList<int[]>();
+            final int size = random.nextInt(perInput + 1);
+            for (int i = 0; i < size; ++i) values.add(new int[] {random.nextInt(range), input});
+            values.sort(VALUE_COMPARATOR);
+            inputs.add(values);
+            expected.addAll(values);
+        }
+        // A stable sort of the concatenated inputs orders ties by input, as the merge should
+        expected.sort(VALUE_COMPARATOR);
+
+        assertMerges(inputs, expected);
+    }
+
+    @Test
+    public void testNonOverlappingInputs() {
+        final List<List<int[]>> inputs = new ArrayList<List<int[]>>();
+        final List<int[]> expected = new ArrayList<int[]>();
+        for (int input = 0; input < 5; ++input) {
+            final List<int[]> values = new ArrayList<int[]>();
+            for (int i = 0; i < 100; ++i) values.add(new int[] {input * 100 + i, input});
+            inputs.add(values);
+            expected.addAll(values);
+        }
+        // Shuffle the inputs, so that each run is found in a different position of the tree
+        Collections.shuffle(inputs, new Random(42));
+        assertMerges(inputs, expected);
+    }
+
+    @Test
+    public void testEmptyInputs() {
+        final List<int[]> empty = Collections.emptyList();
+        assertMerges(Arrays.asList(empty, empty, empty), Collections.<int[]>emptyList());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNoInputs() {
+        new TournamentMergingIterator<int[]>(VALUE_COMPARATOR, Collections.<CloseableIterator<int[]>>emptyList());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testOutOfOrderIterators() {
+        final List<ListBackedIterator<Integer>> iterators = Arrays.asList(
+                new ListBackedIterator<Integer>(Arrays.asList(1, 3)),
+                new ListBackedIterator<Integer>(Arrays.asList(4, 2)));
+        final TournamentMergingIterator<Integer> mergingIterator = new TournamentMergingIterator<Integer>(Integer::compare, iterators);
+
+        Assert.assertEquals(mergingIterator.next().intValue(), 1);
+        Assert.assertEquals(mergingIterator.next().intValue(), 3);
+        mergingIterator.next(); // fails, because the element after "4" is "2"
+    }
+
+    @Test
+    public void testCloseClosesInputs() {
+        final List<ListBackedIterator<Integer>> iterators = Arrays.asList(
+                new ListBackedIterator<Integer>(Arrays.asList(1, 3)),
+                new ListBackedIterator<Integer>(Arrays.asList(2)));
+        new TournamentMergingIterator<Integer>(Integer::compare, iterators).close();
+        for (final ListBackedIterator<Integer> iterator : iterators) Assert.assertTrue(iterator.closed);
+    }
+
+    private static void assertMerges(final List<List<int[]>> inputs, final List<int[]> expected) {
+        final List<CloseableIterator<int[]>> iterators = new ArrayList<CloseableIterator<int[]>>();
+        for (final List<int[]> input : inputs) iterators.add(new ListBackedIterator<int[]>(input));
+        final TournamentMergingIterator<int[]> mergingIterator = new TournamentMergingIterator<int[]>(VALUE_COMPARATOR, iterators);
+
+        int count = 0;
+        while (mergingIterator.hasNext()) {
+            final int[] actual = mergingIterator.next();
+            Assert.assertTrue(count < expected.size());
+            Assert.assertSame(actual, expected.get(count++));
+        }
+        Assert.assertEquals(count, expected.size());
+        mergingIterator.close();
+    }
+}
@@ -26,11 +26,14 @@ package picard.vcf;
 
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.IOUtil;
+import htsjdk.tribble.Tribble;
+import htsjdk.tribble.index.IndexFactory;
 import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.Genotype;
 import htsjdk.variant.variantcontext.GenotypeBuilder;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.vcf.VCFCodec;
 import org.testng.Assert;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.DataProvider;
@@ -42,6 +45,8 @@ import picard.vcf.GenotypeConcordanceStates.TruthState;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -150,6 +155,48 @@ public class GenotypeConcordanceTest {
         assertMetricsFileEqual(outputContingencyFile, new File(TEST_DATA_PATH, expectedOutputFileBaseName + GenotypeConcordance.CONTINGENCY_METRICS_FILE_EXTENSION));
     }
 
+    @Test(dataProvider = "genotypeConcordanceTestFileData")
+    public void testGenotypeConcordanceMultipleThreads(final File vcf1, final String sample1, final File vcf2, final String sample2,
+                                                       final Integer minGq, final Integer minDp, final boolean outputAllRows, final boolean missingSitesFlag,
+                                                       final String expectedOutputFileBaseName) throws Exception {
+        final File outputBaseFileName = new File(OUTPUT_DATA_PATH, "actualGtConcThreaded");
+        final File outputSummaryFile = new File(outputBaseFileName.getAbsolutePath() + GenotypeConcordance.SUMMARY_METRICS_FILE_EXTENSION);
+        final File outputDetailsFile = new File(outputBaseFileName.getAbsolutePath() + GenotypeConcordance.DETAILED_METRICS_FILE_EXTENSION);
+        final File outputContingencyFile = new File(outputBaseFileName.getAbsolutePath() + GenotypeConcordance.CONTINGENCY_METRICS_FILE_EXTENSION);
+        outputSummaryFile.deleteOnExit();
+        outputDetailsFile.deleteOnExit();
+        outputContingencyFile.deleteOnExit();
+
+        final GenotypeConcordance genotypeConcordance = new GenotypeConcordance();
+        genotypeConcordance.TRUTH_VCF = indexedVcf(vcf1);
+        genotypeConcordance.TRUTH_SAMPLE = sample1;
+        genotypeConcordance.CALL_VCF = indexedVcf(vcf2);
+        genotypeConcordance.CALL_SAMPLE = sample2;
+        if (minGq != null) genotypeConcordance.MIN_GQ = minGq;
+        if (minDp != null) genotypeConcordance.MIN_DP = minDp;
+        genotypeConcordance.OUTPUT_ALL_ROWS = outputAllRows;
+        genotypeConcordance.OUTPUT = outputBaseFileName;
+        genotypeConcordance.MISSING_SITES_HOM_REF = missingSitesFlag;
+        if (missingSitesFlag) genotypeConcordance.INTERVALS = Collections.singletonList(new File(TEST_DATA_PATH, "IntervalList1PerChrom.interval_list"));
+        genotypeConcordance.THREADS = 2;
+
+        Assert.assertEquals(genotypeConcordance.instanceMain(new String[0]), 0);
+        assertMetricsFileEqual(outputSummaryFile, new File(TEST_DATA_PATH, expectedOutputFileBaseName + GenotypeConcordance.SUMMARY_METRICS_FILE_EXTENSION));
+        assertMetricsFileEqual(outputDetailsFile, new File(TEST_DATA_PATH, expectedOutputFileBaseName + GenotypeConcordance.DETAILED_METRICS_FILE_EXTENSION));
+        assertMetricsFileEqual(outputContingencyFile, new File(TEST_DATA_PATH, expectedOutputFileBaseName + GenotypeConcordance.CONTINGENCY_METRICS_FILE_EXTENSION));
+    }
+
+    /** Returns the given VCF if it is indexed, otherwise an indexed copy of it in the output directory. */
+    private File indexedVcf(final File vcf) throws IOException {
+        if (Tribble.indexFile(vcf).exists()) return vcf;
+        final File copy = new File(OUTPUT_DATA_PATH, vcf.getName());
+        if (!copy.exists()) {
+            Files.copy(vcf.toPath(), copy.toPath());
+            IndexFactory.createLinearIndex(copy, new VCFCodec()).writeBasedOnFeatureFile(copy);
+        }
+        return copy;
+    }
+
     private void assertMetricsFileEqual(final File actualMetricsFile, final File expectedMetricsFile) throws FileNotFoundException {
         // Actual metrics file
         final MetricsFile<GenotypeConcordanceSummaryMetrics, Comparable<?>> actual = new MetricsFile<GenotypeConcordanceSummaryMetrics, Comparable<?>>();
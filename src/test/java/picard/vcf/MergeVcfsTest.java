@@ -1,7 +1,16 @@
 package picard.vcf;
 
+import org.testng.Assert;
+import org.testng.annotations.Test;
 import picard.cmdline.CommandLineProgram;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Created by bradt on 9/3/14.
  */
@@ -11,4 +20,20 @@ public class MergeVcfsTest extends AbstractVcfMergingClpTester {
     protected CommandLineProgram getProgram() {
         return new MergeVcfs();
     }
+
+    @Test
+    public void testReadAheadMatchesSingleThreadedMerge() throws IOException {
+        final List<File> inputs = new ArrayList<File>();
+        for (int i = 0; i < 6; ++i) inputs.add(new File(TEST_DATA_PATH, "CEUTrio-random-scatter-" + i + ".vcf"));
+        inputs.add(new File(TEST_DATA_PATH, "CEUTrio-indels.vcf"));
+
+        final File singleThreaded = File.createTempFile("merge-single-threaded-test-output.", ".vcf");
+        final File multiThreaded = File.createTempFile("merge-read-ahead-test-output.", ".vcf");
+        singleThreaded.deleteOnExit();
+        multiThreaded.deleteOnExit();
+
+        runClp(inputs, singleThreaded, Arrays.asList("CREATE_INDEX=false"), 0);
+        runClp(inputs, multiThreaded, Arrays.asList("CREATE_INDEX=false", "THREADS=3"), 0);
+        Assert.assertEquals(Files.readAllLines(multiThreaded.toPath()), Files.readAllLines(singleThreaded.toPath()));
+    }
 }
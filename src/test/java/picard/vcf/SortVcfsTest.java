@@ -10,7 +10,10 @@ import picard.cmdline.CommandLineProgram;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -94,6 +97,39 @@ public class SortVcfsTest extends AbstractVcfMergingClpTester {
     }
 
 
+    @Test
+    public void testScrambledFilesSortedThroughSpillFiles() throws IOException {
+        final List<File> inputs = Arrays.asList(new File(TEST_DATA_PATH, "CEUTrio-indels-scrambled.1.vcf"),
+                new File(TEST_DATA_PATH, "CEUTrio-snps-scrambled.1.vcf"));
+        final File inMemoryOutput = File.createTempFile("sort-in-memory-test-output.", ".vcf");
+        final File spilledOutput = File.createTempFile("sort-spill-test-output.", ".vcf");
+        inMemoryOutput.deleteOnExit();
+        spilledOutput.deleteOnExit();
+
+        final int numberOfVariantContexts = loadContigPositions(inputs.get(0)).size() + loadContigPositions(inputs.get(1)).size();
+
+        runClp(inputs, inMemoryOutput, Arrays.asList("CREATE_INDEX=false"), 0);
+        runClp(inputs, spilledOutput, Arrays.asList("CREATE_INDEX=false", "MAX_RECORDS_IN_RAM=50"), 0);
+        validateSortingResults(spilledOutput, numberOfVariantContexts);
+
+        // Records that went through the spill files must be written out exactly as those that stayed in memory
+        final List<String> expectedRecords = loadRecordLines(inMemoryOutput);
+        final List<String> actualRecords = loadRecordLines(spilledOutput);
+        Collections.sort(expectedRecords);
+        Collections.sort(actualRecords);
+        Assert.assertEquals(actualRecords, expectedRecords);
+    }
+
+    /** Returns the non-header lines of a plain-text VCF. */
+    private static List<String> loadRecordLines(final File vcf) throws IOException {
+        final List<String> records = new ArrayList<String>();
+        for (final String line : Files.readAllLines(vcf.toPath())) {
+            if (!line.startsWith("#")) records.add(line);
+        }
+        return records;
+    }
+
+
     /**
      * Checks the ordering and total number of variant context entries in the specified output VCF file.
      * Does NOT check explicitly that the VC genomic positions match exactly those from the inputs. We assume this behavior from other tests.
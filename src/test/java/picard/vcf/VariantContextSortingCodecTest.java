@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.vcf;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.SortingCollection;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.variantcontext.VariantContextComparator;
+import htsjdk.variant.vcf.VCFEncoder;
+import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeader;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class VariantContextSortingCodecTest {
+    private static final File TEST_DATA_PATH = new File("testdata/picard/vcf/");
+
+    @DataProvider(name = "vcfs")
+    public Object[][] vcfs() {
+        return new Object[][] {
+                {new File(TEST_DATA_PATH, "CEUTrio-snps.vcf")},
+                {new File(TEST_DATA_PATH, "CEUTrio-indels.vcf")},
+                {new File(TEST_DATA_PATH, "CEUTrio-indels-scrambled.1.vcf")}
+        };
+    }
+
+    @Test(dataProvider = "vcfs")
+    public void testRoundTrip(final File vcf) {
+        final VCFFileReader reader = new VCFFileReader(vcf, false);
+        final VCFHeader header = reader.getFileHeader();
+        final VariantContextSortingCodec codec = new VariantContextSortingCodec(header, false);
+        final VCFEncoder encoder = new VCFEncoder(header, false, false);
+
+        final List<VariantContext> originals = new ArrayList<VariantContext>();
+        final CloseableIterator<VariantContext> iterator = reader.iterator();
+        while (iterator.hasNext()) originals.add(iterator.next());
+        iterator.close();
+        reader.close();
+        Assert.assertFalse(originals.isEmpty());
+
+        final List<VariantContext> decoded = roundTrip(codec, originals);
+        Assert.assertEquals(decoded.size(), originals.size());
+
+        final VariantContextComparator expectedComparator = header.getVCFRecordComparator();
+        for (int i = 0; i < originals.size(); i++) {
+            Assert.assertEquals(encoder.encode(decoded.get(i)), encoder.encode(originals.get(i)));
+            if (i > 0) {
+                Assert.assertEquals(Integer.signum(codec.getComparator().compare(decoded.get(i - 1), decoded.get(i))),
+                        Integer.signum(expectedComparator.compare(originals.get(i - 1), originals.get(i))));
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTripOfTypedAttributes() {
+        final VCFFileReader reader = new VCFFileReader(new File(TEST_DATA_PATH, "CEUTrio-snps.vcf"), false);
+        final VCFHeader header = reader.getFileHeader();
+        final VariantContext template = reader.iterator().next();
+        reader.close();
+
+        final VariantContext original = new VariantContextBuilder(template)
+                .alleles(Arrays.asList(Allele.create("A", true), Allele.create("C", false), Allele.create("<DEL>", false)))
+                .attribute("AC", Arrays.asList(1, 2))
+                .attribute("AF", new double[] {0.25, 0.5})
+                .attribute("DP", 17)
+                .attribute("DB", true)
+                .attribute("culprit", "FS")
+                .filter("LowQual")
+                .make();
+
+        final VariantContextSortingCodec codec = new VariantContextSortingCodec(header, false);
+        final VariantContext decoded = roundTrip(codec, Arrays.asList(original)).get(0);
+
+        final VCFEncoder encoder = new VCFEncoder(header, false, false);
+        Assert.assertEquals(encoder.encode(decoded), encoder.encode(original));
+        Assert.assertEquals(decoded.getFilters(), original.getFilters());
+        Assert.assertEquals(decoded.getAlleles(), original.getAlleles());
+    }
+
+    private static List<VariantContext> roundTrip(final VariantContextSortingCodec codec, final List<VariantContext> contexts) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final SortingCollection.Codec<VariantContext> encoder = codec.clone();
+        encoder.setOutputStream(bytes);
+        for (final VariantContext context : contexts) encoder.encode(context);
+
+        final SortingCollection.Codec<VariantContext> decoder = codec.clone();
+        decoder.setInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        final List<VariantContext> decoded = new ArrayList<VariantContext>();
+        VariantContext context;
+        while ((context = decoder.decode()) != null) decoded.add(context);
+        return decoded;
+    }
+}
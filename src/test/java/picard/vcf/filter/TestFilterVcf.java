@@ -25,16 +25,26 @@ package picard.vcf.filter;
 
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CollectionUtil;
+import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.ListMap;
+import htsjdk.samtools.util.TestUtil;
+import htsjdk.tribble.Tribble;
+import htsjdk.tribble.index.IndexFactory;
 import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
 import htsjdk.variant.vcf.VCFFileReader;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 import picard.PicardException;
 import picard.vcf.filter.FilterVcf;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -158,6 +168,49 @@ public class TestFilterVcf {
         Assert.assertEquals(new TreeSet<String>(filters.keySet()), fails, "Failed sites did not match expected set of failed sites.");
     }
 
+    /** Tests that filtering segments in parallel produces the same output as filtering serially, plus a usable index. */
+    @Test public void testMultipleThreads() throws Exception {
+        final File dir = Files.createTempDirectory("filterVcfTest.").toFile();
+        try {
+            final File indexedInput = new File(dir, INPUT.getName());
+            Files.copy(INPUT.toPath(), indexedInput.toPath());
+            IndexFactory.createLinearIndex(indexedInput, new VCFCodec()).writeBasedOnFeatureFile(indexedInput);
+
+            final File serial = testFiltering(indexedInput, ".vcf.gz", 0.4, 18, 22, 5.0d);
+            final File parallel = new File(dir, "parallel.vcf.gz");
+            final FilterVcf filterer = new FilterVcf();
+            final String[] args = {"INPUT=" + indexedInput, "OUTPUT=" + parallel, "MIN_AB=0.4", "MIN_DP=18", "MIN_GQ=22", "MAX_FS=5.0",
+                    "THREADS=3", "TMP_DIR=" + dir};
+            Assert.assertEquals(filterer.instanceMain(args), 0);
+
+            Assert.assertEquals(readLines(parallel), readLines(serial));
+            Assert.assertTrue(Tribble.tabixIndexFile(parallel).exists());
+            final VCFFileReader reader = new VCFFileReader(parallel, true);
+            for (final VariantContext ctx : new VCFFileReader(serial, false)) {
+                final CloseableIterator<VariantContext> query = reader.query(ctx.getContig(), ctx.getStart(), ctx.getEnd());
+                Assert.assertTrue(query.hasNext(), "Index query found nothing at " + ctx);
+                query.close();
+            }
+            reader.close();
+        } finally {
+            TestUtil.recursiveDelete(dir);
+        }
+    }
+
+    /** Returns the decompressed lines of a text file. */
+    private static List<String> readLines(final File file) {
+        final List<String> lines = new ArrayList<String>();
+        final BufferedReader reader = IOUtil.openFileForBufferedReading(file);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) lines.add(line);
+            reader.close();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+        return lines;
+    }
+
     /** Utility method that takes a a VCF and a set of parameters and filters the VCF. */
     File testFiltering(final File vcf, final String outputExtension, final double minAb, final int minDp, final int minGq, final double maxFs) throws Exception {
         final File out = File.createTempFile("filterVcfTest.", outputExtension);
@@ -29,6 +29,7 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
@@ -83,4 +84,47 @@ public class AccumulatorExecutorTest {
             Assert.assertTrue(actualVariantContextStrings.equals(observedVariantContextStrings));
         }
     }
+
+    @Test
+    public void testSizeBalancedChunks() throws Exception {
+        final List<String> actualVariantContextStrings = new ArrayList<String>();
+        for (final File testVcf : TEST_VCFS) {
+            for (final VariantContext variantContext : new VCFFileReader(testVcf)) {
+                actualVariantContextStrings.add(variantContext.toString());
+            }
+        }
+        Collections.sort(actualVariantContextStrings);
+
+        // Every variant must be observed exactly once, however finely the inputs are chunked
+        for (final int threads : new int[]{1, 2, 5}) {
+            for (final int chunkCount : new int[]{1, 7, 100}) {
+                final List<String> observedVariantContextStrings = Collections.synchronizedList(new ArrayList<String>());
+                final VariantAccumulatorExecutor.MultiThreadedChunkBased executor = new VariantAccumulatorExecutor.MultiThreadedChunkBased(
+                        threads,
+                        VariantIteratorProducer.bySizeBalancedChunks(TEST_VCFS, null, chunkCount),
+                        new VariantProcessor.AccumulatorGenerator() {
+                            @Override
+                            public VariantProcessor.Accumulator build() {
+                                return new VariantProcessor.Accumulator() {
+                                    @Override
+                                    public void accumulate(final VariantContext vc) {
+                                        observedVariantContextStrings.add(vc.toString());
+                                    }
+
+                                    @Override
+                                    public Object result() {
+                                        return null;
+                                    }
+                                };
+                            }
+                        }
+                );
+                executor.start();
+                executor.awaitCompletion();
+                Collections.sort(observedVariantContextStrings);
+                Assert.assertEquals(observedVariantContextStrings, actualVariantContextStrings);
+                Assert.assertEquals(executor.workerTimings().size(), threads);
+            }
+        }
+    }
 }
@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.vcf.processor;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.TestUtil;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFFileReader;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class ShardedVcfRewriterTest {
+    private static final File INPUT = new File("testdata/picard/vcf/CEUTrio-snps.vcf");
+
+    @DataProvider(name = "threads")
+    public Object[][] threads() {
+        return new Object[][]{{1}, {2}, {5}};
+    }
+
+    @Test(dataProvider = "threads")
+    public void testIdentityRewrite(final int threads) throws Exception {
+        final File dir = Files.createTempDirectory("ShardedVcfRewriterTest.").toFile();
+        try {
+            final File output = new File(dir, "out.vcf.gz");
+            final VCFFileReader inputReader = new VCFFileReader(INPUT, false);
+            new ShardedVcfRewriter(INPUT, output, inputReader.getFileHeader(), new ShardedVcfRewriter.Transformer() {
+                @Override
+                public Iterator<VariantContext> transform(final Iterator<VariantContext> variants) {
+                    return variants;
+                }
+            }, threads, true, dir).rewrite();
+
+            // The output must hold every input record, in order, and be queryable through its index
+            final List<String> expected = new ArrayList<String>();
+            for (final VariantContext vc : inputReader) expected.add(vc.toStringDecodeGenotypes());
+            inputReader.close();
+
+            final VCFFileReader outputReader = new VCFFileReader(output, true);
+            final List<String> actual = new ArrayList<String>();
+            for (final VariantContext vc : outputReader) {
+                actual.add(vc.toStringDecodeGenotypes());
+                final CloseableIterator<VariantContext> query = outputReader.query(vc.getContig(), vc.getStart(), vc.getEnd());
+                Assert.assertTrue(query.hasNext(), "Index query found nothing at " + vc);
+                query.close();
+            }
+            outputReader.close();
+            Assert.assertEquals(actual, expected);
+        } finally {
+            TestUtil.recursiveDelete(dir);
+        }
+    }
+
+    @Test
+    public void testCanRewrite() {
+        Assert.assertTrue(ShardedVcfRewriter.canRewrite(INPUT, new File("out.vcf.gz")));
+        Assert.assertFalse(ShardedVcfRewriter.canRewrite(INPUT, new File("out.vcf")));
+        Assert.assertFalse(ShardedVcfRewriter.canRewrite(INPUT, new File("out.bcf")));
+        Assert.assertFalse(ShardedVcfRewriter.canRewrite(new File("testdata/picard/vcf/CEUTrio-snps_del_line.vcf"), new File("out.vcf.gz")));
+    }
+}
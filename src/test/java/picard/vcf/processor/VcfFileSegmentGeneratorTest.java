@@ -24,13 +24,18 @@
 package picard.vcf.processor;
 
 import com.google.common.collect.Iterables;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.OverlapDetector;
+import htsjdk.variant.vcf.VCFFileReader;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * @author mccowan
@@ -52,4 +57,22 @@ public class VcfFileSegmentGeneratorTest {
         final VcfFileSegmentGenerator allFiltered = VcfFileSegmentGenerator.excludingNonOverlaps(noFilter, oneTinyIntervalDetector);
         Assert.assertEquals(Iterables.size(allFiltered.forVcf(VCF_WITH_LOGS_OF_GAPS)), 1);
     }
+
+    @Test
+    public void indexEstimatedSizeSegmentsTileEachContigTest() {
+        final VcfFileSegmentGenerator generator = VcfFileSegmentGenerator.byIndexEstimatedSize(16);
+        final SAMSequenceDictionary dictionary = VCFFileReader.getSequenceDictionary(VCF_WITH_LOGS_OF_GAPS);
+
+        // Segments must cover each contig exactly, in order, with no gaps or overlaps
+        final Map<String, Integer> nextStartByContig = new HashMap<String, Integer>();
+        for (final VcfFileSegment segment : generator.forVcf(VCF_WITH_LOGS_OF_GAPS)) {
+            final Integer expectedStart = nextStartByContig.get(segment.contig());
+            Assert.assertEquals(segment.start(), expectedStart == null ? 1 : expectedStart.intValue(), segment.toString());
+            Assert.assertTrue(segment.stop() >= segment.start(), segment.toString());
+            nextStartByContig.put(segment.contig(), segment.stop() + 1);
+        }
+        for (final SAMSequenceRecord sequence : dictionary.getSequences()) {
+            Assert.assertEquals(nextStartByContig.get(sequence.getSequenceName()).intValue(), sequence.getSequenceLength() + 1);
+        }
+    }
 }